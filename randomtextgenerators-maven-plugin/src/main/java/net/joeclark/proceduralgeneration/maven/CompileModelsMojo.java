@@ -0,0 +1,141 @@
+package net.joeclark.proceduralgeneration.maven;
+
+import net.joeclark.proceduralgeneration.ModelResources;
+import net.joeclark.proceduralgeneration.RandomTextGenerator;
+import org.apache.maven.model.Resource;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * <p>Trains generators on corpus files during the build and writes each with
+ * {@link ModelResources#write(RandomTextGenerator, OutputStream)} to a resource directory that's added to the
+ * project, so they're packaged in its jar and can be loaded at startup with, e.g.,
+ * {@code ModelResources.loadMarkov("models/romans.rtgm")}:</p>
+ *
+ * <pre>{@code <plugin>
+ *     <groupId>net.joeclark.proceduralgeneration</groupId>
+ *     <artifactId>randomtextgenerators-maven-plugin</artifactId>
+ *     <version>1.1</version>
+ *     <executions>
+ *         <execution>
+ *             <goals><goal>compile-models</goal></goals>
+ *         </execution>
+ *     </executions>
+ *     <configuration>
+ *         <models>
+ *             <model>
+ *                 <name>romans</name>
+ *                 <corpus>src/main/corpora/romans.txt</corpus>
+ *             </model>
+ *         </models>
+ *     </configuration>
+ * </plugin>}</pre>
+ *
+ * <p>See {@link ModelDefinition} for each model's settings.  A model is trained again only when its corpus or the pom
+ * has changed since it was last written.</p>
+ */
+@Mojo(name = "compile-models", defaultPhase = LifecyclePhase.GENERATE_RESOURCES, threadSafe = true)
+public class CompileModelsMojo extends AbstractMojo {
+
+    /** The models to train. */
+    @Parameter(required = true)
+    List<ModelDefinition> models;
+
+    /** The resource directory to write to, which is added to the project's resources. */
+    @Parameter(defaultValue = "${project.build.directory}/generated-resources/random-text-models", required = true)
+    File outputDirectory;
+
+    /** The path of the models within the resource directory, and so on the classpath. */
+    @Parameter(defaultValue = "models", required = true)
+    String resourcePath;
+
+    /** The encoding of the corpus files. */
+    @Parameter(defaultValue = "${project.build.sourceEncoding}")
+    String encoding;
+
+    /** Skip training the models. */
+    @Parameter(property = "randomtextgenerators.skip", defaultValue = "false")
+    boolean skip;
+
+    @Parameter(defaultValue = "${project}", readonly = true)
+    MavenProject project;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Skipping random text models");
+            return;
+        }
+        Charset charset = (encoding == null) ? StandardCharsets.UTF_8 : Charset.forName(encoding);
+        Path directory = outputDirectory.toPath().resolve(resourcePath);
+        File pom = (project == null) ? null : project.getFile();
+        Set<String> names = new HashSet<>();
+        try {
+            Files.createDirectories(directory);
+            for (ModelDefinition model : models) {
+                model.validate();
+                if (!names.add(model.getName())) {
+                    throw new MojoExecutionException("more than one model is named " + model.getName());
+                }
+                Path target = directory.resolve(model.getName() + ModelResources.EXTENSION);
+                if (isUpToDate(target, model.getCorpus(), pom)) {
+                    getLog().info("Model " + model.getName() + " is up to date");
+                    continue;
+                }
+                compile(model, charset, target);
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch (IOException | UncheckedIOException e) {
+            throw new MojoExecutionException("couldn't write the random text models: " + e.getMessage(), e);
+        }
+        if (project != null) {
+            Resource resource = new Resource();
+            resource.setDirectory(outputDirectory.getAbsolutePath());
+            project.addResource(resource);
+        }
+    }
+
+    private void compile(ModelDefinition model, Charset charset, Path target) throws IOException {
+        long start = System.nanoTime();
+        RandomTextGenerator generator;
+        try (Stream<String> lines = Files.lines(model.getCorpus().toPath(), charset)) {
+            generator = model.train(lines);
+        }
+        // written alongside and then moved into place, so an interrupted build never leaves half a model
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            ModelResources.write(generator, out);
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+        getLog().info(String.format("Compiled %s model %s from %s in %d ms (%d bytes)", model.getType(), model.getName(),
+                model.getCorpus(), (System.nanoTime() - start) / 1_000_000, Files.size(target)));
+    }
+
+    private static boolean isUpToDate(Path target, File corpus, File pom) {
+        if (!Files.exists(target)) {
+            return false;
+        }
+        long written = target.toFile().lastModified();
+        return written >= corpus.lastModified() && (pom == null || written >= pom.lastModified());
+    }
+
+}
@@ -0,0 +1,112 @@
+package net.joeclark.proceduralgeneration.maven;
+
+import net.joeclark.proceduralgeneration.ClusterChainGenerator;
+import net.joeclark.proceduralgeneration.MarkovTextGenerator;
+import net.joeclark.proceduralgeneration.RandomDrawGenerator;
+import net.joeclark.proceduralgeneration.RandomTextGenerator;
+
+import java.io.File;
+import java.util.stream.Stream;
+
+/**
+ * <p>One model for {@link CompileModelsMojo} to train, as configured in the pom:</p>
+ *
+ * <pre>{@code <model>
+ *     <name>romans</name>
+ *     <type>markov</type>
+ *     <corpus>src/main/corpora/romans.txt</corpus>
+ *     <order>3</order>
+ * </model>}</pre>
+ *
+ * <p>The type is {@code markov} (the default), {@code cluster} or {@code draw}, as for the BulkGenerator command line.
+ * Settings that are left out keep the generator's defaults; order and prior apply only to Markov models, and weighted
+ * only to random draws.</p>
+ */
+public class ModelDefinition {
+
+    private String name;
+    private String type = "markov";
+    private File corpus;
+    private Integer order;
+    private Double prior;
+    private Integer minLength;
+    private Integer maxLength;
+    private String startFilter;
+    private String endFilter;
+    private String regex;
+    private boolean weighted;
+
+    // setters, for Maven's configuration and for tests
+    public void setName(String name) { this.name = name; }
+    public void setType(String type) { this.type = type; }
+    public void setCorpus(File corpus) { this.corpus = corpus; }
+    public void setOrder(Integer order) { this.order = order; }
+    public void setPrior(Double prior) { this.prior = prior; }
+    public void setMinLength(Integer minLength) { this.minLength = minLength; }
+    public void setMaxLength(Integer maxLength) { this.maxLength = maxLength; }
+    public void setStartFilter(String startFilter) { this.startFilter = startFilter; }
+    public void setEndFilter(String endFilter) { this.endFilter = endFilter; }
+    public void setRegex(String regex) { this.regex = regex; }
+    public void setWeighted(boolean weighted) { this.weighted = weighted; }
+    // getters
+    public String getName() { return name; }
+    public String getType() { return type; }
+    public File getCorpus() { return corpus; }
+
+    /**
+     * @throws IllegalArgumentException if the name or corpus is missing, the corpus file doesn't exist, or the type isn't known
+     */
+    void validate() {
+        if (name == null || name.isEmpty() || name.contains("/") || name.contains("\\")) {
+            throw new IllegalArgumentException("every model needs a name, without slashes");
+        }
+        if (corpus == null) {
+            throw new IllegalArgumentException("model " + name + " needs a corpus");
+        }
+        if (!corpus.isFile()) {
+            throw new IllegalArgumentException("the corpus " + corpus + " of model " + name + " doesn't exist");
+        }
+        if (!type.equals("markov") && !type.equals("cluster") && !type.equals("draw")) {
+            throw new IllegalArgumentException("model " + name + " has unknown type " + type + "; it should be markov, cluster or draw");
+        }
+    }
+
+    /**
+     * @param lines the corpus, one string per line
+     * @return a generator of the model's type and settings, trained on the corpus
+     */
+    RandomTextGenerator train(Stream<String> lines) {
+        switch (type) {
+            case "cluster": {
+                ClusterChainGenerator cluster = new ClusterChainGenerator();
+                if (minLength != null) cluster.setMinLength(minLength);
+                if (maxLength != null) cluster.setMaxLength(maxLength);
+                if (startFilter != null) cluster.setStartFilter(startFilter);
+                if (endFilter != null) cluster.setEndFilter(endFilter);
+                if (regex != null) cluster.setRegex(regex);
+                return cluster.train(lines);
+            }
+            case "draw": {
+                RandomDrawGenerator draw = new RandomDrawGenerator();
+                if (minLength != null) draw.setMinLength(minLength);
+                if (maxLength != null) draw.setMaxLength(maxLength);
+                if (startFilter != null) draw.setStartFilter(startFilter);
+                if (endFilter != null) draw.setEndFilter(endFilter);
+                if (regex != null) draw.setRegex(regex);
+                return weighted ? draw.trainWeighted(lines) : draw.train(lines);
+            }
+            default: {
+                MarkovTextGenerator markov = new MarkovTextGenerator();
+                if (order != null) markov.setOrder(order);
+                if (prior != null) markov.setPrior(prior);
+                if (minLength != null) markov.setMinLength(minLength);
+                if (maxLength != null) markov.setMaxLength(maxLength);
+                if (startFilter != null) markov.setStartFilter(startFilter);
+                if (endFilter != null) markov.setEndFilter(endFilter);
+                if (regex != null) markov.setRegex(regex);
+                return markov.train(lines);
+            }
+        }
+    }
+
+}
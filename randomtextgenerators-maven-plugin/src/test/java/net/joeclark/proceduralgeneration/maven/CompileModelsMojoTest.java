@@ -0,0 +1,104 @@
+package net.joeclark.proceduralgeneration.maven;
+
+import net.joeclark.proceduralgeneration.ClusterChainGenerator;
+import net.joeclark.proceduralgeneration.MarkovTextGenerator;
+import net.joeclark.proceduralgeneration.ModelResources;
+import net.joeclark.proceduralgeneration.RandomDrawGenerator;
+import net.joeclark.proceduralgeneration.RandomTextGenerator;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("CompileModelsMojo...")
+class CompileModelsMojoTest {
+
+    @TempDir
+    Path dir;
+
+    Path corpus;
+    CompileModelsMojo mojo;
+
+    @BeforeEach
+    void createMojo() throws IOException {
+        corpus = dir.resolve("romans.txt");
+        Files.write(corpus, Arrays.asList("marcus", "gaius", "lucius", "publius", "quintus", "titus", "aulus", "servius", "Ælia"), StandardCharsets.UTF_8);
+        mojo = new CompileModelsMojo();
+        mojo.outputDirectory = dir.resolve("generated").toFile();
+        mojo.resourcePath = "models";
+        mojo.encoding = "UTF-8";
+    }
+
+    private ModelDefinition model(String name, String type) {
+        ModelDefinition model = new ModelDefinition();
+        model.setName(name);
+        model.setType(type);
+        model.setCorpus(corpus.toFile());
+        return model;
+    }
+
+    private RandomTextGenerator read(String name) throws IOException {
+        try (InputStream in = Files.newInputStream(dir.resolve("generated/models/" + name + ModelResources.EXTENSION))) {
+            return ModelResources.read(in);
+        }
+    }
+
+    @Test
+    @DisplayName("trains each kind of model and writes it as a resource")
+    void compilesModels() throws Exception {
+        ModelDefinition markov = model("romans", "markov");
+        markov.setOrder(2);
+        markov.setMaxLength(8);
+        ModelDefinition draw = model("draws", "draw");
+        draw.setWeighted(true);
+        mojo.models = Arrays.asList(markov, model("clusters", "cluster"), draw);
+        mojo.execute();
+
+        MarkovTextGenerator romans = (MarkovTextGenerator) read("romans");
+        assertEquals(2, romans.getOrder());
+        assertEquals(8, romans.getMaxLength());
+        assertTrue(romans.generateOne().length() <= 8);
+        assertTrue(read("clusters") instanceof ClusterChainGenerator);
+        assertTrue(((RandomDrawGenerator) read("draws")).generateOne().length() > 0);
+    }
+
+    @Test
+    @DisplayName("leaves a model alone while its corpus is unchanged")
+    void skipsUpToDateModels() throws Exception {
+        mojo.models = Collections.singletonList(model("romans", "markov"));
+        mojo.execute();
+        Path target = dir.resolve("generated/models/romans" + ModelResources.EXTENSION);
+        Files.write(target, new byte[] {1});
+        assertTrue(target.toFile().setLastModified(corpus.toFile().lastModified() + 10_000));
+        mojo.execute();
+        assertEquals(1, Files.size(target), "an up-to-date model shouldn't be trained again");
+        assertTrue(corpus.toFile().setLastModified(target.toFile().lastModified() + 10_000));
+        mojo.execute();
+        assertTrue(read("romans") instanceof MarkovTextGenerator);
+    }
+
+    @Test
+    @DisplayName("fails the build for a bad model definition")
+    void reportsBadDefinitions() {
+        mojo.models = Collections.singletonList(model("romans", "hidden-markov"));
+        assertThrows(MojoExecutionException.class, mojo::execute);
+        ModelDefinition missing = model("missing", "markov");
+        missing.setCorpus(dir.resolve("nonexistent.txt").toFile());
+        mojo.models = Collections.singletonList(missing);
+        assertThrows(MojoExecutionException.class, mojo::execute);
+        mojo.models = Arrays.asList(model("romans", "markov"), model("romans", "cluster"));
+        assertThrows(MojoExecutionException.class, mojo::execute);
+    }
+
+}
@@ -0,0 +1,104 @@
+package net.joeclark.proceduralgeneration;
+
+import java.util.Random;
+
+/**
+ * Walker's alias method (in Vose's numerically stable form) for drawing from a fixed discrete distribution in
+ * constant time.  Building the table takes time in proportion to the number of outcomes; each draw then costs one
+ * random number, one table lookup and one comparison, however many outcomes there are and however skewed their
+ * weights.
+ */
+final class AliasTable {
+
+    private final double[] probability; // the chance of keeping column i rather than taking its alias
+    private final int[] alias;
+
+    /**
+     * @param weights the relative weight of each outcome; all must be non-negative and at least one positive
+     */
+    AliasTable(double[] weights) {
+        probability = new double[weights.length];
+        alias = new int[weights.length];
+        build(weights, 0, weights.length, probability, alias);
+    }
+
+    /**
+     * Build the table for the weights in [from,to) into the same range of two arrays, so that many small tables can
+     * be packed end to end; see {@link CompiledMarkovModel.BatchTables}.  Aliases are indices into the whole array.
+     * @param weights the relative weight of each outcome; all must be non-negative and at least one positive
+     * @param from the first outcome
+     * @param to the end of the outcomes
+     * @param probability receives the chance of keeping each column rather than taking its alias
+     * @param alias receives the alias of each column
+     */
+    static void build(double[] weights, int from, int to, double[] probability, int[] alias) {
+        int n = to - from;
+        double total = 0.0D;
+        for (int i = from; i < to; i++) {
+            total += weights[i];
+        }
+        if (!(total > 0.0D)) {
+            throw new IllegalArgumentException("at least one weight must be greater than zero");
+        }
+
+        // columns are split into those with less than the average weight and those with more; each small column is
+        // topped up from a large one, which becomes its alias
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[from + i] * n / total;
+            if (scaled[i] < 1.0D) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
+            }
+        }
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall];
+            int l = large[--numLarge];
+            probability[from + s] = scaled[s];
+            alias[from + s] = from + l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1.0D;
+            if (scaled[l] < 1.0D) {
+                small[numSmall++] = l;
+            } else {
+                large[numLarge++] = l;
+            }
+        }
+        // whatever is left over is (up to rounding error) exactly full
+        while (numLarge > 0) {
+            int l = large[--numLarge];
+            probability[from + l] = 1.0D;
+            alias[from + l] = from + l;
+        }
+        while (numSmall > 0) {
+            int s = small[--numSmall];
+            probability[from + s] = 1.0D;
+            alias[from + s] = from + s;
+        }
+    }
+
+    int size() { return probability.length; }
+
+    /**
+     * @param roll a uniformly-distributed random number in [0,1)
+     * @return the index of the outcome drawn
+     */
+    int sample(double roll) {
+        double column = roll * probability.length;
+        int i = Math.min((int) column, probability.length - 1);
+        return (column - i < probability[i]) ? i : alias[i];
+    }
+
+    /**
+     * @param random a random number generator
+     * @return the index of the outcome drawn
+     */
+    int sample(Random random) {
+        return sample(random.nextDouble());
+    }
+
+}
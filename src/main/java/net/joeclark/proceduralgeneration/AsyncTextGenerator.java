@@ -0,0 +1,305 @@
+package net.joeclark.proceduralgeneration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Asynchronous generation from a trained {@link RandomTextGenerator}, for callers that mustn't block, such as
+ * the event loop of a reactive service.  Texts are generated on an executor, by default one shared by all
+ * instances that runs each task on a virtual thread where the JVM has them (Java 21 and later) and otherwise on a
+ * pool of daemon threads, one per core.  Generation can take a while, since a generator may generate and reject
+ * many texts to pass its filters, so it's kept off the caller's thread entirely:</p>
+ *
+ * <pre>{@code AsyncTextGenerator async = new AsyncTextGenerator(generator);
+ * async.generateOne().thenAccept(name -> ...);
+ * async.names().subscribe(mySubscriber);}</pre>
+ *
+ * <p>{@link #names()} publishes an endless stream of texts that honours backpressure: a text is generated only
+ * when the subscriber has asked for one, so a slow consumer never has texts piling up for it.  The library is
+ * built for Java 8, so the {@link Publisher}, {@link Subscriber} and {@link Subscription} interfaces here mirror
+ * those of {@code java.util.concurrent.Flow} (and of Reactive Streams) method for method, with the same rules,
+ * and adapting them to either takes a few lines.</p>
+ *
+ * <p>Each text is generated with the calling thread's {@code ThreadLocalRandom}, via
+ * {@link RandomTextGenerator#generateOne(Random)}, so many can be generated at once; a generator that doesn't
+ * support that is called one text at a time instead.  The generator must not be trained or reconfigured while
+ * it's in use here.</p>
+ */
+public final class AsyncTextGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger( AsyncTextGenerator.class );
+
+    /** {@value}, the most texts a publisher generates in one go before letting other tasks have the thread*/
+    public static final int BATCH_SIZE = 256;
+
+    private final RandomTextGenerator generator;
+    private final GenerationSpec spec;
+    private final Executor executor;
+    private volatile RandomTextGenerator target; // the generator, or its view with the spec applied, once it's first needed
+    private volatile boolean takesRandom = true; // until the target is found not to support generateOne(Random)
+
+    /**
+     * Generate asynchronously on the default executor.
+     * @param generator a trained generator
+     */
+    public AsyncTextGenerator(RandomTextGenerator generator) {
+        this(generator, DefaultExecutor.INSTANCE);
+    }
+
+    /**
+     * @param generator a trained generator
+     * @param executor the executor to generate on
+     */
+    public AsyncTextGenerator(RandomTextGenerator generator, Executor executor) {
+        this(generator, null, executor);
+    }
+
+    private AsyncTextGenerator(RandomTextGenerator generator, GenerationSpec spec, Executor executor) {
+        this.generator = Objects.requireNonNull(generator);
+        this.spec = spec;
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * @param spec the filters to generate with, in place of the generator's own; see {@link GenerationSpec}
+     * @return an AsyncTextGenerator that generates with the spec, on the same executor
+     * @throws UnsupportedOperationException when it generates, if the generator doesn't take filters
+     */
+    public AsyncTextGenerator withSpec(GenerationSpec spec) {
+        return new AsyncTextGenerator(generator, spec, executor);
+    }
+
+    /**
+     * @return a future completed with a random text, or exceptionally if the generator throws
+     */
+    public CompletableFuture<String> generateOne() {
+        return CompletableFuture.supplyAsync(this::generate, executor);
+    }
+
+    /**
+     * @param count the number of texts wanted
+     * @return a future completed with that many random texts, generated in one task
+     * @throws IllegalArgumentException if count is negative
+     */
+    public CompletableFuture<List<String>> generate(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must not be negative");
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            List<String> texts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                texts.add(generate());
+            }
+            return texts;
+        }, executor);
+    }
+
+    /**
+     * @return a publisher of an endless stream of random texts, generated as the subscriber requests them
+     */
+    public Publisher<String> names() {
+        return names(Long.MAX_VALUE);
+    }
+
+    /**
+     * @param count the number of texts to publish before completing (Long.MAX_VALUE for no limit)
+     * @return a publisher of that many random texts, generated as the subscriber requests them
+     * @throws IllegalArgumentException if count is negative
+     */
+    public Publisher<String> names(long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must not be negative");
+        }
+        return subscriber -> {
+            NameSubscription subscription = new NameSubscription(Objects.requireNonNull(subscriber), count);
+            subscriber.onSubscribe(subscription);
+            subscription.drainIfDemanded();
+        };
+    }
+
+    private String generate() {
+        RandomTextGenerator target = this.target;
+        if (target == null) {
+            target = this.target = (spec == null) ? generator : generator.forSpec(spec);
+        }
+        if (takesRandom) {
+            try {
+                return target.generateOne(ThreadLocalRandom.current());
+            } catch (UnsupportedOperationException e) {
+                logger.debug("{} can't generate from a given Random, so will generate one text at a time", target.getClass().getSimpleName());
+                takesRandom = false;
+            }
+        }
+        synchronized (target) {
+            return target.generateOne();
+        }
+    }
+
+    /**
+     * A source of items that are published to a subscriber as it requests them; mirrors
+     * {@code java.util.concurrent.Flow.Publisher}.
+     * @param <T> the type of item
+     */
+    @FunctionalInterface
+    public interface Publisher<T> {
+        /**
+         * Publish to a subscriber, starting with a call to its {@link Subscriber#onSubscribe(Subscription)}.
+         * @param subscriber the subscriber
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items; mirrors {@code java.util.concurrent.Flow.Subscriber}.  Its methods are never called
+     * concurrently, and after onComplete or onError, never again.
+     * @param <T> the type of item
+     */
+    public interface Subscriber<T> {
+        /** @param subscription the subscription, through which items are requested */
+        void onSubscribe(Subscription subscription);
+        /** @param item the next item, only ever sent when requested */
+        void onNext(T item);
+        /** @param throwable the error that ended the subscription */
+        void onError(Throwable throwable);
+        /** The publisher has no more items. */
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and a subscriber; mirrors {@code java.util.concurrent.Flow.Subscription}.
+     */
+    public interface Subscription {
+        /**
+         * Ask for more items.  Requests add up, to at most Long.MAX_VALUE, which means no limit.
+         * @param n the number of items wanted; if it isn't positive, the subscription ends with onError
+         */
+        void request(long n);
+        /** Stop sending items.  Items already being generated may still arrive. */
+        void cancel();
+    }
+
+    // generates texts while there's demand, never on more than one thread at once
+    private final class NameSubscription implements Subscription {
+
+        private final Subscriber<? super String> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger(); // signals to drain; a drain is running while > 0
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private long remaining;
+
+        NameSubscription(Subscriber<? super String> subscriber, long count) {
+            this.subscriber = subscriber;
+            this.remaining = count;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("the number of items requested must be positive, but was " + n);
+            } else {
+                requested.accumulateAndGet(n, (r, m) -> (r + m < 0) ? Long.MAX_VALUE : r + m);
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        void drainIfDemanded() {
+            if (remaining == 0 || requested.get() > 0 || invalidRequest != null) {
+                signal();
+            }
+        }
+
+        private void signal() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            int missed = pending.get();
+            int batch = 0;
+            while (true) {
+                if (cancelled) {
+                    return;
+                }
+                if (invalidRequest != null) {
+                    cancelled = true;
+                    subscriber.onError(invalidRequest);
+                    return;
+                }
+                if (remaining == 0) {
+                    cancelled = true;
+                    subscriber.onComplete();
+                    return;
+                }
+                long demand = requested.get();
+                if (demand > 0) {
+                    if (batch == BATCH_SIZE) {
+                        executor.execute(this::drain); // let other tasks have the thread, and carry on later
+                        return;
+                    }
+                    String name;
+                    try {
+                        name = generate();
+                    } catch (RuntimeException e) {
+                        cancelled = true;
+                        subscriber.onError(e);
+                        return;
+                    }
+                    if (demand != Long.MAX_VALUE) {
+                        requested.decrementAndGet();
+                    }
+                    if (remaining != Long.MAX_VALUE) {
+                        remaining--;
+                    }
+                    batch++;
+                    subscriber.onNext(name);
+                    continue;
+                }
+                // no demand: stop, unless a request came in since this drain started
+                missed = pending.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // virtual threads where the JVM has them, otherwise a daemon thread per core; created when first needed
+    private static final class DefaultExecutor {
+        static final ExecutorService INSTANCE = create();
+
+        private static ExecutorService create() {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                logger.debug("generating asynchronously on virtual threads");
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                AtomicInteger threads = new AtomicInteger();
+                return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                    Thread thread = new Thread(runnable, "random-text-generator-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+    }
+
+}
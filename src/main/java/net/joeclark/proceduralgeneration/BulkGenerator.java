@@ -0,0 +1,265 @@
+package net.joeclark.proceduralgeneration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.PrintStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>A command-line tool that writes large numbers of generated strings to a file, one per line, using every core.
+ * It trains a generator from a text file (or loads a saved model), generates with
+ * {@link SeededGeneration}, so a given seed always gives the same file whatever the number of threads, encodes each
+ * chunk of strings to UTF-8 on the thread that generated it, and writes the chunks in order through a large buffer
+ * to a file channel, optionally gzipped.  Progress and throughput are reported on standard error.</p>
+ *
+ * <pre>
+ * java -cp ... net.joeclark.proceduralgeneration.BulkGenerator --train romans.txt --count 10000000 --output names.txt.gz --gzip
+ * </pre>
+ *
+ * <p>Run it without arguments for the list of options.</p>
+ */
+public final class BulkGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger( BulkGenerator.class );
+
+    /** {@value}*/
+    public static final int OUTPUT_BUFFER_BYTES = 1 << 20;
+
+    private static final long PROGRESS_INTERVAL_NANOS = 1_000_000_000L;
+
+    static final String USAGE = String.join("\n",
+            "usage: BulkGenerator (--train FILE [--type markov|cluster|draw] | --counts FILE | --model FILE) --count N [options]",
+            "  --train FILE        train on a text file, one string per line",
+            "  --type TYPE         the kind of generator to train: markov (the default), cluster or draw",
+            "  --order N           the order of a markov generator",
+            "  --prior P           the prior of a markov generator",
+            "  --counts FILE       load a markov generator from counts saved by MarkovCounts.write()",
+            "  --model FILE        load a serialized ClusterChainGenerator",
+            "  --count N           the number of strings to generate",
+            "  --seed S            the seed (by default a random one, which is reported so the run can be repeated)",
+            "  --threads T         the number of threads (by default one per core)",
+            "  --min-length N, --max-length N, --start-filter S, --end-filter S, --regex R",
+            "                      filters, as set on the generator",
+            "  --output FILE       the file to write (by default standard output)",
+            "  --gzip              gzip the output",
+            "  --quiet             don't report progress");
+
+    private BulkGenerator() {}
+
+    /**
+     * @param args the command line; see {@link #USAGE}
+     */
+    public static void main(String[] args) {
+        System.exit(run(args, System.err));
+    }
+
+    /**
+     * @param args the command line
+     * @param err where to report progress and errors
+     * @return the exit status: 0 on success, 1 if generation or I/O failed, 2 if the command line was wrong
+     */
+    static int run(String[] args, PrintStream err) {
+        Map<String, String> options;
+        RandomTextGenerator generator;
+        long count;
+        long seed;
+        int threads;
+        try {
+            options = parse(args);
+            if (!options.containsKey("count")) {
+                throw new IllegalArgumentException("--count is required");
+            }
+            count = Long.parseLong(options.get("count"));
+            seed = options.containsKey("seed") ? Long.parseLong(options.get("seed")) : new SplittableRandom().nextLong();
+            threads = options.containsKey("threads") ? Integer.parseInt(options.get("threads")) : Runtime.getRuntime().availableProcessors();
+            generator = generator(options);
+        } catch (IllegalArgumentException e) { // including NumberFormatException
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return 2;
+        } catch (IOException | ClassNotFoundException e) {
+            err.println("couldn't load the model: " + e);
+            return 1;
+        }
+
+        boolean quiet = options.containsKey("quiet");
+        if (!quiet) {
+            err.println("generating " + count + " strings with seed " + seed + " on " + threads + " thread(s)");
+        }
+        long start = System.nanoTime();
+        long[] lastReport = { start };
+        long[] bytes = { 0L };
+        try (WritableByteChannel channel = open(options.get("output"), options.containsKey("gzip"));
+             BufferedChannel out = new BufferedChannel(channel)) {
+            SeededGeneration.generate(generator, seed, count, threads, BulkGenerator::encode, (first, chunk) -> {
+                out.write(chunk);
+                bytes[0] += chunk.length;
+                long now = System.nanoTime();
+                if (!quiet && now - lastReport[0] >= PROGRESS_INTERVAL_NANOS) {
+                    err.println(progress(first + SeededGeneration.CHUNK_SIZE, count, bytes[0], now - start));
+                    lastReport[0] = now;
+                }
+            });
+        } catch (IOException e) {
+            err.println("couldn't write the output: " + e);
+            return 1;
+        } catch (RuntimeException e) {
+            err.println("generation failed: " + e.getMessage());
+            return 1;
+        }
+        if (!quiet) {
+            err.println(progress(count, count, bytes[0], System.nanoTime() - start));
+        }
+        return 0;
+    }
+
+    private static String progress(long done, long count, long bytes, long nanos) {
+        double seconds = nanos / 1e9;
+        return String.format("%d of %d strings (%.0f%%) in %.1f s: %.0f strings/s, %.1f MB/s", done, count,
+                100.0D * done / Math.max(1, count), seconds, done / seconds, bytes / 1e6 / seconds);
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (name.equals("gzip") || name.equals("quiet")) {
+                options.put(name, "");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException(args[i] + " needs a value");
+            }
+        }
+        return options;
+    }
+
+    private static RandomTextGenerator generator(Map<String, String> options) throws IOException, ClassNotFoundException {
+        FilterableGenerator generator;
+        if (options.containsKey("train")) {
+            String type = options.getOrDefault("type", "markov");
+            try (Stream<String> lines = Files.lines(Paths.get(options.get("train")), StandardCharsets.UTF_8)) {
+                if (type.equals("markov")) {
+                    MarkovTextGenerator markov = new MarkovTextGenerator();
+                    if (options.containsKey("order")) markov.setOrder(Integer.parseInt(options.get("order")));
+                    if (options.containsKey("prior")) markov.setPrior(Double.parseDouble(options.get("prior")));
+                    generator = markov.train(lines);
+                } else if (type.equals("cluster")) {
+                    generator = new ClusterChainGenerator().train(lines);
+                } else if (type.equals("draw")) {
+                    generator = new RandomDrawGenerator().train(lines);
+                } else {
+                    throw new IllegalArgumentException("unknown generator type " + type);
+                }
+            }
+        } else if (options.containsKey("counts")) {
+            try (InputStream in = Files.newInputStream(Paths.get(options.get("counts")))) {
+                MarkovTextGenerator markov = new MarkovTextGenerator();
+                if (options.containsKey("prior")) markov.setPrior(Double.parseDouble(options.get("prior")));
+                generator = markov.train(MarkovCounts.read(in));
+            }
+        } else if (options.containsKey("model")) {
+            try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(Paths.get(options.get("model"))))) {
+                generator = (ClusterChainGenerator) in.readObject();
+            }
+        } else {
+            throw new IllegalArgumentException("one of --train, --counts or --model is required");
+        }
+        if (options.containsKey("min-length")) generator.setMinLength(Integer.parseInt(options.get("min-length")));
+        if (options.containsKey("max-length")) generator.setMaxLength(Integer.parseInt(options.get("max-length")));
+        if (options.containsKey("start-filter")) generator.setStartFilter(options.get("start-filter"));
+        if (options.containsKey("end-filter")) generator.setEndFilter(options.get("end-filter"));
+        if (options.containsKey("regex")) generator.setRegex(options.get("regex"));
+        return generator;
+    }
+
+    private static WritableByteChannel open(String output, boolean gzip) throws IOException {
+        WritableByteChannel channel;
+        if (output == null || output.equals("-")) {
+            channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        } else {
+            Path path = Paths.get(output);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+        if (gzip) {
+            channel = Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(channel), OUTPUT_BUFFER_BYTES));
+        }
+        return channel;
+    }
+
+    // a chunk of strings as UTF-8 lines
+    private static byte[] encode(String[] chunk) {
+        StringBuilder lines = new StringBuilder(chunk.length * 12);
+        for (String text : chunk) {
+            lines.append(text).append('\n');
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gathers small writes into one large direct buffer, so the channel sees few, large writes.  Closing it flushes
+     * the buffer but leaves the channel open.
+     */
+    private static final class BufferedChannel implements AutoCloseable {
+
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER_BYTES);
+
+        BufferedChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.remaining()) {
+                flush();
+            }
+            if (bytes.length > buffer.capacity()) {
+                drain(ByteBuffer.wrap(bytes));
+            } else {
+                buffer.put(bytes);
+            }
+        }
+
+        private void flush() throws IOException {
+            ((Buffer) buffer).flip(); // Buffer's methods, which Java 8 also has
+            drain(buffer);
+            ((Buffer) buffer).clear();
+        }
+
+        private void drain(ByteBuffer source) throws IOException {
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            logger.debug("flushed the output buffer");
+        }
+    }
+
+}
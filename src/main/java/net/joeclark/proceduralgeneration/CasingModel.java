@@ -0,0 +1,239 @@
+package net.joeclark.proceduralgeneration;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Predicts whether each character of a lowercase text should be capitalized, from the characters (in their original
+ * case) that precede it.  It is trained on the same text as a MarkovTextGenerator, so the generator can learn its
+ * transitions on case-folded text, pooling "A" and "a", while this model reproduces patterns such as the capital
+ * at the start of a name or the "D" in "McDonald".
+ *
+ * <p>Only characters that have an uppercase form are modelled.  For each one, the model counts how often it was
+ * capitalized after each context of up to {@code order} preceding characters, and backs off to shorter contexts
+ * when a longer one was never seen, much as the Markov model itself does.  The last resort is not the character's
+ * overall rate of capitalization, which is dominated by first letters, but its rate after the same kind of
+ * character: the start of the text, a capital, a lowercase letter, or anything else.  Characters are counted as code
+ * points, so letters outside the Basic Multilingual Plane (such as those of the Deseret alphabet) are cased too.</p>
+ *
+ * <p>The contexts are kept in a trie read backwards from each letter, whose children and counts are found by binary
+ * search in sorted arrays of code points, so restoring the case of a text allocates nothing, and is done in place in
+ * the StringBuilder the text was generated into.</p>
+ */
+final class CasingModel {
+
+    private static final int START = 0;
+    private static final int UPPERCASE = 1;
+    private static final int LOWERCASE = 2;
+    private static final int OTHER = 3;
+
+    private final int order;
+    private final Context contexts = new Context(); // the empty context; its descendants are the preceding characters
+    // by the kind of character preceding a letter
+    private final Context[] kinds = { new Context(), new Context(), new Context(), new Context() };
+    private int numContexts; // the number of rows of counts, i.e. of contexts seen with each letter
+
+    // a context in the trie, extended by one more preceding character in each child, with a row of counts for each
+    // folded letter seen after it: {lowercase, capitalized, the capital form seen, or 0}
+    private static final class Context {
+        private int[] preceding = new int[0]; // sorted
+        private Context[] children = new Context[0];
+        private int[] letters = new int[0];   // sorted
+        private int[][] rows = new int[0][];
+
+        Context child(int codePoint) {
+            int i = Arrays.binarySearch(preceding, codePoint);
+            return (i < 0) ? null : children[i];
+        }
+
+        Context addChild(int codePoint) {
+            int i = Arrays.binarySearch(preceding, codePoint);
+            if (i >= 0) {
+                return children[i];
+            }
+            i = -i - 1;
+            preceding = insert(preceding, i, codePoint);
+            Context child = new Context();
+            Context[] grown = Arrays.copyOf(children, children.length + 1);
+            System.arraycopy(children, i, grown, i + 1, children.length - i);
+            grown[i] = child;
+            children = grown;
+            return child;
+        }
+
+        int[] row(int letter) {
+            int i = Arrays.binarySearch(letters, letter);
+            return (i < 0) ? null : rows[i];
+        }
+
+        int[] addRow(int letter) {
+            int i = -Arrays.binarySearch(letters, letter) - 1;
+            letters = insert(letters, i, letter);
+            int[] row = new int[3];
+            int[][] grown = Arrays.copyOf(rows, rows.length + 1);
+            System.arraycopy(rows, i, grown, i + 1, rows.length - i);
+            grown[i] = row;
+            rows = grown;
+            return row;
+        }
+
+        private static int[] insert(int[] sorted, int i, int value) {
+            int[] grown = Arrays.copyOf(sorted, sorted.length + 1);
+            System.arraycopy(sorted, i, grown, i + 1, sorted.length - i);
+            grown[i] = value;
+            return grown;
+        }
+    }
+
+    CasingModel(int order) {
+        this.order = order;
+    }
+
+    int getOrder() { return order; }
+
+    int getNumContexts() { return numContexts; }
+
+    private static boolean hasCase(int folded) {
+        return Character.toUpperCase(folded) != folded;
+    }
+
+    /**
+     * @param text a training string in its original case
+     */
+    void observe(String text) {
+        int previous = MarkovTextGenerator.CONTROL_CHAR;
+        for (int i = 0; i < text.length(); ) {
+            int c = text.codePointAt(i);
+            int folded = Character.toLowerCase(c);
+            if (hasCase(folded)) {
+                Context context = contexts;
+                int j = i;
+                for (int o = 1; o <= order; o++) {
+                    int p = (j > 0) ? Character.codePointBefore(text, j) : MarkovTextGenerator.CONTROL_CHAR;
+                    j -= (j > 0) ? Character.charCount(p) : 0;
+                    context = context.addChild(p);
+                    count(context, folded, c);
+                }
+                count(kinds[kind(previous)], folded, c);
+            }
+            previous = c;
+            i += Character.charCount(c);
+        }
+    }
+
+    private void count(Context context, int folded, int c) {
+        int[] row = context.row(folded);
+        if (row == null) {
+            row = context.addRow(folded);
+            numContexts++;
+        }
+        boolean capitalized = (c != folded);
+        row[capitalized ? 1 : 0]++;
+        if (capitalized && row[2] == 0) {
+            row[2] = c;
+        }
+    }
+
+    /**
+     * @param folded a text in lowercase
+     * @param prefix a string the result must begin with, exactly as given, or null
+     * @param suffix a string the result must end with, exactly as given, or null
+     * @param random used to draw each character's case, or null to choose the more likely case every time
+     * @return the text with its characters' case restored
+     */
+    String restore(String folded, String prefix, String suffix, Random random) {
+        StringBuilder text = new StringBuilder(folded);
+        restore(text, 0, prefix, suffix, random);
+        return text.toString();
+    }
+
+    /**
+     * Restore the case of a text in place.
+     * @param text holds a text in lowercase, from start to its end
+     * @param start where the text begins; anything before it is ignored
+     * @param prefix a string the result must begin with, exactly as given, or null
+     * @param suffix a string the result must end with, exactly as given, or null
+     * @param random used to draw each character's case, or null to choose the more likely case every time
+     */
+    void restore(StringBuilder text, int start, String prefix, String suffix, Random random) {
+        // the filters are as long as their lowercase forms in code points, though not always in chars
+        int prefixLength = (prefix == null) ? 0 : CodePoints.length(prefix);
+        int length = Character.codePointCount(text, start, text.length());
+        int suffixStart = length - ((suffix == null) ? 0 : CodePoints.length(suffix));
+        int prefixOffset = 0;
+        // if the filters overlap, the suffix takes over from the prefix partway through
+        int suffixOffset = (suffix == null) ? 0 : suffix.offsetByCodePoints(0, Math.max(0, prefixLength - suffixStart));
+        int n = 0; // code points so far
+        for (int i = start; i < text.length(); n++) {
+            int c = text.codePointAt(i);
+            int cased;
+            if (n < prefixLength) {
+                cased = prefix.codePointAt(prefixOffset);
+                prefixOffset += Character.charCount(cased);
+            } else if (n >= suffixStart) {
+                cased = suffix.codePointAt(suffixOffset);
+                suffixOffset += Character.charCount(cased);
+            } else {
+                cased = caseOf(text, start, i, c, random);
+            }
+            i = replace(text, i, c, cased);
+        }
+    }
+
+    // replace the code point c at i, returning the index after it
+    private static int replace(StringBuilder text, int i, int c, int cased) {
+        if (cased == c) {
+            return i + Character.charCount(c);
+        }
+        if (Character.charCount(cased) != Character.charCount(c)) {
+            text.replace(i, i + Character.charCount(c), CodePoints.toString(cased)); // no known letter does this
+        } else if (Character.isBmpCodePoint(cased)) {
+            text.setCharAt(i, (char) cased);
+        } else {
+            text.setCharAt(i, Character.highSurrogate(cased));
+            text.setCharAt(i + 1, Character.lowSurrogate(cased));
+        }
+        return i + Character.charCount(cased);
+    }
+
+    // the case of the folded letter at i, given the text (already in its case) from start up to i
+    private int caseOf(CharSequence text, int start, int i, int folded, Random random) {
+        if (!hasCase(folded)) {
+            return folded;
+        }
+        // the longest context (counting back from i) that was seen before this letter
+        int[] row = null;
+        Context context = contexts;
+        for (int o = 1, j = i; o <= order && context != null; o++) {
+            int p = (j > start) ? Character.codePointBefore(text, j) : MarkovTextGenerator.CONTROL_CHAR;
+            j -= (j > start) ? Character.charCount(p) : 0;
+            context = context.child(p);
+            int[] longer = (context == null) ? null : context.row(folded);
+            if (longer != null) {
+                row = longer;
+            }
+        }
+        if (row == null) {
+            int previous = (i > start) ? Character.codePointBefore(text, i) : MarkovTextGenerator.CONTROL_CHAR;
+            row = kinds[kind(previous)].row(folded);
+        }
+        if (row == null || row[1] == 0) {
+            return folded;
+        }
+        if (row[0] == 0) {
+            return row[2]; // most letters are only ever seen in one case after their context, so need no draw
+        }
+        double capitalized = (double) row[1] / (row[0] + row[1]);
+        boolean capitalize = (random == null) ? capitalized > 0.5D : random.nextDouble() < capitalized;
+        return capitalize ? row[2] : folded;
+    }
+
+    // what kind of character precedes a letter: the start of text, uppercase, lowercase, or other
+    private static int kind(int c) {
+        if (c == MarkovTextGenerator.CONTROL_CHAR) {
+            return START;
+        }
+        return Character.isUpperCase(c) ? UPPERCASE : Character.isLowerCase(c) ? LOWERCASE : OTHER;
+    }
+
+}
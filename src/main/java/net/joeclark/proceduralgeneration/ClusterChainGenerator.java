@@ -4,11 +4,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Random;
@@ -40,13 +47,22 @@ import java.util.stream.Stream;
  * anneth
  * ...etc...}</pre>
  *
- * <p>Each newly generated candidate string is compared to filters (minLength, maxLength, startsWith, endsWith)
- * and returned if it passes. If the candidate string is filtered out, we generate another, until one passes.
- * (Be aware that if you configure very difficult-to-match filters, generation time may increase greatly.  If you set
- * up impossible-to-match filters, e.g. requiring characters that aren't in the training data set's alphabet, you will
- * get an infinite loop.)</p>
+ * <p>The filters (minLength, maxLength, startsWith, endsWith, and a regex if one is set) are matched during the
+ * walk rather than afterwards.  The walk keeps track of how many characters it has left and how much of the
+ * endFilter it has matched, and works out, for each cluster sequence it reaches with each budget, the probability
+ * that a walk from there ends within the filters; each cluster is drawn in proportion to its own weight times that
+ * probability.  So every walk lands inside the length window and ends with the endFilter on the first try, and the
+ * strings come out exactly as often as they would if unfiltered strings were generated and those that fail the
+ * filters discarded.  Impossible filters are reported with an exception.  Working out those probabilities is only
+ * practical over the sequences observed in training, so once priors are added, or if the filters leave too many
+ * possibilities to work out, strings are generated and discarded in just that way instead (giving up with an
+ * exception after {@value #MAX_REJECTED_WALKS} tries).</p>
+ *
+ * <p>Text is split into clusters by Unicode code point, and lengths are counted in code points, so a character
+ * outside the Basic Multilingual Plane (such as an emoji) is never split in two and counts as one character.  Only
+ * characters in the Basic Multilingual Plane can be vowels.</p>
  */
-public class ClusterChainGenerator implements RandomTextGenerator, Serializable {
+public class ClusterChainGenerator implements FilterableGenerator, Serializable, Cloneable {
     private static final Logger logger = LoggerFactory.getLogger( ClusterChainGenerator.class );
     private static final long serialVersionUID = 1L;
 
@@ -55,12 +71,12 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ClusterChainGenerator that = (ClusterChainGenerator) o;
-        return minLength == that.minLength && maxLength == that.maxLength && Objects.equals(startFilter, that.startFilter) && Objects.equals(startFilterClusters, that.startFilterClusters) && Objects.equals(endFilter, that.endFilter) && Objects.equals(endFilterClusters, that.endFilterClusters) && Objects.equals(vowels, that.vowels) && Objects.equals(clusterChain, that.clusterChain) && Objects.equals(longestClusterLength, that.longestClusterLength);
+        return minLength == that.minLength && maxLength == that.maxLength && Objects.equals(startFilter, that.startFilter) && Objects.equals(startFilterClusters, that.startFilterClusters) && Objects.equals(endFilter, that.endFilter) && Objects.equals(endFilterClusters, that.endFilterClusters) && Objects.equals(regex, that.regex) && Objects.equals(vowels, that.vowels) && Objects.equals(clusterChain, that.clusterChain) && Objects.equals(longestClusterLength, that.longestClusterLength);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(minLength, maxLength, startFilter, startFilterClusters, endFilter, endFilterClusters, vowels, clusterChain, longestClusterLength);
+        return Objects.hash(minLength, maxLength, startFilter, startFilterClusters, endFilter, endFilterClusters, regex, vowels, clusterChain, longestClusterLength);
     }
 
     /** {@value}*/
@@ -76,6 +92,14 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
     // TODO: add a Greek vowel set
     // TODO: add other language vowel sets
 
+    /** {@value}*/
+    public static final int DEFAULT_COMPACTION_MIN_PREFIX_COUNT = 2;
+    /** {@value}*/
+    public static final int DEFAULT_COMPACTION_BITS = 8;
+
+    /** {@value}*/
+    public static final int MAX_REJECTED_WALKS = 100000;
+
     static final char CONTROL_CHAR = '\u001F';  // to indicate beginning and end of input; must not be in the data's alphabet
 
 
@@ -85,7 +109,19 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
     private List<String> startFilterClusters; // holds the startFilter broken down into clusters
     private String endFilter;
     private List<String> endFilterClusters; // holds the endFilter broken down into clusters
-    // todo: add a regex match option
+    private String regex;
+    private transient RegexAutomaton regexAutomaton; // compiled from regex when first needed
+    // samples texts that pass the filters, kept as long as the settings it was built with still apply.  The sampler
+    // is written before its settings, so a thread that sees the current settings also sees the sampler built for them
+    private transient volatile ConstrainedSampler<List<String>> sampler;
+    private transient volatile List<Object> samplerSettings;
+    private transient int modelVersion; // counts changes to the cluster chain
+    // the statistics of the chain, computed once per modelVersion; statisticsVersion is volatile and written last
+    private transient ModelStatistics statistics;
+    private transient volatile int statisticsVersion;
+
+    // copies with each recently used GenerationSpec applied; not shared with copies of this generator
+    private transient volatile SpecCache<ClusterChainGenerator> specCache;
     private Random random = new Random();
 
 
@@ -110,6 +146,20 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
         // also break it down into an array of vowel/consonant clusters
         endFilterClusters = clusterize(endFilter);
     }
+    /**
+     * Constrain the output to texts that match a regular expression in full.  Rather than generating texts and
+     * discarding those that don't match, the pattern is compiled to a finite automaton that is walked in step with
+     * the cluster chain, and at each step only clusters from which a match can still be completed (within the
+     * length limits and the end filter) are drawn.  Output is lowercase, so the pattern should be too.  The syntax
+     * is that of java.util.regex, less the constructs that aren't regular: back-references, lookaround, possessive
+     * quantifiers and flags.
+     * @param regex a regular expression, or null for none
+     * @throws IllegalArgumentException if the regular expression is malformed or unsupported
+     */
+    public void setRegex(String regex) {
+        this.regexAutomaton = (regex == null) ? null : new RegexAutomaton(regex);
+        this.regex = regex;
+    }
     public void setRandom(Random random) { this.random = random; }
     // getters
     public int getDatasetLength() { return clusterChain.getNumTrainedSequences(); }
@@ -118,6 +168,30 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
     public Set<Character> getVowels() { return vowels; }
     public String getStartFilter() { return startFilter; }
     public String getEndFilter() { return endFilter; }
+    public String getRegex() { return regex; }
+    MultiOrderMarkovChain<String> getClusterChain() { return clusterChain; }
+
+    /**
+     * Adopt a cluster chain read from a model resource, in place of training; used by {@link ModelResources}.
+     * @param chain the trained chain
+     */
+    void restore(MultiOrderMarkovChain<String> chain) {
+        clusterChain = chain;
+        modelVersion++;
+        longestClusterLength = chain.allKnownStates().stream().mapToInt(CodePoints::length).max().orElse(0);
+    }
+
+    /**
+     * Use an equal vowel set held by other models in place of this one's, to save memory; used by
+     * {@link ModelRegistry}.  Setting new vowels replaces the set rather than changing it.
+     * @param shared a set equal to this generator's vowels
+     */
+    void shareVowels(Set<Character> shared) {
+        if (!shared.equals(vowels)) {
+            throw new IllegalArgumentException("a shared vowel set must equal the generator's own");
+        }
+        vowels = shared;
+    }
 
 
     /**
@@ -130,15 +204,15 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
         logger.trace("original string: {}",original);
         List<String> clusters = new ArrayList<>();
         StringBuilder newCluster = new StringBuilder();
-        char[] chars = original.toCharArray();
-        boolean vowelCluster = vowels.contains(chars[0]);
-        for(char c: chars) {
-            if( (vowels.contains(c)) == vowelCluster ) {
-                newCluster.append(c);
+        int[] codePoints = original.codePoints().toArray();  // so that a surrogate pair is never split between clusters
+        boolean vowelCluster = isVowel(codePoints[0]);
+        for(int c: codePoints) {
+            if( isVowel(c) == vowelCluster ) {
+                newCluster.appendCodePoint(c);
             } else {
                 clusters.add(newCluster.toString());
                 newCluster = new StringBuilder();
-                newCluster.append(c);
+                newCluster.appendCodePoint(c);
                 vowelCluster = !vowelCluster;
             }
         }
@@ -146,6 +220,13 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
         logger.trace("clusterized string: {}",clusters);
         return clusters;
     }
+    private boolean isVowel(int codePoint) {
+        return Character.isBmpCodePoint(codePoint) && vowels.contains((char) codePoint);
+    }
+    // a cluster is all vowels or all consonants, so its first character says which
+    boolean isVowelCluster(String cluster) {
+        return isVowel(cluster.codePointAt(0));
+    }
     private List<String> addControlChars(List<String> clusterlist) {
         clusterlist.add(0,String.valueOf(CONTROL_CHAR));
         clusterlist.add(String.valueOf(CONTROL_CHAR));
@@ -218,6 +299,15 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
         return this;
     }
 
+    /**
+     * @param regex a regular expression that the whole output must match, in lowercase; see {@link #setRegex(String)}
+     * @return the same ClusterChainGenerator
+     */
+    public ClusterChainGenerator withRegex(String regex) {
+        setRegex(regex);
+        return this;
+    }
+
     /**
      * Sets the 'MaxOrder' parameter of the internal Markov chain.  The default is 3.  A higher maxOrder produces
      * patterns more like the training data, but is slower and less random. See the documentation of
@@ -232,6 +322,7 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
 
     public void setMaxOrder(int order) {
         clusterChain.setMaxOrder(order);
+        modelVersion++;
     }
 
     /**
@@ -257,6 +348,7 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
     public void setPriors(Double prior) {
         clusterChain.removeWeakLinks();
         clusterChain.addPriors(prior);
+        modelVersion++;
     }
 
     /**
@@ -270,7 +362,8 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
                     .map(this::clusterize)
                     .map(this::addControlChars)
         );
-        Optional<Integer> maxClusterLength = clusterChain.allKnownStates().stream().map(String::length).max( Comparator.comparing(Integer::valueOf) );
+        modelVersion++;
+        Optional<Integer> maxClusterLength = clusterChain.allKnownStates().stream().map(CodePoints::length).max( Comparator.comparing(Integer::valueOf) );
         if( maxClusterLength.isPresent() ) { this.longestClusterLength = maxClusterLength.get(); }
 
         logger.info("ingested a stream of training data. model derived from {} text strings containing {} clusters",clusterChain.getNumTrainedSequences(),clusterChain.getNumKnownState()-1);
@@ -288,68 +381,527 @@ public class ClusterChainGenerator implements RandomTextGenerator, Serializable
 
 
     /**
-     * @return a randomly-generated text string built from cluster sequences from the training data. If you have set
-     * filters such as maximum and minimum length, or a starting and ending sequence, be careful that those filters
-     * are not impossible given the training data. You could end up with an infinite loop or an exception if your
-     * conditions are impossible to satisfy.
-     * @throws IllegalStateException if model has not been trained
+     * @return a randomly-generated text string built from cluster sequences from the training data, which passes
+     * the filters on the first try
+     * @throws IllegalStateException if model has not been trained, or if no text the model can generate passes the
+     * filters
+     * @throws IllegalArgumentException if the startFilter contains clusters not found in the training data
      */
     @Override
     public String generateOne() {
+        return generateOne(random);
+    }
+
+    /**
+     * Generate a random string as {@link #generateOne()} does, but drawing on the given source of randomness rather
+     * than the generator's own.  This may be called from several threads at once, each with its own Random, as long
+     * as the generator isn't trained or reconfigured meanwhile.
+     * @param random the source of randomness
+     * @return a random string
+     * @throws IllegalStateException as {@link #generateOne()} does
+     */
+    @Override
+    public String generateOne(Random random) {
+        StringBuilder newText = new StringBuilder();
+        generateInto(random, newText);
+        return newText.toString();
+    }
+
+    /**
+     * Generate a random string as {@link #generateOne()} does, but append it to a StringBuilder instead of returning
+     * a new String.  The clusters are appended as they're drawn, so no String is built for the text or any part of
+     * it.
+     * @param out the StringBuilder to append to
+     * @return the number of chars appended
+     * @throws IllegalStateException as {@link #generateOne()} does
+     */
+    @Override
+    public int generateInto(StringBuilder out) {
+        return generateInto(random, out);
+    }
+
+    /**
+     * Generate a random string into a StringBuilder, as {@link #generateInto(StringBuilder)} does, drawing on the
+     * given source of randomness rather than the generator's own; see {@link #generateOne(Random)}.
+     * @param random the source of randomness
+     * @param out the StringBuilder to append to
+     * @return the number of chars appended
+     * @throws IllegalStateException as {@link #generateOne()} does
+     */
+    @Override
+    public int generateInto(Random random, StringBuilder out) {
 
         if (!isTrained()) {
             throw new IllegalStateException("model has not yet been trained");
-        } else {
-            String nextcluster;
-            String returnText;
-            List<String> word;
-            int wordlength;
-            do {
-                // generate another word
-
-                wordlength = 0;
-                word = new ArrayList<>( Arrays.asList( String.valueOf(CONTROL_CHAR) ) );
-
-                if ( startFilterClusters != null ) {
-                    if ( !clusterChain.allKnownStates().containsAll(startFilterClusters) ) {
-                        throw new IllegalArgumentException("startFilter contains cluster(s) not found in the training data");
-                    } else {
-                        word.addAll(startFilterClusters);
-                    }
+        }
+        if ( startFilterClusters != null && !clusterChain.allKnownStates().containsAll(startFilterClusters) ) {
+            throw new IllegalArgumentException("startFilter contains cluster(s) not found in the training data");
+        }
+        int start = out.length();
+        if (!sampler().sampleInto(startFilter, random, out)) {
+            rejectionSampleInto(random, out);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("new random text string generated: {}", out.subSequence(start, out.length()));
+        }
+        return out.length() - start;
+    }
+
+    /**
+     * Find the most probable text strings the cluster chain can generate that pass the configured filters, instead
+     * of random ones.  This is a best-first search through the chain, so it costs time in proportion to the number
+     * of strings requested rather than the number of random samples it would take to find them.  Once priors are
+     * added, a string's probability is taken to be that of the one walk that alternates vowel and consonant clusters
+     * as {@link #clusterize(String)} splits it, since the walks that split a run of vowels or consonants in two
+     * would only spell the same strings again.
+     * @param k the number of text strings wanted
+     * @return up to k distinct text strings, most probable first
+     * @throws IllegalStateException if model has not been trained
+     */
+    public List<String> generateMostProbable(int k) {
+        return generateMostProbable(k, MostProbableTextSearch.DEFAULT_FRONTIER_LIMIT);
+    }
+
+    /**
+     * @param k the number of text strings wanted
+     * @param frontierLimit the maximum number of partial strings the search keeps in memory. when it overflows, the
+     *                      least probable are discarded, so a very small limit may miss some results
+     * @return up to k distinct text strings, most probable first
+     * @throws IllegalStateException if model has not been trained
+     */
+    public List<String> generateMostProbable(int k, int frontierLimit) {
+        if (!isTrained()) {
+            throw new IllegalStateException("model has not yet been trained");
+        }
+        return MostProbableTextSearch.search(new ClusterTextChain(this), k, frontierLimit, minLength, maxLength, startFilter, filterAutomaton());
+    }
+
+    /**
+     * Count exactly how many distinct text strings the cluster chain can generate that pass the configured filters,
+     * following only sequences that were observed in the training data (that is, ignoring priors).  The count is
+     * computed by dynamic programming, without generating the strings, so it is fast even when the answer is huge.
+     * @return the number of possible text strings
+     * @throws IllegalStateException if model has not been trained
+     */
+    public BigInteger countPossibleTexts() {
+        return reachableTexts(true, 0.0D).count();
+    }
+
+    /**
+     * Count the distinct text strings the cluster chain can generate that pass the configured filters, following
+     * only transitions at least as probable as a floor.  Priors also link clusters of the same kind, so that "ae"
+     * then "o" spells the same string as "aeo"; only links that alternate between vowel and consonant clusters are
+     * followed, as {@link #clusterize(String)} splits text, so each string is counted once.  A string that could only
+     * be spelled by splitting a run of vowels or consonants (because the run was never seen as one cluster) isn't
+     * counted.
+     * @param minProbability only follow transitions at least this probable, whether they were observed in training
+     *                       or added as priors
+     * @return the number of possible text strings that pass the configured filters
+     * @throws IllegalStateException if model has not been trained
+     */
+    public BigInteger countPossibleTexts(double minProbability) {
+        return reachableTexts(false, minProbability).count();
+    }
+
+    /**
+     * List every distinct text string the cluster chain can generate that pass the configured filters, following only
+     * sequences that were observed in the training data (that is, ignoring priors).  The strings are produced lazily,
+     * so this is practical even if there are far too many of them to hold in memory at once.
+     * @return an Iterator over the possible text strings
+     * @throws IllegalStateException if model has not been trained
+     */
+    public Iterator<String> enumeratePossibleTexts() {
+        return reachableTexts(true, 0.0D).iterator();
+    }
+
+    /**
+     * List the distinct text strings the cluster chain can generate that pass the configured filters, following only
+     * transitions at least as probable as a floor; exactly the strings {@link #countPossibleTexts(double)} counts.
+     * @param minProbability only follow transitions at least this probable, whether they were observed in training
+     *                       or added as priors
+     * @return an Iterator over the possible text strings that pass the configured filters
+     * @throws IllegalStateException if model has not been trained
+     */
+    public Iterator<String> enumeratePossibleTexts(double minProbability) {
+        return reachableTexts(false, minProbability).iterator();
+    }
+
+    /**
+     * Shrink a trained cluster chain with the default settings: sequences of clusters observed fewer than
+     * {@value #DEFAULT_COMPACTION_MIN_PREFIX_COUNT} times are pruned and weights are rounded to
+     * {@value #DEFAULT_COMPACTION_BITS} significant bits.
+     * @return a report of the size before and after, and of how much the predictions changed
+     * @throws IllegalStateException if model has not been trained
+     * @see #compact(int, int)
+     */
+    public CompactionReport compact() {
+        return compact(DEFAULT_COMPACTION_MIN_PREFIX_COUNT, DEFAULT_COMPACTION_BITS);
+    }
+
+    /**
+     * Shrink a trained cluster chain, trading a little fidelity for memory.  Sequences of two or more clusters that
+     * were observed fewer than minPrefixCount times are pruned, so generation backs off to the longest shorter
+     * sequence that remains.  Every weight is rounded to 8 or 16 significant bits, which leaves counts below 256
+     * (or 65536) exact, and equal weights and clusters then share a single object each instead of one per link.
+     * The model can still be trained further afterwards, but pruned sequences will only be relearned from the new
+     * data.
+     * @param minPrefixCount sequences observed fewer times than this are pruned (1 prunes nothing)
+     * @param quantizationBits 8 or 16 to round the weights, or 0 to keep them exact
+     * @return a report of the size before and after, and of how much the predictions changed
+     * @throws IllegalStateException if model has not been trained
+     * @throws IllegalArgumentException if quantizationBits is not 0, 8 or 16, or minPrefixCount is less than 1
+     */
+    public CompactionReport compact(int minPrefixCount, int quantizationBits) {
+        if (!isTrained()) {
+            throw new IllegalStateException("model has not yet been trained");
+        }
+        if (quantizationBits != 0 && quantizationBits != 8 && quantizationBits != 16) {
+            throw new IllegalArgumentException("quantizationBits must be 0, 8 or 16");
+        }
+        if (minPrefixCount < 1) {
+            throw new IllegalArgumentException("minPrefixCount must be at least 1");
+        }
+        Map<List<String>, Map<String, Double>> model = clusterChain.getModel();
+        int prefixesBefore = model.size();
+        long bytesBefore = estimatedModelBytes(model);
+
+        // keep a copy of the rows whose predictions are compared afterwards: the longest sequences the chain uses
+        Map<List<String>, Map<String, Double>> originalRows = new HashMap<>();
+        model.forEach( (sequence, row) -> {
+            if (sequence.size() == clusterChain.getMaxOrder() || sequence.get(0).equals(String.valueOf(CONTROL_CHAR))) {
+                originalRows.put(sequence, new HashMap<>(row));
+            }
+        });
+
+        // the chain's own set of known clusters provides the canonical instance of each cluster
+        Map<String, String> clusters = new HashMap<>();
+        clusterChain.allKnownStates().forEach( cluster -> clusters.put(cluster, cluster) );
+        Map<Double, Double> weights = new HashMap<>();
+
+        Map<List<String>, Map<String, Double>> compacted = new LinkedHashMap<>();
+        model.forEach( (sequence, row) -> {
+            if (sequence.size() > 1 && observedWeight(row) < minPrefixCount) {
+                return;
+            }
+            List<String> canonicalSequence = new ArrayList<>(sequence.size());
+            sequence.forEach( cluster -> canonicalSequence.add(clusters.get(cluster)) );
+            Map<String, Double> canonicalRow = new HashMap<>();
+            row.forEach( (cluster, weight) -> {
+                double rounded = roundToSignificantBits(weight, quantizationBits);
+                canonicalRow.put(clusters.get(cluster), weights.computeIfAbsent(rounded, w -> w));
+            });
+            compacted.put(canonicalSequence, canonicalRow);
+        });
+        model.clear();
+        model.putAll(compacted);
+        modelVersion++;
+
+        double weightedDivergence = 0.0D;
+        double totalWeight = 0.0D;
+        for (Map.Entry<List<String>, Map<String, Double>> entry : originalRows.entrySet()) {
+            double weight = observedWeight(entry.getValue());
+            weightedDivergence += weight * divergence(entry.getValue(), longestKnownSuffix(model, entry.getKey()));
+            totalWeight += weight;
+        }
+        CompactionReport report = new CompactionReport(prefixesBefore, model.size(), bytesBefore, estimatedModelBytes(model),
+                totalWeight == 0.0D ? 0.0D : weightedDivergence / totalWeight / Math.log(2));
+        logger.info("compacted the cluster chain: {}", report);
+        return report;
+    }
+
+    // the total weight of the links actually seen in training, as opposed to priors
+    private static double observedWeight(Map<String, Double> row) {
+        double total = 0.0D;
+        for (double weight : row.values()) {
+            if (weight >= 1.0D) {
+                total += weight;
+            }
+        }
+        return total;
+    }
+
+    private static double roundToSignificantBits(double weight, int bits) {
+        if (bits == 0 || weight == 0.0D) {
+            return weight;
+        }
+        double scale = Math.scalb(1.0D, bits - 1 - Math.getExponent(weight));
+        return Math.rint(weight * scale) / scale;
+    }
+
+    private static Map<String, Double> longestKnownSuffix(Map<List<String>, Map<String, Double>> model, List<String> sequence) {
+        for (int i = 0; i < sequence.size(); i++) {
+            Map<String, Double> row = model.get(sequence.subList(i, sequence.size()));
+            if (row != null) {
+                return row;
+            }
+        }
+        throw new IllegalStateException("compaction removed a single-cluster model");
+    }
+
+    // Kullback-Leibler divergence of q from p, in nats
+    private static double divergence(Map<String, Double> p, Map<String, Double> q) {
+        double pTotal = p.values().stream().mapToDouble(Double::doubleValue).sum();
+        double qTotal = q.values().stream().mapToDouble(Double::doubleValue).sum();
+        double divergence = 0.0D;
+        for (Map.Entry<String, Double> entry : p.entrySet()) {
+            double pi = entry.getValue() / pTotal;
+            double qi = q.getOrDefault(entry.getKey(), 0.0D) / qTotal;
+            if (pi > 0.0D) {
+                divergence += pi * Math.log(pi / qi);
+            }
+        }
+        return divergence;
+    }
+
+    /**
+     * Summarize the trained cluster chain's shape and size: sequences of each number of clusters, alphabet and
+     * clusters, transitions, estimated heap, the distributions of branching factor and entropy over sequences, and
+     * the expected length of a text.  The chain's boxed maps are walked once to lay its transitions out in flat
+     * arrays, and the result is kept until the chain is trained further or compacted.
+     * @return the statistics
+     * @throws IllegalStateException if model has not been trained
+     */
+    public ModelStatistics getStatistics() {
+        if (!isTrained()) {
+            throw new IllegalStateException("model has not yet been trained");
+        }
+        if (statisticsVersion != modelVersion || statistics == null) {
+            int version = modelVersion;
+            statistics = computeStatistics();
+            statisticsVersion = version;
+        }
+        return statistics;
+    }
+
+    private ModelStatistics computeStatistics() {
+        Map<List<String>, Map<String, Double>> model = clusterChain.getModel();
+        int maxOrder = clusterChain.getMaxOrder();
+        String control = String.valueOf(CONTROL_CHAR);
+
+        List<List<String>> sequences = new ArrayList<>(model.keySet());
+        Map<List<String>, Integer> stateIds = new HashMap<>();
+        for (int s = 0; s < sequences.size(); s++) {
+            stateIds.put(sequences.get(s), s);
+        }
+
+        int[] prefixesByOrder = new int[maxOrder + 1];
+        double[] branchingFactors = new double[sequences.size()];
+        double[] entropies = new double[sequences.size()];
+        int[] rowStart = new int[sequences.size() + 1];
+        List<Integer> next = new ArrayList<>();
+        List<Double> probabilities = new ArrayList<>();
+        List<Double> tokenLengths = new ArrayList<>();
+        for (int s = 0; s < sequences.size(); s++) {
+            List<String> sequence = sequences.get(s);
+            Map<String, Double> row = model.get(sequence);
+            prefixesByOrder[Math.min(maxOrder, sequence.size())]++;
+            double total = observedWeight(row);
+            double entropy = 0.0D;
+            int observed = 0;
+            for (Map.Entry<String, Double> link : row.entrySet()) {
+                if (link.getValue() < 1.0D) {
+                    continue; // a prior
+                }
+                double probability = link.getValue() / total;
+                entropy -= probability * Math.log(probability);
+                observed++;
+                probabilities.add(probability);
+                if (link.getKey().equals(control)) {
+                    next.add(ModelStatistics.END);
+                    tokenLengths.add(0.0D);
+                } else {
+                    List<String> extended = new ArrayList<>(sequence);
+                    extended.add(link.getKey());
+                    next.add(longestKnownSuffixId(stateIds, extended, maxOrder));
+                    tokenLengths.add((double) link.getKey().codePointCount(0, link.getKey().length()));
                 }
+            }
+            branchingFactors[s] = observed;
+            entropies[s] = entropy / Math.log(2);
+            rowStart[s + 1] = rowStart[s] + observed;
+        }
 
-                while ( word.size()==1 || !word.get(word.size()-1).equals(String.valueOf(CONTROL_CHAR)) ) {
-                    // if near end and possible, add endfilter
-                    if (( endFilterClusters != null ) && (wordlength >= maxLength - longestClusterLength - endFilter.length() - 1)) {
-                        if (clusterChain.allPossibleNext(word.subList(word.size() - 1, word.size())).contains(endFilterClusters.get(0))) {
-                            // if it is possible for the last randomly drawn cluster to transition to the specified end filter, add it and exit the loop
-                            word.addAll(endFilterClusters);
-                            word.add(String.valueOf(CONTROL_CHAR));
-                            break;
-                        }
-                    }
+        Set<Integer> alphabet = new HashSet<>();
+        int clusterCount = 0;
+        for (String cluster : clusterChain.allKnownStates()) {
+            if (!cluster.equals(control)) {
+                clusterCount++;
+                cluster.codePoints().forEach(alphabet::add);
+            }
+        }
+        Map<String, Long> bytesByStructure = new LinkedHashMap<>();
+        bytesByStructure.put("cluster chain", estimatedModelBytes(model));
+        double expectedLength = ModelStatistics.expectedLength(
+                longestKnownSuffixId(stateIds, Collections.singletonList(control), maxOrder), rowStart,
+                next.stream().mapToInt(Integer::intValue).toArray(),
+                probabilities.stream().mapToDouble(Double::doubleValue).toArray(),
+                tokenLengths.stream().mapToDouble(Double::doubleValue).toArray());
+        return new ModelStatistics(prefixesByOrder, alphabet.size(), clusterCount, probabilities.size(), bytesByStructure,
+                ModelStatistics.Distribution.of(branchingFactors), ModelStatistics.Distribution.of(entropies), expectedLength);
+    }
+
+    // the index of the longest suffix of a sequence, no longer than maxOrder, that the chain has a row for
+    private static int longestKnownSuffixId(Map<List<String>, Integer> stateIds, List<String> sequence, int maxOrder) {
+        for (int i = Math.max(0, sequence.size() - maxOrder); i < sequence.size(); i++) {
+            Integer id = stateIds.get(sequence.subList(i, sequence.size()));
+            if (id != null) {
+                return id;
+            }
+        }
+        return ModelStatistics.END;
+    }
 
-                    // draw another cluster
-                    nextcluster = clusterChain.weightedRandomNext(word);
-                    word.add( nextcluster );
-                    wordlength += nextcluster.length();
-                    logger.debug("word under development: {}",word);
+    // counts each distinct String and Double once, since compaction makes many links share them
+    private static long estimatedModelBytes(Map<List<String>, Map<String, Double>> model) {
+        Map<Object, Boolean> seen = new IdentityHashMap<>();
+        long bytes = HeapEstimator.hashMap(model.size());
+        for (Map.Entry<List<String>, Map<String, Double>> entry : model.entrySet()) {
+            bytes += HeapEstimator.ARRAY_LIST + HeapEstimator.array(entry.getKey().size(), HeapEstimator.REFERENCE);
+            for (String cluster : entry.getKey()) {
+                if (seen.put(cluster, Boolean.TRUE) == null) {
+                    bytes += HeapEstimator.string(cluster.length());
+                }
+            }
+            bytes += HeapEstimator.hashMap(entry.getValue().size());
+            for (Map.Entry<String, Double> link : entry.getValue().entrySet()) {
+                if (seen.put(link.getKey(), Boolean.TRUE) == null) {
+                    bytes += HeapEstimator.string(link.getKey().length());
+                }
+                if (seen.put(link.getValue(), Boolean.TRUE) == null) {
+                    bytes += HeapEstimator.BOXED_PRIMITIVE;
                 }
+            }
+        }
+        return bytes;
+    }
 
-                returnText = String.join("",word);
-                logger.debug("new candidate text string generated, about to check filters: {}", returnText);
-            } while (
-                // conditions for a re-roll
-                    (returnText.length() < minLength + 2) ||
-                    (returnText.length() - 2 > maxLength) ||
-                    ((endFilter != null) && (!returnText.contains(endFilter + CONTROL_CHAR)))
-            );
-            returnText = returnText.substring(1, returnText.length() - 1); // strip off control characters
-            logger.debug("new random text string generated and returned: {}", returnText);
-            return returnText;
+    private ReachableTexts<?> reachableTexts(boolean observedOnly, double minProbability) {
+        if (!isTrained()) {
+            throw new IllegalStateException("model has not yet been trained");
         }
+        return new ReachableTexts<>(new ClusterTextChain(this), minLength, maxLength, startFilter, filterAutomaton(), observedOnly, minProbability);
     }
 
+    // accepts the texts that pass the endFilter and the regex, if any
+    private TextAutomaton filterAutomaton() {
+        TextAutomaton endFilterAutomaton = new EndFilterAutomaton(endFilter);
+        if (regex == null) {
+            return endFilterAutomaton;
+        }
+        if (regexAutomaton == null) {
+            regexAutomaton = new RegexAutomaton(regex); // after deserialization
+        }
+        return (endFilter == null) ? regexAutomaton : regexAutomaton.and(endFilterAutomaton);
+    }
 
+    /**
+     * A copy that shares this generator's trained model but has its own settings, so it can be given different
+     * filters (as the NameServer does for each request) without retraining or copying the model.  Neither the copy
+     * nor the original should be trained or compacted afterwards.
+     * @return a shallow copy
+     */
+    ClusterChainGenerator copy() {
+        try {
+            ClusterChainGenerator copy = (ClusterChainGenerator) clone();
+            copy.specCache = null;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param spec the filters to generate with; any it leaves out are this generator's own
+     * @return a copy of this generator, sharing its trained model, with the spec's filters applied; the copy for each
+     * recently used spec is kept, along with everything it derives from its filters.  See {@link GenerationSpec}.
+     * @throws IllegalArgumentException if the spec's filters are invalid, e.g. a malformed regex
+     */
+    @Override
+    public RandomTextGenerator forSpec(GenerationSpec spec) {
+        if (spec.isEmpty()) {
+            return this;
+        }
+        SpecCache<ClusterChainGenerator> cache = specCache;
+        if (cache == null) {
+            cache = specCache = new SpecCache<>(); // a race here at worst loses a cache that was just made
+        }
+        return cache.get(spec, Arrays.asList(modelVersion, random, minLength, maxLength, startFilter, endFilter, regex), this::copy);
+    }
+
+    // generate and discard walks until one passes the filters, for when the sampler can't work out exact
+    // probabilities; a walk is abandoned as soon as it's too long or can no longer match
+    private void rejectionSampleInto(Random random, StringBuilder out) {
+        TextAutomaton filter = filterAutomaton();
+        String control = String.valueOf(CONTROL_CHAR);
+        String start = (startFilter == null) ? "" : startFilter;
+        int startMatch = filter.step(filter.start(), start);
+        int startLength = CodePoints.length(start);
+        int outStart = out.length();
+        List<String> word = new ArrayList<>(); // the clusters so far, which the chain's next draw depends on
+        for (int tries = 0; tries < MAX_REJECTED_WALKS && startMatch != TextAutomaton.DEAD && startLength <= maxLength; tries++) {
+            out.setLength(outStart);
+            out.append(start);
+            word.clear();
+            word.add(control);
+            if (startFilterClusters != null) {
+                word.addAll(startFilterClusters);
+            }
+            int match = startMatch;
+            int length = startLength;
+            while (true) {
+                String cluster = weightedRandomNext(word, random);
+                if (cluster.equals(control)) {
+                    if (length >= minLength && filter.isAccepting(match)) {
+                        return;
+                    }
+                    break;
+                }
+                length += CodePoints.length(cluster);
+                match = filter.step(match, cluster);
+                if (length > maxLength || match == TextAutomaton.DEAD) {
+                    break;
+                }
+                word.add(cluster);
+                out.append(cluster);
+            }
+        }
+        out.setLength(outStart);
+        throw new IllegalStateException("no text the model generated passed the filters in " + MAX_REJECTED_WALKS + " tries");
+    }
+
+    // the same draw as MultiOrderMarkovChain.weightedRandomNext(), but from the given Random rather than the chain's own
+    private String weightedRandomNext(List<String> word, Random random) {
+        Map<List<String>, Map<String, Double>> model = clusterChain.getModel();
+        Map<String, Double> candidates = null;
+        for (int o = Math.min(clusterChain.getMaxOrder(), word.size()); o > 0 && candidates == null; o--) {
+            candidates = model.get(word.subList(word.size() - o, word.size()));
+        }
+        if (candidates == null) {
+            throw new IllegalStateException("there are no known links possible from the end of this sequence");
+        }
+        double sumOfWeights = 0.0D;
+        for (double weight : candidates.values()) {
+            sumOfWeights += weight;
+        }
+        double roll = sumOfWeights * random.nextDouble();
+        String last = null;
+        for (Map.Entry<String, Double> entry : candidates.entrySet()) {
+            if (roll <= entry.getValue()) {
+                return entry.getKey();
+            }
+            roll -= entry.getValue();
+            last = entry.getKey();
+        }
+        return last; // only reached through rounding error
+    }
+
+    private ConstrainedSampler<List<String>> sampler() {
+        List<Object> settings = Arrays.asList(modelVersion, regex, endFilter, minLength, maxLength);
+        if (!settings.equals(samplerSettings)) {
+            sampler = new ConstrainedSampler<>(new ClusterTextChain(this), filterAutomaton(), minLength, maxLength, 1.0D, 1.0D, 0.0D, true);
+            samplerSettings = settings;
+        }
+        return sampler;
+    }
 
 }
@@ -0,0 +1,98 @@
+package net.joeclark.proceduralgeneration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static net.joeclark.proceduralgeneration.ClusterChainGenerator.CONTROL_CHAR;
+
+/**
+ * A {@link TextChain} view of a trained ClusterChainGenerator.  A state is the list of the last "maxOrder" clusters
+ * of the text generated so far, including the control character that marks the start of the text.
+ *
+ * <p>Only links from a vowel cluster to a consonant cluster or the other way round are followed, as in the clusters
+ * {@link ClusterChainGenerator#clusterize(String)} finds, so every walk spells a different text.  Every link observed
+ * in training alternates.  Priors also link clusters of the same kind, so that "ae" then "o" spells the same text
+ * as "aeo", and those links are left out.  So a text's probability here is that of its one alternating walk, leaving
+ * out the generator's rare walks that split a run of vowels or consonants in two, and a text that only such a walk
+ * spells (because its run never appeared as one cluster) isn't reachable at all.</p>
+ */
+class ClusterTextChain implements TextChain<List<String>> {
+
+    private static final String CONTROL = String.valueOf(CONTROL_CHAR);
+
+    private final ClusterChainGenerator generator;
+    private final MultiOrderMarkovChain<String> clusterChain;
+
+    ClusterTextChain(ClusterChainGenerator generator) {
+        this.generator = generator;
+        this.clusterChain = generator.getClusterChain();
+    }
+
+    @Override
+    public List<String> startState(String startFilter) {
+        List<String> word = new ArrayList<>();
+        word.add(CONTROL);
+        if (startFilter != null && !startFilter.isEmpty()) {
+            List<String> startFilterClusters = generator.clusterize(startFilter);
+            if (!clusterChain.allKnownStates().containsAll(startFilterClusters)) {
+                return null;
+            }
+            word.addAll(startFilterClusters);
+        }
+        return truncate(word);
+    }
+
+    @Override
+    public void forEachTransition(List<String> state, TransitionVisitor<List<String>> visitor) {
+        Map<String, Double> bestModel = bestModel(state);
+        if (bestModel == null) {
+            return;
+        }
+        double sumOfWeights = 0.0D;
+        for (double weight : bestModel.values()) {
+            sumOfWeights += weight;
+        }
+        String last = state.get(state.size() - 1);
+        boolean afterText = !last.equals(CONTROL);
+        boolean afterVowels = afterText && generator.isVowelCluster(last);
+        for (Map.Entry<String, Double> entry : bestModel.entrySet()) {
+            String cluster = entry.getKey();
+            if (afterText && !cluster.equals(CONTROL) && generator.isVowelCluster(cluster) == afterVowels) {
+                continue; // only possible through a prior; see above
+            }
+            double probability = entry.getValue() / sumOfWeights;
+            // MultiOrderMarkovChain treats links weaker than one observation as priors (see removeWeakLinks())
+            boolean observed = entry.getValue() >= 1.0D;
+            if (cluster.equals(CONTROL)) {
+                visitor.visit("", probability, null, observed);
+            } else {
+                List<String> next = new ArrayList<>(state);
+                next.add(cluster);
+                visitor.visit(cluster, probability, truncate(next), observed);
+            }
+        }
+    }
+
+    // the same back-off search as MultiOrderMarkovChain.weightedRandomNext()
+    private Map<String, Double> bestModel(List<String> state) {
+        Map<List<String>, Map<String, Double>> model = clusterChain.getModel();
+        for (int o = Math.min(clusterChain.getMaxOrder(), state.size()); o > 0; o--) {
+            Map<String, Double> candidate = model.get(state.subList(state.size() - o, state.size()));
+            if (candidate != null) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private List<String> truncate(List<String> word) {
+        int maxOrder = clusterChain.getMaxOrder();
+        if (word.size() <= maxOrder) {
+            return Collections.unmodifiableList(word);
+        }
+        return Collections.unmodifiableList(new ArrayList<>(word.subList(word.size() - maxOrder, word.size())));
+    }
+
+}
@@ -0,0 +1,46 @@
+package net.joeclark.proceduralgeneration;
+
+/**
+ * Helpers for treating a String as a sequence of Unicode code points rather than of UTF-16 chars.  Characters
+ * outside the Basic Multilingual Plane, such as emoji and some rarer CJK ideographs, take two chars (a surrogate
+ * pair) in a String; the generators count, slice and sample such a character as a single symbol, so they never
+ * split a pair or produce half of one.
+ */
+final class CodePoints {
+
+    private CodePoints() {}
+
+    /**
+     * @param text a text
+     * @return the number of code points in it
+     */
+    static int length(CharSequence text) {
+        return Character.codePointCount(text, 0, text.length());
+    }
+
+    /**
+     * @param text a non-empty text
+     * @return the text without its first code point
+     */
+    static String withoutFirst(String text) {
+        return text.substring(Character.charCount(text.codePointAt(0)));
+    }
+
+    /**
+     * @param text a text
+     * @param n a number of code points, no more than the text has
+     * @return the last n code points of the text
+     */
+    static String last(String text, int n) {
+        return text.substring(text.offsetByCodePoints(text.length(), -n));
+    }
+
+    /**
+     * @param codePoint a code point
+     * @return a String of just that code point
+     */
+    static String toString(int codePoint) {
+        return new String(Character.toChars(codePoint));
+    }
+
+}
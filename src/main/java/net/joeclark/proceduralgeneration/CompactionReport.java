@@ -0,0 +1,48 @@
+package net.joeclark.proceduralgeneration;
+
+/**
+ * The result of compacting a trained model: how much smaller it became and how far its predictions moved.  Sizes
+ * are estimates of retained heap (see the individual getters); divergence is the Kullback-Leibler divergence of the
+ * compacted model from the original, in bits per generated character (or cluster), averaged over the contexts seen
+ * in training in proportion to how often they were seen.  A divergence of a few hundredths of a bit is usually
+ * imperceptible in the output.
+ */
+public final class CompactionReport {
+
+    private final int prefixesBefore;
+    private final int prefixesAfter;
+    private final long bytesBefore;
+    private final long bytesAfter;
+    private final double divergence;
+
+    CompactionReport(int prefixesBefore, int prefixesAfter, long bytesBefore, long bytesAfter, double divergence) {
+        this.prefixesBefore = prefixesBefore;
+        this.prefixesAfter = prefixesAfter;
+        this.bytesBefore = bytesBefore;
+        this.bytesAfter = bytesAfter;
+        this.divergence = divergence;
+    }
+
+    /** @return the number of prefixes (Markov states) the model had before compaction */
+    public int getPrefixesBefore() { return prefixesBefore; }
+    /** @return the number of prefixes (Markov states) the model has after compaction */
+    public int getPrefixesAfter() { return prefixesAfter; }
+    /** @return the estimated heap bytes retained by the model before compaction */
+    public long getBytesBefore() { return bytesBefore; }
+    /** @return the estimated heap bytes retained by the model after compaction */
+    public long getBytesAfter() { return bytesAfter; }
+    /** @return the mean divergence of the compacted model from the original, in bits per generated token */
+    public double getDivergence() { return divergence; }
+
+    /** @return how many times smaller the model became */
+    public double getReductionFactor() {
+        return bytesAfter == 0 ? Double.POSITIVE_INFINITY : (double) bytesBefore / bytesAfter;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("prefixes %d -> %d, estimated bytes %d -> %d (%.1fx smaller), divergence %.5f bits per token",
+                prefixesBefore, prefixesAfter, bytesBefore, bytesAfter, getReductionFactor(), divergence);
+    }
+
+}
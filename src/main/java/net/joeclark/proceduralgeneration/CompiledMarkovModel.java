@@ -0,0 +1,1029 @@
+package net.joeclark.proceduralgeneration;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>The sampling tables of a trained MarkovTextGenerator, compiled from its observations.  Every prefix observed in
+ * training is a numbered state, and each state has a row listing only the characters actually observed to follow it,
+ * sorted from most to least frequent, with their cumulative counts.  The Bayesian prior is not baked into the rows:
+ * every unobserved character shares the same weight, so the prior's share of a row is computed at draw time and can
+ * be changed without retraining.</p>
+ *
+ * <p>Because rows are sorted, a top-p (nucleus) cutoff or a minimum-probability floor only ever keeps a leading run
+ * of each row, which a binary search over the cumulative counts finds without touching the rest.  Temperature
+ * reshapes the weights themselves, so a re-weighted copy of the cumulative tables is derived once per temperature
+ * and cached.</p>
+ *
+ * <p>States also record where each transition leads: following a character from a state lands on the longest
+ * observed suffix of the extended prefix, which is exactly the model MarkovTextGenerator's back-off search would
+ * pick, so a random walk never has to build or look up prefix Strings.</p>
+ *
+ * <p>All rows are packed end to end into a few flat arrays, indexed through {@code rowStart}, so a state costs a
+ * few bytes rather than several objects.  The counts can be quantized to 8- or 16-bit fractions of each row's total
+ * and low-count prefixes can be pruned, see {@link #compact(int, int)}.</p>
+ *
+ * <p>Characters are Unicode code points, so a character outside the Basic Multilingual Plane (an emoji, say) is one
+ * symbol rather than two halves of a surrogate pair.  The rows never store code points themselves, only each
+ * symbol's index in the sorted alphabet, so the tables are the same size whatever script the training data is in,
+ * and the unobserved characters a prior may draw are counted rather than listed.</p>
+ */
+final class CompiledMarkovModel {
+
+    static final int NO_STATE = -1;
+
+    private static final int MAX_CACHED_TABLES = 8;
+
+    final int order;
+    final int[] symbols; // the alphabet's code points in ascending order; symbols are referred to by their index in this array
+    final int controlSymbol;
+    final int initialState;
+
+    private final int[] parents;         // the state of each prefix minus its first character, or NO_STATE
+    private final int[] leadingSymbols;  // the first character of each prefix
+    private final byte[] depths;         // the length of each prefix, in code points
+    private final int[] unigramStates;   // the state of each one-character prefix, or NO_STATE
+    private final int[] rowStart;        // the entries of state s are rowStart[s] up to (but excluding) rowStart[s+1]
+    private final int[] entrySymbols;    // observed successors, most frequent first within each row
+    private final int[] entryNext;       // the state reached by each observed successor
+    private final CountTable counts;     // cumulative observation counts within each row
+
+    private final Map<TableKey, Weights> tablesCache = new ConcurrentHashMap<>();
+    private volatile LastTables lastTables;       // the weights last drawn with, checked before the cache
+    private volatile BatchTables batchTables;     // for the settings of the latest batch, see batchTables()
+    private volatile int[] sortedEntrySymbols;    // each row's observed symbols in ascending order, built on first use
+
+    // build from rows listed by prefix; counts are per entry (not cumulative) and rows are already sorted
+    private CompiledMarkovModel(int order, int[] symbols, String[] contexts, int[][] rowSymbols, double[][] rowCounts, int quantizationBits) {
+        this.order = order;
+        this.symbols = symbols;
+        this.controlSymbol = symbolIndex(MarkovTextGenerator.CONTROL_CHAR);
+
+        int numStates = contexts.length;
+        Map<String, Integer> stateIds = new HashMap<>();
+        for (int s = 0; s < numStates; s++) {
+            stateIds.put(contexts[s], s);
+        }
+        this.parents = new int[numStates];
+        this.leadingSymbols = new int[numStates];
+        this.depths = new byte[numStates];
+        for (int s = 0; s < numStates; s++) {
+            int depth = CodePoints.length(contexts[s]);
+            parents[s] = depth > 1 ? longestObservedSuffix(stateIds, CodePoints.withoutFirst(contexts[s])) : NO_STATE;
+            leadingSymbols[s] = symbolIndex(contexts[s].codePointAt(0));
+            depths[s] = (byte) depth;
+        }
+        this.unigramStates = new int[symbols.length];
+        for (int i = 0; i < symbols.length; i++) {
+            unigramStates[i] = stateIds.getOrDefault(CodePoints.toString(symbols[i]), NO_STATE);
+        }
+
+        this.rowStart = new int[numStates + 1];
+        for (int s = 0; s < numStates; s++) {
+            rowStart[s + 1] = rowStart[s] + rowSymbols[s].length;
+        }
+        this.entrySymbols = new int[rowStart[numStates]];
+        this.entryNext = new int[rowStart[numStates]];
+        for (int s = 0; s < numStates; s++) {
+            for (int i = 0; i < rowSymbols[s].length; i++) {
+                int symbol = rowSymbols[s][i];
+                entrySymbols[rowStart[s] + i] = symbol;
+                entryNext[rowStart[s] + i] = (symbol == controlSymbol) ? NO_STATE : longestObservedSuffix(stateIds, contexts[s] + CodePoints.toString(symbols[symbol]));
+            }
+        }
+        this.counts = CountTable.of(rowStart, rowCounts, quantizationBits);
+
+        StringBuilder start = new StringBuilder();
+        for (int i = 0; i < order; i++) {
+            start.append(MarkovTextGenerator.CONTROL_CHAR);
+        }
+        this.initialState = longestObservedSuffix(stateIds, start.toString());
+    }
+
+    // adopt tables read by read(DataInputStream)
+    private CompiledMarkovModel(int order, int[] symbols, int[] parents, int[] leadingSymbols, byte[] depths, int[] unigramStates,
+                                int[] rowStart, int[] entrySymbols, int[] entryNext, CountTable counts, int initialState) {
+        this.order = order;
+        this.symbols = symbols;
+        this.controlSymbol = symbolIndex(MarkovTextGenerator.CONTROL_CHAR);
+        this.parents = parents;
+        this.leadingSymbols = leadingSymbols;
+        this.depths = depths;
+        this.unigramStates = unigramStates;
+        this.rowStart = rowStart;
+        this.entrySymbols = entrySymbols;
+        this.entryNext = entryNext;
+        this.counts = counts;
+        this.initialState = initialState;
+    }
+
+    private int longestObservedSuffix(Map<String, Integer> stateIds, String context) {
+        for (int o = Math.min(order, CodePoints.length(context)); o > 0; o--) {
+            Integer state = stateIds.get(CodePoints.last(context, o));
+            if (state != null) {
+                return state;
+            }
+        }
+        return NO_STATE;
+    }
+
+    /**
+     * @param counts the number of times each code point was observed to follow each prefix
+     * @param alphabet the code point of every character in the training data, plus the control character
+     * @param order the longest prefix to use; longer observed prefixes are ignored
+     * @return the compiled model
+     */
+    static CompiledMarkovModel compile(Map<String, Map<Integer, Double>> counts, Set<Integer> alphabet, int order) {
+        int[] symbols = alphabet.stream().mapToInt(Integer::intValue).sorted().toArray();
+
+        List<String> prefixes = new ArrayList<>();
+        for (String prefix : counts.keySet()) {
+            if (CodePoints.length(prefix) <= order) {
+                prefixes.add(prefix);
+            }
+        }
+        prefixes.sort(Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder()));
+
+        int[][] rowSymbols = new int[prefixes.size()][];
+        double[][] rowCounts = new double[prefixes.size()][];
+        for (int s = 0; s < prefixes.size(); s++) {
+            List<Map.Entry<Integer, Double>> observed = new ArrayList<>(counts.get(prefixes.get(s)).entrySet());
+            observed.sort(Comparator.comparing((Map.Entry<Integer, Double> e) -> -e.getValue()).thenComparing(Map.Entry::getKey));
+            rowSymbols[s] = new int[observed.size()];
+            rowCounts[s] = new double[observed.size()];
+            for (int i = 0; i < observed.size(); i++) {
+                rowSymbols[s][i] = Arrays.binarySearch(symbols, observed.get(i).getKey());
+                rowCounts[s][i] = observed.get(i).getValue();
+            }
+        }
+        return new CompiledMarkovModel(order, symbols, prefixes.toArray(new String[0]), rowSymbols, rowCounts, 0);
+    }
+
+    /**
+     * Derive a smaller copy of this model.  Prefixes longer than one character that were observed fewer than
+     * minPrefixCount times are dropped, so the walk backs off to their longest remaining suffix instead; since a
+     * prefix is never observed more often than its own suffixes, the suffix is always still there.  The remaining
+     * counts are then stored as fixed-point fractions of each row's total.
+     * @param minPrefixCount prefixes observed fewer times than this are pruned (1 prunes nothing)
+     * @param quantizationBits 8 or 16 to quantize the counts, or 0 to keep them exact
+     * @return the compacted model
+     */
+    CompiledMarkovModel compact(int minPrefixCount, int quantizationBits) {
+        List<Integer> kept = new ArrayList<>();
+        for (int s = 0; s < numStates(); s++) {
+            if (depths[s] == 1 || totalCount(s) >= minPrefixCount) {
+                kept.add(s);
+            }
+        }
+        String[] contexts = new String[kept.size()];
+        int[][] rowSymbols = new int[kept.size()][];
+        double[][] rowCounts = new double[kept.size()][];
+        for (int k = 0; k < kept.size(); k++) {
+            int s = kept.get(k);
+            contexts[k] = context(s);
+            rowSymbols[k] = new int[numObserved(s)];
+            rowCounts[k] = new double[numObserved(s)];
+            for (int i = 0; i < numObserved(s); i++) {
+                rowSymbols[k][i] = observedSymbol(s, i);
+                rowCounts[k][i] = observedCount(s, i);
+            }
+        }
+        return new CompiledMarkovModel(order, symbols, contexts, rowSymbols, rowCounts, quantizationBits);
+    }
+
+    /**
+     * Write the tables just as they are, so {@link #read(DataInputStream)} can load them without compiling anything;
+     * used by ModelResources.
+     * @param data where to write the tables
+     * @throws IOException if they can't be written
+     */
+    void write(DataOutputStream data) throws IOException {
+        data.writeInt(order);
+        writeInts(data, symbols);
+        writeInts(data, parents);
+        writeInts(data, leadingSymbols);
+        data.writeInt(depths.length);
+        data.write(depths);
+        writeInts(data, unigramStates);
+        writeInts(data, rowStart);
+        writeInts(data, entrySymbols);
+        writeInts(data, entryNext);
+        counts.write(data);
+        data.writeInt(initialState);
+    }
+
+    /**
+     * @param data tables written by {@link #write(DataOutputStream)}
+     * @return the model
+     * @throws IOException if the tables can't be read, or aren't consistent
+     */
+    static CompiledMarkovModel read(DataInputStream data) throws IOException {
+        int order = data.readInt();
+        int[] symbols = readInts(data);
+        int[] parents = readInts(data);
+        int[] leadingSymbols = readInts(data);
+        byte[] depths = new byte[readLength(data, 1)];
+        data.readFully(depths);
+        int[] unigramStates = readInts(data);
+        int[] rowStart = readInts(data);
+        int[] entrySymbols = readInts(data);
+        int[] entryNext = readInts(data);
+        int numStates = parents.length;
+        if (order < 1 || leadingSymbols.length != numStates || depths.length != numStates || unigramStates.length != symbols.length
+                || rowStart.length != numStates + 1 || entrySymbols.length != rowStart[numStates] || entryNext.length != entrySymbols.length) {
+            throw new IOException("corrupt model tables");
+        }
+        CountTable counts = CountTable.read(data, numStates, entrySymbols.length);
+        int initialState = data.readInt();
+        if (initialState < NO_STATE || initialState >= numStates) {
+            throw new IOException("corrupt model tables");
+        }
+        return new CompiledMarkovModel(order, symbols, parents, leadingSymbols, depths, unigramStates, rowStart, entrySymbols, entryNext, counts, initialState);
+    }
+
+    // arrays are written as a length and then their contents in bulk, which is much faster to read than one by one
+    private static void writeInts(DataOutputStream data, int[] values) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(values.length * 4);
+        bytes.asIntBuffer().put(values);
+        data.writeInt(values.length);
+        data.write(bytes.array());
+    }
+
+    private static int[] readInts(DataInputStream data) throws IOException {
+        int[] values = new int[readLength(data, 4)];
+        ByteBuffer.wrap(readBytes(data, values.length * 4)).asIntBuffer().get(values);
+        return values;
+    }
+
+    private static int readLength(DataInputStream data, int bytesPerValue) throws IOException {
+        int length = data.readInt();
+        if (length < 0 || length > Integer.MAX_VALUE / bytesPerValue) {
+            throw new IOException("corrupt model tables: bad array length " + length);
+        }
+        return length;
+    }
+
+    private static byte[] readBytes(DataInputStream data, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param original the model this one was derived from
+     * @param prior the relative weight of each unobserved symbol
+     * @return the mean Kullback-Leibler divergence of this model's predictions from the original's, in bits per
+     * character, over the original's longest prefixes weighted by how often they were observed
+     */
+    double divergenceFrom(CompiledMarkovModel original, double prior) {
+        double weightedDivergence = 0.0D;
+        double totalWeight = 0.0D;
+        double[] p = new double[symbols.length];
+        double[] q = new double[symbols.length];
+        for (int s = 0; s < original.numStates(); s++) {
+            if (original.depths[s] != original.order) {
+                continue;
+            }
+            int t = advance(NO_STATE, original.context(s));
+            original.distribution(s, prior, p);
+            distribution(t, prior, q);
+            double divergence = 0.0D;
+            for (int c = 0; c < symbols.length; c++) {
+                if (p[c] > 0.0D) {
+                    divergence += p[c] * Math.log(p[c] / q[c]);
+                }
+            }
+            weightedDivergence += original.totalCount(s) * divergence;
+            totalWeight += original.totalCount(s);
+        }
+        return totalWeight == 0.0D ? 0.0D : weightedDivergence / totalWeight / Math.log(2);
+    }
+
+    // fill in the probability of every symbol following a state
+    private void distribution(int state, double prior, double[] probabilities) {
+        int numObserved = numObserved(state);
+        double total = totalCount(state) + (symbols.length - numObserved) * prior;
+        Arrays.fill(probabilities, prior / total);
+        for (int i = 0; i < numObserved; i++) {
+            probabilities[observedSymbol(state, i)] = observedCount(state, i) / total;
+        }
+    }
+
+    /**
+     * @return the estimated heap bytes retained by the compiled tables
+     */
+    long estimatedBytes() {
+        return HeapEstimator.array(symbols.length, 4)
+                + HeapEstimator.array(parents.length, 4)
+                + HeapEstimator.array(leadingSymbols.length, 4)
+                + HeapEstimator.array(depths.length, 1)
+                + HeapEstimator.array(unigramStates.length, 4)
+                + HeapEstimator.array(rowStart.length, 4)
+                + HeapEstimator.array(entrySymbols.length, 4)
+                + HeapEstimator.array(entryNext.length, 4)
+                + counts.estimatedBytes();
+    }
+
+    /**
+     * @param bytesByStructure the estimated heap bytes retained by the model's structures, including these tables
+     * @return statistics of the model's shape, computed from the flat tables
+     */
+    ModelStatistics statistics(Map<String, Long> bytesByStructure) {
+        int numStates = numStates();
+        int[] prefixesByOrder = new int[order + 1];
+        double[] branchingFactors = new double[numStates];
+        double[] entropies = new double[numStates];
+        double[] probabilities = new double[entrySymbols.length];
+        int[] next = new int[entrySymbols.length];
+        double[] tokenLengths = new double[entrySymbols.length];
+        for (int s = 0; s < numStates; s++) {
+            prefixesByOrder[depths[s]]++;
+            branchingFactors[s] = numObserved(s);
+            double total = totalCount(s);
+            double entropy = 0.0D;
+            for (int i = 0; i < numObserved(s); i++) {
+                int entry = rowStart[s] + i;
+                probabilities[entry] = observedCount(s, i) / total;
+                next[entry] = (entrySymbols[entry] == controlSymbol) ? ModelStatistics.END : entryNext[entry];
+                tokenLengths[entry] = (entrySymbols[entry] == controlSymbol) ? 0.0D : 1.0D;
+                if (probabilities[entry] > 0.0D) {
+                    entropy -= probabilities[entry] * Math.log(probabilities[entry]);
+                }
+            }
+            entropies[s] = entropy / Math.log(2);
+        }
+        double expectedLength = ModelStatistics.expectedLength(initialState, rowStart, next, probabilities, tokenLengths);
+        return new ModelStatistics(prefixesByOrder, symbols.length - 1, 0, entrySymbols.length, bytesByStructure,
+                ModelStatistics.Distribution.of(branchingFactors), ModelStatistics.Distribution.of(entropies), expectedLength);
+    }
+
+    int numStates() { return parents.length; }
+
+    /**
+     * @param state a state
+     * @return the prefix it stands for
+     */
+    String context(int state) {
+        StringBuilder context = new StringBuilder();
+        for (int s = state; s != NO_STATE; s = parents[s]) {
+            context.appendCodePoint(symbols[leadingSymbols[s]]);
+        }
+        return context.toString();
+    }
+
+    /**
+     * @param state a state
+     * @return the length of the prefix it stands for, in code points
+     */
+    int depth(int state) { return depths[state]; }
+
+    /**
+     * @param codePoint a character's code point
+     * @return its index in the alphabet, or a negative number if it isn't in the alphabet
+     */
+    int symbolIndex(int codePoint) {
+        return Arrays.binarySearch(symbols, codePoint);
+    }
+
+    /**
+     * @param context the last few characters of a text, possibly including leading control characters
+     * @return the state of its longest suffix that was observed as a prefix in training, or NO_STATE
+     */
+    int stateOf(CharSequence context) {
+        return advance(NO_STATE, context);
+    }
+
+    /**
+     * @param state a state, or NO_STATE if nothing useful is known about the preceding text
+     * @param text characters to follow from that state
+     * @return the state after following all of them, or NO_STATE if the last one is not in the alphabet
+     */
+    int advance(int state, CharSequence text) {
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = Character.codePointAt(text, i);
+            i += Character.charCount(codePoint);
+            int symbol = symbolIndex(codePoint);
+            state = (symbol < 0) ? NO_STATE : (state == NO_STATE) ? unigramStates[symbol] : next(state, symbol);
+        }
+        return state;
+    }
+
+    /**
+     * @param state the current state
+     * @param symbol the symbol to follow (not the control symbol)
+     * @return the state after following it
+     */
+    int next(int state, int symbol) {
+        // a prefix extended by this symbol can only have been observed if the symbol was observed after the prefix,
+        // so the longest observed suffix is found by backing off through shorter prefixes until one has it in its row
+        for (int u = state; u != NO_STATE; u = parents[u]) {
+            int i = indexInRow(u, symbol);
+            if (i >= 0) {
+                return entryNext[rowStart[u] + i];
+            }
+        }
+        return unigramStates[symbol];
+    }
+
+    /**
+     * @param state a state
+     * @return the number of distinct symbols observed to follow it
+     */
+    int numObserved(int state) { return rowStart[state + 1] - rowStart[state]; }
+
+    /**
+     * @param state a state
+     * @param i a position in the state's row, between 0 and numObserved(state)
+     * @return the symbol at that position (rows are sorted from most to least frequent)
+     */
+    int observedSymbol(int state, int i) { return entrySymbols[rowStart[state] + i]; }
+
+    /**
+     * @param state a state
+     * @param i a position in the state's row, between 0 and numObserved(state)
+     * @return the number of times that symbol was observed to follow the state's prefix
+     */
+    double observedCount(int state, int i) {
+        int entry = rowStart[state] + i;
+        return counts.cumulative(state, entry) - (i > 0 ? counts.cumulative(state, entry - 1) : 0.0D);
+    }
+
+    /**
+     * @param state a state
+     * @return the number of observations of the state's prefix
+     */
+    double totalCount(int state) { return counts.cumulative(state, rowStart[state + 1] - 1); }
+
+    int indexInRow(int state, int symbol) {
+        for (int entry = rowStart[state]; entry < rowStart[state + 1]; entry++) {
+            if (entrySymbols[entry] == symbol) {
+                return entry - rowStart[state];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Draw a symbol to follow a state.
+     * @param state the current state
+     * @param roll a uniformly-distributed random number in [0,1)
+     * @param prior the relative weight of each symbol not observed after this state
+     * @param temperature values above 1 flatten the distribution, values below 1 sharpen it
+     * @param topP keep only the most probable symbols whose probabilities add up to at least this much
+     * @param minProbability drop symbols less probable than this (but always keep the most probable one)
+     * @return the index of the symbol drawn
+     */
+    int sample(int state, double roll, double prior, double temperature, double topP, double minProbability) {
+        return sample(tables(prior, temperature), state, entrySymbols, rowStart[state], rowStart[state + 1], symbols.length, roll, topP, minProbability);
+    }
+
+    /**
+     * Draw a symbol to follow each of a batch of states at once, and advance each state past its symbol, for
+     * {@link LockstepSampler}.  The draws come from the same distribution as
+     * {@link #sample(int, double, double, double, double, double)}'s, but the cutoffs were applied to every row when
+     * the tables were built, and each row's kept entries have an alias table, so a draw from the observed symbols is
+     * one lookup and one comparison rather than a search.  A symbol drawn from the state's own row leads straight to
+     * that entry's next state, without the back-off search of {@link #next(int, int)}.
+     * @param tables the tables for the settings, from {@link #batchTables(double, double, double, double)}
+     * @param states the state of each of the first n slots, replaced by the state after the symbol drawn (or by
+     *               NO_STATE if the control symbol is drawn)
+     * @param rolls a uniformly-distributed random number in [0,1) for each slot
+     * @param drawn receives the index of the symbol drawn for each slot
+     * @param n the number of slots
+     */
+    void sampleBatch(BatchTables tables, int[] states, double[] rolls, int[] drawn, int n) {
+        int[] sorted = sortedEntrySymbols();
+        for (int i = 0; i < n; i++) {
+            int state = states[i];
+            int first = rowStart[state];
+            double keptObservedMass = tables.keptObservedMass[state];
+            double r = rolls[i] * tables.keptMass[state];
+            if (r < keptObservedMass) {
+                // the roll, rescaled to the kept entries, picks a column of the row's alias table
+                int width = tables.keepEnd[state] - first;
+                double column = r / keptObservedMass * width;
+                int c = first + Math.min((int) column, width - 1);
+                int entry = (column - (c - first) < tables.probability[c]) ? c : tables.alias[c];
+                drawn[i] = entrySymbols[entry];
+                states[i] = entryNext[entry];
+            } else {
+                int end = rowStart[state + 1];
+                int k = Math.min((int) ((r - keptObservedMass) / tables.priorWeight[state]), symbols.length - (end - first) - 1);
+                // the k-th symbol not in the row: every observed symbol at or below it pushes it one further along
+                int symbol = k;
+                for (int entry = first; entry < end && sorted[entry] <= symbol; entry++) {
+                    symbol++;
+                }
+                drawn[i] = symbol;
+                states[i] = (symbol == controlSymbol) ? NO_STATE : next(state, symbol);
+            }
+        }
+    }
+
+    /**
+     * @return the tables {@link #sampleBatch(BatchTables, int[], double[], int[], int)} draws from with these settings,
+     * built once and kept until a batch asks for different settings
+     */
+    BatchTables batchTables(double prior, double temperature, double topP, double minProbability) {
+        BatchTables tables = batchTables;
+        if (tables == null || !tables.isFor(prior, temperature, topP, minProbability)) {
+            tables = new BatchTables(tables(prior, temperature), prior, temperature, topP, minProbability);
+            batchTables = tables;
+        }
+        return tables;
+    }
+
+    private int[] sortedEntrySymbols() {
+        int[] sorted = sortedEntrySymbols;
+        if (sorted == null) {
+            sorted = entrySymbols.clone();
+            for (int s = 0; s < numStates(); s++) {
+                Arrays.sort(sorted, rowStart[s], rowStart[s + 1]);
+            }
+            sortedEntrySymbols = sorted;
+        }
+        return sorted;
+    }
+
+    /**
+     * Draw a symbol from one row of weights.  This is shared with {@link LazyMarkovModel}, whose rows are compiled
+     * separately, so that both draw exactly the same symbol from the same roll.
+     * @param weights the weights of the row's entries
+     * @param state the row's state, as the weights know it
+     * @param entrySymbols the observed symbols of the row's entries, most frequent first
+     * @param first the row's first entry
+     * @param end the end of the row's entries
+     * @param numSymbols the size of the alphabet
+     * @param roll a uniformly-distributed random number in [0,1)
+     * @param topP keep only the most probable symbols whose probabilities add up to at least this much
+     * @param minProbability drop symbols less probable than this (but always keep the most probable one)
+     * @return the index of the symbol drawn
+     */
+    static int sample(Weights weights, int state, int[] entrySymbols, int first, int end, int numSymbols, double roll, double topP, double minProbability) {
+        double priorWeight = weights.priorWeight(state);
+        int numUnobserved = numSymbols - (end - first);
+        double observedMass = weights.cumulative(state, end - 1);
+        double priorMass = numUnobserved * priorWeight;
+        double total = observedMass + priorMass;
+
+        // rows are sorted, so every cutoff keeps a leading run of observed symbols; the prior's share of the row is
+        // assumed to be the least probable, and is kept or dropped as a whole
+        int keepEnd = end;
+        boolean keepPrior = priorMass > 0.0D;
+        if (minProbability > 0.0D) {
+            double floor = minProbability * total;
+            keepEnd = endOfWeightsAtLeast(weights, state, first, end, floor);
+            keepPrior &= priorWeight >= floor;
+        }
+        if (topP < 1.0D) {
+            double nucleus = topP * total;
+            keepEnd = Math.min(keepEnd, firstCumulativeAtLeast(weights, state, first, end, nucleus) + 1);
+            keepPrior &= observedMass < nucleus;
+        }
+        if (keepEnd == first && !keepPrior) {
+            keepEnd = first + 1;
+        }
+
+        double keptObservedMass = (keepEnd == first) ? 0.0D : weights.cumulative(state, keepEnd - 1);
+        double r = roll * (keptObservedMass + (keepPrior ? priorMass : 0.0D));
+        if (r < keptObservedMass) {
+            return entrySymbols[firstCumulativeAbove(weights, state, first, keepEnd, r)];
+        }
+        int k = Math.min((int) ((r - keptObservedMass) / priorWeight), numUnobserved - 1);
+        return unobservedSymbol(entrySymbols, first, end, k);
+    }
+
+    // the k-th symbol (in alphabet order) that was not among the row's observed entries
+    private static int unobservedSymbol(int[] entrySymbols, int first, int end, int k) {
+        int x = k;
+        while (true) {
+            int observedUpToX = 0;
+            for (int entry = first; entry < end; entry++) {
+                if (entrySymbols[entry] <= x) {
+                    observedUpToX++;
+                }
+            }
+            if (k + observedUpToX == x) {
+                return x;
+            }
+            x = k + observedUpToX;
+        }
+    }
+
+    // the first entry in [first,end) whose cumulative weight exceeds r, which must be less than the last one's
+    private static int firstCumulativeAbove(Weights weights, int state, int first, int end, double r) {
+        int lo = first;
+        int hi = end - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (weights.cumulative(state, mid) > r) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    // the first entry in [first,end) whose cumulative weight reaches target, or the last entry if none does
+    private static int firstCumulativeAtLeast(Weights weights, int state, int first, int end, double target) {
+        int lo = first;
+        int hi = end - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (weights.cumulative(state, mid) >= target) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    // the end of the leading run of entries in [first,end) whose own weight is at least floor
+    private static int endOfWeightsAtLeast(Weights weights, int state, int first, int end, double floor) {
+        int lo = first;
+        int hi = end;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            double weight = weights.cumulative(state, mid) - (mid > first ? weights.cumulative(state, mid - 1) : 0.0D);
+            if (weight >= floor) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Cumulative observation counts of every entry, stored either exactly or as fixed-point fractions of each row's
+     * total.  A quantized row keeps every entry at least one step above the one before, so no observed symbol ever
+     * becomes impossible; rows too long for 8 bits to do that are stored with 16.
+     */
+    private abstract static class CountTable {
+
+        abstract double cumulative(int state, int entry);
+
+        abstract long estimatedBytes();
+
+        abstract void write(DataOutputStream data) throws IOException;
+
+        // written as the number of bits of each quantized level, or 0 for exact counts, and then the arrays
+        static CountTable read(DataInputStream data, int numStates, int numEntries) throws IOException {
+            int bits = data.readByte();
+            if (bits == 0) {
+                double[] cumulative = new double[readLength(data, 8)];
+                ByteBuffer.wrap(readBytes(data, cumulative.length * 8)).asDoubleBuffer().get(cumulative);
+                if (cumulative.length != numEntries) {
+                    throw new IOException("corrupt model tables");
+                }
+                return new ExactCounts(cumulative);
+            }
+            if (bits != 8 && bits != 16) {
+                throw new IOException("corrupt model tables: unknown count format " + bits);
+            }
+            byte[] byteLevels = null;
+            char[] charLevels = null;
+            if (bits == 8) {
+                byteLevels = readBytes(data, readLength(data, 1));
+            } else {
+                charLevels = new char[readLength(data, 2)];
+                ByteBuffer.wrap(readBytes(data, charLevels.length * 2)).asCharBuffer().get(charLevels);
+            }
+            float[] rowTotals = new float[readLength(data, 4)];
+            ByteBuffer.wrap(readBytes(data, rowTotals.length * 4)).asFloatBuffer().get(rowTotals);
+            if (((byteLevels != null) ? byteLevels.length : charLevels.length) != numEntries || rowTotals.length != numStates) {
+                throw new IOException("corrupt model tables");
+            }
+            return new QuantizedCounts((bits == 8) ? 0xFF : 0xFFFF, byteLevels, charLevels, rowTotals);
+        }
+
+        static CountTable of(int[] rowStart, double[][] rowCounts, int quantizationBits) {
+            if (quantizationBits == 0) {
+                return new ExactCounts(rowStart, rowCounts);
+            }
+            int longestRow = 0;
+            for (double[] row : rowCounts) {
+                longestRow = Math.max(longestRow, row.length);
+            }
+            if (quantizationBits == 8 && longestRow <= 0xFF) {
+                return new QuantizedCounts(rowStart, rowCounts, 0xFF);
+            }
+            return new QuantizedCounts(rowStart, rowCounts, 0xFFFF);
+        }
+    }
+
+    private static final class ExactCounts extends CountTable {
+        private final double[] cumulative;
+
+        ExactCounts(double[] cumulative) {
+            this.cumulative = cumulative;
+        }
+
+        ExactCounts(int[] rowStart, double[][] rowCounts) {
+            cumulative = new double[rowStart[rowCounts.length]];
+            for (int s = 0; s < rowCounts.length; s++) {
+                double sum = 0.0D;
+                for (int i = 0; i < rowCounts[s].length; i++) {
+                    sum += rowCounts[s][i];
+                    cumulative[rowStart[s] + i] = sum;
+                }
+            }
+        }
+
+        @Override
+        double cumulative(int state, int entry) { return cumulative[entry]; }
+
+        @Override
+        long estimatedBytes() { return HeapEstimator.array(cumulative.length, 8); }
+
+        @Override
+        void write(DataOutputStream data) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate(cumulative.length * 8);
+            bytes.asDoubleBuffer().put(cumulative);
+            data.writeByte(0);
+            data.writeInt(cumulative.length);
+            data.write(bytes.array());
+        }
+    }
+
+    private static final class QuantizedCounts extends CountTable {
+        private final int maxLevel;
+        private final byte[] byteLevels;  // used when maxLevel fits in a byte
+        private final char[] charLevels;  // used otherwise
+        private final float[] rowTotals;
+
+        QuantizedCounts(int maxLevel, byte[] byteLevels, char[] charLevels, float[] rowTotals) {
+            this.maxLevel = maxLevel;
+            this.byteLevels = byteLevels;
+            this.charLevels = charLevels;
+            this.rowTotals = rowTotals;
+        }
+
+        QuantizedCounts(int[] rowStart, double[][] rowCounts, int maxLevel) {
+            this.maxLevel = maxLevel;
+            int numEntries = rowStart[rowCounts.length];
+            this.byteLevels = (maxLevel == 0xFF) ? new byte[numEntries] : null;
+            this.charLevels = (maxLevel == 0xFF) ? null : new char[numEntries];
+            this.rowTotals = new float[rowCounts.length];
+            for (int s = 0; s < rowCounts.length; s++) {
+                double[] row = rowCounts[s];
+                double total = 0.0D;
+                for (double count : row) {
+                    total += count;
+                }
+                rowTotals[s] = (float) total;
+                double sum = 0.0D;
+                int previous = 0;
+                for (int i = 0; i < row.length; i++) {
+                    sum += row[i];
+                    int level = (int) Math.round(sum / total * maxLevel);
+                    // leave room for one step per remaining entry, and never let an entry's weight round to zero
+                    level = Math.min(level, maxLevel - (row.length - 1 - i));
+                    level = Math.max(level, previous + 1);
+                    if (i == row.length - 1) {
+                        level = maxLevel;
+                    }
+                    if (byteLevels != null) {
+                        byteLevels[rowStart[s] + i] = (byte) level;
+                    } else {
+                        charLevels[rowStart[s] + i] = (char) level;
+                    }
+                    previous = level;
+                }
+            }
+        }
+
+        @Override
+        double cumulative(int state, int entry) {
+            int level = (byteLevels != null) ? (byteLevels[entry] & 0xFF) : charLevels[entry];
+            return (double) level / maxLevel * rowTotals[state];
+        }
+
+        @Override
+        long estimatedBytes() {
+            long levels = (byteLevels != null) ? HeapEstimator.array(byteLevels.length, 1) : HeapEstimator.array(charLevels.length, 2);
+            return levels + HeapEstimator.array(rowTotals.length, 4);
+        }
+
+        @Override
+        void write(DataOutputStream data) throws IOException {
+            if (byteLevels != null) {
+                data.writeByte(8);
+                data.writeInt(byteLevels.length);
+                data.write(byteLevels);
+            } else {
+                ByteBuffer bytes = ByteBuffer.allocate(charLevels.length * 2);
+                bytes.asCharBuffer().put(charLevels);
+                data.writeByte(16);
+                data.writeInt(charLevels.length);
+                data.write(bytes.array());
+            }
+            ByteBuffer totals = ByteBuffer.allocate(rowTotals.length * 4);
+            totals.asFloatBuffer().put(rowTotals);
+            data.writeInt(rowTotals.length);
+            data.write(totals.array());
+        }
+    }
+
+    /**
+     * The weights used to draw symbols: cumulative weights of observed symbols, plus the weight of each unobserved
+     * symbol, in each row.
+     */
+    abstract static class Weights {
+        abstract double cumulative(int state, int entry);
+        abstract double priorWeight(int state);
+    }
+
+    // the plain counts, with the prior shared by every unobserved symbol
+    private static final class CountWeights extends Weights {
+        private final CountTable counts;
+        private final double prior;
+
+        CountWeights(CountTable counts, double prior) {
+            this.counts = counts;
+            this.prior = prior;
+        }
+
+        @Override
+        double cumulative(int state, int entry) { return counts.cumulative(state, entry); }
+
+        @Override
+        double priorWeight(int state) { return prior; }
+    }
+
+    private static final class TemperedWeights extends Weights {
+        private final double[] cumulative;
+        private final double[] priorWeights;
+
+        TemperedWeights(double[] cumulative, double[] priorWeights) {
+            this.cumulative = cumulative;
+            this.priorWeights = priorWeights;
+        }
+
+        @Override
+        double cumulative(int state, int entry) { return cumulative[entry]; }
+
+        @Override
+        double priorWeight(int state) { return priorWeights[state]; }
+    }
+
+    /**
+     * Every row's weights and cutoffs for one combination of settings, worked out in advance for
+     * {@link #sampleBatch(BatchTables, int[], double[], int[], int)}: an alias table of each row's kept entries, packed
+     * end to end like the rows, and for each state, the end of the kept entries, their mass, and the mass drawn from
+     * once the prior's share is added (if it's kept).
+     */
+    final class BatchTables {
+        private final double prior;
+        private final double temperature;
+        private final double topP;
+        private final double minProbability;
+        final double[] probability;      // by entry, see AliasTable
+        final int[] alias;               // by entry
+        final int[] keepEnd;             // by state
+        final double[] keptObservedMass; // by state
+        final double[] keptMass;         // by state
+        final double[] priorWeight;      // by state
+
+        private BatchTables(Weights weights, double prior, double temperature, double topP, double minProbability) {
+            this.prior = prior;
+            this.temperature = temperature;
+            this.topP = topP;
+            this.minProbability = minProbability;
+            int numStates = numStates();
+            double[] entryWeights = new double[entrySymbols.length];
+            probability = new double[entrySymbols.length];
+            alias = new int[entrySymbols.length];
+            keepEnd = new int[numStates];
+            keptObservedMass = new double[numStates];
+            keptMass = new double[numStates];
+            priorWeight = new double[numStates];
+            for (int state = 0; state < numStates; state++) {
+                int first = rowStart[state];
+                int end = rowStart[state + 1];
+                // the same cutoffs as sample() makes on every draw
+                double rowPriorWeight = weights.priorWeight(state);
+                double observedMass = weights.cumulative(state, end - 1);
+                double priorMass = (symbols.length - (end - first)) * rowPriorWeight;
+                double total = observedMass + priorMass;
+                int rowKeepEnd = end;
+                boolean keepPrior = priorMass > 0.0D;
+                if (minProbability > 0.0D) {
+                    double floor = minProbability * total;
+                    rowKeepEnd = endOfWeightsAtLeast(weights, state, first, end, floor);
+                    keepPrior &= rowPriorWeight >= floor;
+                }
+                if (topP < 1.0D) {
+                    double nucleus = topP * total;
+                    rowKeepEnd = Math.min(rowKeepEnd, firstCumulativeAtLeast(weights, state, first, end, nucleus) + 1);
+                    keepPrior &= observedMass < nucleus;
+                }
+                if (rowKeepEnd == first && !keepPrior) {
+                    rowKeepEnd = first + 1;
+                }
+                keepEnd[state] = rowKeepEnd;
+                keptObservedMass[state] = (rowKeepEnd == first) ? 0.0D : weights.cumulative(state, rowKeepEnd - 1);
+                keptMass[state] = keptObservedMass[state] + (keepPrior ? priorMass : 0.0D);
+                priorWeight[state] = rowPriorWeight;
+                if (rowKeepEnd > first) {
+                    for (int entry = first; entry < rowKeepEnd; entry++) {
+                        entryWeights[entry] = weights.cumulative(state, entry) - (entry > first ? weights.cumulative(state, entry - 1) : 0.0D);
+                    }
+                    AliasTable.build(entryWeights, first, rowKeepEnd, probability, alias);
+                }
+            }
+        }
+
+        boolean isFor(double prior, double temperature, double topP, double minProbability) {
+            return this.prior == prior && this.temperature == temperature && this.topP == topP && this.minProbability == minProbability;
+        }
+    }
+
+    private static final class TableKey {
+        final double prior;
+        final double temperature;
+
+        TableKey(double prior, double temperature) {
+            this.prior = prior;
+            this.temperature = temperature;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            TableKey that = (TableKey) o;
+            return prior == that.prior && temperature == that.temperature;
+        }
+
+        @Override
+        public int hashCode() {
+            // not Objects.hash, which would box both values and allocate an array
+            return 31 * Double.hashCode(prior) + Double.hashCode(temperature);
+        }
+    }
+
+    // the weights for the settings of the latest draw; almost every draw uses the same settings as the one before,
+    // so this spares them building a key and hashing it
+    private static final class LastTables {
+        final double prior;
+        final double temperature;
+        final Weights weights;
+
+        LastTables(double prior, double temperature, Weights weights) {
+            this.prior = prior;
+            this.temperature = temperature;
+            this.weights = weights;
+        }
+    }
+
+    private Weights tables(double prior, double temperature) {
+        LastTables last = lastTables;
+        if (last != null && last.prior == prior && last.temperature == temperature) {
+            return last.weights;
+        }
+        TableKey key = new TableKey(prior, temperature);
+        Weights weights = tablesCache.get(key);
+        if (weights == null) {
+            if (tablesCache.size() >= MAX_CACHED_TABLES) {
+                tablesCache.clear();
+            }
+            weights = tablesCache.computeIfAbsent(key, k -> buildWeights(k.prior, k.temperature));
+        }
+        lastTables = new LastTables(prior, temperature, weights);
+        return weights;
+    }
+
+    private Weights buildWeights(double prior, double temperature) {
+        if (temperature == 1.0D) {
+            return new CountWeights(counts, prior);
+        }
+        // weights are scaled by each row's largest count before tempering, so that low temperatures can't overflow
+        double exponent = 1.0D / temperature;
+        double[] cumulative = new double[entrySymbols.length];
+        double[] priorWeights = new double[numStates()];
+        for (int s = 0; s < numStates(); s++) {
+            double largest = observedCount(s, 0);
+            double sum = 0.0D;
+            for (int i = 0; i < numObserved(s); i++) {
+                sum += Math.pow(observedCount(s, i) / largest, exponent);
+                cumulative[rowStart[s] + i] = sum;
+            }
+            priorWeights[s] = Math.pow(prior / largest, exponent);
+        }
+        return new TemperedWeights(cumulative, priorWeights);
+    }
+
+}
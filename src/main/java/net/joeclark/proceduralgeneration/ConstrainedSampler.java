@@ -0,0 +1,388 @@
+package net.joeclark.proceduralgeneration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Random walks through a {@link TextChain} that only ever produce texts accepted by a {@link TextAutomaton} (such
+ * as a {@link RegexAutomaton}) and within a length range, without generating and rejecting anything.  The walk runs
+ * on the product of the chain, the automaton and the length so far: at each step, a transition is only a candidate
+ * if some continuation from where it leads can still end in an accepting state within the length limit, and the
+ * next token is drawn from the candidates in proportion to their probabilities.  Whether a product state can be
+ * completed is worked out by a depth-first search the first time it's asked, and remembered, so the cost of
+ * pruning falls as more texts are drawn.  So are the weights out of each product state a walk passes through, and
+ * which product state each of its transitions leads to, so once a region of the chain has been walked, walking it
+ * again takes no lookups and allocates nothing.</p>
+ *
+ * <p>In exact mode, the walk is weighted by what lies ahead as well: the search works out, for each product state,
+ * the probability that a walk from it ends in an accepted text within the limits, and each transition is drawn in
+ * proportion to its own probability times that of where it leads.  The texts are then drawn exactly as often as
+ * they would be by generating unconstrained texts and rejecting those that don't pass, but every walk succeeds on
+ * the first try.  Working out the probabilities visits every product state reachable within the length limit rather
+ * than stopping at the first way to complete, so it costs more up front.  So it is only attempted over transitions
+ * observed in training, within a bounded number of product states: a transition that's only there because of a
+ * prior (priors link every state to every cluster, so the product states multiply), more than
+ * {@value #EXACT_STATE_BUDGET} product states, or a maxLength over {@value #EXACT_MAX_LENGTH} makes the sampler give
+ * up on exact mode for good, and leave it to the caller to draw texts some other way.</p>
+ *
+ * <p>The chain's probabilities can be reshaped by a temperature and cut off by top-p and a probability floor, as
+ * MarkovTextGenerator does when it samples without constraints.  The cutoffs are applied to each state's
+ * transitions before the pruning, so a text is only ever built from transitions the unconstrained walk could have
+ * taken.</p>
+ * @param <S> the state type of the chain
+ */
+final class ConstrainedSampler<S> {
+
+    private static final Logger logger = LoggerFactory.getLogger( ConstrainedSampler.class );
+
+    /** {@value}*/
+    static final int EXACT_STATE_BUDGET = 50000;
+    /** {@value}*/
+    static final int EXACT_MAX_LENGTH = 256; // bounds the depth of the recursion that works out the probabilities
+
+    private final TextChain<S> chain;
+    private final TextAutomaton automaton;
+    private final int minLength;
+    private final int maxLength;
+    private final double temperature;
+    private final double topP;
+    private final double minProbability;
+    private final boolean exact;
+    private volatile boolean abandoned; // in exact mode, once working out the probabilities would cost too much
+
+    // what's been worked out so far; concurrent, since several threads may sample at once and it makes no
+    // difference which of them works something out first
+    private final Map<S, List<Transition<S>>> transitions = new ConcurrentHashMap<>();
+    private final Map<Key<S>, Boolean> completable = new ConcurrentHashMap<>();
+    private final Map<Key<S>, Choices<S>> choices = new ConcurrentHashMap<>();
+    private volatile Start<S> lastStart; // where the last walk began, since most generators always begin in one place
+
+    private static final class Transition<S> {
+        final String token;
+        final int length;  // in code points
+        final double weight;
+        final S next;      // null if the transition ends the text
+        final boolean observed;
+
+        Transition(String token, double weight, S next, boolean observed) {
+            this.token = token;
+            this.length = CodePoints.length(token);
+            this.weight = weight;
+            this.next = next;
+            this.observed = observed;
+        }
+    }
+
+    // the weights to draw each of a product state's transitions with
+    private static final class Choices<S> {
+        final List<Transition<S>> transitions;
+        final double[] cumulative; // running totals of the weights, in the order of the transitions
+        final int[] matches;       // the automaton's state after each transition
+        final Choices<S>[] next;   // the choices after each transition, filled in as the walks first take it
+
+        @SuppressWarnings("unchecked")
+        Choices(List<Transition<S>> transitions, double[] cumulative, int[] matches) {
+            this.transitions = transitions;
+            this.cumulative = cumulative;
+            this.matches = matches;
+            this.next = new Choices[transitions.size()];
+        }
+
+        double total() { return (cumulative.length == 0) ? 0.0D : cumulative[cumulative.length - 1]; }
+
+        // the first transition whose running total is above r, so never one whose weight is 0
+        int choose(double r) {
+            int low = 0;
+            int high = cumulative.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] > r) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            while (low > 0 && cumulative[low] == cumulative[low - 1]) {
+                low--; // only reached through rounding error, when r is the total
+            }
+            return low;
+        }
+    }
+
+    // the choices at the end of a startFilter
+    private static final class Start<S> {
+        final String startFilter;
+        final Choices<S> choices;
+
+        Start(String startFilter, Choices<S> choices) {
+            this.startFilter = startFilter;
+            this.choices = choices;
+        }
+    }
+
+    private static final class Key<S> {
+        final S state;
+        final int match;
+        final int length;
+
+        Key(S state, int match, int length) {
+            this.state = state;
+            this.match = match;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key<?> key = (Key<?>) o;
+            return match == key.match && length == key.length && state.equals(key.state);
+        }
+
+        @Override
+        public int hashCode() {
+            // not Objects.hash, which would box the ints and allocate an array on every lookup
+            return (31 * state.hashCode() + match) * 31 + length;
+        }
+    }
+
+    // thrown to unwind the recursion when exact mode would cost too much; preallocated, since it's only a signal
+    private static final class ExactModeAbandoned extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final ExactModeAbandoned INSTANCE = new ExactModeAbandoned();
+
+        private ExactModeAbandoned() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * @param chain the chain to walk
+     * @param automaton accepts the texts that may be produced
+     * @param minLength the minimum length of a text, in code points
+     * @param maxLength the maximum length of a text, in code points
+     * @param temperature reshapes each state's probabilities; 1.0 leaves them as they are
+     * @param topP keep only each state's most probable transitions whose probabilities add up to at least this much
+     * @param minProbability drop transitions less probable than this (but always keep each state's most probable one)
+     */
+    ConstrainedSampler(TextChain<S> chain, TextAutomaton automaton, int minLength, int maxLength, double temperature, double topP, double minProbability) {
+        this(chain, automaton, minLength, maxLength, temperature, topP, minProbability, false);
+    }
+
+    /**
+     * @param chain the chain to walk
+     * @param automaton accepts the texts that may be produced
+     * @param minLength the minimum length of a text, in code points
+     * @param maxLength the maximum length of a text, in code points
+     * @param temperature reshapes each state's probabilities; 1.0 leaves them as they are
+     * @param topP keep only each state's most probable transitions whose probabilities add up to at least this much
+     * @param minProbability drop transitions less probable than this (but always keep each state's most probable one)
+     * @param exact whether to weight each transition by the probability that a walk through it completes, so texts
+     *              are drawn as often as rejection sampling would draw them, as long as that stays within bounds
+     */
+    ConstrainedSampler(TextChain<S> chain, TextAutomaton automaton, int minLength, int maxLength, double temperature, double topP, double minProbability, boolean exact) {
+        this.chain = chain;
+        this.automaton = automaton;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.temperature = temperature;
+        this.topP = topP;
+        this.minProbability = minProbability;
+        this.exact = exact;
+        this.abandoned = exact && maxLength > EXACT_MAX_LENGTH;
+    }
+
+    /**
+     * @param startFilter a String the text must begin with, or null
+     * @param random the source of randomness
+     * @param out where to append a random text that begins with the startFilter and is accepted by the automaton
+     * @return true; or in exact mode, false if the probabilities would cost too much to work out, in which case
+     * nothing is appended, and every later call returns false too
+     * @throws IllegalStateException if the chain can't produce any such text
+     */
+    boolean sampleInto(String startFilter, Random random, StringBuilder out) {
+        if (!exact) {
+            walk(startFilter, random, out);
+            return true;
+        }
+        if (abandoned) {
+            return false;
+        }
+        int outStart = out.length();
+        try {
+            walk(startFilter, random, out);
+            return true;
+        } catch (ExactModeAbandoned e) {
+            out.setLength(outStart);
+            if (!abandoned) {
+                abandoned = true;
+                choices.clear();
+                transitions.clear();
+                lastStart = null;
+                logger.debug("gave up on exact sampling, which would follow prior links or take more than {} product states", EXACT_STATE_BUDGET);
+            }
+            return false;
+        }
+    }
+
+    private void walk(String startFilter, Random random, StringBuilder out) {
+        Choices<S> options = start(startFilter);
+        if (options.total() == 0.0D) {
+            throw new IllegalStateException("the model can't generate any text that matches the pattern and filters");
+        }
+
+        int length = (startFilter == null) ? 0 : CodePoints.length(startFilter);
+        if (startFilter != null) {
+            out.append(startFilter);
+        }
+        while (true) {
+            // there is a transition with some weight, since this state was checked to be completable before it was entered
+            int chosen = options.choose(random.nextDouble() * options.total());
+            Transition<S> transition = options.transitions.get(chosen);
+            if (transition.next == null) {
+                return;
+            }
+            out.append(transition.token);
+            length += transition.length;
+            Choices<S> next = options.next[chosen];
+            if (next == null) {
+                // a race to fill this in is harmless, since every thread works out the same choices
+                next = choices(transition.next, options.matches[chosen], length);
+                options.next[chosen] = next;
+            }
+            options = next;
+        }
+    }
+
+    // the choices at the end of the startFilter, with no weight at all if it can't begin any accepted text
+    private Choices<S> start(String startFilter) {
+        Start<S> last = lastStart;
+        if (last != null && (startFilter == null ? last.startFilter == null : startFilter.equals(last.startFilter))) {
+            return last.choices;
+        }
+        S state = chain.startState(startFilter);
+        int match = automaton.step(automaton.start(), (startFilter == null) ? "" : startFilter);
+        int length = (startFilter == null) ? 0 : CodePoints.length(startFilter);
+        Choices<S> options = (state == null || match == TextAutomaton.DEAD)
+                ? new Choices<>(Collections.emptyList(), new double[0], new int[0])
+                : choices(state, match, length);
+        lastStart = new Start<>(startFilter, options);
+        return options;
+    }
+
+    private Choices<S> choicesOf(S state, int match, int length) {
+        List<Transition<S>> options = transitions(state);
+        double[] cumulative = new double[options.size()];
+        int[] matches = new int[options.size()];
+        double total = 0.0D;
+        for (int i = 0; i < options.size(); i++) {
+            Transition<S> transition = options.get(i);
+            matches[i] = (transition.next == null) ? match : automaton.step(match, transition.token);
+            total += followWeight(transition, matches[i], length);
+            cumulative[i] = total;
+        }
+        return new Choices<>(options, cumulative, matches);
+    }
+
+    // the choices out of a product state, worked out once
+    private Choices<S> choices(S state, int match, int length) {
+        Key<S> key = new Key<>(state, match, length);
+        Choices<S> cached = choices.get(key);
+        if (cached == null) {
+            if (exact && (abandoned || choices.size() >= EXACT_STATE_BUDGET)) {
+                throw ExactModeAbandoned.INSTANCE;
+            }
+            cached = choicesOf(state, match, length);
+            choices.put(key, cached);
+        }
+        return cached;
+    }
+
+    // the weight to draw a transition out of a product state with: 0 if it can't lead to an accepted text, otherwise
+    // its own weight, or in exact mode, that times the probability that a walk from where it leads is accepted
+    private double followWeight(Transition<S> transition, int nextMatch, int length) {
+        if (transition.next == null) {
+            return (length >= minLength && automaton.isAccepting(nextMatch)) ? transition.weight : 0.0D;
+        }
+        if (nextMatch == TextAutomaton.DEAD || length + transition.length > maxLength) {
+            return 0.0D;
+        }
+        if (exact) {
+            if (!transition.observed) {
+                throw ExactModeAbandoned.INSTANCE;
+            }
+            return transition.weight * completion(transition.next, nextMatch, length + transition.length);
+        }
+        return isCompletable(transition.next, nextMatch, length + transition.length) ? transition.weight : 0.0D;
+    }
+
+    // the probability that a walk from a product state ends in an accepted text within the limits
+    private double completion(S state, int match, int length) {
+        return choices(state, match, length).total();
+    }
+
+    // outside exact mode, whether a walk from a product state can end in an accepted text within the limits
+    private boolean isCompletable(S state, int match, int length) {
+        Key<S> key = new Key<>(state, match, length);
+        Boolean cached = completable.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        boolean result = false;
+        for (Transition<S> transition : transitions(state)) {
+            int nextMatch = (transition.next == null) ? match : automaton.step(match, transition.token);
+            if (followWeight(transition, nextMatch, length) > 0.0D) {
+                result = true;
+                break;
+            }
+        }
+        completable.put(key, result);
+        return result;
+    }
+
+    // a state's transitions after the temperature and cutoffs, most probable first
+    private List<Transition<S>> transitions(S state) {
+        List<Transition<S>> cached = transitions.get(state);
+        if (cached != null) {
+            return cached;
+        }
+        List<Transition<S>> all = new ArrayList<>();
+        chain.forEachTransition(state, (token, probability, next, observed) -> {
+            if (probability > 0.0D) {
+                all.add(new Transition<>(token, (temperature == 1.0D) ? probability : Math.pow(probability, 1.0D / temperature), next, observed));
+            }
+        });
+        all.sort((a, b) -> Double.compare(b.weight, a.weight));
+        double total = 0.0D;
+        for (Transition<S> transition : all) {
+            total += transition.weight;
+        }
+        List<Transition<S>> kept = new ArrayList<>();
+        double cumulative = 0.0D;
+        for (Transition<S> transition : all) {
+            if (!kept.isEmpty() && (transition.weight < minProbability * total || cumulative >= topP * total)) {
+                break;
+            }
+            kept.add(transition);
+            cumulative += transition.weight;
+        }
+        // scaled to add up to one, so in exact mode the completions are probabilities
+        for (int i = 0; i < kept.size(); i++) {
+            Transition<S> transition = kept.get(i);
+            kept.set(i, new Transition<>(transition.token, transition.weight / cumulative, transition.next, transition.observed));
+        }
+        transitions.put(state, kept);
+        if (transitions.size() % 10000 == 0) {
+            logger.debug("constrained sampling has explored {} chain states and {} product states", transitions.size(), completable.size());
+        }
+        return kept;
+    }
+
+}
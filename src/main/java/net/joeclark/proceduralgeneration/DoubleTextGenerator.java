@@ -3,6 +3,8 @@ package net.joeclark.proceduralgeneration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Random;
+
 /**
  * A RandomTextGenerator which combines the output of two other RandomTextGenerators.  This could be used, for example,
  * to combine a random first name and a random last name
@@ -39,4 +41,42 @@ public class DoubleTextGenerator implements RandomTextGenerator {
         return newText;
     }
 
+    /**
+     * @param random the source of randomness, shared by both generators
+     * @return the two generators' output, drawn from the given Random, joined by the separator
+     * @throws UnsupportedOperationException if either generator doesn't support generating from a given Random
+     */
+    @Override
+    public String generateOne(Random random) {
+        return firstStringGenerator.generateOne(random) + separator + secondStringGenerator.generateOne(random);
+    }
+
+    /**
+     * @param out the StringBuilder to append the two generators' output to, joined by the separator
+     * @return the number of chars appended
+     */
+    @Override
+    public int generateInto(StringBuilder out) {
+        int start = out.length();
+        firstStringGenerator.generateInto(out);
+        out.append(separator);
+        secondStringGenerator.generateInto(out);
+        return out.length() - start;
+    }
+
+    /**
+     * @param random the source of randomness, shared by both generators
+     * @param out the StringBuilder to append the two generators' output to, joined by the separator
+     * @return the number of chars appended
+     * @throws UnsupportedOperationException if either generator doesn't support generating from a given Random
+     */
+    @Override
+    public int generateInto(Random random, StringBuilder out) {
+        int start = out.length();
+        firstStringGenerator.generateInto(random, out);
+        out.append(separator);
+        secondStringGenerator.generateInto(random, out);
+        return out.length() - start;
+    }
+
 }
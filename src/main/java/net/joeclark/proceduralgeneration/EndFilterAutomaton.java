@@ -0,0 +1,53 @@
+package net.joeclark.proceduralgeneration;
+
+/**
+ * A {@link TextAutomaton} that accepts texts ending with a given String (or any text, if the String is null or
+ * empty).  The state is the length of the longest prefix of the endFilter that the text currently ends with, and
+ * transitions follow the Knuth-Morris-Pratt failure function, so each character is read in constant amortized time.
+ */
+final class EndFilterAutomaton implements TextAutomaton {
+
+    private final int[] endFilter; // its code points
+    private final int[] failure; // failure[i] is the longest proper prefix of endFilter[0..i] that is also its suffix
+
+    EndFilterAutomaton(String endFilter) {
+        this.endFilter = (endFilter == null) ? new int[0] : endFilter.codePoints().toArray();
+        this.failure = new int[this.endFilter.length];
+        for (int i = 1, k = 0; i < this.endFilter.length; i++) {
+            while (k > 0 && this.endFilter[i] != this.endFilter[k]) {
+                k = failure[k - 1];
+            }
+            if (this.endFilter[i] == this.endFilter[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+    }
+
+    @Override
+    public int start() {
+        return 0;
+    }
+
+    @Override
+    public int step(int state, int codePoint) {
+        if (endFilter.length == 0) {
+            return 0;
+        }
+        while (true) {
+            if (state < endFilter.length && endFilter[state] == codePoint) {
+                return state + 1;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = failure[state - 1];
+        }
+    }
+
+    @Override
+    public boolean isAccepting(int state) {
+        return state == endFilter.length;
+    }
+
+}
@@ -0,0 +1,19 @@
+package net.joeclark.proceduralgeneration;
+
+/**
+ * The filter settings shared by the generators that take them, so that code such as the NameServer can configure
+ * any of them alike.
+ */
+interface FilterableGenerator extends RandomTextGenerator {
+
+    void setMinLength(int minLength);
+
+    void setMaxLength(int maxLength);
+
+    void setStartFilter(String startFilter);
+
+    void setEndFilter(String endFilter);
+
+    void setRegex(String regex);
+
+}
@@ -0,0 +1,126 @@
+package net.joeclark.proceduralgeneration;
+
+import java.util.Objects;
+
+/**
+ * <p>An immutable set of filters to generate with, passed with each call instead of set on the generator, so one
+ * trained generator can serve any number of filter combinations at once, e.g.:</p>
+ *
+ * <pre>{@code GenerationSpec spec = new GenerationSpec().withStartFilter("ma").withMaxLength(8);
+ * String name = generator.generateOne(spec, random);}</pre>
+ *
+ * <p>A filter left out of the spec is taken from the generator's own settings.  Each generator keeps what it
+ * derives from a spec (the state its start filter leads to, a compiled regex, an index of the strings that pass
+ * the filters, and so on) for the {@value #MAX_CACHED_SPECS} specs it has used most recently, so a spec that's used
+ * again costs nothing to set up, while thousands of distinct specs still share the one trained model.  The
+ * {@code withX} methods return a new spec and leave this one as it is.</p>
+ */
+public final class GenerationSpec {
+
+    /** {@value}, the number of specs whose derived data each generator keeps*/
+    public static final int MAX_CACHED_SPECS = 256;
+
+    private final Integer minLength;
+    private final Integer maxLength;
+    private final String startFilter;
+    private final String endFilter;
+    private final String regex;
+
+    /**
+     * A spec with no filters of its own, which generates just as the generator is configured.
+     */
+    public GenerationSpec() {
+        this(null, null, null, null, null);
+    }
+
+    private GenerationSpec(Integer minLength, Integer maxLength, String startFilter, String endFilter, String regex) {
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.startFilter = startFilter;
+        this.endFilter = endFilter;
+        this.regex = regex;
+    }
+
+    /**
+     * @param minLength the minimum length of output text you'll accept
+     * @return a copy of this spec with the minimum length
+     */
+    public GenerationSpec withMinLength(int minLength) {
+        return new GenerationSpec(minLength, maxLength, startFilter, endFilter, regex);
+    }
+
+    /**
+     * @param maxLength the maximum length of output text you'll accept
+     * @return a copy of this spec with the maximum length
+     */
+    public GenerationSpec withMaxLength(int maxLength) {
+        return new GenerationSpec(minLength, maxLength, startFilter, endFilter, regex);
+    }
+
+    /**
+     * @param startFilter a String that the beginning of the output must match
+     * @return a copy of this spec with the startFilter
+     */
+    public GenerationSpec withStartFilter(String startFilter) {
+        return new GenerationSpec(minLength, maxLength, startFilter, endFilter, regex);
+    }
+
+    /**
+     * @param endFilter a String that the end of the output must match
+     * @return a copy of this spec with the endFilter
+     */
+    public GenerationSpec withEndFilter(String endFilter) {
+        return new GenerationSpec(minLength, maxLength, startFilter, endFilter, regex);
+    }
+
+    /**
+     * @param regex a regular expression that the whole output must match; it's checked when the spec is first used
+     * @return a copy of this spec with the regex
+     */
+    public GenerationSpec withRegex(String regex) {
+        return new GenerationSpec(minLength, maxLength, startFilter, endFilter, regex);
+    }
+
+    // getters, each null if the spec leaves the setting to the generator
+    public Integer getMinLength() { return minLength; }
+    public Integer getMaxLength() { return maxLength; }
+    public String getStartFilter() { return startFilter; }
+    public String getEndFilter() { return endFilter; }
+    public String getRegex() { return regex; }
+
+    /**
+     * @return true if the spec sets no filters of its own
+     */
+    public boolean isEmpty() {
+        return minLength == null && maxLength == null && startFilter == null && endFilter == null && regex == null;
+    }
+
+    // set the spec's filters on a copy of a generator, leaving the others as they are
+    void applyTo(FilterableGenerator generator) {
+        if (minLength != null) generator.setMinLength(minLength);
+        if (maxLength != null) generator.setMaxLength(maxLength);
+        if (startFilter != null) generator.setStartFilter(startFilter);
+        if (endFilter != null) generator.setEndFilter(endFilter);
+        if (regex != null) generator.setRegex(regex);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GenerationSpec that = (GenerationSpec) o;
+        return Objects.equals(minLength, that.minLength) && Objects.equals(maxLength, that.maxLength) && Objects.equals(startFilter, that.startFilter) && Objects.equals(endFilter, that.endFilter) && Objects.equals(regex, that.regex);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(minLength, maxLength, startFilter, endFilter, regex);
+    }
+
+    @Override
+    public String toString() {
+        return "GenerationSpec{minLength=" + minLength + ", maxLength=" + maxLength + ", startFilter=" + startFilter
+                + ", endFilter=" + endFilter + ", regex=" + regex + "}";
+    }
+
+}
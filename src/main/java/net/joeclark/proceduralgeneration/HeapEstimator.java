@@ -0,0 +1,68 @@
+package net.joeclark.proceduralgeneration;
+
+/**
+ * Rough estimates of the heap retained by the structures that models are made of, assuming a 64-bit JVM with
+ * compressed object pointers (12-byte object headers, 4-byte references, 8-byte alignment).  They are meant for
+ * comparing one model layout with another and for capacity planning, not for exact accounting.
+ */
+final class HeapEstimator {
+
+    static final long REFERENCE = 4;
+    static final long BOXED_PRIMITIVE = 16;   // Integer, Double, Character...
+    static final long HASH_MAP_NODE = 32;
+    static final long HASH_MAP = 48;
+    static final long ARRAY_LIST = 24;
+    static final long STRING = 24;
+
+    private HeapEstimator() {}
+
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * @param length the number of elements
+     * @param elementBytes the size of each element (e.g. 4 for an int or a reference)
+     * @return the size of an array
+     */
+    static long array(long length, long elementBytes) {
+        return align(16 + length * elementBytes);
+    }
+
+    /**
+     * @param length the number of characters
+     * @return the size of a String and its backing array, assuming one byte per character as with compact strings
+     */
+    static long string(int length) {
+        return STRING + array(length, 1);
+    }
+
+    /**
+     * @param size the number of entries
+     * @return the size of a HashMap and its table, not counting its keys and values
+     */
+    static long hashMap(int size) {
+        int capacity = 16;
+        while (capacity * 3 < size * 4) {
+            capacity <<= 1;
+        }
+        return HASH_MAP + array(capacity, REFERENCE) + size * HASH_MAP_NODE;
+    }
+
+    /**
+     * @param size the number of elements
+     * @return the size of an ArrayList and its backing array, not counting its elements
+     */
+    static long arrayList(int size) {
+        return ARRAY_LIST + array(Math.max(size, 10), REFERENCE);
+    }
+
+    /**
+     * @param i an int, such as a code point
+     * @return the size of boxing it; the JVM caches the boxes of -128 to 127
+     */
+    static long boxedInteger(int i) {
+        return (i >= -128 && i < 128) ? 0 : BOXED_PRIMITIVE;
+    }
+
+}
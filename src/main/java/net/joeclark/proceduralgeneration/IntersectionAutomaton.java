@@ -0,0 +1,58 @@
+package net.joeclark.proceduralgeneration;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link TextAutomaton} that runs two others side by side and accepts only the texts both accept, for example a
+ * regular expression and an end filter.  Each pair of states the two reach together is numbered as it is first
+ * reached, so the product is only ever as big as the part of it actually explored.
+ */
+final class IntersectionAutomaton implements TextAutomaton {
+
+    private final TextAutomaton first;
+    private final TextAutomaton second;
+    // pairs already numbered are looked up without locking; new ones are numbered one thread at a time
+    private final Map<Long, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, int[]> pairs = new ConcurrentHashMap<>(); // the pair of states behind each state of the product
+
+    IntersectionAutomaton(TextAutomaton first, TextAutomaton second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    private int id(int a, int b) {
+        if (a == DEAD || b == DEAD) {
+            return DEAD;
+        }
+        long key = ((long) a << 32) | b;
+        Integer id = ids.get(key);
+        return (id != null) ? id : newId(key, a, b);
+    }
+
+    private synchronized int newId(long key, int a, int b) {
+        return ids.computeIfAbsent(key, k -> {
+            int id = pairs.size();
+            pairs.put(id, new int[] { a, b });
+            return id;
+        });
+    }
+
+    @Override
+    public int start() {
+        return id(first.start(), second.start());
+    }
+
+    @Override
+    public int step(int state, int codePoint) {
+        int[] pair = pairs.get(state);
+        return id(first.step(pair[0], codePoint), second.step(pair[1], codePoint));
+    }
+
+    @Override
+    public boolean isAccepting(int state) {
+        int[] pair = pairs.get(state);
+        return first.isAccepting(pair[0]) && second.isAccepting(pair[1]);
+    }
+
+}
@@ -0,0 +1,287 @@
+package net.joeclark.proceduralgeneration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>The sampling tables of a MarkovTextGenerator, compiled one prefix at a time as generation reaches them instead
+ * of all at once after training; see {@link MarkovTextGenerator#setLazyCompilation(boolean)}.  The model reads the
+ * generator's observations directly, so training costs no more than collecting them, and each row costs memory only
+ * once a walk has visited it.  A row holds the same entries, in the same order, as the row of a
+ * {@link CompiledMarkovModel} compiled from the same observations, and is drawn from by the same code, so a walk
+ * draws exactly the same characters from the same random numbers either way.</p>
+ *
+ * <p>Rows are kept in a ConcurrentHashMap and are immutable once compiled (apart from the caches below, which any
+ * thread may fill in with the same values), so several threads can walk the model at once.  The number of compiled
+ * rows can be bounded, in which case compiling a new row once the bound is reached first drops an arbitrary one,
+ * to be compiled again if it's needed again.</p>
+ *
+ * <p>Rows refer to the rows that follow them by prefix, not directly, so a dropped row can actually be collected.
+ * The features that need to see the whole model at once (a regex, the most probable texts, enumeration and
+ * compaction) use a CompiledMarkovModel, which is compiled in full the first time one of them asks for it.</p>
+ */
+final class LazyMarkovModel {
+
+    final int order;
+    final int[] symbols; // the alphabet's code points in ascending order, as in CompiledMarkovModel
+    final int controlSymbol;
+    final String initialContext;
+
+    private final Map<String, List<Integer>> observations;
+    private final Map<String, Map<Integer, Double>> importedCounts;
+    private final Set<Integer> alphabet;
+    private final int maxCompiledPrefixes;
+
+    private final Map<String, Row> rows = new ConcurrentHashMap<>();
+    private volatile CompiledMarkovModel compiledModel;
+
+    /**
+     * @param observations the generator's observations, which must not change while the model is in use
+     * @param importedCounts the generator's imported counts, likewise
+     * @param alphabet the code point of every character in the training data, plus the control character
+     * @param order the longest prefix to use
+     * @param maxCompiledPrefixes the most rows to keep compiled at once, or 0 for no limit
+     */
+    LazyMarkovModel(Map<String, List<Integer>> observations, Map<String, Map<Integer, Double>> importedCounts, Set<Integer> alphabet, int order, int maxCompiledPrefixes) {
+        this.observations = observations;
+        this.importedCounts = importedCounts;
+        this.alphabet = new HashSet<>(alphabet);
+        this.order = order;
+        this.maxCompiledPrefixes = maxCompiledPrefixes;
+        this.symbols = alphabet.stream().mapToInt(Integer::intValue).sorted().toArray();
+        this.controlSymbol = symbolIndex(MarkovTextGenerator.CONTROL_CHAR);
+
+        StringBuilder start = new StringBuilder();
+        for (int i = 0; i < order; i++) {
+            start.append(MarkovTextGenerator.CONTROL_CHAR);
+        }
+        this.initialContext = longestObservedSuffix(start.toString());
+    }
+
+    /**
+     * One prefix's row: the symbols observed to follow it, most frequent first, with their cumulative counts.
+     */
+    static final class Row {
+        final String context;
+        final int[] entrySymbols;
+        private final double[] cumulative;
+        private final String[] next; // the context reached by each symbol, filled in as the walk first follows it
+        private volatile RowWeights weights; // for the prior and temperature last drawn with
+
+        private Row(String context, int[] entrySymbols, double[] cumulative, int numSymbols) {
+            this.context = context;
+            this.entrySymbols = entrySymbols;
+            this.cumulative = cumulative;
+            this.next = new String[numSymbols];
+        }
+
+        /**
+         * @param symbol a symbol
+         * @return its position in the row, or -1 if it wasn't observed to follow the prefix
+         */
+        int indexOf(int symbol) {
+            for (int i = 0; i < entrySymbols.length; i++) {
+                if (entrySymbols[i] == symbol) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // a row's weights, tempered as CompiledMarkovModel tempers them
+    private static final class RowWeights extends CompiledMarkovModel.Weights {
+        private final double prior;
+        private final double temperature;
+        private final double[] cumulative;
+        private final double priorWeight;
+
+        RowWeights(double[] counts, double prior, double temperature) {
+            this.prior = prior;
+            this.temperature = temperature;
+            if (temperature == 1.0D) {
+                cumulative = counts;
+                priorWeight = prior;
+            } else {
+                double exponent = 1.0D / temperature;
+                double largest = counts[0];
+                cumulative = new double[counts.length];
+                double sum = 0.0D;
+                for (int i = 0; i < counts.length; i++) {
+                    sum += Math.pow((counts[i] - (i > 0 ? counts[i - 1] : 0.0D)) / largest, exponent);
+                    cumulative[i] = sum;
+                }
+                priorWeight = Math.pow(prior / largest, exponent);
+            }
+        }
+
+        @Override
+        double cumulative(int state, int entry) { return cumulative[entry]; }
+
+        @Override
+        double priorWeight(int state) { return priorWeight; }
+    }
+
+    /**
+     * @param codePoint a character's code point
+     * @return its index in the alphabet, or a negative number if it isn't in the alphabet
+     */
+    int symbolIndex(int codePoint) {
+        return Arrays.binarySearch(symbols, codePoint);
+    }
+
+    /**
+     * @param context a prefix observed in training
+     * @return its row, compiled now if it hasn't been already
+     */
+    Row row(String context) {
+        Row row = rows.get(context);
+        if (row == null) {
+            if (maxCompiledPrefixes > 0 && rows.size() >= maxCompiledPrefixes) {
+                Iterator<String> compiled = rows.keySet().iterator();
+                if (compiled.hasNext()) {
+                    compiled.next();
+                    compiled.remove();
+                }
+            }
+            row = rows.computeIfAbsent(context, this::compileRow);
+        }
+        return row;
+    }
+
+    /**
+     * @param row the current row
+     * @param symbol the symbol to follow (not the control symbol)
+     * @return the row of the longest observed suffix of the row's prefix followed by the symbol, as
+     * {@link CompiledMarkovModel#next(int, int)} finds it
+     * @throws IllegalStateException if no suffix was observed, which can't happen for a symbol seen in training
+     */
+    Row next(Row row, int symbol) {
+        String context = row.next[symbol];
+        if (context == null) {
+            context = longestObservedSuffix(row.context + CodePoints.toString(symbols[symbol]));
+            if (context == null) {
+                throw new IllegalStateException("found no model to follow \"" + row.context + "\" with character " + symbols[symbol]);
+            }
+            row.next[symbol] = context;
+        }
+        return row(context);
+    }
+
+    /**
+     * Draw a symbol to follow a row; see {@link CompiledMarkovModel#sample(int, double, double, double, double, double)}.
+     * @param row the current row
+     * @param roll a uniformly-distributed random number in [0,1)
+     * @param prior the relative weight of each symbol not observed after this row's prefix
+     * @param temperature values above 1 flatten the distribution, values below 1 sharpen it
+     * @param topP keep only the most probable symbols whose probabilities add up to at least this much
+     * @param minProbability drop symbols less probable than this (but always keep the most probable one)
+     * @return the index of the symbol drawn
+     */
+    int sample(Row row, double roll, double prior, double temperature, double topP, double minProbability) {
+        RowWeights weights = row.weights;
+        if (weights == null || weights.prior != prior || weights.temperature != temperature) {
+            weights = new RowWeights(row.cumulative, prior, temperature);
+            row.weights = weights;
+        }
+        return CompiledMarkovModel.sample(weights, 0, row.entrySymbols, 0, row.entrySymbols.length, symbols.length, roll, topP, minProbability);
+    }
+
+    /**
+     * @param context the last few characters of a text, possibly including leading control characters
+     * @return its longest suffix of up to {@code order} characters that was observed as a prefix in training, or
+     * null if there is none
+     */
+    String longestObservedSuffix(String context) {
+        for (int o = Math.min(order, CodePoints.length(context)); o > 0; o--) {
+            String suffix = CodePoints.last(context, o);
+            if (observations.containsKey(suffix) || importedCounts.containsKey(suffix)) {
+                return suffix;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the whole model compiled at once, compiled the first time it's asked for
+     */
+    CompiledMarkovModel compiledModel() {
+        CompiledMarkovModel model = compiledModel;
+        if (model == null) {
+            synchronized (this) {
+                if (compiledModel == null) {
+                    Map<String, Map<Integer, Double>> counts = new HashMap<>();
+                    for (String prefix : observations.keySet()) {
+                        counts.put(prefix, counts(prefix));
+                    }
+                    for (String prefix : importedCounts.keySet()) {
+                        counts.computeIfAbsent(prefix, this::counts);
+                    }
+                    compiledModel = CompiledMarkovModel.compile(counts, alphabet, order);
+                }
+                model = compiledModel;
+            }
+        }
+        return model;
+    }
+
+    /**
+     * @return the number of rows compiled so far and still kept
+     */
+    int numCompiledPrefixes() { return rows.size(); }
+
+    /**
+     * @return the estimated heap bytes retained by the compiled rows, not counting the observations they're
+     * compiled from or the fully compiled model
+     */
+    long estimatedBytes() {
+        long bytes = HeapEstimator.hashMap(rows.size());
+        for (Row row : rows.values()) {
+            bytes += HeapEstimator.string(row.context.length())
+                    + HeapEstimator.array(row.entrySymbols.length, 4)
+                    + HeapEstimator.array(row.cumulative.length, 8)
+                    + HeapEstimator.array(row.next.length, HeapEstimator.REFERENCE);
+        }
+        return bytes;
+    }
+
+    private Row compileRow(String context) {
+        List<Map.Entry<Integer, Double>> observed = new ArrayList<>(counts(context).entrySet());
+        // sorted as CompiledMarkovModel sorts its rows, so both draw the same symbol from the same roll
+        observed.sort(Comparator.comparing((Map.Entry<Integer, Double> e) -> -e.getValue()).thenComparing(Map.Entry::getKey));
+        int[] entrySymbols = new int[observed.size()];
+        double[] cumulative = new double[observed.size()];
+        double sum = 0.0D;
+        for (int i = 0; i < observed.size(); i++) {
+            entrySymbols[i] = symbolIndex(observed.get(i).getKey());
+            sum += observed.get(i).getValue();
+            cumulative[i] = sum;
+        }
+        return new Row(context, entrySymbols, cumulative, symbols.length);
+    }
+
+    // the number of times each code point was observed to follow a prefix, summed as MarkovTextGenerator.getCounts() sums them
+    private Map<Integer, Double> counts(String prefix) {
+        Map<Integer, Double> row = new HashMap<>();
+        List<Integer> suffixes = observations.get(prefix);
+        if (suffixes != null) {
+            for (Integer c : suffixes) {
+                row.merge(c, 1.0D, Double::sum);
+            }
+        }
+        Map<Integer, Double> imported = importedCounts.get(prefix);
+        if (imported != null) {
+            imported.forEach( (c, n) -> row.merge(c, n, Double::sum) );
+        }
+        return row;
+    }
+
+}
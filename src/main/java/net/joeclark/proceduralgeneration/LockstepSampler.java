@@ -0,0 +1,189 @@
+package net.joeclark.proceduralgeneration;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * <p>Generates many texts from a compiled Markov model at once, for
+ * {@link MarkovTextGenerator#generateBatch(int, Random)}.  The scalar walk draws one character of one text at a time,
+ * so every step waits for a random number and then for a table lookup that depends on it, and the branch that ends
+ * each text is unpredictable.  Here a batch of candidate texts advances in lockstep, held as parallel arrays (a
+ * struct of arrays) of each slot's current state, its length in code points, and the offset where its next char
+ * goes in one shared buffer.  Each step draws a random number for every active slot in one pass, draws every slot's
+ * next symbol from the tables in a second (see {@link CompiledMarkovModel#sampleBatch}), and appends the symbols in a
+ * third, retiring the candidates that have ended, checking them against the filters, and refilling their slots with
+ * new candidates.  The random numbers come from a SplittableRandom seeded from the caller's Random, which draws them
+ * several times faster than Random's thread-safe updates, so the texts still depend only on the caller's seed.</p>
+ *
+ * <p>Each candidate is an independent walk, and every one that passes the filters is kept, so the texts come from
+ * exactly the distribution {@link MarkovTextGenerator#generateOne()} draws from, though not in the same sequence for
+ * a given seed.  Short candidates finish first, so the texts are shuffled before they're returned, and a text's
+ * position says nothing about its length.</p>
+ *
+ * <p>A sampler is built for one call and isn't thread-safe.</p>
+ */
+final class LockstepSampler {
+
+    /** {@value}; enough independent draws per step to overlap their lookups, few enough to keep the slots in cache */
+    static final int SLOTS = 64;
+
+    private final CompiledMarkovModel model;
+    private final int startState;
+    private final char[] startChars;
+    private final int startLength;
+    private final int minLength;
+    private final int maxLength;
+    private final char[] endChars; // null if there's no endFilter
+    private final CompiledMarkovModel.BatchTables tables;
+
+    // one element per slot; slots [0,active) hold candidates in progress
+    private final int[] states;
+    private final int[] lengths; // in code points, including the startFilter
+    private final int[] offsets; // where the slot's next char goes in the buffer
+    private final int[] bases;   // where the slot's text begins in the buffer
+    private final double[] rolls;
+    private final int[] drawn;
+    private char[] buffer;
+    private int width;           // the chars each slot has in the buffer
+    private int active;
+
+    /**
+     * @param generator a trained generator, without a regex or lazy compilation
+     * @param slots the number of candidates to advance at once
+     * @throws IllegalStateException if the model can't generate the startFilter
+     */
+    LockstepSampler(MarkovTextGenerator generator, int slots) {
+        this.model = generator.compiledModel;
+        this.startState = generator.startState();
+        this.startChars = (generator.startFilter == null) ? new char[0] : generator.startFilter.toCharArray();
+        this.startLength = (generator.startFilter == null) ? 0 : CodePoints.length(generator.startFilter);
+        this.minLength = generator.minLength;
+        this.maxLength = generator.maxLength;
+        this.endChars = (generator.endFilter == null) ? null : generator.endFilter.toCharArray();
+        this.tables = model.batchTables(generator.prior, generator.temperature, generator.topP, generator.minProbability);
+
+        states = new int[slots];
+        lengths = new int[slots];
+        offsets = new int[slots];
+        bases = new int[slots];
+        rolls = new double[slots];
+        drawn = new int[slots];
+        // room for the longest candidate worth finishing (maxLength + 1 code points), up to a point; a slot that
+        // runs out of room grows the buffer, see append()
+        width = startChars.length + 2 + Math.max(0, Math.min(maxLength, 32));
+        buffer = new char[slots * width];
+        for (int i = 0; i < slots; i++) {
+            bases[i] = offsets[i] = i * width;
+        }
+    }
+
+    /**
+     * @param count the number of texts wanted
+     * @param random the source of randomness
+     * @return that many texts that pass the filters, in random order
+     */
+    String[] generate(int count, Random random) {
+        String[] texts = new String[count];
+        int accepted = 0;
+        SplittableRandom rolling = new SplittableRandom(random.nextLong());
+        active = 0;
+        while (active < states.length && active < count) {
+            launch(active++);
+        }
+        // at most count candidates are ever accepted or in progress at once, so none is wasted at the end
+        while (active > 0) {
+            int n = active;
+            for (int i = 0; i < n; i++) {
+                rolls[i] = rolling.nextDouble();
+            }
+            model.sampleBatch(tables, states, rolls, drawn, n);
+            // backwards, so the slot moved into a retired one's place has already been stepped
+            for (int i = n - 1; i >= 0; i--) {
+                int symbol = drawn[i];
+                if (symbol != model.controlSymbol) {
+                    append(i, model.symbols[symbol]);
+                    if (++lengths[i] <= maxLength) {
+                        continue;
+                    }
+                    // too long already, so don't waste any more random draws on it
+                }
+                if (passesFilters(i)) {
+                    texts[accepted++] = new String(buffer, bases[i], offsets[i] - bases[i]);
+                }
+                if (accepted + active - 1 < count) {
+                    launch(i);
+                } else {
+                    retire(i);
+                }
+            }
+        }
+        for (int i = count - 1; i > 0; i--) {
+            int j = rolling.nextInt(i + 1);
+            String text = texts[i];
+            texts[i] = texts[j];
+            texts[j] = text;
+        }
+        return texts;
+    }
+
+    // start a new candidate in a slot, from the end of the startFilter
+    private void launch(int slot) {
+        System.arraycopy(startChars, 0, buffer, bases[slot], startChars.length);
+        offsets[slot] = bases[slot] + startChars.length;
+        lengths[slot] = startLength;
+        states[slot] = startState;
+    }
+
+    // free a slot by moving the last active candidate into it; the freed region of the buffer goes with the slot
+    private void retire(int slot) {
+        int last = --active;
+        states[slot] = states[last];
+        lengths[slot] = lengths[last];
+        int offset = offsets[slot];
+        offsets[slot] = offsets[last];
+        offsets[last] = offset;
+        int base = bases[slot];
+        bases[slot] = bases[last];
+        bases[last] = base;
+    }
+
+    private void append(int slot, int codePoint) {
+        if (offsets[slot] + 2 > bases[slot] + width) {
+            grow();
+        }
+        offsets[slot] += Character.toChars(codePoint, buffer, offsets[slot]);
+    }
+
+    // double every slot's room in the buffer, keeping the slots' regions in the same order
+    private void grow() {
+        int newWidth = width * 2;
+        char[] newBuffer = new char[states.length * newWidth];
+        for (int i = 0; i < states.length; i++) {
+            int newBase = (bases[i] / width) * newWidth;
+            System.arraycopy(buffer, bases[i], newBuffer, newBase, offsets[i] - bases[i]);
+            offsets[i] += newBase - bases[i];
+            bases[i] = newBase;
+        }
+        buffer = newBuffer;
+        width = newWidth;
+    }
+
+    private boolean passesFilters(int slot) {
+        if (lengths[slot] < minLength || lengths[slot] > maxLength) {
+            return false;
+        }
+        if (endChars != null) {
+            int offset = offsets[slot] - endChars.length;
+            if (offset < bases[slot]) {
+                return false;
+            }
+            for (int i = 0; i < endChars.length; i++) {
+                if (buffer[offset + i] != endChars[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,205 @@
+package net.joeclark.proceduralgeneration;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>The observation counts behind a MarkovTextGenerator: how many times each character (identified by its Unicode
+ * code point) was seen to follow each prefix, along with the alphabet and the model's order.  Counts can be exported
+ * from a trained generator with {@link MarkovTextGenerator#getCounts()}, merged with counts from other generators, and
+ * loaded into a generator with {@link MarkovTextGenerator#train(MarkovCounts)}, so a large corpus can be split into
+ * shards, trained on by several processes, and combined, e.g.:</p>
+ *
+ * <pre>{@code MarkovCounts merged = MarkovCounts.read(shard1).merge(MarkovCounts.read(shard2)).merge(MarkovCounts.read(shard3));
+ * MarkovTextGenerator generator = new MarkovTextGenerator().train(merged);}</pre>
+ *
+ * <p>Instances are immutable.  Merging adds counts together, so it is associative and commutative (exactly so for
+ * unweighted counts, which are whole numbers) and any number of shards can be combined in any order with the same
+ * result as training on them all at once.  To blend sources unequally, scale one with {@link #weighted(double)}
+ * before merging.</p>
+ */
+public final class MarkovCounts {
+
+    private static final int MAGIC = 0x4D4B5643;  // "MKVC"
+    private static final int FORMAT_VERSION = 2;     // version 1 stored UTF-16 chars rather than code points
+
+    private final int order;
+    private final Set<Integer> alphabet;
+    private final Map<String, Map<Integer, Double>> counts;
+    private final int datasetLength;
+
+    MarkovCounts(int order, Set<Integer> alphabet, Map<String, Map<Integer, Double>> counts, int datasetLength) {
+        this.order = order;
+        this.alphabet = Collections.unmodifiableSet(new TreeSet<>(alphabet));
+        Map<String, Map<Integer, Double>> copy = new HashMap<>();
+        counts.forEach( (prefix, row) -> copy.put(prefix, Collections.unmodifiableMap(new HashMap<>(row))) );
+        this.counts = Collections.unmodifiableMap(copy);
+        this.datasetLength = datasetLength;
+    }
+
+    /**
+     * @return the longest prefix the counts were collected for
+     */
+    public int getOrder() { return order; }
+
+    /**
+     * @return the code point of every character seen in training, including the control character that marks the
+     * start and end of text
+     */
+    public Set<Integer> getAlphabet() { return alphabet; }
+
+    /**
+     * @return the number of training strings the counts were collected from
+     */
+    public int getDatasetLength() { return datasetLength; }
+
+    /**
+     * @return the number of distinct prefixes observed
+     */
+    public int getNumPrefixes() { return counts.size(); }
+
+    /**
+     * @param prefix a prefix of up to {@code order} characters
+     * @return the (possibly weighted) number of times each character, by code point, was observed to follow it;
+     * empty if the prefix was never observed
+     */
+    public Map<Integer, Double> getCounts(String prefix) {
+        return counts.getOrDefault(prefix, Collections.emptyMap());
+    }
+
+    Map<String, Map<Integer, Double>> getCounts() { return counts; }
+
+    /**
+     * @param other counts collected with the same order
+     * @return the sum of both sets of counts
+     * @throws IllegalArgumentException if the orders differ
+     */
+    public MarkovCounts merge(MarkovCounts other) {
+        if (other.order != order) {
+            throw new IllegalArgumentException("can't merge counts of order " + other.order + " into counts of order " + order);
+        }
+        Set<Integer> mergedAlphabet = new TreeSet<>(alphabet);
+        mergedAlphabet.addAll(other.alphabet);
+        Map<String, Map<Integer, Double>> merged = new HashMap<>();
+        addTo(merged, counts, 1.0D);
+        addTo(merged, other.counts, 1.0D);
+        return new MarkovCounts(order, mergedAlphabet, merged, datasetLength + other.datasetLength);
+    }
+
+    /**
+     * @param weight the factor to multiply every count by, e.g. 2.0 to make this source count twice as much as
+     *               others it is merged with
+     * @return a scaled copy of these counts
+     * @throws IllegalArgumentException if the weight is not greater than zero
+     */
+    public MarkovCounts weighted(double weight) {
+        if (!(weight > 0.0D) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("weight must be greater than zero");
+        }
+        Map<String, Map<Integer, Double>> scaled = new HashMap<>();
+        addTo(scaled, counts, weight);
+        return new MarkovCounts(order, alphabet, scaled, datasetLength);
+    }
+
+    static void addTo(Map<String, Map<Integer, Double>> target, Map<String, Map<Integer, Double>> source, double weight) {
+        source.forEach( (prefix, row) -> {
+            Map<Integer, Double> targetRow = target.computeIfAbsent(prefix, k -> new HashMap<>());
+            row.forEach( (c, count) -> targetRow.merge(c, count * weight, Double::sum) );
+        });
+    }
+
+    /**
+     * Write the counts in a compact binary format that {@link #read(InputStream)} understands.  The output only
+     * depends on the counts, not on how they were built, so equal counts always produce identical files.
+     * @param out the stream to write to; it is not closed
+     * @throws IOException if the stream can't be written
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(order);
+        data.writeInt(datasetLength);
+        data.writeInt(alphabet.size());
+        for (int c : alphabet) {
+            data.writeInt(c);
+        }
+        Map<String, Map<Integer, Double>> sorted = new TreeMap<>(counts);
+        data.writeInt(sorted.size());
+        for (Map.Entry<String, Map<Integer, Double>> entry : sorted.entrySet()) {
+            data.writeUTF(entry.getKey());
+            Map<Integer, Double> row = new TreeMap<>(entry.getValue());
+            data.writeInt(row.size());
+            for (Map.Entry<Integer, Double> count : row.entrySet()) {
+                data.writeInt(count.getKey());
+                data.writeDouble(count.getValue());
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * @param in a stream positioned at counts written by {@link #write(OutputStream)}; it is not closed
+     * @return the counts
+     * @throws IOException if the stream can't be read or doesn't hold counts in a known format
+     */
+    public static MarkovCounts read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("not a MarkovCounts stream");
+        }
+        int version = data.readInt();
+        if (version != FORMAT_VERSION && version != 1) {
+            throw new IOException("unsupported MarkovCounts format version " + version);
+        }
+        int order = data.readInt();
+        int datasetLength = data.readInt();
+        int alphabetSize = data.readInt();
+        List<Integer> alphabet = new ArrayList<>(alphabetSize);
+        for (int i = 0; i < alphabetSize; i++) {
+            alphabet.add(readSymbol(data, version));
+        }
+        int numPrefixes = data.readInt();
+        Map<String, Map<Integer, Double>> counts = new HashMap<>();
+        for (int i = 0; i < numPrefixes; i++) {
+            String prefix = data.readUTF();
+            int rowSize = data.readInt();
+            Map<Integer, Double> row = new HashMap<>();
+            for (int j = 0; j < rowSize; j++) {
+                row.put(readSymbol(data, version), data.readDouble());
+            }
+            counts.put(prefix, row);
+        }
+        return new MarkovCounts(order, new TreeSet<>(alphabet), counts, datasetLength);
+    }
+
+    private static int readSymbol(DataInputStream data, int version) throws IOException {
+        return (version == 1) ? data.readChar() : data.readInt();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MarkovCounts that = (MarkovCounts) o;
+        return order == that.order && datasetLength == that.datasetLength && alphabet.equals(that.alphabet) && counts.equals(that.counts);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(order, alphabet, counts, datasetLength);
+    }
+
+}
@@ -3,45 +3,164 @@ package net.joeclark.proceduralgeneration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * An alternative implementation of MarkovTextGenerator that learns and reproduces upper/lower case usage in the
- * training data.  With a given dataset, this model may learn less effectively from the training data because it
- * builds separate models for "A" and "a" (to give an example) instead of combining observations.  However, this
- * implementation may be preferable if the input data has interesting uses of capitalization (such as names that
+ * training data.  It may be preferable if the input data has interesting uses of capitalization (such as names that
  * begin with "Mc" and "Mac" followed by capitals) that you want to re-generate.
+ *
+ * <p>The Markov model itself is learned on lowercased text, exactly as MarkovTextGenerator learns it, so "A" and "a"
+ * share their statistics and the model is no bigger or slower than the case-insensitive one.  A separate, much
+ * smaller casing model learns how likely each letter is to be capitalized given the few characters before it (in
+ * their original case), and restores the case of each generated text.  The start and end filters are matched
+ * without regard to case, and then appear in the output exactly as given.</p>
  */
 public class MarkovTextCasePreservingGenerator extends MarkovTextGenerator {
 
     private static final Logger logger = LoggerFactory.getLogger( MarkovTextCasePreservingGenerator.class );
 
+    /** {@value}*/
+    public static final int DEFAULT_CASING_ORDER = 2;
+
+    private CasingModel casingModel = new CasingModel(DEFAULT_CASING_ORDER);
+    private String casedStartFilter;
+    private String casedEndFilter;
+
 
     public MarkovTextCasePreservingGenerator() {
         logger.info("initialized new MarkovTextCasePreservingGenerator instance");
     }
 
+    /**
+     * @param casingOrder the number of preceding characters the casing model considers when deciding whether to
+     *                    capitalize a letter (default 2). set it before training
+     * @return the same MarkovTextCasePreservingGenerator
+     */
+    public MarkovTextCasePreservingGenerator withCasingOrder(int casingOrder) {
+        setCasingOrder(casingOrder);
+        return this;
+    }
+
+    public void setCasingOrder(int casingOrder) {
+        if (casingModel.getNumContexts() > 0) {
+            throw new IllegalStateException("the casing order must be set before training");
+        }
+        casingModel = new CasingModel(casingOrder);
+    }
+    public int getCasingOrder() { return casingModel.getOrder(); }
+
+    // for JUnit tests only
+    CasingModel getCasingModel() { return casingModel; }
 
     @Override
     public void setStartFilter(String startFilter) {
-        this.startFilter = startFilter;
+        super.setStartFilter(startFilter);
+        this.casedStartFilter = startFilter;
     }
 
     @Override
     public void setEndFilter(String endFilter) {
-        this.endFilter = endFilter;
+        super.setEndFilter(endFilter);
+        this.casedEndFilter = endFilter;
     }
 
-    // the difference in this implementation is that we don't lowercase the training text before making observations
+    @Override
+    public String getStartFilter() { return casedStartFilter; }
+    @Override
+    public String getEndFilter() { return casedEndFilter; }
+
+    // the Markov model sees lowercased text, as in the superclass; the casing model sees the original
     @Override
     protected void makeObservations(Stream<String> rawWords) {
+        Set<Integer> alphabet = ownAlphabet();
         rawWords.map(String::trim)
                 .forEach( w -> {
-                    this.alphabet.addAll(w.chars().mapToObj(s->(char)s).collect(Collectors.toList()));
-                    analyzeWord(w);
+                    String folded = w.toLowerCase();
+                    folded.codePoints().forEach(alphabet::add);
+                    analyzeWord(folded);
+                    casingModel.observe(w);
                     datasetLength += 1;
                 });
     }
 
+    /**
+     * @param random the source of randomness
+     * @param out the StringBuilder to append a random string to, generated as by MarkovTextGenerator, with the case
+     *            of each letter drawn from the casing model and restored in place
+     * @return the number of chars appended
+     * @throws IllegalStateException if model has not been trained
+     */
+    @Override
+    public int generateInto(Random random, StringBuilder out) {
+        int start = out.length();
+        super.generateInto(random, out);
+        casingModel.restore(out, start, casedStartFilter, casedEndFilter, random);
+        return out.length() - start;
+    }
+
+    /**
+     * @param count the number of strings wanted
+     * @param random the source of randomness, both for the strings and for the case of each letter drawn from the
+     *               casing model
+     * @return that many random strings, each with its case restored
+     * @throws IllegalArgumentException if count is negative
+     * @throws IllegalStateException if model has not been trained
+     */
+    @Override
+    public List<String> generateBatch(int count, Random random) {
+        List<String> texts = super.generateBatch(count, random);
+        texts.replaceAll(text -> casingModel.restore(text, casedStartFilter, casedEndFilter, random));
+        return texts;
+    }
+
+    /**
+     * @param k the number of text strings wanted
+     * @param frontierLimit the maximum number of partial strings the search keeps in memory
+     * @return up to k distinct text strings, most probable first, each in its most likely case
+     * @throws IllegalStateException if model has not been trained
+     */
+    @Override
+    public List<String> generateMostProbable(int k, int frontierLimit) {
+        return super.generateMostProbable(k, frontierLimit).stream().map(this::mostLikelyCase).collect(Collectors.toList());
+    }
+
+    /**
+     * @return an Iterator over the possible text strings, each in its most likely case
+     * @throws IllegalStateException if model has not been trained
+     */
+    @Override
+    public Iterator<String> enumeratePossibleTexts() {
+        return mostLikelyCase(super.enumeratePossibleTexts());
+    }
+
+    /**
+     * @param minProbability only follow transitions at least this probable
+     * @return an Iterator over the possible text strings, each in its most likely case
+     * @throws IllegalStateException if model has not been trained
+     */
+    @Override
+    public Iterator<String> enumeratePossibleTexts(double minProbability) {
+        return mostLikelyCase(super.enumeratePossibleTexts(minProbability));
+    }
+
+    private String mostLikelyCase(String folded) {
+        return casingModel.restore(folded, casedStartFilter, casedEndFilter, null);
+    }
+
+    private Iterator<String> mostLikelyCase(Iterator<String> folded) {
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() { return folded.hasNext(); }
+
+            @Override
+            public String next() { return mostLikelyCase(folded.next()); }
+        };
+    }
+
 }
@@ -0,0 +1,57 @@
+package net.joeclark.proceduralgeneration;
+
+/**
+ * A {@link TextChain} view of a trained MarkovTextGenerator.  A state is a state of the generator's compiled model,
+ * that is, the longest suffix of the text generated so far that was observed in training, exactly as the generator
+ * itself sees it.  Probabilities include the generator's current prior, but not its temperature or cutoffs.
+ */
+class MarkovTextChain implements TextChain<Integer> {
+
+    private final CompiledMarkovModel compiledModel;
+    private final double prior;
+
+    MarkovTextChain(MarkovTextGenerator generator) {
+        this.compiledModel = generator.compiledModel();
+        this.prior = generator.prior;
+    }
+
+    @Override
+    public Integer startState(String startFilter) {
+        if (startFilter != null) {
+            if (startFilter.codePoints().anyMatch(c -> compiledModel.symbolIndex(c) < 0)) {
+                return null;
+            }
+        }
+        int state = compiledModel.advance(compiledModel.initialState, (startFilter == null) ? "" : startFilter);
+        return (state == CompiledMarkovModel.NO_STATE) ? null : state;
+    }
+
+    @Override
+    public void forEachTransition(Integer state, TransitionVisitor<Integer> visitor) {
+        int numObserved = compiledModel.numObserved(state);
+        int numUnobserved = compiledModel.symbols.length - numObserved;
+        double total = compiledModel.totalCount(state) + numUnobserved * prior;
+        boolean[] observed = new boolean[compiledModel.symbols.length];
+        for (int i = 0; i < numObserved; i++) {
+            int symbol = compiledModel.observedSymbol(state, i);
+            observed[symbol] = true;
+            visit(state, symbol, compiledModel.observedCount(state, i) / total, true, visitor);
+        }
+        if (prior > 0.0D) {
+            for (int symbol = 0; symbol < observed.length; symbol++) {
+                if (!observed[symbol]) {
+                    visit(state, symbol, prior / total, false, visitor);
+                }
+            }
+        }
+    }
+
+    private void visit(int state, int symbol, double probability, boolean observed, TransitionVisitor<Integer> visitor) {
+        if (symbol == compiledModel.controlSymbol) {
+            visitor.visit("", probability, null, observed);
+        } else {
+            visitor.visit(CodePoints.toString(compiledModel.symbols[symbol]), probability, compiledModel.next(state, symbol), observed);
+        }
+    }
+
+}
@@ -4,16 +4,21 @@ package net.joeclark.proceduralgeneration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.math.BigInteger;
 import java.util.*;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * A class that uses a Markov model, trained on a {@code Stream<String>} of example text, to generate new,
  * random strings similar to the training data.  Based on <a href="http://roguebasin.roguelikedevelopment.org/index.php?title=Names_from_a_high_order_Markov_Process_and_a_simplified_Katz_back-off_scheme" target="_blank">an
  * algorithm described by JLund3 at RogueBasin</a>.
+ *
+ * <p>Text is handled as a sequence of Unicode code points, so the order, the length filters and the alphabet all
+ * count characters outside the Basic Multilingual Plane (such as emoji) as one character each, and a surrogate pair
+ * is never split.  The model's tables refer to characters by their index in the alphabet observed in training, so
+ * a corpus in Chinese or Devanagari costs no more per transition than one in English.</p>
  */
-public class MarkovTextGenerator implements RandomTextGenerator {
+public class MarkovTextGenerator implements FilterableGenerator, Cloneable {
 
     private static final Logger logger = LoggerFactory.getLogger( MarkovTextGenerator.class );
 
@@ -25,6 +30,18 @@ public class MarkovTextGenerator implements RandomTextGenerator {
     public static final int DEFAULT_MIN_LENGTH = 4;
     /** {@value}*/
     public static final int DEFAULT_MAX_LENGTH = 12;
+    /** {@value}*/
+    public static final double DEFAULT_TEMPERATURE = 1.0D;
+    /** {@value}*/
+    public static final double DEFAULT_TOP_P = 1.0D;
+    /** {@value}*/
+    public static final double DEFAULT_MIN_PROBABILITY = 0.0D;
+    /** {@value}*/
+    public static final int DEFAULT_COMPACTION_MIN_PREFIX_COUNT = 2;
+    /** {@value}*/
+    public static final int DEFAULT_COMPACTION_BITS = 8;
+    /** {@value}, meaning no limit*/
+    public static final int DEFAULT_MAX_COMPILED_PREFIXES = 0;
 
     static final char CONTROL_CHAR = '\u001F';  // to indicate beginning and end of input; must not be in the data's alphabet
     static final char DANGER_CHAR = '\u001C';  // a character that should never occur, and would indicate a failure in randomCharacter()
@@ -35,16 +52,49 @@ public class MarkovTextGenerator implements RandomTextGenerator {
     protected int maxLength = DEFAULT_MAX_LENGTH;
     protected String startFilter;
     protected String endFilter;
-    // todo: add a regex match option
+    protected RegexAutomaton regex;
+    protected double temperature = DEFAULT_TEMPERATURE;
+    protected double topP = DEFAULT_TOP_P;
+    protected double minProbability = DEFAULT_MIN_PROBABILITY;
     protected Random random = new Random();
+    protected boolean lazyCompilation;
+    protected int maxCompiledPrefixes = DEFAULT_MAX_COMPILED_PREFIXES;
 
     protected int datasetLength;
-    protected Set<Character> alphabet = new HashSet<>();
-    protected Map<String, List<Character>> observations = new HashMap<>();
-    protected Map<String, Map<Character,Double>> model = new HashMap<>();
+    protected Set<Integer> alphabet = new HashSet<>();  // code points
+    private boolean alphabetShared; // the alphabet is shared with other models, see shareAlphabet, so copy it before adding to it
+    protected Map<String, List<Integer>> observations = new HashMap<>();
+    protected Map<String, Map<Integer,Double>> importedCounts = new HashMap<>(); // counts loaded with train(MarkovCounts)
+    protected CompiledMarkovModel compiledModel; // null in lazy mode, see compiledModel()
+    protected LazyMarkovModel lazyModel;          // null unless in lazy mode
+    protected boolean compacted;
+
+    // the state at the end of the startFilter, resolved once per filter and model rather than on every generateOne().
+    // startStateModel is volatile and written last, so a thread that sees it up to date also sees the other two
+    private volatile CompiledMarkovModel startStateModel; // the model startState was resolved in, or null if it's out of date
+    private int startState;
+    private boolean startFilterObserved; // whether every character of the startFilter was observed to follow what precedes it
+
+    // the same, for the lazy model: the prefix whose row the walk begins from
+    private volatile LazyMarkovModel startContextModel;
+    private String startContext;
+    private boolean startContextObserved;
+
+    // the statistics of the model, computed once per model; statisticsModel is volatile and written last
+    private volatile CompiledMarkovModel statisticsModel;
+    private ModelStatistics statistics;
+
+    // samples texts that match the regex, kept as long as the settings it was built with (and what it has learned
+    // about which states can lead to a match) still apply.  The sampler is written before its settings, so a thread
+    // that sees the current settings also sees the sampler built for them
+    private volatile ConstrainedSampler<Integer> regexSampler;
+    private volatile List<Object> regexSamplerSettings;
+
+    // copies with each recently used GenerationSpec applied; not shared with copies of this generator
+    private transient volatile SpecCache<MarkovTextGenerator> specCache;
 
     {
-        alphabet.add(CONTROL_CHAR);
+        alphabet.add((int) CONTROL_CHAR);
     }
 
     /**
@@ -120,20 +170,185 @@ public class MarkovTextGenerator implements RandomTextGenerator {
         return this;
     }
 
-    // for JUnit tests only
+    /**
+     * @param regex a regular expression that the whole output must match, in lowercase; see {@link #setRegex(String)}
+     * @return the same MarkovTextGenerator
+     */
+    public MarkovTextGenerator withRegex(String regex) {
+        setRegex(regex);
+        return this;
+    }
+
+    /**
+     * @param lazyCompilation whether to compile the model's sampling tables one prefix at a time, as generation first
+     *                        reaches them, rather than all at once when training; see {@link #setLazyCompilation(boolean)}
+     * @return the same MarkovTextGenerator
+     */
+    public MarkovTextGenerator withLazyCompilation(boolean lazyCompilation) {
+        setLazyCompilation(lazyCompilation);
+        return this;
+    }
+
+    /**
+     * @param maxCompiledPrefixes in lazy mode, the most prefixes to keep compiled at once (default 0, meaning no
+     *                            limit); see {@link #setMaxCompiledPrefixes(int)}
+     * @return the same MarkovTextGenerator
+     */
+    public MarkovTextGenerator withMaxCompiledPrefixes(int maxCompiledPrefixes) {
+        setMaxCompiledPrefixes(maxCompiledPrefixes);
+        return this;
+    }
+
+    /**
+     * @param temperature reshapes the model's probabilities when generating (default 1.0). values above 1 make the
+     *                    output more random, values below 1 make it more like the training data. it is applied to the
+     *                    trained model, so it can be changed at any time without retraining
+     * @return the same MarkovTextGenerator
+     */
+    public MarkovTextGenerator withTemperature(double temperature) {
+        setTemperature(temperature);
+        return this;
+    }
+
+    /**
+     * @param topP a "nucleus" cutoff (default 1.0, meaning no cutoff). each character is drawn only from the most
+     *             probable candidates whose probabilities add up to at least this much, which keeps the output from
+     *             wandering into unlikely sequences
+     * @return the same MarkovTextGenerator
+     */
+    public MarkovTextGenerator withTopP(double topP) {
+        setTopP(topP);
+        return this;
+    }
+
+    /**
+     * @param minProbability a probability floor (default 0.0). candidate characters less probable than this are never
+     *                       drawn, although the most probable candidate always remains possible
+     * @return the same MarkovTextGenerator
+     */
+    public MarkovTextGenerator withMinProbability(double minProbability) {
+        setMinProbability(minProbability);
+        return this;
+    }
+
+    // for ModelResources, and JUnit tests
     int getDatasetLength() { return datasetLength; }
-    Set<Character> getAlphabet() { return alphabet; }
-    Map<String, List<Character>> getObservations() { return observations; }
-    Map<String, Map<Character,Double>> getModel() { return model; }
+    Set<Integer> getAlphabet() { return alphabet; }
+    Map<String, List<Integer>> getObservations() { return observations; }
+
+    /**
+     * Use an equal alphabet held by other models in place of this one's, to save memory; used by
+     * {@link ModelRegistry}.  The shared set must not change, so it's copied before any further training adds to it.
+     * @param shared a set equal to this model's alphabet
+     */
+    void shareAlphabet(Set<Integer> shared) {
+        if (!shared.equals(alphabet)) {
+            throw new IllegalArgumentException("a shared alphabet must equal the model's own");
+        }
+        alphabet = shared;
+        alphabetShared = true;
+    }
+
+    /**
+     * Adopt compiled tables read from a model resource, in place of training a new generator; used by
+     * {@link ModelResources}.  Like a compacted model, the result can generate but holds no counts, so it can't be
+     * trained further.
+     * @param model the tables
+     * @param datasetLength the number of strings the tables were trained on
+     * @return this generator
+     */
+    MarkovTextGenerator restore(CompiledMarkovModel model, int datasetLength) {
+        Set<Integer> alphabet = new HashSet<>();
+        for (int symbol : model.symbols) {
+            alphabet.add(symbol);
+        }
+        this.order = model.order;
+        this.alphabet = alphabet;
+        this.alphabetShared = false;
+        this.observations = new HashMap<>();
+        this.importedCounts = new HashMap<>();
+        this.lazyModel = null;
+        this.compiledModel = model;
+        this.datasetLength = datasetLength;
+        this.compacted = true;
+        return this;
+    }
+
+    // the alphabet, to add to in training
+    Set<Integer> ownAlphabet() {
+        if (alphabetShared) {
+            alphabet = new HashSet<>(alphabet);
+            alphabetShared = false;
+        }
+        return alphabet;
+    }
 
     // setters
     public void setOrder(int order) { this.order = order; }
     public void setPrior(double prior) { this.prior = prior; }
     public void setMinLength(int minLength) { this.minLength = minLength; }
     public void setMaxLength(int maxLength) { this.maxLength = maxLength; }
-    public void setStartFilter(String startFilter) { this.startFilter = startFilter.toLowerCase(); }
+    public void setStartFilter(String startFilter) {
+        this.startFilter = startFilter.toLowerCase();
+        this.startStateModel = null;
+        this.startContextModel = null;
+    }
     public void setEndFilter(String endFilter) { this.endFilter = endFilter.toLowerCase(); }
+    /**
+     * Constrain the output to texts that match a regular expression in full.  Rather than generating texts and
+     * discarding those that don't match, the pattern is compiled to a finite automaton that is walked in step with
+     * the model, and at each step only characters from which a match can still be completed (within the length
+     * limits and the other filters) are drawn, so even a very selective pattern costs no more than one walk per
+     * text.  Output is lowercase, so the pattern should be too.  The syntax is that of java.util.regex, less the
+     * constructs that aren't regular: back-references, lookaround, possessive quantifiers and flags.
+     * @param regex a regular expression, or null for none
+     * @throws IllegalArgumentException if the regular expression is malformed or unsupported
+     */
+    public void setRegex(String regex) { this.regex = (regex == null) ? null : new RegexAutomaton(regex); }
     public void setRandom(Random random) { this.random = random; }
+    /**
+     * Choose between compiling the model's sampling tables all at once when training (the default) or one prefix at
+     * a time, the first time generation reaches each one.  A high-order model has many prefixes that random
+     * generation rarely or never visits, especially with a startFilter, so in lazy mode training finishes sooner and
+     * the tables take memory only for the prefixes actually used.  The output is exactly the same either way.  A
+     * regex, {@link #generateMostProbable(int)}, {@link #enumeratePossibleTexts()} and {@link #compact()} need the
+     * whole model, so the first use of any of them compiles it all.  Like the order, this takes effect when the
+     * model is next trained.
+     * @param lazyCompilation true to compile lazily
+     */
+    public void setLazyCompilation(boolean lazyCompilation) { this.lazyCompilation = lazyCompilation; }
+    /**
+     * In lazy mode, bound the number of prefixes whose sampling tables are kept compiled at once.  Once the bound is
+     * reached, compiling another prefix first drops an arbitrary one, which is compiled again if it's needed again,
+     * so memory stays bounded at some cost in speed.  Like the order, this takes effect when the model is next
+     * trained.
+     * @param maxCompiledPrefixes the most prefixes to keep compiled, or 0 for no limit
+     * @throws IllegalArgumentException if maxCompiledPrefixes is negative
+     */
+    public void setMaxCompiledPrefixes(int maxCompiledPrefixes) {
+        if (maxCompiledPrefixes < 0) {
+            throw new IllegalArgumentException("maxCompiledPrefixes must not be negative");
+        }
+        this.maxCompiledPrefixes = maxCompiledPrefixes;
+    }
+    public void setTemperature(double temperature) {
+        if (!(temperature > 0.0D)) {
+            throw new IllegalArgumentException("temperature must be greater than zero");
+        }
+        this.temperature = temperature;
+    }
+    public void setTopP(double topP) {
+        if (!(topP > 0.0D && topP <= 1.0D)) {
+            throw new IllegalArgumentException("topP must be greater than zero and no more than one");
+        }
+        this.topP = topP;
+    }
+    public void setMinProbability(double minProbability) {
+        if (!(minProbability >= 0.0D && minProbability < 1.0D)) {
+            throw new IllegalArgumentException("minProbability must be at least zero and less than one");
+        }
+        this.minProbability = minProbability;
+    }
     // getters
     public int getOrder() { return order; }
     public double getPrior() { return prior; }
@@ -141,6 +356,12 @@ public class MarkovTextGenerator implements RandomTextGenerator {
     public int getMinLength() { return minLength; }
     public String getStartFilter() { return startFilter; }
     public String getEndFilter() { return endFilter; }
+    public String getRegex() { return (regex == null) ? null : regex.getRegex(); }
+    public double getTemperature() { return temperature; }
+    public double getTopP() { return topP; }
+    public double getMinProbability() { return minProbability; }
+    public boolean isLazyCompilation() { return lazyCompilation; }
+    public int getMaxCompiledPrefixes() { return maxCompiledPrefixes; }
 
     /**
      * @return true if the model was trained. Don't attempt to generate names from an untrained model, or you'll get an InvalidStateException!
@@ -149,12 +370,17 @@ public class MarkovTextGenerator implements RandomTextGenerator {
 
     /**
      * Build the Markov chain model based on a training dataset.  Do this <i>after</i> setting the desired
-     * order and prior, but <i>before</i> attempting to generate names.  If this function is called a second time,
+     * order, but <i>before</i> attempting to generate names.  (The prior, temperature, topP and minProbability
+     * are applied when generating, so they can be changed after training.)  If this function is called a second time,
      * it will add new observations to the existing model. This can be used to create "blended" models.
      * @param rawWords a Stream of training data, e.g. from a file.  your random text output will look like the input data
      * @return the same MarkovTextGenerator
+     * @throws IllegalStateException if the model has been compacted
      */
     public MarkovTextGenerator train(Stream<String> rawWords) {
+        if (compacted) {
+            throw new IllegalStateException("a compacted model can't be trained further");
+        }
 
         logger.info("beginning to ingest training data");
 
@@ -163,46 +389,107 @@ public class MarkovTextGenerator implements RandomTextGenerator {
         // observations map is now populated
         // datasetLength is now set
 
-        buildModelFromObservations();
-        // model is now populated
+        buildModel();
+        // compiledModel (or in lazy mode, lazyModel) is now ready for generating text
 
         logger.info("finished training the Markov model on a dataset of {} strings with a {} character alphabet", datasetLength,alphabet.size());
         return this;
     }
 
+    /**
+     * Add observation counts, for example counts merged from generators trained on separate shards of a corpus, to
+     * the model.  Like training on a stream, this adds to whatever the model already knows.  A generator that hasn't
+     * been trained yet takes its order from the counts.
+     * @param counts observation counts, see {@link MarkovCounts}
+     * @return the same MarkovTextGenerator
+     * @throws IllegalArgumentException if the model has been trained with a different order
+     * @throws IllegalStateException if the model has been compacted
+     */
+    public MarkovTextGenerator train(MarkovCounts counts) {
+        if (compacted) {
+            throw new IllegalStateException("a compacted model can't be trained further");
+        }
+        if (datasetLength==0 && observations.isEmpty() && importedCounts.isEmpty()) {
+            order = counts.getOrder();
+        } else if (counts.getOrder() != order) {
+            throw new IllegalArgumentException("can't train a model of order " + order + " with counts of order " + counts.getOrder());
+        }
+
+        ownAlphabet().addAll(counts.getAlphabet());
+        MarkovCounts.addTo(importedCounts, counts.getCounts(), 1.0D);
+        datasetLength += counts.getDatasetLength();
+
+        buildModel();
+
+        logger.info("finished loading counts of {} prefixes into the Markov model, now based on a dataset of {} strings", counts.getNumPrefixes(), datasetLength);
+        return this;
+    }
+
+    private void buildModel() {
+        if (lazyCompilation) {
+            lazyModel = new LazyMarkovModel(observations, importedCounts, alphabet, order, maxCompiledPrefixes);
+            compiledModel = null;
+        } else {
+            compiledModel = CompiledMarkovModel.compile(getCounts().getCounts(), alphabet, order);
+            lazyModel = null;
+        }
+    }
+
+    /**
+     * @return the whole model compiled at once: the one compiled when training, or in lazy mode, one compiled the
+     * first time it's asked for
+     */
+    CompiledMarkovModel compiledModel() {
+        LazyMarkovModel lazy = lazyModel;
+        return (lazy == null) ? compiledModel : lazy.compiledModel();
+    }
+
+    /**
+     * @return a snapshot of the observation counts behind the model, which can be saved, merged with counts from
+     * other generators, and loaded into another generator with {@link #train(MarkovCounts)}
+     * @throws IllegalStateException if the model has been compacted, which discards the counts
+     */
+    public MarkovCounts getCounts() {
+        if (compacted) {
+            throw new IllegalStateException("a compacted model has discarded its counts");
+        }
+        Map<String, Map<Integer,Double>> counts = new HashMap<>();
+        observations.forEach( (prefix, suffixes) -> {
+            Map<Integer,Double> row = counts.computeIfAbsent(prefix, k -> new HashMap<>());
+            suffixes.forEach( c -> row.merge(c, 1.0D, Double::sum) );
+        });
+        MarkovCounts.addTo(counts, importedCounts, 1.0D);
+        return new MarkovCounts(order, alphabet, counts, datasetLength);
+    }
+
     // initial ingestion of training data, capturing observations of characters that follow each observed sequence of predecessor characters
     protected void makeObservations(Stream<String> rawWords) {
+        Set<Integer> alphabet = ownAlphabet();
         rawWords.map(String::toLowerCase)
                 .map(String::trim)
                 .forEach( w -> {
-                    this.alphabet.addAll(w.chars().mapToObj(s->(char)s).collect(Collectors.toList()));
+                    w.codePoints().forEach(alphabet::add);
                     analyzeWord(w);
                     datasetLength += 1;
                 });
     }
 
-    // turn raw frequencies of observations into statistical relative probabilities, adding a Bayesian prior for each not-observed character
-    protected void buildModelFromObservations() {
-        observations.forEach( (k,v) -> {
-            Map<Character,Long> frequencies = v.stream()
-                    .collect(Collectors.groupingBy(c->c,Collectors.counting()));
-            Map<Character,Double> relativeProbabilities = new HashMap<>();
-            alphabet.forEach( a ->
-                    relativeProbabilities.put(a, frequencies.containsKey(a) ? (double) frequencies.get(a) : prior)
-            );
-            model.put(k,relativeProbabilities);
-        });
-    }
-
     // used in training, runs once for each String in the training set to add to the observations map
     protected void analyzeWord(String word) {
-        StringBuilder wordb = new StringBuilder(word);
-        wordb.append(CONTROL_CHAR);
+        // the word's code points, padded with enough control characters for the longest prefix
+        int[] padded = new int[order + CodePoints.length(word) + 1];
+        Arrays.fill(padded, 0, order, CONTROL_CHAR);
+        int n = order;
+        for (int i = 0; i < word.length(); ) {
+            int codePoint = word.codePointAt(i);
+            padded[n++] = codePoint;
+            i += Character.charCount(codePoint);
+        }
+        padded[n] = CONTROL_CHAR;
         for(int o=1;o<=order;o++) {
-            wordb.insert(0,CONTROL_CHAR);
-            for (int i = 0; i < wordb.length() - o; i++) {
-                String prefix = wordb.substring(i, i + o);
-                Character suffix = wordb.charAt(i + o);
+            for (int i = order - o; i < padded.length - o; i++) {
+                String prefix = new String(padded, i, o);
+                Integer suffix = padded[i + o];
                 observations.computeIfAbsent(prefix, k -> new ArrayList<>()).add(suffix);
             }
         }
@@ -215,69 +502,488 @@ public class MarkovTextGenerator implements RandomTextGenerator {
      * starting and ending sequence, be careful that those filters are not impossible given the training data
      * (for example, the instance infers an alphabet from the training data and will never generate letters
      * outside that alphabet).  You could end up with an infinite loop or an exception if your filters are
-     * impossible to match.
-     * @throws IllegalStateException if model has not been trained
+     * impossible to match.  (If a regex is set, filters are matched during the walk instead, so impossible filters
+     * are detected and reported with an exception.)
+     * @throws IllegalStateException if model has not been trained, or can't generate the startFilter at all, or
+     * can't generate any text that matches the regex and filters
      */
     @Override
     public String generateOne() {
+        return generateOne(random);
+    }
+
+    /**
+     * Generate a random string as {@link #generateOne()} does, but drawing on the given source of randomness rather
+     * than the generator's own.  This may be called from several threads at once, each with its own Random, as long
+     * as the generator isn't trained or reconfigured meanwhile.
+     * @param random the source of randomness
+     * @return a random string
+     * @throws IllegalStateException as {@link #generateOne()} does
+     */
+    @Override
+    public String generateOne(Random random) {
+        StringBuilder newText = new StringBuilder();
+        generateInto(random, newText);
+        return newText.toString();
+    }
+
+    /**
+     * Generate a random string as {@link #generateOne()} does, but append it to a StringBuilder instead of returning
+     * a new String.  Once the builder has grown big enough, this allocates nothing on the heap (unless a regex is
+     * set), so a caller can generate any number of strings into one reused builder.
+     * @param out the StringBuilder to append to
+     * @return the number of chars appended
+     * @throws IllegalStateException as {@link #generateOne()} does
+     */
+    @Override
+    public int generateInto(StringBuilder out) {
+        return generateInto(random, out);
+    }
+
+    /**
+     * Generate a random string into a StringBuilder, as {@link #generateInto(StringBuilder)} does, drawing on the
+     * given source of randomness rather than the generator's own; see {@link #generateOne(Random)}.
+     * @param random the source of randomness
+     * @param out the StringBuilder to append to
+     * @return the number of chars appended
+     * @throws IllegalStateException as {@link #generateOne()} does
+     */
+    @Override
+    public int generateInto(Random random, StringBuilder out) {
+        return sampleInto(random, out);
+    }
+
+    /**
+     * Generate many random strings at once, as {@link #generateOne()} would one at a time.  Rather than walking the
+     * model for one string after another, this advances a batch of candidate strings through the model in lockstep,
+     * drawing random numbers and looking up the sampling tables for the whole batch at each step, which keeps the
+     * CPU busier and is two to three times as fast for large counts.  The strings come from the same distribution as
+     * generateOne's, and are returned in random order, but aren't the same ones generateOne would give from the same
+     * seed.  (With a regex or in lazy mode, the strings are generated one at a time.)
+     * @param count the number of strings wanted
+     * @return that many random strings
+     * @throws IllegalArgumentException if count is negative
+     * @throws IllegalStateException as {@link #generateOne()} does
+     */
+    public List<String> generateBatch(int count) {
+        return generateBatch(count, random);
+    }
+
+    /**
+     * Generate many random strings at once, as {@link #generateBatch(int)} does, drawing on the given source of
+     * randomness rather than the generator's own; see {@link #generateOne(Random)}.
+     * @param count the number of strings wanted
+     * @param random the source of randomness
+     * @return that many random strings
+     * @throws IllegalArgumentException if count is negative
+     * @throws IllegalStateException as {@link #generateOne()} does
+     */
+    public List<String> generateBatch(int count, Random random) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must not be negative");
+        }
         if(datasetLength==0) {
             throw new IllegalStateException("model has not yet been trained");
+        }
+        String[] texts;
+        if (regex == null && lazyModel == null) {
+            texts = new LockstepSampler(this, LockstepSampler.SLOTS).generate(count, random);
         } else {
-            StringBuilder newText = new StringBuilder();
+            // the regex sampler and the lazy model's rows don't fit the lockstep tables, so walk them one by one
+            texts = new String[count];
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                out.setLength(0);
+                sampleInto(random, out);
+                texts[i] = out.toString();
+            }
+        }
+        logger.debug("generated a batch of {} random text strings", count);
+        return Arrays.asList(texts);
+    }
+
+    // the walk behind generateInto, private so that generateBatch gets the model's own text even if a subclass
+    // reworks what generateInto appends
+    private int sampleInto(Random random, StringBuilder out) {
+        if(datasetLength==0) {
+            throw new IllegalStateException("model has not yet been trained");
+        }
+        int start = out.length();
+        if (regex != null) {
+            startState(); // validates the startFilter
+            regexSampler().sampleInto(startFilter, random, out);
+            if (logger.isDebugEnabled()) {
+                logger.debug("new random text string matching {} generated: {}", regex.getRegex(), out.subSequence(start, out.length()));
+            }
+            return out.length() - start;
+        }
+        // the walk begins from the state at the end of the startFilter (if any), and each attempt only replaces
+        // what was generated after it
+        LazyMarkovModel lazy = lazyModel;
+        int startState = (lazy == null) ? startState() : CompiledMarkovModel.NO_STATE;
+        LazyMarkovModel.Row startRow = (lazy == null) ? null : startRow(lazy);
+        if (startFilter != null) {
+            out.append(startFilter);
+        }
+        int startChars = out.length();
+        int startLength = (startFilter == null) ? 0 : CodePoints.length(startFilter);
+
+        int length; // in code points, which may be fewer than the chars appended
+        do {
+            out.setLength(startChars);
+            length = (lazy == null) ? walk(startState, random, out, startLength) : walk(lazy, startRow, random, out, startLength);
+            logger.trace("new candidate text string generated, about to check filters: {}", out);
+        } while(
+                // conditions for a re-roll
+                (length < minLength) ||
+                (length > maxLength) ||
+                ((endFilter != null) && !endsWith(out, start, endFilter))
+        );
+        if (logger.isDebugEnabled()) {
+            logger.debug("new random text string generated: {}", out.subSequence(start, out.length()));
+        }
+        return out.length() - start;
+    }
+
+    // draw characters from the compiled model until the end of the text, returning its length in code points
+    private int walk(int state, Random random, StringBuilder out, int length) {
+        while (true) {
+            int symbol = compiledModel.sample(state, random.nextDouble(), prior, temperature, topP, minProbability);
+            if (symbol == compiledModel.controlSymbol) {
+                return length;
+            }
+            out.appendCodePoint(compiledModel.symbols[symbol]);
+            if (++length > maxLength) {
+                return length; // too long already, so don't waste any more random draws on it
+            }
+            state = compiledModel.next(state, symbol);
+        }
+    }
+
+    // the same walk through the lazy model, compiling rows as it reaches them
+    private int walk(LazyMarkovModel lazy, LazyMarkovModel.Row row, Random random, StringBuilder out, int length) {
+        while (true) {
+            int symbol = lazy.sample(row, random.nextDouble(), prior, temperature, topP, minProbability);
+            if (symbol == lazy.controlSymbol) {
+                return length;
+            }
+            out.appendCodePoint(lazy.symbols[symbol]);
+            if (++length > maxLength) {
+                return length;
+            }
+            row = lazy.next(row, symbol);
+        }
+    }
+
+    /**
+     * Find the most probable text strings the model can generate that pass the configured filters, instead of
+     * random ones.  This is a best-first search through the model, so it costs time in proportion to the number of
+     * strings requested rather than the number of random samples it would take to find them.
+     * @param k the number of text strings wanted
+     * @return up to k distinct text strings, most probable first
+     * @throws IllegalStateException if model has not been trained
+     */
+    public List<String> generateMostProbable(int k) {
+        return generateMostProbable(k, MostProbableTextSearch.DEFAULT_FRONTIER_LIMIT);
+    }
+
+    /**
+     * @param k the number of text strings wanted
+     * @param frontierLimit the maximum number of partial strings the search keeps in memory. when it overflows, the
+     *                      least probable are discarded, so a very small limit may miss some results
+     * @return up to k distinct text strings, most probable first
+     * @throws IllegalStateException if model has not been trained
+     */
+    public List<String> generateMostProbable(int k, int frontierLimit) {
+        if(datasetLength==0) {
+            throw new IllegalStateException("model has not yet been trained");
+        }
+        return MostProbableTextSearch.search(new MarkovTextChain(this), k, frontierLimit, minLength, maxLength, startFilter, filterAutomaton());
+    }
+
+    /**
+     * Count exactly how many distinct text strings the model can generate that pass the configured filters,
+     * following only sequences that were observed in the training data (that is, ignoring priors).  The count is
+     * computed by dynamic programming, without generating the strings, so it is fast even when the answer is huge.
+     * @return the number of possible text strings
+     * @throws IllegalStateException if model has not been trained
+     */
+    public BigInteger countPossibleTexts() {
+        return reachableTexts(true, 0.0D).count();
+    }
+
+    /**
+     * @param minProbability only follow transitions at least this probable, whether they were observed in training
+     *                       or added as priors
+     * @return the number of possible text strings that pass the configured filters
+     * @throws IllegalStateException if model has not been trained
+     */
+    public BigInteger countPossibleTexts(double minProbability) {
+        return reachableTexts(false, minProbability).count();
+    }
+
+    /**
+     * List every distinct text string the model can generate that pass the configured filters, following only
+     * sequences that were observed in the training data (that is, ignoring priors).  The strings are produced lazily,
+     * so this is practical even if there are far too many of them to hold in memory at once.
+     * @return an Iterator over the possible text strings
+     * @throws IllegalStateException if model has not been trained
+     */
+    public Iterator<String> enumeratePossibleTexts() {
+        return reachableTexts(true, 0.0D).iterator();
+    }
+
+    /**
+     * @param minProbability only follow transitions at least this probable, whether they were observed in training
+     *                       or added as priors
+     * @return an Iterator over the possible text strings that pass the configured filters
+     * @throws IllegalStateException if model has not been trained
+     */
+    public Iterator<String> enumeratePossibleTexts(double minProbability) {
+        return reachableTexts(false, minProbability).iterator();
+    }
+
+    /**
+     * Shrink a trained model with the default settings: prefixes observed fewer than
+     * {@value #DEFAULT_COMPACTION_MIN_PREFIX_COUNT} times are pruned and the counts are quantized to
+     * {@value #DEFAULT_COMPACTION_BITS} bits.
+     * @return a report of the size before and after, and of how much the predictions changed
+     * @throws IllegalStateException if model has not been trained
+     * @see #compact(int, int)
+     */
+    public CompactionReport compact() {
+        return compact(DEFAULT_COMPACTION_MIN_PREFIX_COUNT, DEFAULT_COMPACTION_BITS);
+    }
 
-            do {
-                newText.delete(0,newText.length());
-                for (int i = 0; i < order; i++) {
-                    newText.append(CONTROL_CHAR);
+    /**
+     * Shrink a trained model, trading a little fidelity for memory.  Prefixes longer than one character that were
+     * observed fewer than minPrefixCount times are pruned, so generation backs off to the longest suffix that
+     * remains (as it already does for prefixes never seen at all), and the counts behind each prefix are stored as
+     * 8- or 16-bit fractions of its total instead of as numbers.  The raw observations kept for further training
+     * are discarded too, so a compacted model can still generate, search, count and enumerate texts with any
+     * settings, but can't be trained any further.
+     * @param minPrefixCount prefixes observed fewer times than this are pruned (1 prunes nothing)
+     * @param quantizationBits 8 or 16 to quantize the counts, or 0 to keep them exact
+     * @return a report of the size before and after, and of how much the predictions changed
+     * @throws IllegalStateException if model has not been trained
+     * @throws IllegalArgumentException if quantizationBits is not 0, 8 or 16, or minPrefixCount is less than 1
+     */
+    public CompactionReport compact(int minPrefixCount, int quantizationBits) {
+        if (datasetLength==0) {
+            throw new IllegalStateException("model has not yet been trained");
+        }
+        if (quantizationBits != 0 && quantizationBits != 8 && quantizationBits != 16) {
+            throw new IllegalArgumentException("quantizationBits must be 0, 8 or 16");
+        }
+        if (minPrefixCount < 1) {
+            throw new IllegalArgumentException("minPrefixCount must be at least 1");
+        }
+        CompiledMarkovModel original = compiledModel();
+        long bytesBefore = estimatedTrainingBytes() + original.estimatedBytes() + ((lazyModel == null) ? 0L : lazyModel.estimatedBytes());
+        compiledModel = original.compact(minPrefixCount, quantizationBits);
+        lazyModel = null; // the compacted model is compiled in full, and the observations a lazy one needs are gone
+        observations = new HashMap<>();
+        importedCounts = new HashMap<>();
+        compacted = true;
+        CompactionReport report = new CompactionReport(original.numStates(), compiledModel.numStates(),
+                bytesBefore, compiledModel.estimatedBytes(), compiledModel.divergenceFrom(original, prior));
+        logger.info("compacted the Markov model: {}", report);
+        return report;
+    }
+
+    /**
+     * Summarize the trained model's shape and size: prefixes of each order, alphabet, transitions, estimated heap
+     * by structure, the distributions of branching factor and entropy over prefixes, and the expected length of a
+     * text.  They're computed from the compiled tables in a few passes, once per trained model, and kept until the
+     * model is trained further or compacted.  In lazy mode this compiles the whole model, as a regex does, and the
+     * size of the lazily compiled rows is as of the first call.
+     * @return the statistics
+     * @throws IllegalStateException if model has not been trained
+     */
+    public ModelStatistics getStatistics() {
+        if (datasetLength==0) {
+            throw new IllegalStateException("model has not yet been trained");
+        }
+        CompiledMarkovModel compiledModel = compiledModel();
+        if (statisticsModel != compiledModel) {
+            Map<String, Long> bytesByStructure = new LinkedHashMap<>();
+            bytesByStructure.put("observations", estimatedTrainingBytes());
+            bytesByStructure.put("compiled tables", compiledModel.estimatedBytes());
+            LazyMarkovModel lazy = lazyModel;
+            if (lazy != null) {
+                bytesByStructure.put("lazily compiled rows", lazy.estimatedBytes());
+            }
+            statistics = compiledModel.statistics(bytesByStructure);
+            statisticsModel = compiledModel;
+        }
+        return statistics;
+    }
+
+    // the boxed observations kept alongside the compiled model
+    private long estimatedTrainingBytes() {
+        long bytes = HeapEstimator.hashMap(observations.size());
+        for (Map.Entry<String, List<Integer>> entry : observations.entrySet()) {
+            bytes += HeapEstimator.string(entry.getKey().length()) + HeapEstimator.arrayList(entry.getValue().size());
+            for (Integer c : entry.getValue()) {
+                bytes += HeapEstimator.boxedInteger(c);
+            }
+        }
+        bytes += HeapEstimator.hashMap(importedCounts.size());
+        for (Map.Entry<String, Map<Integer, Double>> entry : importedCounts.entrySet()) {
+            bytes += HeapEstimator.string(entry.getKey().length()) + HeapEstimator.hashMap(entry.getValue().size()) + entry.getValue().size() * HeapEstimator.BOXED_PRIMITIVE;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the state of the compiled model at the end of the startFilter, or its initial state if there is none
+     * @throws IllegalStateException if the model can't generate the startFilter, because it has a character that
+     * isn't in the training data, or has a sequence that wasn't observed and there is no prior to make it possible
+     */
+    int startState() {
+        CompiledMarkovModel compiledModel = compiledModel();
+        if (startStateModel != compiledModel) {
+            int state = compiledModel.initialState;
+            boolean observed = true;
+            if (startFilter != null) {
+                for (int i = 0; i < startFilter.length(); ) {
+                    int codePoint = startFilter.codePointAt(i);
+                    i += Character.charCount(codePoint);
+                    int symbol = compiledModel.symbolIndex(codePoint);
+                    if (symbol < 0) {
+                        throw new IllegalStateException("startFilter \"" + startFilter + "\" contains a character not found in the training data");
+                    }
+                    observed &= compiledModel.indexInRow(state, symbol) >= 0;
+                    state = compiledModel.next(state, symbol);
                 }
-                // initialize with startFilter rather than adding it later!
-                if(startFilter!=null) { newText.append(startFilter); }
-
-                do {
-                    Character nextChar = randomCharacter(newText.substring(newText.length() - order));
-                    newText.append(nextChar);
-                } while (newText.charAt(newText.length() - 1) != CONTROL_CHAR);
-                logger.trace("new candidate text string generated, about to check filters: {}", newText);
-            } while(
-                    // conditions for a re-roll
-                    (newText.length() < minLength+order+1) ||
-                    (newText.length() > maxLength+order+1) ||
-                    ((endFilter != null) && (newText.indexOf(endFilter + CONTROL_CHAR) == -1))
-            );
-            String returnText = newText.substring(order, newText.length() - 1); // strip off control characters
-            logger.debug("new random text string generated and returned: {}", returnText);
-            return returnText;
-        }
-    }
-
-    Character randomCharacter(String prefix) {  // prefix length will equal this.order
-        Map<Character,Double> bestModel = null;
-        int o = order;
-        // Find the highest-order model that exists given the last few characters.
-        // e.g, if "jav" occurs in the training data, that model will exist, but
-        // if not, maybe there'll be a model for "av", failing that, "v" should have
-        // a model (as will every individual character in the training data)
-        while(bestModel==null && o>0) {
-            if (model.containsKey(prefix.substring(prefix.length()-o))) {
-                bestModel = model.get(prefix.substring(prefix.length()-o));
-            } else {
-                o--;
             }
+            startState = state;
+            startFilterObserved = observed;
+            startStateModel = compiledModel;
+            logger.debug("resolved the startFilter {} to state {} of the compiled model", startFilter, startState);
         }
-        if(bestModel==null) {
-            throw new IllegalStateException("randomCharacter() found a prefix for which it had no model");
+        if (!startFilterObserved && prior == 0.0D) {
+            throw new IllegalStateException("startFilter \"" + startFilter + "\" contains a sequence not found in the training data, and the prior is zero");
+        }
+        return startState;
+    }
+
+    // the row of the lazy model at the end of the startFilter, resolved as startState() resolves it
+    private LazyMarkovModel.Row startRow(LazyMarkovModel lazy) {
+        if (startContextModel != lazy) {
+            LazyMarkovModel.Row row = lazy.row(lazy.initialContext);
+            boolean observed = true;
+            if (startFilter != null) {
+                for (int i = 0; i < startFilter.length(); ) {
+                    int codePoint = startFilter.codePointAt(i);
+                    i += Character.charCount(codePoint);
+                    int symbol = lazy.symbolIndex(codePoint);
+                    if (symbol < 0) {
+                        throw new IllegalStateException("startFilter \"" + startFilter + "\" contains a character not found in the training data");
+                    }
+                    observed &= row.indexOf(symbol) >= 0;
+                    row = lazy.next(row, symbol);
+                }
+            }
+            startContext = row.context;
+            startContextObserved = observed;
+            startContextModel = lazy;
+            logger.debug("resolved the startFilter {} to the prefix {} of the lazy model", startFilter, startContext);
         }
-        double sumOfWeights = bestModel.values().stream().reduce(0.0D, (a,b) -> a+b);
-        double randomRoll = sumOfWeights * random.nextDouble();
-        for(Character c: bestModel.keySet()) {
-            if (randomRoll > bestModel.get(c)) {
-                randomRoll -= bestModel.get(c);
-            } else {
-                return c;
+        if (!startContextObserved && prior == 0.0D) {
+            throw new IllegalStateException("startFilter \"" + startFilter + "\" contains a sequence not found in the training data, and the prior is zero");
+        }
+        return lazy.row(startContext); // compiled again if it has been dropped meanwhile
+    }
+
+    private ReachableTexts<?> reachableTexts(boolean observedOnly, double minProbability) {
+        if (datasetLength==0) {
+            throw new IllegalStateException("model has not yet been trained");
+        }
+        return new ReachableTexts<>(new MarkovTextChain(this), minLength, maxLength, startFilter, filterAutomaton(), observedOnly, minProbability);
+    }
+
+    // accepts the texts that pass the endFilter and the regex, if any
+    private TextAutomaton filterAutomaton() {
+        TextAutomaton endFilterAutomaton = new EndFilterAutomaton(endFilter);
+        return (regex == null) ? endFilterAutomaton : (endFilter == null) ? regex : regex.and(endFilterAutomaton);
+    }
+
+    private ConstrainedSampler<Integer> regexSampler() {
+        List<Object> settings = Arrays.asList(compiledModel(), regex, endFilter, minLength, maxLength, prior, temperature, topP, minProbability);
+        if (!settings.equals(regexSamplerSettings)) {
+            regexSampler = new ConstrainedSampler<>(new MarkovTextChain(this), filterAutomaton(), minLength, maxLength, temperature, topP, minProbability);
+            regexSamplerSettings = settings;
+        }
+        return regexSampler;
+    }
+
+    /**
+     * A copy that shares this generator's trained model but has its own settings, so it can be given different
+     * filters (as the NameServer does for each request) without retraining or copying the model.  Neither the copy
+     * nor the original should be trained or compacted afterwards.
+     * @return a shallow copy
+     */
+    MarkovTextGenerator copy() {
+        try {
+            MarkovTextGenerator copy = (MarkovTextGenerator) clone();
+            copy.specCache = null;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param spec the filters to generate with; any it leaves out are this generator's own
+     * @return a copy of this generator, sharing its trained model, with the spec's filters applied; the copy for each
+     * recently used spec is kept, along with everything it derives from its filters.  See {@link GenerationSpec}.
+     * @throws IllegalArgumentException if the spec's filters are invalid, e.g. a malformed regex
+     */
+    @Override
+    public RandomTextGenerator forSpec(GenerationSpec spec) {
+        if (spec.isEmpty()) {
+            return this;
+        }
+        SpecCache<MarkovTextGenerator> cache = specCache;
+        if (cache == null) {
+            cache = specCache = new SpecCache<>(); // a race here at worst loses a cache that was just made
+        }
+        return cache.get(spec, Arrays.asList(compiledModel, lazyModel, random, prior, temperature, topP, minProbability, minLength, maxLength, startFilter, endFilter, getRegex()), this::copy);
+    }
+
+    // whether the text appended to the builder since position start ends with the suffix
+    static boolean endsWith(StringBuilder text, int start, String suffix) {
+        int offset = text.length() - suffix.length();
+        if (offset < start) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (text.charAt(offset + i) != suffix.charAt(i)) {
+                return false;
             }
         }
-        logger.warn("something went wrong in generating a random character and a placeholder was used");
-        return DANGER_CHAR; // this should never occur unless the prefix doesn't exist in the model
+        return true;
+    }
+
+    int randomCharacter(String prefix) {  // prefix length will equal this.order; returns a code point
+        // the state of the highest-order model that exists given the last few characters. e.g, if "jav" occurs in
+        // the training data, that model will exist, but if not, maybe there'll be a model for "av", failing that,
+        // "v" should have a model (as will every individual character in the training data)
+        LazyMarkovModel lazy = lazyModel;
+        if (lazy != null) {
+            // in lazy mode, the row is compiled the first time it's reached
+            String context = lazy.longestObservedSuffix(prefix);
+            if (context == null) {
+                throw new IllegalStateException("randomCharacter() found a prefix for which it had no model");
+            }
+            return lazy.symbols[lazy.sample(lazy.row(context), random.nextDouble(), prior, temperature, topP, minProbability)];
+        }
+        int state = compiledModel.stateOf(prefix);
+        if (state == CompiledMarkovModel.NO_STATE) {
+            throw new IllegalStateException("randomCharacter() found a prefix for which it had no model");
+        }
+        return compiledModel.symbols[compiledModel.sample(state, random.nextDouble(), prior, temperature, topP, minProbability)];
     }
 
 }
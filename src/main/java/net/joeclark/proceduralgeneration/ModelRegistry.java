@@ -0,0 +1,382 @@
+package net.joeclark.proceduralgeneration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * <p>A registry of many trained models, kept on disk and loaded when they're asked for, holding no more of them in
+ * memory at once than fit within a budget of bytes.  Each model is registered under a key with the file it's
+ * persisted in: counts written by {@link MarkovCounts#write(java.io.OutputStream)} for a
+ * {@link MarkovTextGenerator}, a serialized {@link ClusterChainGenerator}, or any format at all with a
+ * {@link ModelLoader} of your own:</p>
+ *
+ * <pre>{@code ModelRegistry registry = new ModelRegistry(64L << 20)
+ *         .registerMarkov("elves", Paths.get("models/elves.counts"))
+ *         .registerCluster("dwarves", Paths.get("models/dwarves.ser"));
+ * String name = registry.get("elves").generateOne();}</pre>
+ *
+ * <p>A model's footprint is the estimate of {@link MarkovTextGenerator#getStatistics()} or
+ * {@link ClusterChainGenerator#getStatistics()} (other generators are taken to be the size of their file).  When
+ * loading a model takes the resident models over the budget, the least recently used are evicted until they fit
+ * again; an evicted model is loaded again the next time it's asked for.  A model that alone is bigger than the budget
+ * is still loaded, and evicted as soon as another is.  A caller still holding an evicted model can go on using it;
+ * it's garbage once they let it go.  Files are read through a read-only memory mapping, so the bytes come straight
+ * from the operating system's page cache, and loading a recently evicted model again rarely touches the disk.</p>
+ *
+ * <p>Models whose alphabets (or vowel sets) are equal share one copy of it.  The generators handed out are shared by
+ * every caller, so they mustn't be reconfigured; to generate with different filters, use
+ * {@link RandomTextGenerator#forSpec(GenerationSpec)}.  The registry is safe to use from many threads, and
+ * a model asked for by several threads at once is loaded only once.</p>
+ */
+public final class ModelRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger( ModelRegistry.class );
+
+    /** {@value}, the default budget of 256 MiB*/
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    /**
+     * Reads a model from its persisted form.
+     */
+    @FunctionalInterface
+    public interface ModelLoader {
+        /**
+         * @param in the contents of the model's file; it's closed by the registry
+         * @return the trained model
+         * @throws IOException if the model can't be read
+         */
+        RandomTextGenerator load(InputStream in) throws IOException;
+    }
+
+    /** Loads a {@link MarkovTextGenerator} from counts written by {@link MarkovCounts#write(java.io.OutputStream)}. */
+    public static final ModelLoader MARKOV = in -> new MarkovTextGenerator().train(MarkovCounts.read(in));
+
+    /** Loads a {@link ClusterChainGenerator} written with Java serialization. */
+    public static final ModelLoader CLUSTER = in -> {
+        try {
+            return (ClusterChainGenerator) new ObjectInputStream(in).readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("not a serialized ClusterChainGenerator", e);
+        }
+    };
+
+    private final long maxBytes;
+    private final Map<String, Source> sources = new ConcurrentHashMap<>();
+
+    // guarded by this: the resident models in order of use, least recent first, and the models being loaded
+    private final LinkedHashMap<String, Resident> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<RandomTextGenerator>> loading = new HashMap<>();
+    private final Map<Set<?>, Set<?>> sharedSets = new HashMap<>();
+    private long residentBytes;
+    private long hits;
+    private long loads;
+    private long evictions;
+
+    /**
+     * A registry with the default budget of {@link #DEFAULT_MAX_BYTES}.
+     */
+    public ModelRegistry() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes the most bytes of models to keep in memory at once
+     * @throws IllegalArgumentException if maxBytes isn't positive
+     */
+    public ModelRegistry(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Register a model, to be loaded when it's first asked for.  If the key was registered already, it now refers
+     * to this file, and the model loaded from the old one is evicted.
+     * @param key the model's name
+     * @param file the file the model is persisted in
+     * @param loader reads the model from the file
+     * @return this registry
+     */
+    public ModelRegistry register(String key, Path file, ModelLoader loader) {
+        sources.put(Objects.requireNonNull(key), new Source(Objects.requireNonNull(file), Objects.requireNonNull(loader)));
+        evict(key);
+        return this;
+    }
+
+    /**
+     * @param key the model's name
+     * @param countsFile a file of counts written by {@link MarkovCounts#write(java.io.OutputStream)}
+     * @return this registry
+     */
+    public ModelRegistry registerMarkov(String key, Path countsFile) {
+        return register(key, countsFile, MARKOV);
+    }
+
+    /**
+     * @param key the model's name
+     * @param serializedFile a file holding a serialized {@link ClusterChainGenerator}
+     * @return this registry
+     */
+    public ModelRegistry registerCluster(String key, Path serializedFile) {
+        return register(key, serializedFile, CLUSTER);
+    }
+
+    /**
+     * @param key the model's name
+     * @return the model, loaded now if it isn't in memory
+     * @throws IllegalArgumentException if no model is registered under the key
+     * @throws UncheckedIOException if the model's file can't be read
+     */
+    public RandomTextGenerator get(String key) {
+        Source source = sources.get(key);
+        if (source == null) {
+            throw new IllegalArgumentException("no model is registered as " + key);
+        }
+        CompletableFuture<RandomTextGenerator> future;
+        boolean loader = false;
+        synchronized (this) {
+            Resident model = resident.get(key);
+            if (model != null) {
+                hits++;
+                return model.generator;
+            }
+            future = loading.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                loading.put(key, future);
+                loader = true;
+            }
+        }
+        if (loader) {
+            load(key, source, future);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for model " + key + " to load", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void load(String key, Source source, CompletableFuture<RandomTextGenerator> future) {
+        RandomTextGenerator generator;
+        long bytes;
+        try (InputStream in = open(source.file)) {
+            generator = source.loader.load(in);
+            share(generator);
+            bytes = estimatedBytes(generator, source.file);
+        } catch (IOException e) {
+            failLoad(key, future, new UncheckedIOException("couldn't load model " + key + " from " + source.file, e));
+            return;
+        } catch (RuntimeException e) {
+            failLoad(key, future, e);
+            return;
+        }
+        synchronized (this) {
+            loading.remove(key);
+            loads++;
+            if (sources.get(key) == source) { // unless it was registered again while loading
+                resident.put(key, new Resident(generator, bytes));
+                residentBytes += bytes;
+                logger.debug("loaded model {} of about {} bytes", key, bytes);
+                if (bytes > maxBytes) {
+                    logger.warn("model {} of about {} bytes is bigger than the registry's budget of {} bytes", key, bytes, maxBytes);
+                }
+                evictToBudget(key);
+            }
+        }
+        future.complete(generator);
+    }
+
+    private void failLoad(String key, CompletableFuture<RandomTextGenerator> future, RuntimeException e) {
+        synchronized (this) {
+            loading.remove(key);
+        }
+        future.completeExceptionally(e);
+    }
+
+    // evict the least recently used models, other than the one just loaded, until the rest fit in the budget
+    private void evictToBudget(String loaded) {
+        Iterator<Map.Entry<String, Resident>> eldest = resident.entrySet().iterator();
+        while (residentBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Resident> entry = eldest.next();
+            if (!entry.getKey().equals(loaded)) {
+                residentBytes -= entry.getValue().bytes;
+                evictions++;
+                eldest.remove();
+                logger.debug("evicted model {} to stay within {} bytes", entry.getKey(), maxBytes);
+            }
+        }
+    }
+
+    /**
+     * Drop a model from memory; it'll be loaded again the next time it's asked for.
+     * @param key the model's name
+     * @return whether the model was in memory
+     */
+    public synchronized boolean evict(String key) {
+        Resident model = resident.remove(key);
+        if (model == null) {
+            return false;
+        }
+        residentBytes -= model.bytes;
+        evictions++;
+        return true;
+    }
+
+    // replace the model's alphabet or vowels with an equal set that's already held by another model
+    private void share(RandomTextGenerator generator) {
+        if (generator instanceof MarkovTextGenerator) {
+            MarkovTextGenerator markov = (MarkovTextGenerator) generator;
+            markov.shareAlphabet(shared(markov.getAlphabet()));
+        } else if (generator instanceof ClusterChainGenerator) {
+            ClusterChainGenerator cluster = (ClusterChainGenerator) generator;
+            cluster.shareVowels(shared(cluster.getVowels()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized <T> Set<T> shared(Set<T> set) {
+        Set<T> shared = (Set<T>) sharedSets.get(set);
+        if (shared == null) {
+            shared = Collections.unmodifiableSet(new HashSet<>(set));
+            sharedSets.put(shared, shared);
+        }
+        return shared;
+    }
+
+    private static long estimatedBytes(RandomTextGenerator generator, Path file) throws IOException {
+        if (generator instanceof MarkovTextGenerator) {
+            return ((MarkovTextGenerator) generator).getStatistics().getEstimatedBytes();
+        } else if (generator instanceof ClusterChainGenerator) {
+            return ((ClusterChainGenerator) generator).getStatistics().getEstimatedBytes();
+        }
+        return Files.size(file);
+    }
+
+    // the file's contents through a read-only mapping, or an ordinary stream if it's too big to map in one piece
+    private static InputStream open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return new BufferedInputStream(Files.newInputStream(file));
+            }
+            return new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)); // stays valid once the channel is closed
+        }
+    }
+
+    /** @return the keys of every registered model, in order */
+    public Set<String> getKeys() { return Collections.unmodifiableSet(new TreeSet<>(sources.keySet())); }
+    /** @param key a model's name
+     *  @return whether the model is in memory now */
+    public synchronized boolean isResident(String key) { return resident.containsKey(key); }
+    /** @return the number of models in memory now */
+    public synchronized int getResidentCount() { return resident.size(); }
+    /** @return the estimated bytes of the models in memory now */
+    public synchronized long getResidentBytes() { return residentBytes; }
+    /** @return the most bytes of models to keep in memory at once */
+    public long getMaxBytes() { return maxBytes; }
+    /** @return the number of times a model asked for was already in memory */
+    public synchronized long getHits() { return hits; }
+    /** @return the number of times a model has been loaded, including loads after eviction */
+    public synchronized long getLoads() { return loads; }
+    /** @return the number of times a model has been evicted */
+    public synchronized long getEvictions() { return evictions; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ModelRegistry[%d of %d models resident, %d of %d bytes, %d hits, %d loads, %d evictions]",
+                resident.size(), sources.size(), residentBytes, maxBytes, hits, loads, evictions);
+    }
+
+    private static final class Source {
+        final Path file;
+        final ModelLoader loader;
+
+        Source(Path file, ModelLoader loader) {
+            this.file = file;
+            this.loader = loader;
+        }
+    }
+
+    private static final class Resident {
+        final RandomTextGenerator generator;
+        final long bytes;
+
+        Resident(RandomTextGenerator generator, long bytes) {
+            this.generator = generator;
+            this.bytes = bytes;
+        }
+    }
+
+    // reads a mapped file without copying it onto the heap first
+    private static final class MappedInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        MappedInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            ((Buffer) buffer).position(buffer.position() + skipped); // Buffer's method, which Java 8 also has
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
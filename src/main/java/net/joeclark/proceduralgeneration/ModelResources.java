@@ -0,0 +1,366 @@
+package net.joeclark.proceduralgeneration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Trained generators in a compact binary form, to be packaged as classpath resources at build time (see the
+ * {@code randomtextgenerators-maven-plugin}) and loaded at startup without training from text:</p>
+ *
+ * <pre>{@code MarkovTextGenerator generator = ModelResources.loadMarkov("models/romans.rtgm");}</pre>
+ *
+ * <p>A resource holds a generator's settings and filters along with its model, stored so that loading it is mostly
+ * bulk reads: a {@link MarkovTextGenerator}'s compiled tables as flat arrays, a {@link ClusterChainGenerator}'s
+ * distinct clusters once each and then its chain by cluster number, or a {@link RandomDrawGenerator}'s lowercased
+ * strings and any weights.  What's loaded generates just as the generator that was written did.  A Markov model is
+ * loaded without its counts, as if it had been compacted (compacting it before it's written makes the resource
+ * smaller still), so it can't be trained further or export {@link MarkovCounts}; to keep training, persist the
+ * counts instead.  Subclasses, such as {@link MarkovTextCasePreservingGenerator}, can't be written.
+ * {@link #read(InputStream)} also serves as a {@link ModelRegistry.ModelLoader}.</p>
+ */
+public final class ModelResources {
+
+    private static final Logger logger = LoggerFactory.getLogger( ModelResources.class );
+
+    /** {@value}, the file extension of a model resource*/
+    public static final String EXTENSION = ".rtgm";
+
+    private static final int MAGIC = 0x5254474D;  // "RTGM"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte MARKOV = 1;
+    private static final byte CLUSTER = 2;
+    private static final byte RANDOM_DRAW = 3;
+
+    private ModelResources() {}
+
+    /**
+     * @param generator a trained MarkovTextGenerator, ClusterChainGenerator or RandomDrawGenerator
+     * @param out where to write it; it is not closed
+     * @throws IOException if the stream can't be written
+     * @throws IllegalArgumentException if the generator isn't one of those classes
+     * @throws IllegalStateException if the generator isn't trained
+     */
+    public static void write(RandomTextGenerator generator, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        if (generator.getClass() == MarkovTextGenerator.class) {
+            MarkovTextGenerator markov = (MarkovTextGenerator) generator;
+            if (!markov.isTrained()) {
+                throw new IllegalStateException("model has not yet been trained");
+            }
+            data.writeByte(MARKOV);
+            data.writeDouble(markov.getPrior());
+            data.writeDouble(markov.getTemperature());
+            data.writeDouble(markov.getTopP());
+            data.writeDouble(markov.getMinProbability());
+            writeFilters(data, markov.getMinLength(), markov.getMaxLength(), markov.getStartFilter(), markov.getEndFilter(), markov.getRegex());
+            data.writeInt(markov.getDatasetLength());
+            markov.compiledModel().write(data);
+        } else if (generator.getClass() == ClusterChainGenerator.class) {
+            ClusterChainGenerator cluster = (ClusterChainGenerator) generator;
+            if (!cluster.isTrained()) {
+                throw new IllegalStateException("model has not yet been trained");
+            }
+            data.writeByte(CLUSTER);
+            data.writeInt(cluster.getVowels().size());
+            for (char vowel : cluster.getVowels()) {
+                data.writeChar(vowel);
+            }
+            writeFilters(data, cluster.getMinLength(), cluster.getMaxLength(), cluster.getStartFilter(), cluster.getEndFilter(), cluster.getRegex());
+            writeClusterChain(data, cluster.getClusterChain());
+        } else if (generator.getClass() == RandomDrawGenerator.class) {
+            RandomDrawGenerator draw = (RandomDrawGenerator) generator;
+            if (!draw.isTrained()) {
+                throw new IllegalStateException("model has not yet been trained");
+            }
+            data.writeByte(RANDOM_DRAW);
+            writeFilters(data, draw.getMinLength(), draw.getMaxLength(), draw.getStartFilter(), draw.getEndFilter(), draw.getRegex());
+            List<String> words = draw.getWordList();
+            boolean weighted = (words == null);
+            data.writeBoolean(weighted);
+            if (weighted) {
+                words = draw.getWeightedWords();
+            }
+            data.writeInt(words.size());
+            for (int i = 0; i < words.size(); i++) {
+                writeString(data, words.get(i));
+                if (weighted) {
+                    data.writeDouble(draw.getWeights()[i]);
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("can't write a " + generator.getClass().getName() + " as a model resource");
+        }
+        data.flush();
+    }
+
+    /**
+     * @param in a stream positioned at a model written by {@link #write(RandomTextGenerator, OutputStream)}; it is
+     *           not closed
+     * @return the generator, ready to generate
+     * @throws IOException if the stream can't be read or doesn't hold a model in a known format
+     */
+    public static RandomTextGenerator read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("not a model resource");
+        }
+        int version = data.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("unsupported model resource format version " + version);
+        }
+        byte kind = data.readByte();
+        switch (kind) {
+            case MARKOV: {
+                MarkovTextGenerator markov = new MarkovTextGenerator();
+                markov.setPrior(data.readDouble());
+                markov.setTemperature(data.readDouble());
+                markov.setTopP(data.readDouble());
+                markov.setMinProbability(data.readDouble());
+                readFilters(data, markov);
+                int datasetLength = data.readInt();
+                return markov.restore(CompiledMarkovModel.read(data), datasetLength);
+            }
+            case CLUSTER: {
+                ClusterChainGenerator cluster = new ClusterChainGenerator();
+                Character[] vowels = new Character[readCount(data)];
+                for (int i = 0; i < vowels.length; i++) {
+                    vowels[i] = data.readChar();
+                }
+                cluster.setVowels(vowels); // before the filters, which are broken into clusters by vowel
+                readFilters(data, cluster);
+                cluster.restore(readClusterChain(data));
+                return cluster;
+            }
+            case RANDOM_DRAW: {
+                RandomDrawGenerator draw = new RandomDrawGenerator();
+                readFilters(data, draw);
+                boolean weighted = data.readBoolean();
+                int size = readCount(data);
+                if (weighted) {
+                    Map<String, Double> words = new LinkedHashMap<>();
+                    for (int i = 0; i < size; i++) {
+                        words.put(readString(data), data.readDouble());
+                    }
+                    return draw.trainWeighted(words);
+                }
+                List<String> words = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    words.add(readString(data));
+                }
+                return draw.train(words.stream());
+            }
+            default:
+                throw new IOException("unknown kind of model " + kind);
+        }
+    }
+
+    /**
+     * @param resource the model's path on the classpath, e.g. {@code "models/romans.rtgm"}
+     * @return the generator, ready to generate
+     * @throws IllegalArgumentException if there's no such resource
+     * @throws UncheckedIOException if the resource can't be read
+     */
+    public static RandomTextGenerator load(String resource) {
+        String name = resource.startsWith("/") ? resource.substring(1) : resource;
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = ModelResources.class.getClassLoader();
+        }
+        long start = System.nanoTime();
+        try (InputStream in = loader.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IllegalArgumentException("no model resource " + name + " on the classpath");
+            }
+            RandomTextGenerator generator = read(new BufferedInputStream(in));
+            logger.info("loaded the model resource {} in {} ms", name, (System.nanoTime() - start) / 1_000_000);
+            return generator;
+        } catch (IOException e) {
+            throw new UncheckedIOException("couldn't load the model resource " + name, e);
+        }
+    }
+
+    /**
+     * @param resource the model's path on the classpath
+     * @return the MarkovTextGenerator, ready to generate
+     * @throws IllegalArgumentException if there's no such resource, or it holds another kind of generator
+     * @throws UncheckedIOException if the resource can't be read
+     */
+    public static MarkovTextGenerator loadMarkov(String resource) {
+        return load(resource, MarkovTextGenerator.class);
+    }
+
+    /**
+     * @param resource the model's path on the classpath
+     * @return the ClusterChainGenerator, ready to generate
+     * @throws IllegalArgumentException if there's no such resource, or it holds another kind of generator
+     * @throws UncheckedIOException if the resource can't be read
+     */
+    public static ClusterChainGenerator loadCluster(String resource) {
+        return load(resource, ClusterChainGenerator.class);
+    }
+
+    /**
+     * @param resource the model's path on the classpath
+     * @return the RandomDrawGenerator, ready to generate
+     * @throws IllegalArgumentException if there's no such resource, or it holds another kind of generator
+     * @throws UncheckedIOException if the resource can't be read
+     */
+    public static RandomDrawGenerator loadRandomDraw(String resource) {
+        return load(resource, RandomDrawGenerator.class);
+    }
+
+    private static <T extends RandomTextGenerator> T load(String resource, Class<T> type) {
+        RandomTextGenerator generator = load(resource);
+        if (!type.isInstance(generator)) {
+            throw new IllegalArgumentException("the model resource " + resource + " holds a " + generator.getClass().getSimpleName() + ", not a " + type.getSimpleName());
+        }
+        return type.cast(generator);
+    }
+
+    // each distinct cluster once, and then the rows of the chain by cluster number
+    private static void writeClusterChain(DataOutputStream data, MultiOrderMarkovChain<String> chain) throws IOException {
+        data.writeInt(chain.getMaxOrder());
+        data.writeInt(chain.getNumTrainedSequences());
+        Map<String, Integer> ids = new HashMap<>();
+        data.writeInt(chain.allKnownStates().size());
+        for (String cluster : chain.allKnownStates()) {
+            ids.put(cluster, ids.size());
+            writeString(data, cluster);
+        }
+        Map<List<String>, Map<String, Double>> model = chain.getModel();
+        data.writeInt(model.size());
+        for (Map.Entry<List<String>, Map<String, Double>> row : model.entrySet()) {
+            data.writeInt(row.getKey().size());
+            for (String cluster : row.getKey()) {
+                data.writeInt(clusterId(ids, cluster));
+            }
+            data.writeInt(row.getValue().size());
+            for (Map.Entry<String, Double> entry : row.getValue().entrySet()) {
+                data.writeInt(clusterId(ids, entry.getKey()));
+                data.writeDouble(entry.getValue());
+            }
+        }
+    }
+
+    private static int clusterId(Map<String, Integer> ids, String cluster) {
+        Integer id = ids.get(cluster);
+        if (id == null) {
+            throw new IllegalStateException("the cluster chain refers to a cluster it doesn't know: " + cluster);
+        }
+        return id;
+    }
+
+    private static MultiOrderMarkovChain<String> readClusterChain(DataInputStream data) throws IOException {
+        MultiOrderMarkovChain<String> chain = new MultiOrderMarkovChain<String>().withMaxOrder(data.readInt());
+        setNumTrainedSequences(chain, data.readInt());
+        String[] clusters = new String[readCount(data)];
+        for (int i = 0; i < clusters.length; i++) {
+            clusters[i] = readString(data);
+        }
+        chain.allKnownStates().addAll(Arrays.asList(clusters));
+        Map<List<String>, Map<String, Double>> model = chain.getModel();
+        int rows = readCount(data);
+        for (int r = 0; r < rows; r++) {
+            List<String> sequence = new ArrayList<>();
+            for (int i = readCount(data); i > 0; i--) {
+                sequence.add(cluster(clusters, data.readInt()));
+            }
+            int entries = readCount(data);
+            Map<String, Double> row = new HashMap<>(entries * 4 / 3 + 1);
+            for (int i = 0; i < entries; i++) {
+                row.put(cluster(clusters, data.readInt()), data.readDouble());
+            }
+            model.put(sequence, row);
+        }
+        return chain;
+    }
+
+    private static String cluster(String[] clusters, int id) throws IOException {
+        if (id < 0 || id >= clusters.length) {
+            throw new IOException("corrupt model resource: unknown cluster " + id);
+        }
+        return clusters[id];
+    }
+
+    // MultiOrderMarkovChain only counts the sequences it's trained on itself, and has no setter for the count
+    private static void setNumTrainedSequences(MultiOrderMarkovChain<String> chain, int numTrainedSequences) throws IOException {
+        try {
+            Field field = MultiOrderMarkovChain.class.getDeclaredField("numTrainedSequences");
+            field.setAccessible(true);
+            field.setInt(chain, numTrainedSequences);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IOException("can't restore a cluster chain with this version of MultiOrderMarkovChain", e);
+        }
+    }
+
+    private static int readCount(DataInputStream data) throws IOException {
+        int count = data.readInt();
+        if (count < 0) {
+            throw new IOException("corrupt model resource: negative count");
+        }
+        return count;
+    }
+
+    private static void writeFilters(DataOutputStream data, int minLength, int maxLength, String startFilter, String endFilter, String regex) throws IOException {
+        data.writeInt(minLength);
+        data.writeInt(maxLength);
+        writeNullableString(data, startFilter);
+        writeNullableString(data, endFilter);
+        writeNullableString(data, regex);
+    }
+
+    private static void readFilters(DataInputStream data, FilterableGenerator generator) throws IOException {
+        generator.setMinLength(data.readInt());
+        generator.setMaxLength(data.readInt());
+        String startFilter = readNullableString(data);
+        String endFilter = readNullableString(data);
+        String regex = readNullableString(data);
+        if (startFilter != null) generator.setStartFilter(startFilter);
+        if (endFilter != null) generator.setEndFilter(endFilter);
+        if (regex != null) generator.setRegex(regex);
+    }
+
+    // UTF-8 with an int length, since writeUTF can't take strings of more than 64KB
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[readCount(data)];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeNullableString(DataOutputStream data, String s) throws IOException {
+        data.writeBoolean(s != null);
+        if (s != null) {
+            writeString(data, s);
+        }
+    }
+
+    private static String readNullableString(DataInputStream data) throws IOException {
+        return data.readBoolean() ? readString(data) : null;
+    }
+
+}
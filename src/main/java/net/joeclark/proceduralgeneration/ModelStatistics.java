@@ -0,0 +1,186 @@
+package net.joeclark.proceduralgeneration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A summary of a trained model's shape and size, for capacity planning: how many prefixes it has of each order,
+ * how many distinct tokens and transitions, an estimate of the heap each of its structures retains, and how the
+ * branching factor and entropy of its prefixes are distributed.  "Tokens" are characters for a MarkovTextGenerator
+ * and clusters for a ClusterChainGenerator; a prefix is a sequence of tokens the model predicts the next token
+ * from.</p>
+ *
+ * <p>Transitions, branching factors, entropies and the expected length count only the transitions observed in
+ * training, not those a prior makes possible, and ignore the generator's filters.  Sizes are estimates of retained
+ * heap as in {@link CompactionReport}; the models keep nothing off the heap.</p>
+ */
+public final class ModelStatistics {
+
+    /** {@value}, the most steps taken to find the expected length before giving it up as infinite*/
+    public static final int MAX_EXPECTED_LENGTH_ITERATIONS = 10000;
+
+    static final int END = -1; // the "next state" of a transition that ends the text
+
+    private final int[] prefixesByOrder; // entry o is the number of prefixes of o tokens; entry 0 is unused
+    private final int alphabetSize;
+    private final int clusterCount;
+    private final long transitions;
+    private final Map<String, Long> bytesByStructure;
+    private final Distribution branchingFactors;
+    private final Distribution entropies;
+    private final double expectedLength;
+
+    ModelStatistics(int[] prefixesByOrder, int alphabetSize, int clusterCount, long transitions, Map<String, Long> bytesByStructure,
+                    Distribution branchingFactors, Distribution entropies, double expectedLength) {
+        this.prefixesByOrder = prefixesByOrder.clone();
+        this.alphabetSize = alphabetSize;
+        this.clusterCount = clusterCount;
+        this.transitions = transitions;
+        this.bytesByStructure = Collections.unmodifiableMap(new LinkedHashMap<>(bytesByStructure));
+        this.branchingFactors = branchingFactors;
+        this.entropies = entropies;
+        this.expectedLength = expectedLength;
+    }
+
+    /** @return the number of prefixes (Markov states) of every order */
+    public int getPrefixes() { return Arrays.stream(prefixesByOrder).sum(); }
+    /** @return the longest prefix the model has, in tokens */
+    public int getMaxOrder() { return prefixesByOrder.length - 1; }
+    /**
+     * @param order a prefix length, in tokens
+     * @return the number of prefixes of that length
+     */
+    public int getPrefixes(int order) { return (order > 0 && order < prefixesByOrder.length) ? prefixesByOrder[order] : 0; }
+    /** @return the number of distinct characters in the training data, not counting the control character */
+    public int getAlphabetSize() { return alphabetSize; }
+    /** @return the number of distinct clusters in the training data, or 0 for a model of single characters */
+    public int getClusterCount() { return clusterCount; }
+    /** @return the number of distinct (prefix, next token) transitions observed, including those that end a text */
+    public long getTransitions() { return transitions; }
+    /** @return the estimated heap bytes retained by each of the model's structures, by name */
+    public Map<String, Long> getBytesByStructure() { return bytesByStructure; }
+    /** @return the estimated heap bytes retained by the whole model */
+    public long getEstimatedBytes() { return bytesByStructure.values().stream().mapToLong(Long::longValue).sum(); }
+    /** @return the distribution over prefixes of the number of distinct tokens observed to follow each */
+    public Distribution getBranchingFactors() { return branchingFactors; }
+    /** @return the distribution over prefixes of the entropy of the next token, in bits */
+    public Distribution getEntropies() { return entropies; }
+    /** @return the expected length of a generated text, in characters, before any filters are applied */
+    public double getExpectedLength() { return expectedLength; }
+
+    /**
+     * The expected length of a walk through a chain whose transitions are laid out in flat rows: E(s), the expected
+     * length of the rest of a text from state s, is the sum over its transitions of their probability times the
+     * length of the token plus E of the state they lead to.  Starting from zero, each step adds the texts one token
+     * longer, so the estimate rises towards E and stops when it no longer changes.
+     * @param initialState the state a text begins in
+     * @param rowStart the transitions of state s are rowStart[s] up to (but excluding) rowStart[s+1]
+     * @param next the state each transition leads to, or END
+     * @param probabilities the probability of each transition
+     * @param tokenLengths the length of each transition's token, in characters
+     * @return the expected length, or infinity if the estimate is still rising after
+     * {@value #MAX_EXPECTED_LENGTH_ITERATIONS} steps
+     */
+    static double expectedLength(int initialState, int[] rowStart, int[] next, double[] probabilities, double[] tokenLengths) {
+        if (initialState < 0) {
+            return 0.0D;
+        }
+        int numStates = rowStart.length - 1;
+        double[] estimate = new double[numStates];
+        double[] nextEstimate = new double[numStates];
+        for (int iteration = 0; iteration < MAX_EXPECTED_LENGTH_ITERATIONS; iteration++) {
+            double change = 0.0D;
+            for (int s = 0; s < numStates; s++) {
+                double e = 0.0D;
+                for (int t = rowStart[s]; t < rowStart[s + 1]; t++) {
+                    e += probabilities[t] * (tokenLengths[t] + (next[t] == END ? 0.0D : estimate[next[t]]));
+                }
+                nextEstimate[s] = e;
+                change = Math.max(change, e - estimate[s]);
+            }
+            double[] swap = estimate;
+            estimate = nextEstimate;
+            nextEstimate = swap;
+            if (change < 1e-6 * Math.max(1.0D, estimate[initialState])) {
+                return estimate[initialState];
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d prefixes (by order %s), %d characters, %d clusters, %d transitions, estimated bytes %d %s; branching %s; entropy bits %s; expected length %.2f",
+                getPrefixes(), Arrays.toString(Arrays.copyOfRange(prefixesByOrder, 1, prefixesByOrder.length)), alphabetSize, clusterCount,
+                transitions, getEstimatedBytes(), bytesByStructure, branchingFactors, entropies, expectedLength);
+    }
+
+    /**
+     * A summary of a distribution of values, one per prefix: the mean, extremes and percentiles.
+     */
+    public static final class Distribution {
+
+        private final int count;
+        private final double mean;
+        private final double min;
+        private final double median;
+        private final double p90;
+        private final double p99;
+        private final double max;
+
+        private Distribution(double[] sorted) {
+            count = sorted.length;
+            double sum = 0.0D;
+            for (double value : sorted) {
+                sum += value;
+            }
+            mean = (count == 0) ? Double.NaN : sum / count;
+            min = percentile(sorted, 0);
+            median = percentile(sorted, 50);
+            p90 = percentile(sorted, 90);
+            p99 = percentile(sorted, 99);
+            max = percentile(sorted, 100);
+        }
+
+        /**
+         * @param values the values, which are sorted in place
+         * @return a summary of them
+         */
+        static Distribution of(double[] values) {
+            Arrays.sort(values);
+            return new Distribution(values);
+        }
+
+        // nearest rank, as in NameServerLoadClient.Report
+        private static double percentile(double[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return Double.NaN;
+            }
+            int index = (int) Math.ceil(percentile / 100.0D * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        /** @return the number of values */
+        public int getCount() { return count; }
+        /** @return the mean, or NaN if there are no values */
+        public double getMean() { return mean; }
+        /** @return the smallest value */
+        public double getMin() { return min; }
+        /** @return the median */
+        public double getMedian() { return median; }
+        /** @return the 90th percentile */
+        public double getP90() { return p90; }
+        /** @return the 99th percentile */
+        public double getP99() { return p99; }
+        /** @return the largest value */
+        public double getMax() { return max; }
+
+        @Override
+        public String toString() {
+            return String.format("mean %.2f, min %.2f, median %.2f, p90 %.2f, p99 %.2f, max %.2f", mean, min, median, p90, p99, max);
+        }
+    }
+
+}
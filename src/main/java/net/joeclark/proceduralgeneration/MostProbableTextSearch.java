@@ -0,0 +1,113 @@
+package net.joeclark.proceduralgeneration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A best-first search through a {@link TextChain} that yields the most probable texts satisfying a set of filters,
+ * in descending order of probability.  Partial texts are expanded in order of their probability, which can only
+ * shrink as they grow, so the first complete texts to come off the frontier are the most probable ones.  The
+ * frontier is capped at a fixed number of partial texts; when it overflows, the least probable are pruned, so memory
+ * stays bounded at the cost of possibly missing a result that would have been found by an exhaustive search.
+ */
+final class MostProbableTextSearch {
+
+    private static final Logger logger = LoggerFactory.getLogger( MostProbableTextSearch.class );
+
+    /** {@value}*/
+    static final int DEFAULT_FRONTIER_LIMIT = 100000;
+
+    private static final Comparator<Node<?>> MOST_PROBABLE_FIRST =
+            Comparator.<Node<?>>comparingDouble(n -> n.probability).reversed().thenComparing(n -> n.text);
+
+    private MostProbableTextSearch() {}
+
+    private static final class Node<S> {
+        final String text;
+        final S state; // null once the text is complete
+        final int match; // the filter's state after reading the text
+        final double probability;
+
+        Node(String text, S state, int match, double probability) {
+            this.text = text;
+            this.state = state;
+            this.match = match;
+            this.probability = probability;
+        }
+    }
+
+    /**
+     * @param chain the chain to search
+     * @param k the number of texts wanted
+     * @param frontierLimit the maximum number of partial texts to keep in memory
+     * @param minLength the minimum length of an accepted text
+     * @param maxLength the maximum length of an accepted text
+     * @param startFilter a String that accepted texts must begin with, or null
+     * @param filter accepts the texts that may be returned, e.g. those with the right ending
+     * @return up to k distinct texts, most probable first; fewer if the chain can't produce k texts that pass
+     */
+    static <S> List<String> search(TextChain<S> chain, int k, int frontierLimit, int minLength, int maxLength, String startFilter, TextAutomaton filter) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        if (frontierLimit < 1) {
+            throw new IllegalArgumentException("frontierLimit must be at least 1");
+        }
+        List<String> results = new ArrayList<>(); // distinct, since no two walks through a TextChain spell the same text
+        S start = chain.startState(startFilter);
+        String startText = (startFilter == null) ? "" : startFilter;
+        int startMatch = filter.step(filter.start(), startText);
+        if (start == null || startMatch == TextAutomaton.DEAD) {
+            logger.debug("startFilter {} cannot be followed; no texts are possible", startFilter);
+            return results;
+        }
+
+        PriorityQueue<Node<S>> frontier = new PriorityQueue<>(MOST_PROBABLE_FIRST);
+        frontier.add(new Node<>(startText, start, startMatch, 1.0D));
+        int expanded = 0;
+        while (!frontier.isEmpty() && results.size() < k) {
+            Node<S> node = frontier.poll();
+            if (node.state == null) {
+                results.add(node.text);
+                continue;
+            }
+            expanded++;
+            chain.forEachTransition(node.state, (token, probability, next, observed) -> {
+                String text = node.text + token;
+                int length = CodePoints.length(text);
+                if (next == null) {
+                    if (length >= minLength && length <= maxLength && filter.isAccepting(node.match)) {
+                        frontier.add(new Node<>(text, null, node.match, node.probability * probability));
+                    }
+                } else if (length <= maxLength) {
+                    int match = filter.step(node.match, token);
+                    if (match != TextAutomaton.DEAD) {
+                        frontier.add(new Node<>(text, next, match, node.probability * probability));
+                    }
+                }
+            });
+            if (frontier.size() > 2 * frontierLimit) {
+                prune(frontier, frontierLimit);
+            }
+        }
+        logger.debug("found {} most probable texts after expanding {} partial texts", results.size(), expanded);
+        return results;
+    }
+
+    // keep only the most probable nodes
+    private static <S> void prune(PriorityQueue<Node<S>> frontier, int frontierLimit) {
+        List<Node<S>> kept = new ArrayList<>(frontierLimit);
+        for (int i = 0; i < frontierLimit; i++) {
+            kept.add(frontier.poll());
+        }
+        logger.trace("pruned {} improbable partial texts from the search frontier", frontier.size());
+        frontier.clear();
+        frontier.addAll(kept);
+    }
+
+}
@@ -0,0 +1,302 @@
+package net.joeclark.proceduralgeneration;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Serves trained generators over HTTP on the local machine, using the JDK's built-in HttpServer (so it needs no
+ * further dependencies, and costs nothing unless it's started).  Register each generator under a name, then start
+ * the server:</p>
+ *
+ * <pre>
+ *     NameServer server = new NameServer().withGenerator("roman", romanGenerator).withPort(8080).start();
+ * </pre>
+ *
+ * <p>{@code GET /generators} lists the names, and {@code GET /generators/roman?count=1000} returns a thousand
+ * strings, one per line, as UTF-8 text.  A request may also give a {@code seed} for reproducible output, and (except
+ * for a DoubleTextGenerator) any of the filters {@code minLength}, {@code maxLength}, {@code startFilter},
+ * {@code endFilter} and {@code regex}.  A request's filters are passed to the generator as a {@link GenerationSpec},
+ * so every combination is served from the one trained model, and what the generator derives from the most recently
+ * used combinations is kept for reuse.</p>
+ *
+ * <p>The response is streamed as it's generated, through a small buffer, so a large batch is never held in memory.
+ * Errors are reported with a status code as long as the first string is still to come; if generating fails after
+ * that, the connection is dropped, so the client sees the response cut short rather than complete.
+ * Requests are handled by a fixed pool of threads with a bounded queue; when the queue is full, the thread that
+ * accepts connections handles the next request itself, which stops it accepting more until it's done.  Each request
+ * draws on its own random number generator, and the registered generators must not be reconfigured or retrained
+ * while the server is running.</p>
+ */
+public class NameServer {
+
+    private static final Logger logger = LoggerFactory.getLogger( NameServer.class );
+
+    /** {@value}*/
+    public static final int DEFAULT_PORT = 8080;
+    /** {@value}*/
+    public static final int DEFAULT_MAX_COUNT = 1_000_000;
+    /** {@value}*/
+    public static final int DEFAULT_QUEUE_CAPACITY = 100;
+
+    private static final int WRITE_BUFFER_CHARS = 16 * 1024;
+    private static final List<String> FILTER_PARAMETERS = Arrays.asList("minLength", "maxLength", "startFilter", "endFilter", "regex");
+
+    private final Map<String, RandomTextGenerator> generators = new LinkedHashMap<>();
+    private int port = DEFAULT_PORT;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int maxCount = DEFAULT_MAX_COUNT;
+
+    private HttpServer server;
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @param name the name the generator is served under, in the path /generators/{name}
+     * @param generator a trained generator
+     * @return the same NameServer
+     */
+    public NameServer withGenerator(String name, RandomTextGenerator generator) {
+        if (name == null || name.isEmpty() || name.contains("/")) {
+            throw new IllegalArgumentException("a generator's name must be non-empty and contain no '/'");
+        }
+        generators.put(name, generator);
+        return this;
+    }
+
+    /**
+     * @param port the port to listen on, on the loopback address (default 8080), or 0 for any free port
+     * @return the same NameServer
+     */
+    public NameServer withPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * @param threads the number of requests handled at once (default: the number of processors)
+     * @return the same NameServer
+     */
+    public NameServer withThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param queueCapacity the number of requests that may wait for a thread (default 100)
+     * @return the same NameServer
+     */
+    public NameServer withQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * @param maxCount the largest count a single request may ask for (default 1,000,000)
+     * @return the same NameServer
+     */
+    public NameServer withMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+        return this;
+    }
+
+    /**
+     * Start listening on the loopback address.
+     * @return the same NameServer
+     * @throws IOException if the port can't be bound
+     * @throws IllegalStateException if the server has already been started
+     */
+    public NameServer start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("server has already been started");
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.CallerRunsPolicy());
+        server.setExecutor(executor);
+        server.createContext("/generators", this::handle);
+        server.start();
+        logger.info("NameServer serving {} generator(s) on port {} with {} thread(s)", generators.size(), getPort(), threads);
+        return this;
+    }
+
+    /**
+     * Stop listening, giving requests in progress up to a second to finish.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+            executor.shutdown();
+            server = null;
+            logger.info("NameServer stopped");
+        }
+    }
+
+    /**
+     * @return the port the server is listening on (useful if it was started on port 0)
+     * @throws IllegalStateException if the server isn't running
+     */
+    public int getPort() {
+        if (server == null) {
+            throw new IllegalStateException("server is not running");
+        }
+        return server.getAddress().getPort();
+    }
+
+    // an exception that escapes the handler makes the HttpServer drop the connection, without closing the exchange
+    // (which would end a streamed response as if it were complete)
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "only GET is supported");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/generators") || path.equals("/generators/")) {
+                respond(exchange, 200, String.join("\n", generators.keySet()) + "\n");
+                return;
+            }
+            String name = path.substring("/generators/".length());
+            RandomTextGenerator generator = generators.get(name);
+            if (generator == null) {
+                respond(exchange, 404, "no generator named " + name);
+                return;
+            }
+            generate(exchange, name, generator, parseQuery(exchange.getRequestURI().getRawQuery()));
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            // a malformed parameter, or a generator that can't serve the request (e.g. one that can't generate from
+            // the request's own random number generator)
+            respond(exchange, 400, String.valueOf(e.getMessage()));
+        } catch (IllegalStateException e) {
+            // the filters can't be satisfied, or the model isn't trained
+            respond(exchange, 422, String.valueOf(e.getMessage()));
+        }
+        exchange.close();
+    }
+
+    private void generate(HttpExchange exchange, String name, RandomTextGenerator generator, Map<String, String> query) throws IOException {
+        int count = intParameter(query, "count", 1);
+        if (count < 1 || count > maxCount) {
+            throw new IllegalArgumentException("count must be between 1 and " + maxCount);
+        }
+        String seed = query.get("seed");
+        Random random = new SplittableRandomAdapter((seed == null) ? new SplittableRandom() : new SplittableRandom(longParameter(seed)));
+        RandomTextGenerator filtered = filtered(generator, query);
+
+        // the first string is generated before the status is sent, so that impossible filters can still be reported
+        String first = filtered.generateOne(random);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0); // chunked
+        // not closed if anything goes wrong, since closing it would end the response as if it were complete
+        Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), WRITE_BUFFER_CHARS);
+        out.write(first);
+        out.write('\n');
+        for (int i = 1; i < count; i++) {
+            String text;
+            try {
+                text = filtered.generateOne(random);
+            } catch (RuntimeException e) {
+                // the status has been sent, so the response can't report this; it can only be cut short
+                logger.warn("aborted a response from generator {} after {} of {} strings", name, i, count, e);
+                throw new IOException("generator " + name + " failed partway through a response", e);
+            }
+            out.write(text);
+            out.write('\n');
+        }
+        out.close();
+        logger.debug("served {} strings from generator {}", count, name);
+    }
+
+    // the generator with the request's filters applied, if it has any
+    private static RandomTextGenerator filtered(RandomTextGenerator generator, Map<String, String> query) {
+        if (Collections.disjoint(query.keySet(), FILTER_PARAMETERS)) {
+            return generator;
+        }
+        if (!(generator instanceof FilterableGenerator)) {
+            throw new IllegalArgumentException(generator.getClass().getSimpleName() + " doesn't take filters");
+        }
+        GenerationSpec spec = new GenerationSpec();
+        if (query.containsKey("minLength")) spec = spec.withMinLength(intParameter(query, "minLength", 0));
+        if (query.containsKey("maxLength")) spec = spec.withMaxLength(intParameter(query, "maxLength", 0));
+        if (query.containsKey("startFilter")) spec = spec.withStartFilter(query.get("startFilter"));
+        if (query.containsKey("endFilter")) spec = spec.withEndFilter(query.get("endFilter"));
+        if (query.containsKey("regex")) spec = spec.withRegex(query.get("regex"));
+        return generator.forSpec(spec);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = (equals < 0) ? pair : pair.substring(0, equals);
+            String value = (equals < 0) ? "" : pair.substring(equals + 1);
+            try {
+                query.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e); // every JVM supports UTF-8
+            }
+        }
+        return query;
+    }
+
+    private static int intParameter(Map<String, String> query, String name, int defaultValue) {
+        String value = query.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be an integer");
+        }
+    }
+
+    private static long longParameter(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("seed must be an integer");
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package net.joeclark.proceduralgeneration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A load test for a {@link NameServer} (or anything else that serves text one string per line): a number of
+ * clients send the same GET request over and over, each waiting for its previous response before sending the next,
+ * and the report gives the throughput in strings per second and the distribution of response times.  Run it from
+ * the command line with the URL, the number of clients and the total number of requests, e.g.:</p>
+ *
+ * <pre>
+ *     java -cp ... net.joeclark.proceduralgeneration.NameServerLoadClient "http://localhost:8080/generators/roman?count=100" 8 10000
+ * </pre>
+ */
+public final class NameServerLoadClient {
+
+    private static final Logger logger = LoggerFactory.getLogger( NameServerLoadClient.class );
+
+    /** {@value}*/
+    public static final int DEFAULT_CLIENTS = 4;
+    /** {@value}*/
+    public static final int DEFAULT_REQUESTS = 1000;
+
+    private NameServerLoadClient() {}
+
+    /**
+     * The results of a load test.
+     */
+    public static final class Report {
+
+        private final int requests;
+        private final int failures;
+        private final long strings;
+        private final long elapsedNanos;
+        private final long[] latencyNanos; // of the successful requests, sorted
+
+        Report(int requests, int failures, long strings, long elapsedNanos, long[] latencyNanos) {
+            this.requests = requests;
+            this.failures = failures;
+            this.strings = strings;
+            this.elapsedNanos = elapsedNanos;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public int getRequests() { return requests; }
+        public int getFailures() { return failures; }
+        public long getStrings() { return strings; }
+        public long getElapsedNanos() { return elapsedNanos; }
+
+        /**
+         * @return the number of strings received per second
+         */
+        public double getStringsPerSecond() {
+            return strings * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @param percentile a percentile, from 0 to 100
+         * @return the response time at that percentile of the successful requests, in milliseconds, or NaN if none
+         * succeeded
+         */
+        public double getLatencyMillis(double percentile) {
+            if (latencyNanos.length == 0) {
+                return Double.NaN;
+            }
+            int index = (int) Math.ceil(percentile / 100.0D * latencyNanos.length) - 1;
+            return latencyNanos[Math.max(0, Math.min(latencyNanos.length - 1, index))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests (%d failed), %d strings in %.2f s: %.0f strings/s; latency ms p50 %.2f, p90 %.2f, p99 %.2f, max %.2f",
+                    requests, failures, strings, elapsedNanos / 1e9, getStringsPerSecond(),
+                    getLatencyMillis(50), getLatencyMillis(90), getLatencyMillis(99), getLatencyMillis(100));
+        }
+    }
+
+    /**
+     * @param url the URL to request
+     * @param clients the number of requests in flight at once
+     * @param requests the total number of requests
+     * @return the results
+     * @throws InterruptedException if interrupted while waiting for the clients to finish
+     */
+    public static Report run(URL url, int clients, int requests) throws InterruptedException {
+        if (clients < 1 || requests < 1) {
+            throw new IllegalArgumentException("clients and requests must be at least 1");
+        }
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicLong strings = new AtomicLong();
+        long[] latencies = new long[requests];
+        Arrays.fill(latencies, -1L);
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            pool.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < requests) {
+                    long sent = System.nanoTime();
+                    try {
+                        strings.addAndGet(fetch(url));
+                        latencies[i] = System.nanoTime() - sent;
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                        logger.debug("request {} failed: {}", i, e.getMessage());
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        long[] succeeded = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+        return new Report(requests, failures.get(), strings.get(), elapsed, succeeded);
+    }
+
+    // the number of lines in the response.  The connection is left open for the next request, as HTTP keep-alive
+    // allows, so the test measures the server rather than the cost of connecting
+    private static long fetch(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        int status = connection.getResponseCode();
+        if (status != 200) {
+            if (connection.getErrorStream() != null) {
+                connection.getErrorStream().close();
+            }
+            throw new IOException("status " + status);
+        }
+        long lines = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            while (in.readLine() != null) {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @param args the URL, then optionally the number of clients (default 4) and of requests (default 1000)
+     * @throws Exception if the URL is malformed or the test is interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: NameServerLoadClient <url> [clients] [requests]");
+            System.exit(2);
+        }
+        int clients = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_CLIENTS;
+        int requests = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_REQUESTS;
+        System.out.println(run(new URL(args[0]), clients, requests));
+    }
+
+}
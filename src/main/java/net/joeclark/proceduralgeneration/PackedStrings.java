@@ -0,0 +1,143 @@
+package net.joeclark.proceduralgeneration;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable list of strings packed end to end into a single array, with an offset table marking where each one
+ * starts.  Each entry costs its characters plus four bytes, rather than a String object, its own array and a list
+ * slot; when every character fits in a byte (as with most Latin-alphabet name lists) the arena stores one byte per
+ * character, as the JVM's compact strings do.  Entries can be measured and compared against a prefix or suffix in
+ * place, so a caller only needs to build a String for an entry it actually returns.
+ */
+final class PackedStrings {
+
+    private final byte[] latin1; // the arena, if every character fits in a byte
+    private final char[] utf16;  // the arena otherwise
+    private final int[] offsets; // entry i is arena[offsets[i]] up to (but excluding) arena[offsets[i+1]]
+
+    private PackedStrings(byte[] latin1, char[] utf16, int[] offsets) {
+        this.latin1 = latin1;
+        this.utf16 = utf16;
+        this.offsets = offsets;
+    }
+
+    int size() { return offsets.length - 1; }
+
+    int length(int i) { return offsets[i + 1] - offsets[i]; }
+
+    char charAt(int i, int index) {
+        int position = offsets[i] + index;
+        return (latin1 != null) ? (char) (latin1[position] & 0xFF) : utf16[position];
+    }
+
+    /**
+     * @param i an entry
+     * @return the entry as a new String
+     */
+    String get(int i) {
+        return (latin1 != null)
+                ? new String(latin1, offsets[i], length(i), StandardCharsets.ISO_8859_1)
+                : new String(utf16, offsets[i], length(i));
+    }
+
+    /**
+     * @param i an entry
+     * @param out the StringBuilder to append the entry to, without making a String of it
+     * @return the number of chars appended
+     */
+    int appendTo(int i, StringBuilder out) {
+        int length = length(i);
+        if (latin1 != null) {
+            out.ensureCapacity(out.length() + length);
+            for (int position = offsets[i]; position < offsets[i + 1]; position++) {
+                out.append((char) (latin1[position] & 0xFF));
+            }
+        } else {
+            out.append(utf16, offsets[i], length);
+        }
+        return length;
+    }
+
+    boolean startsWith(int i, String prefix) {
+        return regionMatches(i, 0, prefix);
+    }
+
+    boolean endsWith(int i, String suffix) {
+        return regionMatches(i, length(i) - suffix.length(), suffix);
+    }
+
+    private boolean regionMatches(int i, int from, String s) {
+        if (from < 0 || from + s.length() > length(i)) {
+            return false;
+        }
+        for (int k = 0; k < s.length(); k++) {
+            if (charAt(i, from + k) != s.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return an unmodifiable List view, which builds a String for each element as it is read
+     */
+    List<String> asList() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) { return PackedStrings.this.get(index); }
+
+            @Override
+            public int size() { return PackedStrings.this.size(); }
+        };
+    }
+
+    /**
+     * @return the estimated heap bytes retained
+     */
+    long estimatedBytes() {
+        return HeapEstimator.array(offsets.length, 4)
+                + ((latin1 != null) ? HeapEstimator.array(latin1.length, 1) : HeapEstimator.array(utf16.length, 2));
+    }
+
+    /**
+     * Accumulates strings into an arena that grows as needed.
+     */
+    static final class Builder {
+        private char[] chars = new char[256];
+        private int[] offsets = new int[17];
+        private int size = 0;
+        private boolean fitsInBytes = true;
+
+        Builder add(String s) {
+            int end = offsets[size] + s.length();
+            if (end > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(end, chars.length * 2));
+            }
+            s.getChars(0, s.length(), chars, offsets[size]);
+            for (int k = offsets[size]; k < end && fitsInBytes; k++) {
+                fitsInBytes = chars[k] <= 0xFF;
+            }
+            if (size + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[++size] = end;
+            return this;
+        }
+
+        PackedStrings build() {
+            int length = offsets[size];
+            if (fitsInBytes) {
+                byte[] latin1 = new byte[length];
+                for (int k = 0; k < length; k++) {
+                    latin1[k] = (byte) chars[k];
+                }
+                return new PackedStrings(latin1, null, Arrays.copyOf(offsets, size + 1));
+            }
+            return new PackedStrings(null, Arrays.copyOf(chars, length), Arrays.copyOf(offsets, size + 1));
+        }
+    }
+
+}
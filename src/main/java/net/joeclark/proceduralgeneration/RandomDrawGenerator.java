@@ -3,15 +3,26 @@ package net.joeclark.proceduralgeneration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
- * Draws text strings at random from a training dataset (but lowercase regardless of training data's case)
+ * <p>Draws text strings at random from a training dataset (but lowercase regardless of training data's case)</p>
+ *
+ * <p>Trained with {@link #train(Stream)}, every line of the dataset is kept and equally likely to be drawn, so a
+ * name that appears twice is drawn twice as often.  Trained with {@link #trainWeighted(Stream)} or
+ * {@link #trainWeighted(Map)}, each distinct string is kept once with a weight (its number of occurrences, or an
+ * explicit weight such as a census frequency), and draws are made in constant time from a Walker alias table built
+ * over just the strings that pass the current filters, so filters never cause re-rolls.</p>
  */
-public class RandomDrawGenerator implements RandomTextGenerator {
+public class RandomDrawGenerator implements FilterableGenerator, Cloneable {
 
     private static final Logger logger = LoggerFactory.getLogger( RandomDrawGenerator.class );
 
@@ -20,32 +31,56 @@ public class RandomDrawGenerator implements RandomTextGenerator {
     /** {@value}*/
     public static final int DEFAULT_MAX_LENGTH = Integer.MAX_VALUE;
 
-    static final char CONTROL_CHAR = '\u001F';  // to indicate beginning and end of input; must not be in the data's alphabet
-
 
     private int minLength = DEFAULT_MIN_LENGTH;
     private int maxLength = DEFAULT_MAX_LENGTH;
     private String startFilter;
     private String endFilter;
-    // todo: add a regex match option
+    private RegexAutomaton regex;
     private Random random = new Random();
 
-    private List<String> wordList;
+    // the training data, lowercased once and packed into a single arena; see PackedStrings
+    private PackedStrings wordList;
+
+    // weighted mode: distinct strings and their weights, and an alias table over those that pass the filters
+    private PackedStrings weightedWords;
+    private double[] weights;
+    // built lazily and discarded whenever a filter changes.  filteredTable is volatile and written last, so a thread
+    // that sees a table also sees the indices it was built over
+    private int[] filteredWords;     // indices into weightedWords of the strings that pass the filters, or null
+    private volatile AliasTable filteredTable;
+
+    // copies with each recently used GenerationSpec applied; not shared with copies of this generator
+    private transient volatile SpecCache<RandomDrawGenerator> specCache;
 
+    // for ModelResources, and testing
+    List<String> getWordList() { return (wordList == null) ? null : wordList.asList(); }
+    List<String> getWeightedWords() { return (weightedWords == null) ? null : weightedWords.asList(); }
+    double[] getWeights() { return weights; }
     // for testing only
-    List<String> getWordList() { return wordList; }
+    long getEstimatedBytes() {
+        return (wordList != null) ? wordList.estimatedBytes() : (weightedWords != null) ? weightedWords.estimatedBytes() + HeapEstimator.array(weights.length, 8) : 0;
+    }
 
     // setters
-    public void setMinLength(int minLength) { this.minLength = minLength; }
-    public void setMaxLength(int maxLength) { this.maxLength = maxLength; }
-    public void setStartFilter(String startFilter) { this.startFilter = startFilter.toLowerCase(); }
-    public void setEndFilter(String endFilter) { this.endFilter = endFilter.toLowerCase(); }
+    public void setMinLength(int minLength) { this.minLength = minLength; filtersChanged(); }
+    public void setMaxLength(int maxLength) { this.maxLength = maxLength; filtersChanged(); }
+    public void setStartFilter(String startFilter) { this.startFilter = startFilter.toLowerCase(); filtersChanged(); }
+    public void setEndFilter(String endFilter) { this.endFilter = endFilter.toLowerCase(); filtersChanged(); }
+    /**
+     * Only draw strings that match a regular expression in full.  The strings are lowercased, so the pattern should
+     * be too.  The syntax is that of java.util.regex, less the constructs that aren't regular (see RegexAutomaton).
+     * @param regex a regular expression, or null for none
+     * @throws IllegalArgumentException if the regular expression is malformed or unsupported
+     */
+    public void setRegex(String regex) { this.regex = (regex == null) ? null : new RegexAutomaton(regex); filtersChanged(); }
     public void setRandom(Random random) { this.random = random; }
     // getters
     public int getMaxLength() { return maxLength; }
     public int getMinLength() { return minLength; }
     public String getStartFilter() { return startFilter; }
     public String getEndFilter() { return endFilter; }
+    public String getRegex() { return (regex == null) ? null : regex.getRegex(); }
 
 
 
@@ -74,7 +109,7 @@ public class RandomDrawGenerator implements RandomTextGenerator {
      * @return the same RandomDrawGenerator
      */
     public RandomDrawGenerator withMinLength(int minLength) {
-        this.minLength = minLength;
+        setMinLength(minLength);
         return this;
     }
 
@@ -83,7 +118,7 @@ public class RandomDrawGenerator implements RandomTextGenerator {
      * @return the same RandomDrawGenerator
      */
     public RandomDrawGenerator withMaxLength(int maxLength) {
-        this.maxLength = maxLength;
+        setMaxLength(maxLength);
         return this;
     }
 
@@ -92,7 +127,7 @@ public class RandomDrawGenerator implements RandomTextGenerator {
      * @return the same RandomDrawGenerator
      */
     public RandomDrawGenerator withStartFilter(String startFilter) {
-        this.startFilter = startFilter.toLowerCase();
+        setStartFilter(startFilter);
         return this;
     }
 
@@ -101,7 +136,16 @@ public class RandomDrawGenerator implements RandomTextGenerator {
      * @return the same RandomDrawGenerator
      */
     public RandomDrawGenerator withEndFilter(String endFilter) {
-        this.endFilter = endFilter.toLowerCase();
+        setEndFilter(endFilter);
+        return this;
+    }
+
+    /**
+     * @param regex a regular expression that the whole output must match, in lowercase
+     * @return the same RandomDrawGenerator
+     */
+    public RandomDrawGenerator withRegex(String regex) {
+        setRegex(regex);
         return this;
     }
 
@@ -110,17 +154,276 @@ public class RandomDrawGenerator implements RandomTextGenerator {
      * will be made from this data.
      */
     public RandomDrawGenerator train(Stream<String> rawWords) {
-        this.wordList = rawWords.map(String::toLowerCase).collect(Collectors.toList());
+        PackedStrings.Builder packed = new PackedStrings.Builder();
+        rawWords.forEach( w -> packed.add(w.toLowerCase()) );
+        this.wordList = packed.build();
+        this.weightedWords = null;
+        this.weights = null;
+        filtersChanged();
 
         logger.info("finished ingesting a dataset of {} text strings for random draws",wordList.size());
         return this;
     }
 
+    /**
+     * Ingest a new set of training data in weighted mode, overwriting any data that was previously trained.  Each
+     * distinct string (after lowercasing) is stored once, weighted by the number of times it occurs, so subsequent
+     * draws are just as likely to produce each string as with {@link #train(Stream)} but a dataset with many
+     * repetitions takes far less memory.
+     * @param rawWords a Stream of training data, e.g. from a file
+     * @return the same RandomDrawGenerator
+     */
+    public RandomDrawGenerator trainWeighted(Stream<String> rawWords) {
+        Map<String, Double> counts = new LinkedHashMap<>();
+        rawWords.forEach( w -> counts.merge(w.toLowerCase(), 1.0D, Double::sum) );
+        return trainWeighted(counts);
+    }
+
+    /**
+     * Ingest a new set of training data in weighted mode, overwriting any data that was previously trained.  Each
+     * string will be drawn with probability proportional to its weight, for example a name's frequency in a census.
+     * Strings that differ only in case are combined, and their weights added together.
+     * @param weightedWords the strings to draw from, and the relative weight of each
+     * @return the same RandomDrawGenerator
+     * @throws IllegalArgumentException if any weight is negative or not a finite number
+     */
+    public RandomDrawGenerator trainWeighted(Map<String, ? extends Number> weightedWords) {
+        Map<String, Double> combined = new LinkedHashMap<>();
+        weightedWords.forEach( (word, weight) -> {
+            double w = weight.doubleValue();
+            if (!(w >= 0.0D) || Double.isInfinite(w)) {
+                throw new IllegalArgumentException("weight of \"" + word + "\" must be a finite number, not negative");
+            }
+            if (w > 0.0D) {
+                combined.merge(word.toLowerCase(), w, Double::sum);
+            }
+        });
+        PackedStrings.Builder packed = new PackedStrings.Builder();
+        combined.keySet().forEach(packed::add);
+        this.weightedWords = packed.build();
+        this.weights = new double[this.weightedWords.size()];
+        int i = 0;
+        for (double w : combined.values()) {
+            this.weights[i++] = w;
+        }
+        this.wordList = null;
+        filtersChanged();
+
+        logger.info("finished ingesting a dataset of {} distinct weighted text strings for random draws",this.weightedWords.size());
+        return this;
+    }
+
+    /**
+     * Ingest a uniform random sample of at most {@code capacity} strings from a source of any size, overwriting any
+     * data that was previously trained.  The source is read once, as a stream, and never held in memory, so this
+     * can train on files far larger than the heap; every line of the source is equally likely to end up in the
+     * sample.  (This uses reservoir sampling, specifically Li's "Algorithm L", which skips over most of a long
+     * source without drawing a random number for every line.)  The generator's Random is used, so the sample is
+     * reproducible with a seeded Random.
+     * @param rawWords a Stream of training data, e.g. from a file
+     * @param capacity the maximum number of strings to keep
+     * @return the same RandomDrawGenerator
+     * @throws IllegalArgumentException if capacity is less than 1
+     */
+    public RandomDrawGenerator trainSample(Stream<String> rawWords, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        List<String> reservoir = new ArrayList<>();
+        Iterator<String> words = rawWords.iterator();
+        long seen = 0;
+        while (reservoir.size() < capacity && words.hasNext()) {
+            reservoir.add(words.next().toLowerCase());
+            seen++;
+        }
+        // each later line replaces a random member of the reservoir with probability capacity/seen; rather than
+        // rolling for every line, jump straight to the next line that will be kept
+        double w = Math.exp(Math.log(uniformPositive()) / capacity);
+        long next = seen + skip(w);
+        while (words.hasNext()) {
+            String word = words.next();
+            seen++;
+            if (seen == next) {
+                reservoir.set(random.nextInt(capacity), word.toLowerCase());
+                w *= Math.exp(Math.log(uniformPositive()) / capacity);
+                next = seen + skip(w);
+            }
+        }
+        PackedStrings.Builder packed = new PackedStrings.Builder();
+        reservoir.forEach(packed::add);
+        this.wordList = packed.build();
+        this.weightedWords = null;
+        this.weights = null;
+        filtersChanged();
+
+        logger.info("finished sampling {} of {} text strings for random draws", reservoir.size(), seen);
+        return this;
+    }
+
+    // the number of lines until the next one to keep in Algorithm L (at least 1)
+    private long skip(double w) {
+        double gap = Math.floor(Math.log(uniformPositive()) / Math.log1p(-w));
+        return (gap >= Long.MAX_VALUE / 2) ? Long.MAX_VALUE / 2 : (long) gap + 1;
+    }
+
+    // a random number in (0,1], safe to take the logarithm of
+    private double uniformPositive() {
+        return 1.0D - random.nextDouble();
+    }
+
+    /**
+     * Ingest a weighted random sample of at most {@code capacity} strings from a source of weighted strings of any
+     * size, overwriting any data that was previously trained, and use it in weighted mode (see
+     * {@link #trainWeighted(Map)}).  The source is read once and never held in memory.  Heavier strings are more
+     * likely to be kept, and the weights of those kept are adjusted so that, on average, every string in the source
+     * is drawn as often as it would have been if all of them were kept.  (This is Duffield, Lund and Thorup's
+     * "priority sampling".)
+     * @param weightedWords a Stream of strings and their relative weights
+     * @param capacity the maximum number of distinct entries to keep
+     * @return the same RandomDrawGenerator
+     * @throws IllegalArgumentException if capacity is less than 1, or any weight is negative or not a finite number
+     */
+    public RandomDrawGenerator trainWeightedSample(Stream<? extends Map.Entry<String, ? extends Number>> weightedWords, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        // keep the entries with the highest priority (weight divided by a uniform random number), plus one more
+        // whose priority is the threshold used to adjust the weights of the others
+        PriorityQueue<PrioritizedWord> kept = new PriorityQueue<>(capacity + 1, (a, b) -> Double.compare(a.priority, b.priority));
+        long[] seen = { 0 };
+        weightedWords.forEach( entry -> {
+            double weight = entry.getValue().doubleValue();
+            if (!(weight >= 0.0D) || Double.isInfinite(weight)) {
+                throw new IllegalArgumentException("weight of \"" + entry.getKey() + "\" must be a finite number, not negative");
+            }
+            seen[0]++;
+            if (weight > 0.0D) {
+                double priority = weight / uniformPositive();
+                if (kept.size() <= capacity) {
+                    kept.add(new PrioritizedWord(entry.getKey(), weight, priority));
+                } else if (priority > kept.peek().priority) {
+                    kept.poll();
+                    kept.add(new PrioritizedWord(entry.getKey(), weight, priority));
+                }
+            }
+        });
+        double threshold = (kept.size() > capacity) ? kept.poll().priority : 0.0D;
+        Map<String, Double> sample = new LinkedHashMap<>();
+        for (PrioritizedWord word : kept) {
+            sample.merge(word.word, Math.max(word.weight, threshold), Double::sum);
+        }
+        logger.info("sampled {} of {} weighted text strings", kept.size(), seen[0]);
+        return trainWeighted(sample);
+    }
+
+    private static final class PrioritizedWord {
+        final String word;
+        final double weight;
+        final double priority;
+
+        PrioritizedWord(String word, double weight, double priority) {
+            this.word = word;
+            this.weight = weight;
+            this.priority = priority;
+        }
+    }
+
     /**
      * @return true if the model was trained or re-trained. Don't attempt to generate names from an untrained model, or you'll get an InvalidStateException!
      */
     public boolean isTrained() {
-        return (this.wordList != null && !this.wordList.isEmpty());
+        return (this.wordList != null && this.wordList.size() > 0) || (this.weightedWords != null && this.weightedWords.size() > 0);
+    }
+
+    private void filtersChanged() {
+        filteredTable = null;
+        filteredWords = null;
+    }
+
+    /**
+     * A copy that shares this generator's trained model but has its own settings, so it can be given different
+     * filters (as the NameServer does for each request) without retraining or copying the model.  Neither the copy
+     * nor the original should be trained or compacted afterwards.
+     * @return a shallow copy
+     */
+    RandomDrawGenerator copy() {
+        try {
+            RandomDrawGenerator copy = (RandomDrawGenerator) clone();
+            copy.specCache = null;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param spec the filters to generate with; any it leaves out are this generator's own
+     * @return a copy of this generator, sharing its trained model, with the spec's filters applied; the copy for each
+     * recently used spec is kept, along with everything it derives from its filters.  See {@link GenerationSpec}.
+     * @throws IllegalArgumentException if the spec's filters are invalid, e.g. a malformed regex
+     */
+    @Override
+    public RandomTextGenerator forSpec(GenerationSpec spec) {
+        if (spec.isEmpty()) {
+            return this;
+        }
+        SpecCache<RandomDrawGenerator> cache = specCache;
+        if (cache == null) {
+            cache = specCache = new SpecCache<>(); // a race here at worst loses a cache that was just made
+        }
+        return cache.get(spec, Arrays.asList(wordList, weightedWords, weights, random, minLength, maxLength, startFilter, endFilter, getRegex()), this::copy);
+    }
+
+    // checked in place, without building a String for the entry
+    private static boolean passesFilters(PackedStrings words, int i, int minLength, int maxLength, String startFilter, String endFilter, TextAutomaton regex) {
+        int length = words.length(i);
+        return length >= minLength
+                && length <= maxLength
+                && (startFilter == null || words.startsWith(i, startFilter))
+                && (endFilter == null || words.endsWith(i, endFilter))
+                && (regex == null || matches(words, i, regex));
+    }
+
+    // runs the entry through the automaton a code point at a time, stopping as soon as it can no longer match
+    private static boolean matches(PackedStrings words, int i, TextAutomaton regex) {
+        int length = words.length(i);
+        int state = regex.start();
+        for (int index = 0; index < length && state != TextAutomaton.DEAD; index++) {
+            char c = words.charAt(i, index);
+            if (Character.isHighSurrogate(c) && index + 1 < length && Character.isLowSurrogate(words.charAt(i, index + 1))) {
+                state = regex.step(state, Character.toCodePoint(c, words.charAt(i, ++index)));
+            } else {
+                state = regex.step(state, c);
+            }
+        }
+        return state != TextAutomaton.DEAD && regex.isAccepting(state);
+    }
+
+    // the alias table over just the weighted strings that pass the current filters
+    private AliasTable filteredTable() {
+        AliasTable table = filteredTable;
+        if (table == null) {
+            List<Integer> passing = new ArrayList<>();
+            for (int i = 0; i < weightedWords.size(); i++) {
+                if (passesFilters(weightedWords, i, minLength, maxLength, startFilter, endFilter, regex)) {
+                    passing.add(i);
+                }
+            }
+            if (passing.isEmpty()) {
+                throw new IllegalStateException("no text string in the training data passes the filters");
+            }
+            int[] indices = new int[passing.size()];
+            double[] passingWeights = new double[passing.size()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = passing.get(i);
+                passingWeights[i] = weights[indices[i]];
+            }
+            table = new AliasTable(passingWeights);
+            filteredWords = indices;
+            filteredTable = table;
+            logger.debug("built an alias table over the {} of {} weighted text strings that pass the filters", indices.length, weightedWords.size());
+        }
+        return table;
     }
 
 
@@ -131,32 +434,73 @@ public class RandomDrawGenerator implements RandomTextGenerator {
      * as maximum and minimum length, or a starting and ending sequence, be careful that those filters are not
      * impossible given the training data. You could end up with an infinite loop or an exception if your
      * conditions are impossible to satisfy.
-     * @throws IllegalStateException if model has not been trained
+     * @throws IllegalStateException if model has not been trained, or (in weighted mode) if no string passes the filters
      */
     @Override
     public String generateOne() {
+        return generateOne(random);
+    }
+
+    /**
+     * Draw a random string as {@link #generateOne()} does, but using the given source of randomness rather than the
+     * generator's own.  This may be called from several threads at once, each with its own Random, as long as the
+     * generator isn't trained or reconfigured meanwhile.
+     * @param random the source of randomness
+     * @return a random string from the training dataset (but lowercase)
+     * @throws IllegalStateException as {@link #generateOne()} does
+     */
+    @Override
+    public String generateOne(Random random) {
+        PackedStrings words = (weightedWords != null) ? weightedWords : wordList;
+        String draw = words.get(draw(random));
+        logger.debug("new random text string drawn and returned: {}", draw);
+        return draw;
+    }
 
+    /**
+     * Draw a random string as {@link #generateOne()} does, but append it to a StringBuilder rather than returning
+     * it.  Strings are drawn from the packed training data and copied straight into the StringBuilder, so nothing
+     * is allocated unless it has to grow.
+     * @param out the StringBuilder to append to
+     * @return the number of chars appended
+     * @throws IllegalStateException as {@link #generateOne()} does
+     */
+    @Override
+    public int generateInto(StringBuilder out) {
+        return generateInto(random, out);
+    }
+
+    /**
+     * Draw a random string into a StringBuilder, as {@link #generateInto(StringBuilder)} does, using the given source
+     * of randomness rather than the generator's own; see {@link #generateOne(Random)}.
+     * @param random the source of randomness
+     * @param out the StringBuilder to append to
+     * @return the number of chars appended
+     * @throws IllegalStateException as {@link #generateOne()} does
+     */
+    @Override
+    public int generateInto(Random random, StringBuilder out) {
+        PackedStrings words = (weightedWords != null) ? weightedWords : wordList;
+        return words.appendTo(draw(random), out);
+    }
+
+    // the index of a random entry passing the filters, in weightedWords if set or else in wordList
+    private int draw(Random random) {
         if (!isTrained()) {
             throw new IllegalStateException("model has not yet been trained");
+        } else if (weightedWords != null) {
+            AliasTable table = filteredTable();
+            return filteredWords[table.sample(random)];
         } else {
-            String draw;
+            int i;
             do {
-                // add control characters to indicate start and end of word
-                draw = CONTROL_CHAR + wordList.get(random.nextInt(wordList.size())).toLowerCase() + CONTROL_CHAR;
-                logger.trace("new candidate text string drawn, about to check filters: {}", draw);
-            } while (
-                // conditions for a re-roll
-                    (draw.length() < minLength + 2) ||
-                    (draw.length() - 2 > maxLength) ||
-                    ((startFilter != null) && (!draw.contains(CONTROL_CHAR + startFilter))) ||
-                    ((endFilter != null) && (!draw.contains(endFilter + CONTROL_CHAR)))
-            );
-            draw = draw.substring(1, draw.length() - 1); // strip off control characters
-            logger.debug("new random text string drawn and returned: {}", draw);
-            return draw;
+                // entries were lowercased at training time, and are checked in place; only the winner becomes a String
+                i = random.nextInt(wordList.size());
+                logger.trace("new candidate text string drawn, about to check filters: entry {}", i);
+            } while ( !passesFilters(wordList, i, minLength, maxLength, startFilter, endFilter, regex) ); // conditions for a re-roll
+            return i;
         }
     }
 
 
-
 }
@@ -1,6 +1,8 @@
-
 package net.joeclark.proceduralgeneration;
 
+import java.util.List;
+import java.util.Random;
+
 /**
  * An interface for an object that produces randomly-generated text strings on demand. More information at https://github.com/joeclark-phd/random-text-generators
  */
@@ -12,4 +14,120 @@ public interface RandomTextGenerator {
      */
     String generateOne();
 
+    /**
+     * Generate a random text string as {@link #generateOne()} does, but drawing on the given source of randomness
+     * rather than the generator's own.  Implementations that support this allow it to be called from several threads
+     * at once, each with its own Random, as long as the generator isn't reconfigured meanwhile.
+     * @param random the source of randomness
+     * @return a random text string
+     * @throws UnsupportedOperationException if the implementation doesn't support it (the default)
+     */
+    default String generateOne(Random random) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't generate text from a given source of randomness");
+    }
+
+    /**
+     * Generate a random text string as {@link #generateOne()} does, but append it to a StringBuilder rather than
+     * returning it, so a caller generating many strings can reuse one buffer.  The default just appends the result
+     * of {@link #generateOne()}; implementations that can build the text in place override it.
+     * @param out the StringBuilder to append to
+     * @return the number of chars appended
+     */
+    default int generateInto(StringBuilder out) {
+        String text = generateOne();
+        out.append(text);
+        return text.length();
+    }
+
+    /**
+     * Generate a random text string into a StringBuilder, as {@link #generateInto(StringBuilder)} does, drawing on
+     * the given source of randomness as {@link #generateOne(Random)} does.
+     * @param random the source of randomness
+     * @param out the StringBuilder to append to
+     * @return the number of chars appended
+     * @throws UnsupportedOperationException if the implementation doesn't support {@link #generateOne(Random)}
+     */
+    default int generateInto(Random random, StringBuilder out) {
+        String text = generateOne(random);
+        out.append(text);
+        return text.length();
+    }
+
+    /**
+     * A view of this generator with a spec's filters applied in place of its own, sharing its trained model, for
+     * generating many strings with the same spec.  The view must not be reconfigured, and like the generator itself
+     * it may be used from several threads at once as long as the generator isn't trained or reconfigured meanwhile.
+     * @param spec the filters to generate with; any it leaves out are the generator's own
+     * @return a generator that generates with the spec's filters
+     * @throws IllegalArgumentException if the spec's filters are invalid, e.g. a malformed regex
+     * @throws UnsupportedOperationException if the implementation doesn't take filters (the default)
+     */
+    default RandomTextGenerator forSpec(GenerationSpec spec) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't take filters");
+    }
+
+    /**
+     * Generate a random text string as {@link #generateOne()} does, but with a spec's filters in place of the
+     * generator's own; see {@link GenerationSpec}.
+     * @param spec the filters to generate with
+     * @return a random text string
+     * @throws UnsupportedOperationException if the implementation doesn't take filters
+     */
+    default String generateOne(GenerationSpec spec) {
+        return forSpec(spec).generateOne();
+    }
+
+    /**
+     * Generate a random text string with a spec's filters, drawing on the given source of randomness; see
+     * {@link #generateOne(Random)}.
+     * @param spec the filters to generate with
+     * @param random the source of randomness
+     * @return a random text string
+     * @throws UnsupportedOperationException if the implementation doesn't take filters
+     */
+    default String generateOne(GenerationSpec spec, Random random) {
+        return forSpec(spec).generateOne(random);
+    }
+
+    /**
+     * Generate a random text string with a spec's filters into a StringBuilder; see
+     * {@link #generateInto(Random, StringBuilder)}.
+     * @param spec the filters to generate with
+     * @param random the source of randomness
+     * @param out the StringBuilder to append to
+     * @return the number of chars appended
+     * @throws UnsupportedOperationException if the implementation doesn't take filters
+     */
+    default int generateInto(GenerationSpec spec, Random random, StringBuilder out) {
+        return forSpec(spec).generateInto(random, out);
+    }
+
+    /**
+     * Generate a reproducible list of random text strings on all available cores.  The same seed always gives the
+     * same list, whatever the number of cores.  See {@link #generateSeeded(long, int, int)}.
+     * @param seed the master seed
+     * @param count the number of text strings wanted
+     * @return the text strings, in a fixed order
+     * @throws UnsupportedOperationException if the implementation doesn't support {@link #generateOne(Random)}
+     */
+    default List<String> generateSeeded(long seed, int count) {
+        return generateSeeded(seed, count, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Generate a reproducible list of random text strings on several threads.  The list is divided into fixed
+     * chunks of {@link SeededGeneration#CHUNK_SIZE} strings, each generated from its own SplittableRandom split off
+     * from one seeded with the master seed, so which thread generates a chunk, and when, makes no difference: the
+     * same seed always gives the same list, whatever the number of threads.
+     * @param seed the master seed
+     * @param count the number of text strings wanted
+     * @param threads the number of threads to generate them on
+     * @return the text strings, in a fixed order
+     * @throws IllegalArgumentException if count is negative or threads is less than 1
+     * @throws UnsupportedOperationException if the implementation doesn't support {@link #generateOne(Random)}
+     */
+    default List<String> generateSeeded(long seed, int count, int threads) {
+        return SeededGeneration.generate(this, seed, count, threads);
+    }
+
 }
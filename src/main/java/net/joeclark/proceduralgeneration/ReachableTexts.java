@@ -0,0 +1,222 @@
+package net.joeclark.proceduralgeneration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The set of all texts a {@link TextChain} can produce within a length range, a start filter and a
+ * {@link TextAutomaton} (an end filter, a regular expression or both), following only
+ * transitions that were observed in training (ignoring priors), or only transitions at least as probable as a given
+ * floor.  The number of texts is counted exactly by dynamic programming over (chain state, automaton state, length)
+ * without ever listing them, and they can be enumerated lazily by a depth-first walk that only enters branches with
+ * a non-zero count, so each text costs at most one step per character.
+ *
+ * <p>Every walk through a {@link TextChain} spells a different text, so counting walks counts texts.  (A
+ * ClusterChainGenerator's chain makes sure of that by only following links that alternate between vowel and
+ * consonant clusters; see {@link ClusterTextChain}.)</p>
+ */
+final class ReachableTexts<S> implements Iterable<String> {
+
+    private static final Logger logger = LoggerFactory.getLogger( ReachableTexts.class );
+
+    private final TextChain<S> chain;
+    private final TextAutomaton filter;
+    private final int minLength;
+    private final int maxLength;
+    private final String startFilter;
+    private final boolean observedOnly;
+    private final double minProbability;
+
+    private final Map<Key<S>, BigInteger> completions = new HashMap<>();
+
+    private static final class Key<S> {
+        final S state;
+        final int match;
+        final int length;
+
+        Key(S state, int match, int length) {
+            this.state = state;
+            this.match = match;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key<?> key = (Key<?>) o;
+            return match == key.match && length == key.length && state.equals(key.state);
+        }
+
+        @Override
+        public int hashCode() {
+            // not Objects.hash, which would box the ints and allocate an array on every lookup
+            return (31 * state.hashCode() + match) * 31 + length;
+        }
+    }
+
+    /**
+     * @param chain the chain to explore
+     * @param minLength the minimum length of a text, in code points
+     * @param maxLength the maximum length of a text, in code points
+     * @param startFilter a String that texts must begin with, or null
+     * @param filter accepts the texts that may be included, e.g. those with the right ending
+     * @param observedOnly if true, only follow transitions that were seen in the training data
+     * @param minProbability only follow transitions with at least this probability, given their state
+     */
+    ReachableTexts(TextChain<S> chain, int minLength, int maxLength, String startFilter, TextAutomaton filter, boolean observedOnly, double minProbability) {
+        this.chain = chain;
+        this.filter = filter;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.startFilter = (startFilter == null) ? "" : startFilter;
+        this.observedOnly = observedOnly;
+        this.minProbability = minProbability;
+    }
+
+    /**
+     * @return the exact number of texts in the set
+     */
+    BigInteger count() {
+        S start = chain.startState(startFilter);
+        int match = filter.step(filter.start(), startFilter);
+        int length = CodePoints.length(startFilter);
+        if (start == null || match == TextAutomaton.DEAD || length > maxLength) {
+            return BigInteger.ZERO;
+        }
+        BigInteger count = completions(start, match, length);
+        logger.debug("counted {} reachable texts using {} intermediate results", count, completions.size());
+        return count;
+    }
+
+    /**
+     * @return a lazy iterator over the texts in the set
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new TextIterator();
+    }
+
+    private boolean follows(double probability, boolean observed) {
+        return (observed || !observedOnly) && probability >= minProbability;
+    }
+
+    // the number of ways to complete a text that has reached this state, end-filter match and length
+    private BigInteger completions(S state, int match, int length) {
+        Key<S> key = new Key<>(state, match, length);
+        BigInteger cached = completions.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        BigInteger[] total = { BigInteger.ZERO };
+        chain.forEachTransition(state, (token, probability, next, observed) -> {
+            if (!follows(probability, observed)) {
+                return;
+            }
+            if (next == null) {
+                if (length >= minLength && filter.isAccepting(match)) {
+                    total[0] = total[0].add(BigInteger.ONE);
+                }
+            } else if (length + CodePoints.length(token) <= maxLength) {
+                int nextMatch = filter.step(match, token);
+                if (nextMatch != TextAutomaton.DEAD) {
+                    total[0] = total[0].add(completions(next, nextMatch, length + CodePoints.length(token)));
+                }
+            }
+        });
+        completions.put(key, total[0]);
+        return total[0];
+    }
+
+    private static final class Step<S> {
+        final String token;
+        final S next; // null if this step completes the text
+        final int match;
+
+        Step(String token, S next, int match) {
+            this.token = token;
+            this.next = next;
+            this.match = match;
+        }
+    }
+
+    private final class Frame {
+        final String text;
+        final List<Step<S>> steps = new ArrayList<>();
+        int cursor = 0;
+
+        Frame(String text, S state, int match) {
+            this.text = text;
+            int length = CodePoints.length(text);
+            chain.forEachTransition(state, (token, probability, next, observed) -> {
+                if (!follows(probability, observed)) {
+                    return;
+                }
+                if (next == null) {
+                    if (length >= minLength && filter.isAccepting(match)) {
+                        steps.add(new Step<>(token, null, match));
+                    }
+                } else if (length + CodePoints.length(token) <= maxLength) {
+                    int nextMatch = filter.step(match, token);
+                    if (nextMatch != TextAutomaton.DEAD && completions(next, nextMatch, length + CodePoints.length(token)).signum() > 0) {
+                        steps.add(new Step<>(token, next, nextMatch));
+                    }
+                }
+            });
+            // the end of the text (an empty token) first, then alphabetical order
+            steps.sort(Comparator.comparing(s -> s.token));
+        }
+    }
+
+    private final class TextIterator implements Iterator<String> {
+        private final Deque<Frame> stack = new ArrayDeque<>();
+        private String pending;
+
+        TextIterator() {
+            if (count().signum() > 0) {
+                S start = chain.startState(startFilter);
+                stack.push(new Frame(startFilter, start, filter.step(filter.start(), startFilter)));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (pending == null && !stack.isEmpty()) {
+                Frame frame = stack.peek();
+                if (frame.cursor == frame.steps.size()) {
+                    stack.pop();
+                    continue;
+                }
+                Step<S> step = frame.steps.get(frame.cursor++);
+                if (step.next == null) {
+                    pending = frame.text;
+                } else {
+                    stack.push(new Frame(frame.text + step.token, step.next, step.match));
+                }
+            }
+            return pending != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String text = pending;
+            pending = null;
+            return text;
+        }
+    }
+
+}
@@ -0,0 +1,602 @@
+package net.joeclark.proceduralgeneration;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A {@link TextAutomaton} that accepts the texts matching a regular expression in full, as
+ * {@code String.matches()} would.  The pattern is parsed into a nondeterministic automaton (by Thompson's
+ * construction) and then made deterministic by subset construction, one state at a time as the states are reached,
+ * so only the part of the automaton that generation actually explores is ever built.  Automaton states from which
+ * no accepting state can be reached are discarded as they are found, so {@link #step(int, int)} returns DEAD as soon
+ * as a text can no longer match, not just when it ends.</p>
+ *
+ * <p>The supported syntax is the part of {@code java.util.regex} that describes regular languages:</p>
+ * <ul>
+ *     <li>literal characters, and metacharacters escaped with a backslash</li>
+ *     <li>{@code .} for any character, character classes such as {@code [a-z]} and {@code [^aeiou]}, and the
+ *     shorthands {@code \d \w \s} and their negations {@code \D \W \S} (ASCII only, as in Java's default)</li>
+ *     <li>groups {@code (...)} and {@code (?:...)}, and alternation {@code |}</li>
+ *     <li>the quantifiers {@code * + ? {n} {n,} {n,m}}, greedy or reluctant (which makes no difference to what
+ *     matches)</li>
+ *     <li>{@code ^} at the very start and {@code $} at the very end, which are redundant since the whole text must
+ *     match</li>
+ * </ul>
+ * <p>Back-references, lookaround, possessive quantifiers, flags and other anchors have no deterministic automaton
+ * (or no meaning for a whole-text match) and are rejected.</p>
+ */
+final class RegexAutomaton implements TextAutomaton {
+
+    private static final int MAX_REPETITIONS = 1000;
+
+    private final String regex;
+
+    // the nondeterministic automaton: each state has epsilon moves and/or one move on a set of characters
+    private final CharSet[] labels;   // the characters a state moves on, or null
+    private final int[] targets;      // where that move leads
+    private final int[][] epsilons;   // the states reached without reading anything
+    private final int nfaAccept;
+    private final boolean[] live;     // whether the accepting state can be reached from a state at all
+
+    // the deterministic automaton, built as it is explored.  Moves already made are looked up without locking, so
+    // several threads can generate from one automaton; new states are added one thread at a time
+    private final Map<Integer, BitSet> dfaStates = new ConcurrentHashMap<>();
+    private final Map<BitSet, Integer> dfaIds = new HashMap<>();
+    private final Map<Integer, Map<Integer, Integer>> dfaMoves = new ConcurrentHashMap<>();
+    private final int dfaStart;
+
+    /**
+     * @param regex a regular expression
+     * @throws IllegalArgumentException if the expression is malformed or uses an unsupported construct
+     */
+    RegexAutomaton(String regex) {
+        this.regex = regex;
+        Node root = new Parser(regex).parse();
+
+        NfaBuilder builder = new NfaBuilder();
+        int[] fragment = builder.build(root);
+        this.nfaAccept = fragment[1];
+        int n = builder.labels.size();
+        this.labels = builder.labels.toArray(new CharSet[0]);
+        this.targets = new int[n];
+        this.epsilons = new int[n][];
+        for (int s = 0; s < n; s++) {
+            targets[s] = builder.targets.get(s);
+            epsilons[s] = builder.epsilons.get(s).stream().mapToInt(Integer::intValue).toArray();
+        }
+        this.live = liveStates();
+
+        BitSet start = new BitSet();
+        start.set(fragment[0]);
+        synchronized (this) {
+            this.dfaStart = dfaState(closure(start));
+        }
+    }
+
+    String getRegex() { return regex; }
+
+    // the states from which the accepting state can be reached, following the moves backwards from it
+    private boolean[] liveStates() {
+        List<List<Integer>> predecessors = new ArrayList<>();
+        for (int s = 0; s < labels.length; s++) {
+            predecessors.add(new ArrayList<>());
+        }
+        for (int s = 0; s < labels.length; s++) {
+            if (labels[s] != null && !labels[s].isEmpty()) {
+                predecessors.get(targets[s]).add(s);
+            }
+            for (int t : epsilons[s]) {
+                predecessors.get(t).add(s);
+            }
+        }
+        boolean[] live = new boolean[labels.length];
+        Deque<Integer> pending = new ArrayDeque<>();
+        live[nfaAccept] = true;
+        pending.push(nfaAccept);
+        while (!pending.isEmpty()) {
+            for (int p : predecessors.get(pending.pop())) {
+                if (!live[p]) {
+                    live[p] = true;
+                    pending.push(p);
+                }
+            }
+        }
+        return live;
+    }
+
+    // the live states reachable from a set of states without reading anything
+    private BitSet closure(BitSet states) {
+        BitSet closure = new BitSet();
+        Deque<Integer> pending = new ArrayDeque<>();
+        states.stream().forEach(pending::push);
+        while (!pending.isEmpty()) {
+            int s = pending.pop();
+            if (live[s] && !closure.get(s)) {
+                closure.set(s);
+                for (int t : epsilons[s]) {
+                    pending.push(t);
+                }
+            }
+        }
+        return closure;
+    }
+
+    // called with the lock held
+    private int dfaState(BitSet states) {
+        if (states.isEmpty()) {
+            return DEAD;
+        }
+        return dfaIds.computeIfAbsent(states, k -> {
+            int id = dfaIds.size();
+            dfaStates.put(id, k);
+            dfaMoves.put(id, new ConcurrentHashMap<>());
+            return id;
+        });
+    }
+
+    /**
+     * @return the number of deterministic states built so far
+     */
+    int numStatesBuilt() { return dfaStates.size(); }
+
+    @Override
+    public int start() {
+        return dfaStart;
+    }
+
+    @Override
+    public int step(int state, int codePoint) {
+        Integer cached = dfaMoves.get(state).get(codePoint);
+        if (cached != null) {
+            return cached;
+        }
+        return newMove(state, codePoint);
+    }
+
+    private synchronized int newMove(int state, int codePoint) {
+        Map<Integer, Integer> moves = dfaMoves.get(state);
+        Integer cached = moves.get(codePoint);
+        if (cached != null) {
+            return cached; // made by another thread while this one waited
+        }
+        BitSet next = new BitSet();
+        BitSet current = dfaStates.get(state);
+        for (int s = current.nextSetBit(0); s >= 0; s = current.nextSetBit(s + 1)) {
+            if (labels[s] != null && labels[s].contains(codePoint)) {
+                next.set(targets[s]);
+            }
+        }
+        int nextState = dfaState(closure(next));
+        moves.put(codePoint, nextState);
+        return nextState;
+    }
+
+    @Override
+    public boolean isAccepting(int state) {
+        return dfaStates.get(state).get(nfaAccept);
+    }
+
+    /**
+     * A set of code points, as sorted, disjoint, inclusive ranges.
+     */
+    private static final class CharSet {
+        static final CharSet ANY = new CharSet(new int[] { 0, Character.MAX_CODE_POINT });
+        static final CharSet DIGIT = new CharSet(new int[] { '0', '9' });
+        static final CharSet WORD = new CharSet(new int[] { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' });
+        static final CharSet SPACE = new CharSet(new int[] { '\t', '\r', ' ', ' ' });
+
+        private final int[] ranges; // lo0, hi0, lo1, hi1...
+
+        private CharSet(int[] ranges) {
+            this.ranges = ranges;
+        }
+
+        static CharSet of(int codePoint) {
+            return new CharSet(new int[] { codePoint, codePoint });
+        }
+
+        // the union of any ranges, which needn't be sorted or disjoint
+        static CharSet union(List<int[]> ranges) {
+            List<int[]> sorted = new ArrayList<>(ranges);
+            sorted.sort((a, b) -> Integer.compare(a[0], b[0]));
+            List<Integer> merged = new ArrayList<>();
+            for (int[] range : sorted) {
+                int last = merged.size() - 1;
+                if (last > 0 && range[0] <= merged.get(last) + 1) {
+                    merged.set(last, Math.max(merged.get(last), range[1]));
+                } else {
+                    merged.add(range[0]);
+                    merged.add(range[1]);
+                }
+            }
+            return new CharSet(merged.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        CharSet complement() {
+            List<Integer> complement = new ArrayList<>();
+            int from = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] > from) {
+                    complement.add(from);
+                    complement.add(ranges[i] - 1);
+                }
+                from = ranges[i + 1] + 1;
+            }
+            if (from <= Character.MAX_CODE_POINT) {
+                complement.add(from);
+                complement.add(Character.MAX_CODE_POINT);
+            }
+            return new CharSet(complement.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        void addTo(List<int[]> list) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                list.add(new int[] { ranges[i], ranges[i + 1] });
+            }
+        }
+
+        boolean isEmpty() { return ranges.length == 0; }
+
+        boolean contains(int codePoint) {
+            // the last range starting at or before codePoint
+            int lo = 0;
+            int hi = ranges.length / 2 - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ranges[2 * mid] <= codePoint) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return hi >= 0 && codePoint <= ranges[2 * hi + 1];
+        }
+
+        @Override
+        public String toString() { return Arrays.toString(ranges); }
+    }
+
+    // the parsed expression: a set of characters, or a concatenation, alternation or repetition of sub-expressions
+    private static final class Node {
+        final CharSet chars;      // for a single character
+        final List<Node> concat;  // for a sequence, possibly empty
+        final List<Node> alternatives;
+        final Node repeated;
+        final int min;
+        final int max;            // -1 for no limit
+
+        private Node(CharSet chars, List<Node> concat, List<Node> alternatives, Node repeated, int min, int max) {
+            this.chars = chars;
+            this.concat = concat;
+            this.alternatives = alternatives;
+            this.repeated = repeated;
+            this.min = min;
+            this.max = max;
+        }
+
+        static Node chars(CharSet chars) { return new Node(chars, null, null, null, 0, 0); }
+        static Node concat(List<Node> nodes) { return new Node(null, nodes, null, null, 0, 0); }
+        static Node alternatives(List<Node> nodes) { return new Node(null, null, nodes, null, 0, 0); }
+        static Node repeat(Node node, int min, int max) { return new Node(null, null, null, node, min, max); }
+    }
+
+    private static final class Parser {
+        private final String regex;
+        private int pos = 0;
+
+        Parser(String regex) {
+            this.regex = regex;
+        }
+
+        Node parse() {
+            if (regex.startsWith("^")) {
+                pos++;
+            }
+            Node node = alternation();
+            if (pos == regex.length() - 1 && regex.charAt(pos) == '$') {
+                pos++;
+            }
+            if (pos < regex.length()) {
+                throw error(regex.charAt(pos) == ')' ? "unmatched ')'" : "unsupported construct");
+            }
+            return node;
+        }
+
+        private IllegalArgumentException error(String problem) {
+            return new IllegalArgumentException(problem + " at index " + pos + " of regex \"" + regex + "\"");
+        }
+
+        private boolean more() { return pos < regex.length(); }
+
+        private int peek() { return regex.codePointAt(pos); }
+
+        private int next() {
+            int c = regex.codePointAt(pos);
+            pos += Character.charCount(c);
+            return c;
+        }
+
+        private Node alternation() {
+            List<Node> alternatives = new ArrayList<>();
+            alternatives.add(concatenation());
+            while (more() && peek() == '|') {
+                pos++;
+                alternatives.add(concatenation());
+            }
+            return alternatives.size() == 1 ? alternatives.get(0) : Node.alternatives(alternatives);
+        }
+
+        private Node concatenation() {
+            List<Node> sequence = new ArrayList<>();
+            while (more() && peek() != '|' && peek() != ')') {
+                if (peek() == '$' && pos == regex.length() - 1) {
+                    break;
+                }
+                sequence.add(quantified(atom()));
+            }
+            return sequence.size() == 1 ? sequence.get(0) : Node.concat(sequence);
+        }
+
+        // an atom and at most one quantifier; like java.util.regex, a second quantifier has nothing to repeat
+        private Node quantified(Node atom) {
+            if (more()) {
+                int c = peek();
+                int min;
+                int max;
+                if (c == '*') {
+                    pos++;
+                    min = 0;
+                    max = -1;
+                } else if (c == '+') {
+                    pos++;
+                    min = 1;
+                    max = -1;
+                } else if (c == '?') {
+                    pos++;
+                    min = 0;
+                    max = 1;
+                } else if (c == '{') {
+                    pos++;
+                    min = number();
+                    max = min;
+                    if (more() && peek() == ',') {
+                        pos++;
+                        max = (more() && peek() == '}') ? -1 : number();
+                    }
+                    if (!more() || next() != '}') {
+                        throw error("malformed {n,m} quantifier");
+                    }
+                    if (max != -1 && max < min) {
+                        throw error("quantifier maximum is less than its minimum");
+                    }
+                } else {
+                    return atom;
+                }
+                if (min > MAX_REPETITIONS || max > MAX_REPETITIONS) {
+                    throw error("more than " + MAX_REPETITIONS + " repetitions");
+                }
+                if (more() && peek() == '?') {
+                    pos++; // reluctant: the same texts match
+                } else if (more() && peek() == '+') {
+                    throw error("possessive quantifiers are not supported");
+                }
+                return Node.repeat(atom, min, max);
+            }
+            return atom;
+        }
+
+        private int number() {
+            int start = pos;
+            while (more() && peek() >= '0' && peek() <= '9') {
+                pos++;
+            }
+            if (start == pos || pos - start > 4) {
+                throw error("expected a number");
+            }
+            return Integer.parseInt(regex.substring(start, pos));
+        }
+
+        private Node atom() {
+            int c = next();
+            switch (c) {
+                case '(':
+                    if (more() && peek() == '?') {
+                        if (pos + 1 < regex.length() && regex.charAt(pos + 1) == ':') {
+                            pos += 2;
+                        } else {
+                            throw error("lookaround and flags are not supported");
+                        }
+                    }
+                    Node group = alternation();
+                    if (!more() || next() != ')') {
+                        throw error("unclosed group");
+                    }
+                    return group;
+                case '[':
+                    return Node.chars(characterClass());
+                case '.':
+                    return Node.chars(CharSet.ANY);
+                case '\\':
+                    return Node.chars(escape(false));
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    pos--;
+                    throw error("quantifier without anything to repeat");
+                case '^':
+                case '$':
+                    pos--;
+                    throw error("anchors are only supported at the start and end");
+                default:
+                    return Node.chars(CharSet.of(c));
+            }
+        }
+
+        private CharSet characterClass() {
+            boolean negated = more() && peek() == '^';
+            if (negated) {
+                pos++;
+            }
+            List<int[]> ranges = new ArrayList<>();
+            boolean first = true;
+            while (true) {
+                if (!more()) {
+                    throw error("unclosed character class");
+                }
+                int c = next();
+                if (c == ']' && !first) {
+                    break;
+                }
+                first = false;
+                int lo;
+                if (c == '\\') {
+                    CharSet escaped = escape(true);
+                    if (escaped.ranges.length != 2 || escaped.ranges[0] != escaped.ranges[1]) {
+                        escaped.addTo(ranges); // a shorthand such as \d
+                        continue;
+                    }
+                    lo = escaped.ranges[0];
+                } else if (c == '[' || (c == '&' && more() && peek() == '&')) {
+                    pos--;
+                    throw error("nested classes and class intersections are not supported");
+                } else {
+                    lo = c;
+                }
+                int hi = lo;
+                if (more() && peek() == '-' && pos + 1 < regex.length() && regex.charAt(pos + 1) != ']') {
+                    pos++;
+                    int h = next();
+                    if (h == '\\') {
+                        CharSet escaped = escape(true);
+                        if (escaped.ranges.length != 2 || escaped.ranges[0] != escaped.ranges[1]) {
+                            throw error("a range can't end in a shorthand class");
+                        }
+                        h = escaped.ranges[0];
+                    }
+                    if (h < lo) {
+                        throw error("illegal character range");
+                    }
+                    hi = h;
+                }
+                ranges.add(new int[] { lo, hi });
+            }
+            CharSet set = CharSet.union(ranges);
+            return negated ? set.complement() : set;
+        }
+
+        private CharSet escape(boolean inClass) {
+            if (!more()) {
+                throw error("trailing backslash");
+            }
+            int c = next();
+            switch (c) {
+                case 'd': return CharSet.DIGIT;
+                case 'w': return CharSet.WORD;
+                case 's': return CharSet.SPACE;
+                case 'D':
+                case 'W':
+                case 'S':
+                    if (inClass) {
+                        throw error("negated shorthands are not supported inside a character class");
+                    }
+                    return (c == 'D' ? CharSet.DIGIT : c == 'W' ? CharSet.WORD : CharSet.SPACE).complement();
+                case 't': return CharSet.of('\t');
+                case 'n': return CharSet.of('\n');
+                case 'r': return CharSet.of('\r');
+                case 'f': return CharSet.of('\f');
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        pos -= Character.charCount(c);
+                        throw error("unsupported escape \\" + new String(Character.toChars(c)));
+                    }
+                    return CharSet.of(c);
+            }
+        }
+    }
+
+    // Thompson's construction: each sub-expression becomes a fragment with one entry state and one exit state
+    private static final class NfaBuilder {
+        final List<CharSet> labels = new ArrayList<>();
+        final List<Integer> targets = new ArrayList<>();
+        final List<List<Integer>> epsilons = new ArrayList<>();
+
+        private int newState() {
+            labels.add(null);
+            targets.add(-1);
+            epsilons.add(new ArrayList<>());
+            return labels.size() - 1;
+        }
+
+        private void epsilon(int from, int to) {
+            epsilons.get(from).add(to);
+        }
+
+        // returns {entry, exit}
+        int[] build(Node node) {
+            if (node.chars != null) {
+                int entry = newState();
+                int exit = newState();
+                labels.set(entry, node.chars);
+                targets.set(entry, exit);
+                return new int[] { entry, exit };
+            }
+            if (node.concat != null) {
+                int entry = newState();
+                int exit = entry;
+                for (Node part : node.concat) {
+                    int[] fragment = build(part);
+                    epsilon(exit, fragment[0]);
+                    exit = fragment[1];
+                }
+                return new int[] { entry, exit };
+            }
+            if (node.alternatives != null) {
+                int entry = newState();
+                int exit = newState();
+                for (Node alternative : node.alternatives) {
+                    int[] fragment = build(alternative);
+                    epsilon(entry, fragment[0]);
+                    epsilon(fragment[1], exit);
+                }
+                return new int[] { entry, exit };
+            }
+            // a repetition: the required copies in sequence, then either a loop or the optional copies
+            int entry = newState();
+            int exit = entry;
+            for (int i = 0; i < node.min; i++) {
+                int[] fragment = build(node.repeated);
+                epsilon(exit, fragment[0]);
+                exit = fragment[1];
+            }
+            if (node.max == -1) {
+                int[] fragment = build(node.repeated);
+                int end = newState();
+                epsilon(exit, fragment[0]);
+                epsilon(exit, end);
+                epsilon(fragment[1], fragment[0]);
+                epsilon(fragment[1], end);
+                exit = end;
+            } else {
+                int end = newState();
+                for (int i = node.min; i < node.max; i++) {
+                    int[] fragment = build(node.repeated);
+                    epsilon(exit, end);
+                    epsilon(exit, fragment[0]);
+                    exit = fragment[1];
+                }
+                epsilon(exit, end);
+                exit = end;
+            }
+            return new int[] { entry, exit };
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package net.joeclark.proceduralgeneration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Generates a reproducible sequence of texts on several threads; see
+ * {@link RandomTextGenerator#generateSeeded(long, int, int)}.  The sequence is divided into chunks of a fixed size,
+ * and chunk i is generated from the i-th SplittableRandom split off from one seeded with the master seed.  The
+ * splits are made in order on the calling thread, so each chunk's stream of random numbers depends only on the seed
+ * and its position, and the threads only decide how soon the sequence is done.
+ */
+public final class SeededGeneration {
+
+    private static final Logger logger = LoggerFactory.getLogger( SeededGeneration.class );
+
+    /** {@value}; changing it would change the texts generated from a given seed */
+    public static final int CHUNK_SIZE = 1024;
+
+    private SeededGeneration() {}
+
+    /**
+     * Receives the chunks of a sequence, in order.
+     * @param <T> what each chunk has been turned into
+     */
+    interface ChunkConsumer<T> {
+        void accept(long firstIndex, T chunk) throws IOException;
+    }
+
+    static List<String> generate(RandomTextGenerator generator, long seed, int count, int threads) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must not be negative");
+        }
+        String[] texts = new String[count];
+        try {
+            generate(generator, seed, count, threads, chunk -> chunk, (first, chunk) -> System.arraycopy(chunk, 0, texts, (int) first, chunk.length));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // can't happen, since copying into the array doesn't do I/O
+        }
+        return Arrays.asList(texts);
+    }
+
+    /**
+     * Generate a sequence of texts and hand it over a chunk at a time, in order, without holding more than a few
+     * chunks per thread in memory, so it can be as long as you like.
+     * @param generator the generator
+     * @param seed the master seed
+     * @param count the number of texts
+     * @param threads the number of threads to generate them on
+     * @param transform applied to each chunk on the thread that generated it, e.g. to encode it for output
+     * @param consumer receives the transformed chunks, in order, on the calling thread
+     * @param <T> what each chunk is transformed into
+     * @throws IOException if the consumer throws one
+     */
+    static <T> void generate(RandomTextGenerator generator, long seed, long count, int threads, Function<String[], T> transform, ChunkConsumer<T> consumer) throws IOException {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must not be negative");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        long chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        SplittableRandom master = new SplittableRandom(seed);
+        int poolSize = (int) Math.min(threads, chunks);
+        logger.debug("generating {} texts from seed {} in {} chunks on {} thread(s)", count, seed, chunks, poolSize);
+
+        if (poolSize <= 1) {
+            for (long c = 0; c < chunks; c++) {
+                consumer.accept(c * CHUNK_SIZE, transform.apply(chunk(generator, new SplittableRandomAdapter(master.split()), c, count)));
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        try {
+            Deque<Future<T>> inFlight = new ArrayDeque<>();
+            long submitted = 0;
+            for (long c = 0; c < chunks; c++) {
+                // keep every thread busy, with a chunk waiting behind it, but no more
+                while (submitted < chunks && inFlight.size() < 2 * poolSize) {
+                    SplittableRandomAdapter random = new SplittableRandomAdapter(master.split());
+                    long index = submitted++;
+                    inFlight.add(pool.submit(() -> transform.apply(chunk(generator, random, index, count))));
+                }
+                consumer.accept(c * CHUNK_SIZE, inFlight.remove().get());
+            }
+        } catch (ExecutionException e) {
+            // most likely an impossible filter, thrown by the generator as it would be from generateOne()
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("seeded generation failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted during seeded generation", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static String[] chunk(RandomTextGenerator generator, SplittableRandomAdapter random, long index, long count) {
+        String[] texts = new String[(int) Math.min(CHUNK_SIZE, count - index * CHUNK_SIZE)];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = generator.generateOne(random);
+        }
+        return texts;
+    }
+
+}
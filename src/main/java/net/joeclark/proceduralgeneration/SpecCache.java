@@ -0,0 +1,60 @@
+package net.joeclark.proceduralgeneration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The copies of a generator with each recently used {@link GenerationSpec} applied.  A copy shares the generator's
+ * trained model and derives whatever else it needs from its filters the first time it generates, so keeping the
+ * copy keeps the derived data.  The least recently used copy is dropped once there are more than
+ * {@link GenerationSpec#MAX_CACHED_SPECS}.  All the copies are dropped whenever the generator's settings (including
+ * its trained model) are seen to have changed, since a copy takes the settings a spec leaves out from the generator.
+ * @param <G> the type of generator
+ */
+final class SpecCache<G extends FilterableGenerator> {
+
+    private static final Logger logger = LoggerFactory.getLogger( SpecCache.class );
+
+    // most recently used last
+    private final Map<GenerationSpec, G> copies = new LinkedHashMap<GenerationSpec, G>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<GenerationSpec, G> eldest) {
+            return size() > GenerationSpec.MAX_CACHED_SPECS;
+        }
+    };
+    private List<Object> settings; // the generator's settings when the copies were made
+
+    /**
+     * @param spec the spec
+     * @param settings the generator's current settings, as a list to compare with those the copies were made from
+     * @param copier makes a shallow copy of the generator
+     * @return the generator's copy with the spec applied, made now if there isn't one
+     * @throws IllegalArgumentException if the spec's filters are invalid, e.g. a malformed regex
+     */
+    synchronized G get(GenerationSpec spec, List<Object> settings, Supplier<G> copier) {
+        if (!settings.equals(this.settings)) {
+            if (!copies.isEmpty()) {
+                logger.debug("the generator has been reconfigured, so dropping {} cached specs", copies.size());
+            }
+            copies.clear();
+            this.settings = settings;
+        }
+        G copy = copies.get(spec);
+        if (copy == null) {
+            copy = copier.get();
+            spec.applyTo(copy);
+            copies.put(spec, copy);
+        }
+        return copy;
+    }
+
+    synchronized int size() {
+        return copies.size();
+    }
+
+}
@@ -0,0 +1,52 @@
+package net.joeclark.proceduralgeneration;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * Lets a SplittableRandom stand in for a java.util.Random, which is what the generators draw on.  Unlike Random, it
+ * takes no lock, and a SplittableRandom can be split into any number of independent streams that depend only on
+ * the original seed, which is what makes seeded parallel generation reproducible.
+ */
+final class SplittableRandomAdapter extends Random {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SplittableRandom source;
+
+    SplittableRandomAdapter(SplittableRandom source) {
+        this.source = source;
+    }
+
+    @Override
+    protected int next(int bits) {
+        return (int) (source.nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public int nextInt() { return source.nextInt(); }
+
+    @Override
+    public int nextInt(int bound) { return source.nextInt(bound); }
+
+    @Override
+    public long nextLong() { return source.nextLong(); }
+
+    @Override
+    public double nextDouble() { return source.nextDouble(); }
+
+    @Override
+    public boolean nextBoolean() { return source.nextBoolean(); }
+
+    /**
+     * @throws UnsupportedOperationException once constructed, as ThreadLocalRandom does; the stream is fixed by the
+     * SplittableRandom it draws on
+     */
+    @Override
+    public void setSeed(long seed) {
+        if (source != null) { // Random's constructor calls this before source is set
+            throw new UnsupportedOperationException("the seed of a SplittableRandomAdapter can't be changed");
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package net.joeclark.proceduralgeneration;
+
+/**
+ * A deterministic finite automaton that reads text one character (that is, one code point) at a time, used to check
+ * filters incrementally while exploring a {@link TextChain} instead of testing each finished text.  States are small
+ * non-negative ints.
+ */
+interface TextAutomaton {
+
+    /** the state returned by step() once the text can no longer be accepted, whatever follows */
+    int DEAD = -1;
+
+    /**
+     * @return the state before any text has been read, or DEAD if no text at all is accepted
+     */
+    int start();
+
+    /**
+     * @param state the current state (never DEAD)
+     * @param codePoint the next character of the text
+     * @return the state after reading it, or DEAD
+     */
+    int step(int state, int codePoint);
+
+    /**
+     * @param state a state (never DEAD)
+     * @return true if a text that ends in this state is accepted
+     */
+    boolean isAccepting(int state);
+
+    /**
+     * @param state the current state
+     * @param token the next few characters of the text
+     * @return the state after reading all of them, or DEAD
+     */
+    default int step(int state, CharSequence token) {
+        for (int i = 0; i < token.length() && state != DEAD; ) {
+            int codePoint = Character.codePointAt(token, i);
+            i += Character.charCount(codePoint);
+            state = step(state, codePoint);
+        }
+        return state;
+    }
+
+    /**
+     * @param other another automaton
+     * @return an automaton that accepts only the texts both accept
+     */
+    default TextAutomaton and(TextAutomaton other) {
+        return new IntersectionAutomaton(this, other);
+    }
+
+}
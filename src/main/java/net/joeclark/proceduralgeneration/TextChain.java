@@ -0,0 +1,41 @@
+package net.joeclark.proceduralgeneration;
+
+/**
+ * A read-only view of a trained generator's Markov chain as a graph of states joined by weighted transitions.  Each
+ * transition emits a token (a character or a cluster) and leads to a new state, or ends the text.  Used by the
+ * search and enumeration utilities, which need to explore the chain rather than take random walks through it.
+ * Every walk from a start state must spell a different text, so that a text's probability is that of its walk.
+ * @param <S> the type used to identify a state of the chain; must implement equals() and hashCode()
+ */
+interface TextChain<S> {
+
+    /**
+     * @param startFilter a String that the beginning of the text must match, or null
+     * @return the state reached after the start of text and the startFilter, or null if the startFilter cannot be
+     * followed by this chain
+     */
+    S startState(String startFilter);
+
+    /**
+     * Visit every transition possible from a state.
+     * @param state a state of the chain
+     * @param visitor receives each transition, with its probability conditional on the state
+     */
+    void forEachTransition(S state, TransitionVisitor<S> visitor);
+
+    /**
+     * Receives the transitions out of a state.
+     * @param <S> the state type of the chain
+     */
+    interface TransitionVisitor<S> {
+        /**
+         * @param token the text emitted by the transition; empty if it ends the text
+         * @param probability the probability of this transition, given the state
+         * @param next the state reached, or null if the transition ends the text
+         * @param observed true if the transition was seen in the training data, false if it is only possible
+         *                 because of a Bayesian prior
+         */
+        void visit(String token, double probability, S next, boolean observed);
+    }
+
+}
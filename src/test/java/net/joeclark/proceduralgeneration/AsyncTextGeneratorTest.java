@@ -0,0 +1,136 @@
+package net.joeclark.proceduralgeneration;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("AsyncTextGenerator...")
+class AsyncTextGeneratorTest {
+
+    AsyncTextGenerator async;
+
+    @BeforeEach
+    void createInstance() {
+        try(Stream<String> stream = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines()) {
+            async = new AsyncTextGenerator(new MarkovTextGenerator().withMaxLength(10).train(stream));
+        }
+    }
+
+    // records what it's sent, and requests more only when told to
+    static class RecordingSubscriber implements AsyncTextGenerator.Subscriber<String> {
+        final List<String> items = new CopyOnWriteArrayList<>();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean concurrent = new AtomicBoolean();
+        private final AtomicBoolean busy = new AtomicBoolean();
+        volatile AsyncTextGenerator.Subscription subscription;
+
+        @Override public void onSubscribe(AsyncTextGenerator.Subscription subscription) { this.subscription = subscription; }
+        @Override public void onNext(String item) {
+            if (!busy.compareAndSet(false, true)) concurrent.set(true);
+            items.add(item);
+            busy.set(false);
+        }
+        @Override public void onError(Throwable throwable) { error.set(throwable); done.countDown(); }
+        @Override public void onComplete() { done.countDown(); }
+    }
+
+    @Test
+    @DisplayName("completes futures with generated text")
+    void completesFutures() throws Exception {
+        String name = async.generateOne().get(5, TimeUnit.SECONDS);
+        assertTrue(name.length() <= 10);
+        List<String> names = async.generate(100).get(5, TimeUnit.SECONDS);
+        assertEquals(100, names.size());
+        String filtered = async.withSpec(new GenerationSpec().withStartFilter("ma")).generateOne().get(5, TimeUnit.SECONDS);
+        assertTrue(filtered.startsWith("ma"), "name " + filtered + " didn't pass the spec's filter");
+        CompletableFuture<String> failing = new AsyncTextGenerator(new MarkovTextGenerator()).generateOne();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> failing.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException, "an untrained generator should fail the future");
+        assertThrows(IllegalArgumentException.class, () -> async.generate(-1));
+    }
+
+    @Test
+    @DisplayName("publishes only as many names as are requested")
+    void honoursDemand() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        async.names().subscribe(subscriber);
+        assertTrue(subscriber.items.isEmpty(), "nothing should be generated before it's requested");
+        subscriber.subscription.request(3);
+        waitFor(() -> subscriber.items.size() >= 3);
+        Thread.sleep(100);
+        assertEquals(3, subscriber.items.size(), "no more than the demand should be published");
+        subscriber.subscription.request(AsyncTextGenerator.BATCH_SIZE * 3);
+        waitFor(() -> subscriber.items.size() >= 3 + AsyncTextGenerator.BATCH_SIZE * 3);
+        subscriber.subscription.cancel();
+        Thread.sleep(100);
+        assertEquals(3 + AsyncTextGenerator.BATCH_SIZE * 3, subscriber.items.size());
+        assertFalse(subscriber.concurrent.get(), "onNext should never be called concurrently");
+        assertEquals(1, subscriber.done.getCount(), "a cancelled subscription should get no terminal signal");
+    }
+
+    @Test
+    @DisplayName("completes a bounded stream, and reports errors and invalid requests")
+    void completesAndReportsErrors() throws Exception {
+        RecordingSubscriber bounded = new RecordingSubscriber();
+        async.names(50).subscribe(bounded);
+        bounded.subscription.request(Long.MAX_VALUE);
+        assertTrue(bounded.done.await(5, TimeUnit.SECONDS));
+        assertEquals(50, bounded.items.size());
+        assertNull(bounded.error.get());
+
+        RecordingSubscriber invalid = new RecordingSubscriber();
+        async.names().subscribe(invalid);
+        invalid.subscription.request(0);
+        assertTrue(invalid.done.await(5, TimeUnit.SECONDS));
+        assertTrue(invalid.error.get() instanceof IllegalArgumentException);
+
+        RecordingSubscriber failing = new RecordingSubscriber();
+        new AsyncTextGenerator(new MarkovTextGenerator()).names().subscribe(failing);
+        failing.subscription.request(1);
+        assertTrue(failing.done.await(5, TimeUnit.SECONDS));
+        assertTrue(failing.error.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    @DisplayName("can be driven from within onNext, one name at a time")
+    void canBeDrivenFromOnNext() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override public void onSubscribe(AsyncTextGenerator.Subscription subscription) {
+                super.onSubscribe(subscription);
+                subscription.request(1);
+            }
+            @Override public void onNext(String item) {
+                super.onNext(item);
+                subscription.request(1);
+            }
+        };
+        async.names(1000).subscribe(subscriber);
+        assertTrue(subscriber.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1000, subscriber.items.size());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+}
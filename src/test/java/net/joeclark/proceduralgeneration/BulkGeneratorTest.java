@@ -0,0 +1,80 @@
+package net.joeclark.proceduralgeneration;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("BulkGenerator...")
+class BulkGeneratorTest {
+
+    Path output = Paths.get("target/bulk-names.txt");
+    ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+    PrintStream err = new PrintStream(errBytes, true);
+
+    private int run(String... args) {
+        return BulkGenerator.run(args, err);
+    }
+
+    @Test
+    @DisplayName("writes the requested number of names, the same for a seed whatever the number of threads")
+    void writesTheRequestedNumberOfNames() throws IOException {
+        assertEquals(0,run("--train","src/test/resources/romans.txt","--count","5000","--seed","42","--threads","1","--output",output.toString()));
+        List<String> oneThread = Files.readAllLines(output, StandardCharsets.UTF_8);
+        assertEquals(5000,oneThread.size());
+        assertEquals(0,run("--train","src/test/resources/romans.txt","--count","5000","--seed","42","--threads","4","--output",output.toString(),"--quiet"));
+        assertEquals(oneThread,Files.readAllLines(output, StandardCharsets.UTF_8));
+        assertTrue(errBytes.toString().contains("strings/s"),"expected a throughput report");
+    }
+
+    @Test
+    @DisplayName("applies filters and writes gzipped output")
+    void appliesFiltersAndGzips() throws IOException {
+        Path gzipped = Paths.get("target/bulk-names.txt.gz");
+        assertEquals(0,run("--train","src/test/resources/romans.txt","--type","cluster","--count","3000","--end-filter","us","--max-length","9","--gzip","--output",gzipped.toString(),"--quiet"));
+        List<String> names;
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(gzipped)), StandardCharsets.UTF_8))) {
+            names = in.lines().collect(Collectors.toList());
+        }
+        assertEquals(3000,names.size());
+        assertTrue(names.stream().allMatch(n -> n.endsWith("us") && n.length()<=9));
+    }
+
+    @Test
+    @DisplayName("loads a generator from saved counts")
+    void loadsSavedCounts() throws IOException {
+        Path counts = Paths.get("target/bulk-counts.bin");
+        try(Stream<String> lines = Files.lines(Paths.get("src/test/resources/romans.txt")); OutputStream out = Files.newOutputStream(counts)) {
+            new MarkovTextGenerator().train(lines).getCounts().write(out);
+        }
+        assertEquals(0,run("--counts",counts.toString(),"--count","100","--start-filter","ti","--output",output.toString(),"--quiet"));
+        assertTrue(Files.readAllLines(output, StandardCharsets.UTF_8).stream().allMatch(n -> n.startsWith("ti")));
+    }
+
+    @Test
+    @DisplayName("rejects a bad command line")
+    void rejectsABadCommandLine() {
+        assertEquals(2,run("--train","src/test/resources/romans.txt"));
+        assertEquals(2,run("--count","10"));
+        assertEquals(2,run("--train","src/test/resources/romans.txt","--count","ten"));
+        assertEquals(2,run("--train","src/test/resources/romans.txt","--type","other","--count","10"));
+        assertTrue(errBytes.toString().contains("usage:"));
+        assertEquals(1,run("--train","src/test/resources/romans.txt","--count","10","--regex","[0-9]+","--output",output.toString()));
+    }
+
+}
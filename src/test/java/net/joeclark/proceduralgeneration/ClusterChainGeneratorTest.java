@@ -12,8 +12,15 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static net.joeclark.proceduralgeneration.ClusterChainGenerator.ENGLISH_VOWELS;
@@ -46,6 +53,19 @@ class ClusterChainGeneratorTest {
         assertEquals(Arrays.asList("sk","y","scr","a","p","e","rs"), new ClusterChainGenerator().clusterize("skyscrapers"),"clusterize() didn't work as expected");
     }
 
+    @DisplayName("Keeps characters outside the Basic Multilingual Plane whole")
+    @Test
+    void KeepsSupplementaryCharactersWhole() {
+        // an emoji is a surrogate pair: two chars, but one consonant-like character
+        assertEquals(Arrays.asList("t","o","m\uD83D\uDE00"), new ClusterChainGenerator().clusterize("tom\uD83D\uDE00"));
+        ClusterChainGenerator generator = new ClusterChainGenerator().withMinLength(4).withMaxLength(4).train(Stream.of("Tom\uD83D\uDE00","Tim\uD83D\uDE00","Anna"));
+        for(int i=0;i<20;i++) {
+            String name = generator.generateOne();
+            assertEquals(4,name.codePointCount(0,name.length()),"name "+name+" should be four characters long");
+        }
+        assertEquals(3,generator.countPossibleTexts().intValue(),"expected 'tom\uD83D\uDE00', 'tim\uD83D\uDE00' and 'anna'");
+    }
+
     @DisplayName("Can be set up with optional configuration")
     @Test
     void CanBeSetUpWithOptionalConfiguration() {
@@ -82,6 +102,66 @@ class ClusterChainGeneratorTest {
 
     }
 
+    @DisplayName("Can count and enumerate the possible names")
+    @Test
+    void CanCountAndEnumerateThePossibleNames() {
+        ClusterChainGenerator generator = new ClusterChainGenerator().withMinLength(1).train(Stream.of("Ana","Ano"));
+        assertEquals(2,generator.countPossibleTexts().intValue(),"expected only 'ana' and 'ano'");
+        List<String> possible = new ArrayList<>();
+        generator.enumeratePossibleTexts().forEachRemaining(possible::add);
+        assertEquals(Arrays.asList("ana","ano"),possible);
+    }
+
+    @DisplayName("Counts and enumerates each possible name once with priors added")
+    @Test
+    void CountsEachPossibleNameOnceWithPriors() {
+        ClusterChainGenerator generator = new ClusterChainGenerator().withMinLength(1).withMaxLength(4).train(Stream.of("Anna","Ana","Aeon")).andAddPriors(0.01D);
+        List<String> possible = new ArrayList<>();
+        generator.enumeratePossibleTexts(0.0D).forEachRemaining(possible::add);
+        assertEquals(possible.size(),possible.stream().distinct().count(),"enumerated a name twice");
+        assertEquals(possible.size(),generator.countPossibleTexts(0.0D).intValue());
+        assertTrue(possible.contains("anna") && possible.contains("naeo"),"expected 'anna', and 'naeo' through the priors");
+        assertEquals(3,generator.countPossibleTexts().intValue(),"expected only 'anna', 'ana' and 'aeon' without priors");
+    }
+
+    @DisplayName("Finds the most probable names in order of probability with priors added")
+    @Test
+    void FindsTheMostProbableNamesInOrderWithPriors() {
+        ClusterChainGenerator generator = new ClusterChainGenerator().withMinLength(1).withMaxLength(5).train(Stream.of("Anna","Ana","Bob","Boba","Aeon")).andAddPriors(0.01D);
+        ClusterTextChain chain = new ClusterTextChain(generator);
+        List<String> possible = new ArrayList<>();
+        generator.enumeratePossibleTexts(0.0D).forEachRemaining(possible::add);
+        List<Double> expected = possible.stream().map(name -> probability(chain,generator,name)).sorted(Comparator.reverseOrder()).limit(30).collect(Collectors.toList());
+        List<String> top = generator.generateMostProbable(30);
+        assertEquals(30,top.stream().distinct().count(),"returned duplicate names");
+        for(int i=0;i<top.size();i++) {
+            assertEquals(expected.get(i),probability(chain,generator,top.get(i)),1e-12,"name "+top.get(i)+" at "+i+" is out of order");
+        }
+    }
+
+    // the probability of the one walk through the chain that spells a name
+    private static double probability(ClusterTextChain chain, ClusterChainGenerator generator, String name) {
+        List<String> clusters = generator.clusterize(name);
+        clusters.add("");
+        List<String> state = chain.startState(null);
+        double probability = 1.0D;
+        for(String cluster: clusters) {
+            double[] step = {0.0D};
+            List<List<String>> next = new ArrayList<>();
+            List<String> from = state;
+            chain.forEachTransition(from,(token,p,nextState,observed) -> {
+                if(token.equals(cluster)) {
+                    step[0] = p;
+                    next.add(nextState);
+                }
+            });
+            assertEquals(1,next.size(),"expected exactly one way to follow "+from+" with '"+cluster+"'");
+            probability *= step[0];
+            state = next.get(0);
+        }
+        return probability;
+    }
+
     @DisplayName("Once trained...")
     @Nested
     class OnceTrained {
@@ -144,6 +224,167 @@ class ClusterChainGeneratorTest {
             assertTrue(word.endsWith(filter),"Generated word didn't match endFilter.");
         }
 
+        @DisplayName("Lands in a tight length window with the endFilter on every walk")
+        @Test
+        void LandsInATightLengthWindow() {
+            clusterChainGenerator.withMinLength(9).withMaxLength(9).setEndFilter("ius");
+            Random random = new Random(3);
+            for(int i=0;i<200;i++) {
+                String name = clusterChainGenerator.generateOne(random);
+                assertTrue(name.length()==9 && name.endsWith("ius"),"name "+name+" didn't pass the filters");
+            }
+            clusterChainGenerator.setEndFilter("us9");
+            assertThrows(IllegalStateException.class,() -> clusterChainGenerator.generateOne(),"impossible filters should be reported, not retried forever");
+        }
+
+        @DisplayName("Stays fast in a tight length window with priors added, or with a very large maxLength")
+        @Test
+        void StaysFastWithPriorsInATightLengthWindow() {
+            clusterChainGenerator.andAddPriors().withMinLength(9).withMaxLength(9).setEndFilter("ius");
+            Random random = new Random(5);
+            assertTimeout(Duration.ofSeconds(10),() -> {
+                for(int i=0;i<200;i++) {
+                    String name = clusterChainGenerator.generateOne(random);
+                    assertTrue(name.length()==9 && name.endsWith("ius"),"name "+name+" didn't pass the filters");
+                }
+            });
+            clusterChainGenerator.setEndFilter("us9");
+            assertThrows(IllegalStateException.class,() -> clusterChainGenerator.generateOne(),"impossible filters should be reported, not retried forever");
+
+            ClusterChainGenerator longNames = new ClusterChainGenerator().withMinLength(4).withMaxLength(100000).withEndFilter("us").train(moreNames.stream());
+            assertTimeout(Duration.ofSeconds(10),() -> {
+                for(int i=0;i<200;i++) {
+                    assertTrue(longNames.generateOne(random).endsWith("us"));
+                }
+            });
+        }
+
+        @DisplayName("Draws filtered names as often as rejection sampling would")
+        @Test
+        void DrawsFilteredNamesAsOftenAsRejectionSampling() {
+            List<String> data = Arrays.asList("ana","anna","anana","bob","boba","bobana");
+            ClusterChainGenerator unfiltered = new ClusterChainGenerator().withMinLength(1).withMaxLength(100).train(data.stream());
+            ClusterChainGenerator filtered = new ClusterChainGenerator().withMinLength(4).withMaxLength(6).withEndFilter("a").train(data.stream());
+            int samples = 20000;
+            Map<String,Integer> expected = new HashMap<>();
+            Map<String,Integer> actual = new HashMap<>();
+            Random random = new Random(11);
+            for(int n=0;n<samples;) {
+                String name = unfiltered.generateOne(random);
+                if(name.length()>=4 && name.length()<=6 && name.endsWith("a")) {
+                    expected.merge(name,1,Integer::sum);
+                    n++;
+                }
+            }
+            for(int n=0;n<samples;n++) {
+                actual.merge(filtered.generateOne(random),1,Integer::sum);
+            }
+            assertEquals(expected.keySet(),actual.keySet());
+            for(String name: expected.keySet()) {
+                assertEquals(expected.get(name)/(double)samples,actual.get(name)/(double)samples,0.015D,"frequency of "+name);
+            }
+        }
+
+        @DisplayName("Only generates names that match a regex")
+        @Test
+        void OnlyGeneratesNamesThatMatchARegex() {
+            clusterChainGenerator.setRegex("[aeiou][^aeiou]+.*a");
+            clusterChainGenerator.setEndFilter("ia");
+            for(int i=0;i<50;i++) {
+                String word = clusterChainGenerator.generateOne();
+                assertTrue(word.matches("[aeiou][^aeiou]+.*a") && word.endsWith("ia"),"name "+word+" didn't match the regex and endFilter.");
+            }
+            for(String name: clusterChainGenerator.generateMostProbable(10)) {
+                assertTrue(name.matches("[aeiou][^aeiou]+.*ia"),"name "+name+" didn't match the regex and endFilter.");
+            }
+            clusterChainGenerator.setRegex("[0-9]+");
+            assertThrows(IllegalStateException.class,() -> clusterChainGenerator.generateOne());
+        }
+
+
+        @DisplayName("Gives the same names from a seed whatever the number of threads")
+        @Test
+        void GivesTheSameNamesFromASeed() {
+            List<String> oneThread = clusterChainGenerator.generateSeeded(42L,2500,1);
+            assertEquals(oneThread,clusterChainGenerator.generateSeeded(42L,2500,4));
+            assertNotEquals(oneThread,clusterChainGenerator.generateSeeded(43L,2500,4));
+            assertEquals(clusterChainGenerator.generateOne(new Random(5)),clusterChainGenerator.generateOne(new Random(5)),"the chain's own Random should play no part");
+        }
+
+        @DisplayName("Generates into a StringBuilder the same names as generateOne()")
+        @Test
+        void GeneratesIntoAStringBuilder() {
+            clusterChainGenerator.setEndFilter("us");
+            StringBuilder out = new StringBuilder("Names: ");
+            for(int i=0;i<50;i++) {
+                int before = out.length();
+                String expected = clusterChainGenerator.generateOne(new Random(i));
+                assertEquals(expected.length(),clusterChainGenerator.generateInto(new Random(i),out));
+                assertEquals(expected,out.substring(before),"generateInto should append what generateOne returns");
+                assertTrue(expected.endsWith("us"),"name "+expected+" didn't match endFilter.");
+                out.append(',');
+            }
+            assertTrue(out.toString().startsWith("Names: "),"existing content was changed");
+        }
+
+        @DisplayName("Finds the most probable names that pass the filters")
+        @Test
+        void FindsTheMostProbableNames() {
+            clusterChainGenerator.setEndFilter("us");
+            List<String> top = clusterChainGenerator.generateMostProbable(25);
+            assertEquals(25,top.size(),"did not return the requested number of names");
+            assertEquals(25,top.stream().distinct().count(),"returned duplicate names");
+            for(String name: top) {
+                assertTrue(name.endsWith("us"),"name "+name+" didn't match endFilter.");
+                assertTrue(name.length()>=ClusterChainGenerator.DEFAULT_MIN_LENGTH && name.length()<=ClusterChainGenerator.DEFAULT_MAX_LENGTH,"name "+name+" was not in the default length range");
+            }
+        }
+
+        @DisplayName("Can be compacted and still generate names")
+        @Test
+        void CanBeCompacted() {
+            CompactionReport report = clusterChainGenerator.compact();
+            assertTrue(report.getPrefixesAfter() < report.getPrefixesBefore(),"no sequences were pruned");
+            assertTrue(report.getBytesAfter() < report.getBytesBefore(),"model did not become smaller");
+            assertTrue(report.getDivergence() > 0.0D && report.getDivergence() < 1.0D,"unexpected divergence "+report.getDivergence());
+            clusterChainGenerator.setEndFilter("us");
+            assertTrue(clusterChainGenerator.generateOne().endsWith("us"),"Generated word didn't match endFilter.");
+        }
+
+        @DisplayName("Keeps every prediction when compacted without pruning")
+        @Test
+        void KeepsEveryPredictionWithoutPruning() {
+            clusterChainGenerator.setMaxLength(6);
+            int possibleBefore = clusterChainGenerator.countPossibleTexts().intValue();
+            CompactionReport report = clusterChainGenerator.compact(1,8);
+            assertEquals(report.getPrefixesBefore(),report.getPrefixesAfter(),"no sequences should have been pruned");
+            assertEquals(0.0D,report.getDivergence(),1e-9,"counts below 256 should be exact in 8 bits");
+            assertEquals(possibleBefore,clusterChainGenerator.countPossibleTexts().intValue());
+        }
+
+        @DisplayName("Can summarize its model")
+        @Test
+        void CanSummarizeItsModel() {
+            double meanLength;
+            try(Stream<String> stream = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines()) {
+                meanLength = stream.mapToInt(String::length).average().orElse(0.0D);
+            }
+            ModelStatistics statistics = clusterChainGenerator.getStatistics();
+            assertEquals(meanLength,statistics.getExpectedLength(),meanLength*0.01D);
+            assertTrue(statistics.getClusterCount() > statistics.getAlphabetSize(),"expected more clusters than characters");
+            assertTrue(statistics.getPrefixes(1) > 0 && statistics.getTransitions() > statistics.getPrefixes());
+            assertTrue(statistics.getEstimatedBytes() > 0);
+            assertSame(statistics,clusterChainGenerator.getStatistics());
+            clusterChainGenerator.compact();
+            assertTrue(clusterChainGenerator.getStatistics().getPrefixes() < statistics.getPrefixes());
+
+            statistics = new ClusterChainGenerator().train(Stream.of("ab","ab")).getStatistics();
+            assertEquals(2,statistics.getClusterCount());
+            assertEquals(2,statistics.getAlphabetSize());
+            assertEquals(2.0D,statistics.getExpectedLength(),1e-6);
+            assertEquals(0.0D,statistics.getEntropies().getMax());
+            assertThrows(IllegalStateException.class,() -> new ClusterChainGenerator().getStatistics());
+        }
 
         @Test
         @DisplayName("Can be serialized and deserialized")
@@ -0,0 +1,129 @@
+package net.joeclark.proceduralgeneration;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("GenerationSpec...")
+class GenerationSpecTest {
+
+    MarkovTextGenerator markov;
+
+    private Stream<String> trainingData() {
+        return new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines();
+    }
+
+    @BeforeEach
+    void createInstance() {
+        try(Stream<String> stream = trainingData()) {
+            markov = new MarkovTextGenerator().withMaxLength(10).train(stream);
+        }
+    }
+
+    @Test
+    @DisplayName("is immutable and compared by value")
+    void isImmutable() {
+        GenerationSpec empty = new GenerationSpec();
+        GenerationSpec spec = empty.withStartFilter("ma").withMaxLength(8);
+        assertTrue(empty.isEmpty());
+        assertNull(empty.getStartFilter());
+        assertEquals("ma",spec.getStartFilter());
+        assertEquals(Integer.valueOf(8),spec.getMaxLength());
+        assertEquals(new GenerationSpec().withMaxLength(8).withStartFilter("ma"),spec);
+        assertEquals(spec.hashCode(),new GenerationSpec().withMaxLength(8).withStartFilter("ma").hashCode());
+        assertNotEquals(spec,spec.withEndFilter("us"));
+    }
+
+    @Test
+    @DisplayName("applies its filters for one call without changing the generator")
+    void appliesItsFiltersForOneCall() {
+        String before = markov.generateOne(new Random(2));
+        GenerationSpec spec = new GenerationSpec().withStartFilter("ma").withEndFilter("us");
+        Random random = new Random(1);
+        for(int i=0;i<50;i++) {
+            String name = markov.generateOne(spec, random);
+            assertTrue(name.startsWith("ma") && name.endsWith("us") && name.length()<=10,"name "+name+" didn't pass the filters");
+        }
+        assertNull(markov.getStartFilter());
+        assertEquals(before,markov.generateOne(new Random(2)),"the generator's own output should be unchanged");
+        StringBuilder out = new StringBuilder();
+        markov.generateInto(new GenerationSpec().withRegex("[a-z]*ia"),new Random(3),out);
+        assertTrue(out.toString().matches("[a-z]*ia"));
+        assertSame(markov,markov.forSpec(new GenerationSpec()),"an empty spec should need no copy");
+    }
+
+    @Test
+    @DisplayName("gives the same output as a generator configured the same way")
+    void givesTheSameOutputAsAConfiguredGenerator() {
+        GenerationSpec spec = new GenerationSpec().withStartFilter("ti").withMinLength(6);
+        String fromSpec = markov.generateOne(spec, new Random(5));
+        markov.withStartFilter("ti").setMinLength(6);
+        assertEquals(markov.generateOne(new Random(5)),fromSpec);
+    }
+
+    @Test
+    @DisplayName("reuses what it derives from a spec, up to a limit, until the generator is reconfigured")
+    void reusesWhatItDerives() {
+        GenerationSpec spec = new GenerationSpec().withRegex("[a-z]*us");
+        RandomTextGenerator view = markov.forSpec(spec);
+        assertSame(view,markov.forSpec(new GenerationSpec().withRegex("[a-z]*us")));
+        for(int i=0;i<GenerationSpec.MAX_CACHED_SPECS+10;i++) {
+            markov.forSpec(new GenerationSpec().withMinLength(i));
+        }
+        assertNotSame(view,markov.forSpec(spec),"the least recently used spec should have been dropped");
+        view = markov.forSpec(spec);
+        markov.setTemperature(0.5D);
+        assertNotSame(view,markov.forSpec(spec),"reconfiguring the generator should drop what was derived from it");
+    }
+
+    @Test
+    @DisplayName("serves many specs at once from one model")
+    void servesManySpecsAtOnce() throws Exception {
+        ClusterChainGenerator cluster;
+        try(Stream<String> stream = trainingData()) {
+            cluster = new ClusterChainGenerator().train(stream);
+        }
+        RandomDrawGenerator draw = new RandomDrawGenerator().train(Stream.of("Sextus","Titus","Gaius","Marcus","Lucius"));
+        List<RandomTextGenerator> generators = Arrays.asList(markov, cluster, draw);
+        String[] endings = {"us","ia","is"};
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for(int t=0;t<12;t++) {
+                RandomTextGenerator generator = generators.get(t % 3);
+                String ending = (generator == draw) ? "us" : endings[t % endings.length];
+                GenerationSpec spec = new GenerationSpec().withEndFilter(ending).withMaxLength(12);
+                Random random = new Random(t);
+                results.add(pool.submit(() -> {
+                    for(int i=0;i<200;i++) {
+                        if(!generator.generateOne(spec, random).endsWith(ending)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for(Future<Boolean> result: results) {
+                assertTrue(result.get(),"a name didn't pass its spec's filter");
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertThrows(UnsupportedOperationException.class,() -> new DoubleTextGenerator(draw,draw," ").generateOne(new GenerationSpec().withMinLength(3)));
+        assertThrows(IllegalArgumentException.class,() -> markov.generateOne(new GenerationSpec().withRegex("(a")));
+    }
+
+}
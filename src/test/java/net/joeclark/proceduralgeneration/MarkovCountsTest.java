@@ -0,0 +1,171 @@
+package net.joeclark.proceduralgeneration;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("MarkovCounts...")
+class MarkovCountsTest {
+
+    List<String> shard1 = Arrays.asList("Aphrodite","Artemis","Athena","Apollo","Ares","Demeter","Dionysus","Hades");
+    List<String> shard2 = Arrays.asList("Hephaestus","Hermes","Hestia","Poseidon","Zeus","Coeus","Crius","Cronus");
+    List<String> shard3 = Arrays.asList("Hyperion","Iapetus","Mnemosyne","Oceanus","Phoebe","Rhea","Tethys","Theia");
+
+    MarkovCounts counts1;
+    MarkovCounts counts2;
+    MarkovCounts counts3;
+
+    @BeforeEach
+    void trainShards() {
+        counts1 = new MarkovTextGenerator().train(shard1.stream()).getCounts();
+        counts2 = new MarkovTextGenerator().train(shard2.stream()).getCounts();
+        counts3 = new MarkovTextGenerator().train(shard3.stream()).getCounts();
+    }
+
+    @Nested
+    @DisplayName("when merged")
+    class WhenMerged {
+
+        @Test
+        @DisplayName("equal the counts of training on all shards at once")
+        void equalTrainingOnAllShards() {
+            MarkovCounts all = new MarkovTextGenerator().train(Stream.of(shard1, shard2, shard3).flatMap(List::stream)).getCounts();
+            assertEquals(all, counts1.merge(counts2).merge(counts3));
+            assertEquals(24, all.getDatasetLength());
+        }
+
+        @Test
+        @DisplayName("don't depend on the order of merging")
+        void areAssociativeAndCommutative() {
+            assertEquals(counts1.merge(counts2).merge(counts3), counts3.merge(counts1.merge(counts2)));
+            assertEquals(counts1.merge(counts2), counts2.merge(counts1));
+        }
+
+        @Test
+        @DisplayName("can blend sources with weights")
+        void canBlendWithWeights() {
+            String start = String.valueOf(MarkovTextGenerator.CONTROL_CHAR);
+            MarkovCounts blended = counts1.weighted(3.0D).merge(counts2);
+            assertEquals(3.0D * counts1.getCounts(start).get((int) 'a') + counts2.getCounts(start).getOrDefault((int) 'a', 0.0D), blended.getCounts(start).get((int) 'a'), 1e-9);
+            assertThrows(IllegalArgumentException.class, () -> counts1.weighted(0.0D));
+        }
+
+        @Test
+        @DisplayName("must have the same order")
+        void mustHaveTheSameOrder() {
+            MarkovCounts order2 = new MarkovTextGenerator().withOrder(2).train(shard2.stream()).getCounts();
+            assertThrows(IllegalArgumentException.class, () -> counts1.merge(order2));
+        }
+
+    }
+
+    @Nested
+    @DisplayName("when loaded into a generator")
+    class WhenLoaded {
+
+        @Test
+        @DisplayName("generate the same text as a generator trained on all the shards")
+        void generateTheSameText() {
+            MarkovTextGenerator direct = new MarkovTextGenerator().withRandom(new Random(7)).train(Stream.of(shard1, shard2, shard3).flatMap(List::stream));
+            MarkovTextGenerator merged = new MarkovTextGenerator().withRandom(new Random(7)).train(counts1.merge(counts2).merge(counts3));
+            for (int i = 0; i < 20; i++) {
+                assertEquals(direct.generateOne(), merged.generateOne());
+            }
+        }
+
+        @Test
+        @DisplayName("take their order from the counts")
+        void takeTheirOrderFromTheCounts() {
+            MarkovCounts order2 = new MarkovTextGenerator().withOrder(2).train(shard2.stream()).getCounts();
+            MarkovTextGenerator generator = new MarkovTextGenerator().train(order2);
+            assertEquals(2, generator.getOrder());
+            assertThrows(IllegalArgumentException.class, () -> generator.train(counts1));
+        }
+
+        @Test
+        @DisplayName("add to what the generator already learned")
+        void addToWhatWasLearned() {
+            MarkovTextGenerator generator = new MarkovTextGenerator().train(shard1.stream()).train(counts2);
+            assertEquals(counts1.merge(counts2), generator.getCounts());
+        }
+
+    }
+
+    @Nested
+    @DisplayName("when written to a stream")
+    class WhenWritten {
+
+        @Test
+        @DisplayName("can be read back")
+        void canBeReadBack() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            counts1.write(out);
+            assertEquals(counts1, MarkovCounts.read(new ByteArrayInputStream(out.toByteArray())));
+        }
+
+        @Test
+        @DisplayName("keep characters outside the Basic Multilingual Plane whole")
+        void keepSupplementaryCharactersWhole() throws IOException {
+            MarkovCounts emoji = new MarkovTextGenerator().train(Stream.of("Tom\uD83D\uDE00","\uD83C\uDF89Bob")).getCounts();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            emoji.write(out);
+            MarkovCounts read = MarkovCounts.read(new ByteArrayInputStream(out.toByteArray()));
+            assertEquals(emoji, read);
+            assertEquals(1.0D, read.getCounts("om").get(0x1F600));
+        }
+
+        @Test
+        @DisplayName("can read the older format that stored chars")
+        void readTheOlderFormat() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(0x4D4B5643);
+            data.writeInt(1);
+            data.writeInt(1);   // order
+            data.writeInt(1);   // dataset length
+            data.writeInt(2);   // alphabet
+            data.writeChar(MarkovTextGenerator.CONTROL_CHAR);
+            data.writeChar('a');
+            data.writeInt(2);   // prefixes
+            data.writeUTF(String.valueOf(MarkovTextGenerator.CONTROL_CHAR));
+            data.writeInt(1);
+            data.writeChar('a');
+            data.writeDouble(1.0D);
+            data.writeUTF("a");
+            data.writeInt(1);
+            data.writeChar(MarkovTextGenerator.CONTROL_CHAR);
+            data.writeDouble(1.0D);
+            assertEquals(new MarkovTextGenerator().withOrder(1).train(Stream.of("a")).getCounts(), MarkovCounts.read(new ByteArrayInputStream(out.toByteArray())));
+        }
+
+        @Test
+        @DisplayName("produce the same bytes for the same counts")
+        void produceTheSameBytes() throws IOException {
+            ByteArrayOutputStream out1 = new ByteArrayOutputStream();
+            counts1.merge(counts2).write(out1);
+            ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+            counts2.merge(counts1).write(out2);
+            assertArrayEquals(out1.toByteArray(), out2.toByteArray());
+        }
+
+        @Test
+        @DisplayName("reject streams in another format")
+        void rejectOtherFormats() {
+            assertThrows(IOException.class, () -> MarkovCounts.read(new ByteArrayInputStream("not counts".getBytes())));
+        }
+
+    }
+
+}
@@ -6,7 +6,10 @@ import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -60,8 +63,86 @@ class MarkovTextCasePreservingGeneratorTest {
             assertTrue(mcptGenerator.generateOne().endsWith("eus"));
         }
 
+        @Test
+        @DisplayName("Is restored to its case when generated into a StringBuilder")
+        void IsRestoredWhenGeneratedInto() {
+            StringBuilder out = new StringBuilder("name: ");
+            int length = mcptGenerator.generateInto(new Random(3),out);
+            assertEquals(mcptGenerator.generateOne(new Random(3)),out.substring(6));
+            assertEquals(out.length()-6,length);
+            assertTrue(out.toString().startsWith("name: Z"));
+        }
+
+        @Test
+        @DisplayName("Is restored to its case when generated in a batch")
+        void IsRestoredWhenGeneratedInABatch() {
+            List<String> batch = mcptGenerator.generateBatch(50,new Random(3));
+            assertEquals(50,batch.size());
+            assertTrue(batch.stream().allMatch(name -> name.startsWith("Z") && name.endsWith("eus")));
+        }
+
+
 
+    }
+
+    @Nested
+    @DisplayName("The factored case model...")
+    class FactoredCaseModel {
+
+        @Test
+        @DisplayName("Learns transitions on lowercased text, just like MarkovTextGenerator")
+        void learnsTransitionsOnLowercasedText() {
+            mcptGenerator = new MarkovTextCasePreservingGenerator().train(moreNames.stream());
+            MarkovTextGenerator plain = new MarkovTextGenerator().train(moreNames.stream());
+            assertEquals(plain.getObservations(),mcptGenerator.getObservations());
+            assertEquals(plain.getAlphabet(),mcptGenerator.getAlphabet());
+        }
+
+        @Test
+        @DisplayName("Reproduces capitals inside a name")
+        void reproducesCapitalsInsideAName() {
+            mcptGenerator = new MarkovTextCasePreservingGenerator().withRandom(new Random(42)).withMinLength(4)
+                    .train(Stream.of("McDonald","McDougal","McDuff","McDowell","McDermott","Macintosh"));
+            for(int i=0;i<50;i++) {
+                String name = mcptGenerator.generateOne();
+                assertTrue(Character.isUpperCase(name.charAt(0)),"name "+name+" lost its initial capital");
+                if(name.toLowerCase().startsWith("mcd")) {
+                    assertTrue(name.startsWith("McD"),"name "+name+" lost its capital D");
+                }
+                assertEquals(name.substring(3),name.substring(3).toLowerCase(),"name "+name+" has unexpected capitals");
+            }
+            assertTrue(mcptGenerator.generateMostProbable(3).stream().allMatch(n -> n.startsWith("McD")));
+        }
+
+        @Test
+        @DisplayName("Restores the case of letters outside the Basic Multilingual Plane")
+        void restoresTheCaseOfSupplementaryLetters() {
+            String deseret = "\uD801\uDC00\uD801\uDC29\uD801\uDC2A\uD801\uDC29"; // a capital Deseret letter, then three lowercase
+            mcptGenerator = new MarkovTextCasePreservingGenerator().withRandom(new Random(7)).withMinLength(1)
+                    .train(Collections.nCopies(50,deseret).stream());
+            for(int i=0;i<20;i++) {
+                assertEquals(deseret,mcptGenerator.generateOne());
+            }
+            mcptGenerator.setStartFilter("\uD801\uDC00\uD801\uDC29");
+            assertEquals(deseret,mcptGenerator.generateOne(),"the startFilter should appear as given, and the rest in its usual case");
+        }
+
+        @Test
+        @DisplayName("Keeps the filters exactly as given")
+        void keepsTheFiltersAsGiven() {
+            mcptGenerator = new MarkovTextCasePreservingGenerator().withStartFilter("HE").train(moreNames.stream());
+            assertEquals("HE",mcptGenerator.getStartFilter());
+            assertTrue(mcptGenerator.generateOne().startsWith("HE"));
+        }
+
+        @Test
+        @DisplayName("Keeps both filters as given when they overlap")
+        void keepsOverlappingFiltersAsGiven() {
+            mcptGenerator = new MarkovTextCasePreservingGenerator().withMinLength(1).withStartFilter("AB").withEndFilter("bC")
+                    .train(Collections.nCopies(50,"Abc").stream());
+            assertEquals("ABC",mcptGenerator.generateOne(),"the endFilter should pick up where the startFilter leaves off");
+        }
 
     }
 
-}
\ No newline at end of file
+}
@@ -11,9 +11,16 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -149,22 +156,22 @@ class MarkovTextGeneratorTest {
         @Test
         @DisplayName("infers the alphabet from the input")
         void inferAlphabetFromInput() {
-            assertTrue(markovTextGenerator.getAlphabet().contains('j'),"Alphabet doesn't contain lower-case j");
-            assertFalse(markovTextGenerator.getAlphabet().contains('x'),"Alphabet contains x (which isn't in the input)");
+            assertTrue(markovTextGenerator.getAlphabet().contains((int) 'j'),"Alphabet doesn't contain lower-case j");
+            assertFalse(markovTextGenerator.getAlphabet().contains((int) 'x'),"Alphabet contains x (which isn't in the input)");
         }
 
         @Test
         @DisplayName("can be trained twice for a blended model")
         void canBeRetrainedAfresh() {
             markovTextGenerator.train(Stream.of("Xavier","Xena","Xenophon","Xerxes"));
-            assertTrue(markovTextGenerator.getAlphabet().contains('x'),"x was not added to the alphabet");
-            assertTrue(markovTextGenerator.getAlphabet().contains('j'),"j was not retained in the alphabet");
+            assertTrue(markovTextGenerator.getAlphabet().contains((int) 'x'),"x was not added to the alphabet");
+            assertTrue(markovTextGenerator.getAlphabet().contains((int) 'j'),"j was not retained in the alphabet");
         }
 
         @Test
         @DisplayName("correctly tallies first-order observations")
         void countsFirstOrderObservations() {
-            assertEquals(Arrays.asList('j','j','j','j'),markovTextGenerator.getObservations().get(Character.toString(MarkovTextGenerator.CONTROL_CHAR)), "should have observed lowercase j four times for '#'");
+            assertEquals(Arrays.asList((int) 'j',(int) 'j',(int) 'j',(int) 'j'),markovTextGenerator.getObservations().get(Character.toString(MarkovTextGenerator.CONTROL_CHAR)), "should have observed lowercase j four times for '#'");
         }
 
         @Test
@@ -172,15 +179,15 @@ class MarkovTextGeneratorTest {
         void countsThirdOrderObservations() {
             markovTextGenerator.setOrder(3);
             String prefix = Character.toString(MarkovTextGenerator.CONTROL_CHAR) + Character.toString(MarkovTextGenerator.CONTROL_CHAR) + Character.toString(MarkovTextGenerator.CONTROL_CHAR);
-                    assertEquals(Arrays.asList('j','j','j','j'),markovTextGenerator.getObservations().get(prefix), "should have observed lowercase j four times for '###'");
+                    assertEquals(Arrays.asList((int) 'j',(int) 'j',(int) 'j',(int) 'j'),markovTextGenerator.getObservations().get(prefix), "should have observed lowercase j four times for '###'");
         }
 
         @Test
         @DisplayName("random characters are drawn from the training alphabet")
         void randomCharactersAreDrawnFromAlphabet() {
-            Character c = markovTextGenerator.randomCharacter("##j");
-            assertTrue(markovTextGenerator.getAlphabet().contains(c),"Random character '"+c+"' not in training alphabet");
-            assertNotEquals('!', (char) c, "randomCharacter() got to the end of its loop without finding a model");
+            int c = markovTextGenerator.randomCharacter("##j");
+            assertTrue(markovTextGenerator.getAlphabet().contains(c),"Random character '"+new String(Character.toChars(c))+"' not in training alphabet");
+            assertNotEquals('!', c, "randomCharacter() got to the end of its loop without finding a model");
         }
 
     }
@@ -220,6 +227,32 @@ class MarkovTextGeneratorTest {
             assertTrue(name.startsWith("z"),"random name didn't start with lowercase string");
         }
 
+        @Test
+        @DisplayName("begin from the state at the end of the start filter, resolved once")
+        void beginFromTheStartFilterState() {
+            markovTextGenerator.setStartFilter("her");
+            int state = markovTextGenerator.startState();
+            assertEquals("her",markovTextGenerator.compiledModel.context(state),"the start state should stand for the whole filter");
+            assertEquals(state,markovTextGenerator.startState());
+            markovTextGenerator.setStartFilter("z");
+            String start = Character.toString(MarkovTextGenerator.CONTROL_CHAR) + Character.toString(MarkovTextGenerator.CONTROL_CHAR);
+            assertEquals(start+"z",markovTextGenerator.compiledModel.context(markovTextGenerator.startState()),"changing the filter should resolve it again");
+            for(int i=0;i<20;i++) {
+                assertTrue(markovTextGenerator.generateOne().startsWith("z"));
+            }
+        }
+
+        @Test
+        @DisplayName("reject a start filter the model can't generate")
+        void rejectAnUnreachableStartFilter() {
+            markovTextGenerator.setStartFilter("q");
+            assertThrows(IllegalStateException.class,() -> markovTextGenerator.generateOne(),"q is not in the training data");
+            markovTextGenerator.setStartFilter("zp");
+            markovTextGenerator.generateOne(); // never observed, but the prior makes it possible
+            markovTextGenerator.setPrior(0.0D);
+            assertThrows(IllegalStateException.class,() -> markovTextGenerator.generateOne(),"zp was never observed and the prior is zero");
+        }
+
         @Test
         @DisplayName("can be specified to end with a given string")
         void canEndWithGivenString() {
@@ -255,6 +288,622 @@ class MarkovTextGeneratorTest {
 
     }
 
+    @Nested
+    @DisplayName("sampling controls")
+    class SamplingControls {
+
+        @BeforeEach
+        void createInstanceWithStream() {
+            markovTextGenerator = new MarkovTextGenerator().train(moreNames.stream());
+        }
+
+        @Test
+        @DisplayName("reject values out of range")
+        void rejectValuesOutOfRange() {
+            assertThrows(IllegalArgumentException.class,() -> markovTextGenerator.setTemperature(0.0D));
+            assertThrows(IllegalArgumentException.class,() -> markovTextGenerator.setTopP(1.5D));
+            assertThrows(IllegalArgumentException.class,() -> markovTextGenerator.setMinProbability(1.0D));
+        }
+
+        @Test
+        @DisplayName("can be changed after training")
+        void canBeChangedAfterTraining() {
+            // a tiny nucleus only ever keeps the most probable character, so every name is the same
+            markovTextGenerator.setTopP(0.01D);
+            Set<String> greedy = new HashSet<>();
+            for(int i=0;i<20;i++) { greedy.add(markovTextGenerator.generateOne()); }
+            assertEquals(1,greedy.size(),"a tiny topP should make generation deterministic");
+
+            markovTextGenerator.setTopP(1.0D);
+            Set<String> varied = new HashSet<>();
+            for(int i=0;i<50;i++) { varied.add(markovTextGenerator.generateOne()); }
+            assertTrue(varied.size()>1,"generation was still deterministic after topP was reset");
+        }
+
+        @Test
+        @DisplayName("keep the most probable character above a high floor")
+        void keepTheMostProbableCharacterAboveAHighFloor() {
+            markovTextGenerator.setMinProbability(0.99D);
+            markovTextGenerator.setTemperature(0.5D);
+            String name = markovTextGenerator.generateOne();
+            assertEquals(name,markovTextGenerator.generateOne(),"a very high floor should make generation deterministic");
+        }
+
+        @Test
+        @DisplayName("apply a changed prior without retraining")
+        void applyAChangedPriorWithoutRetraining() {
+            markovTextGenerator = new MarkovTextGenerator().withOrder(1).withMinLength(1).withMaxLength(4).withPrior(1.0D).train(Stream.of("ab","ba"));
+            markovTextGenerator.setPrior(0.0D);
+            for(int i=0;i<100;i++) {
+                String name = markovTextGenerator.generateOne();
+                assertFalse(name.contains("aa") || name.contains("bb"),"generated unobserved sequence in "+name+" with a zero prior");
+            }
+        }
+
+    }
+
+    @Nested
+    @DisplayName("the most probable names")
+    class MostProbableNames {
+
+        @BeforeEach
+        void createInstanceWithStream() {
+            markovTextGenerator = new MarkovTextGenerator().train(moreNames.stream());
+        }
+
+        @Test
+        @DisplayName("put the most frequent training string first")
+        void putMostFrequentTrainingStringFirst() {
+            markovTextGenerator = new MarkovTextGenerator().train(Stream.of("Anna","Anna","Anna","Bob"));
+            assertEquals("anna",markovTextGenerator.generateMostProbable(1).get(0),"the most probable name was not the most frequent one");
+        }
+
+        @Test
+        @DisplayName("are distinct and as many as requested")
+        void areDistinctAndAsManyAsRequested() {
+            List<String> top = markovTextGenerator.generateMostProbable(50);
+            assertEquals(50,top.size(),"did not return the requested number of names");
+            assertEquals(50,top.stream().distinct().count(),"returned duplicate names");
+        }
+
+        @Test
+        @DisplayName("pass the configured filters")
+        void passTheConfiguredFilters() {
+            markovTextGenerator.setStartFilter("a");
+            markovTextGenerator.setEndFilter("s");
+            markovTextGenerator.setMinLength(5);
+            markovTextGenerator.setMaxLength(8);
+            for(String name: markovTextGenerator.generateMostProbable(20)) {
+                assertTrue(name.startsWith("a") && name.endsWith("s"),"name "+name+" did not match the start and end filters");
+                assertTrue(name.length()>=5 && name.length()<=8,"name "+name+" was not in specified length range");
+            }
+        }
+
+    }
+
+    @Nested
+    @DisplayName("the set of possible names")
+    class PossibleNames {
+
+        @BeforeEach
+        void createInstanceWithStream() {
+            // a first-order model of these can only alternate a's and b's
+            markovTextGenerator = new MarkovTextGenerator().withOrder(1).withMinLength(1).withMaxLength(4).train(Stream.of("ab","ba"));
+        }
+
+        @Test
+        @DisplayName("can be counted exactly")
+        void canBeCountedExactly() {
+            assertEquals(8,markovTextGenerator.countPossibleTexts().intValue(),"expected two names of each length from 1 to 4");
+            markovTextGenerator.setEndFilter("a");
+            assertEquals(4,markovTextGenerator.countPossibleTexts().intValue(),"expected one name of each length ending in 'a'");
+            markovTextGenerator.setStartFilter("a");
+            assertEquals(2,markovTextGenerator.countPossibleTexts().intValue(),"expected only 'a' and 'aba'");
+        }
+
+        @Test
+        @DisplayName("can be enumerated")
+        void canBeEnumerated() {
+            List<String> possible = new ArrayList<>();
+            markovTextGenerator.enumeratePossibleTexts().forEachRemaining(possible::add);
+            assertEquals(new HashSet<>(Arrays.asList("a","ab","aba","abab","b","ba","bab","baba")),new HashSet<>(possible));
+            assertEquals(8,possible.size(),"enumerated a name more than once");
+        }
+
+        @Test
+        @DisplayName("include unobserved sequences if the probability floor admits priors")
+        void includeUnobservedSequencesIfFloorAdmitsPriors() {
+            assertEquals(8,markovTextGenerator.countPossibleTexts(0.01D).intValue(),"a floor above the prior should only admit observed sequences");
+            assertEquals(2+4+8+16,markovTextGenerator.countPossibleTexts(0.0D).intValue(),"with no floor, every string over the alphabet should be possible");
+        }
+
+    }
+
+    @Nested
+    @DisplayName("constrained by a regex")
+    class ConstrainedByARegex {
+
+        @BeforeEach
+        void createInstanceWithStream() {
+            try(Stream<String> stream = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines()) {
+                markovTextGenerator = new MarkovTextGenerator().withRandom(new Random(42)).train(stream);
+            }
+        }
+
+        @Test
+        @DisplayName("only generates names that match it")
+        void onlyGeneratesMatchingNames() {
+            String pattern = "[^aeiou]*(ae|au)[a-z]*(x|ius)";
+            markovTextGenerator.setRegex(pattern);
+            assertEquals(pattern,markovTextGenerator.getRegex());
+            for(int i=0;i<100;i++) {
+                String name = markovTextGenerator.generateOne();
+                assertTrue(name.matches(pattern),"name "+name+" doesn't match "+pattern);
+                assertTrue(name.length()>=MarkovTextGenerator.DEFAULT_MIN_LENGTH && name.length()<=MarkovTextGenerator.DEFAULT_MAX_LENGTH,"name "+name+" was not in the default length range");
+            }
+        }
+
+        @Test
+        @DisplayName("combines with the other filters")
+        void combinesWithTheOtherFilters() {
+            markovTextGenerator.withRegex("[a-z]*r[a-z]*").withStartFilter("c").withEndFilter("us").withMaxLength(8);
+            for(int i=0;i<50;i++) {
+                String name = markovTextGenerator.generateOne();
+                assertTrue(name.matches("c[a-z]*r[a-z]*us") && name.length()<=8,"name "+name+" didn't pass the regex and filters");
+            }
+            for(String name: markovTextGenerator.generateMostProbable(10)) {
+                assertTrue(name.matches("c[a-z]*r[a-z]*us"),"name "+name+" didn't pass the regex and filters");
+            }
+            long enumerated = 0;
+            for(Iterator<String> it = markovTextGenerator.enumeratePossibleTexts(); it.hasNext(); enumerated++) {
+                assertTrue(it.next().matches("c[a-z]*r[a-z]*us"));
+            }
+            assertEquals(enumerated,markovTextGenerator.countPossibleTexts().longValue());
+        }
+
+        @Test
+        @DisplayName("throws an exception if no name can match it")
+        void throwsIfNoNameCanMatch() {
+            markovTextGenerator.setRegex("[0-9]+");
+            assertThrows(IllegalStateException.class,() -> markovTextGenerator.generateOne());
+            markovTextGenerator.withRegex("a{20}");
+            assertThrows(IllegalStateException.class,() -> markovTextGenerator.generateOne(),"no name of 20 characters fits the default length range");
+            markovTextGenerator.setRegex(null);
+            markovTextGenerator.generateOne();
+        }
+
+        @Test
+        @DisplayName("rejects malformed and unsupported patterns")
+        void rejectsBadPatterns() {
+            assertThrows(IllegalArgumentException.class,() -> markovTextGenerator.setRegex("(ab"));
+            assertThrows(IllegalArgumentException.class,() -> markovTextGenerator.setRegex("(a)\\1"));
+            assertThrows(IllegalArgumentException.class,() -> markovTextGenerator.setRegex("a(?=b)"));
+            assertNull(markovTextGenerator.getRegex(),"a rejected pattern should not be kept");
+        }
+
+    }
+
+    @Nested
+    @DisplayName("generating from a seed")
+    class GeneratingFromASeed {
+
+        @BeforeEach
+        void createInstanceWithStream() {
+            markovTextGenerator = new MarkovTextGenerator().withMinLength(4).withMaxLength(10).train(moreNames.stream());
+        }
+
+        @Test
+        @DisplayName("gives the same names whatever the number of threads")
+        void givesTheSameNamesWhateverTheThreads() {
+            int count = 3 * SeededGeneration.CHUNK_SIZE + 17;
+            List<String> oneThread = markovTextGenerator.generateSeeded(42L,count,1);
+            assertEquals(count,oneThread.size());
+            assertEquals(oneThread,markovTextGenerator.generateSeeded(42L,count,4));
+            assertEquals(oneThread,markovTextGenerator.generateSeeded(42L,count));
+            assertNotEquals(oneThread,markovTextGenerator.generateSeeded(43L,count,4),"a different seed should give different names");
+            assertEquals(oneThread.subList(0,100),markovTextGenerator.generateSeeded(42L,100,4),"a shorter list should begin with the same names");
+            for(String name: oneThread) {
+                assertTrue(name.length()>=4 && name.length()<=10,"name "+name+" was not in the length range");
+            }
+        }
+
+        @Test
+        @DisplayName("generates into a StringBuilder the same names as generateOne()")
+        void generatesIntoAStringBuilder() {
+            StringBuilder out = new StringBuilder("Names: ");
+            for(int i=0;i<50;i++) {
+                int before = out.length();
+                String expected = markovTextGenerator.generateOne(new Random(i));
+                assertEquals(expected.length(),markovTextGenerator.generateInto(new Random(i),out));
+                assertEquals(expected,out.substring(before),"generateInto should append what generateOne returns");
+                out.append(',');
+            }
+            assertTrue(out.toString().startsWith("Names: "),"existing content was changed");
+            markovTextGenerator.setRegex("[a-z]*us");
+            int before = out.length();
+            markovTextGenerator.generateInto(out);
+            assertTrue(out.substring(before).matches("[a-z]*us"));
+        }
+
+        @Test
+        @DisplayName("gives the same names with a regex whatever the number of threads")
+        void givesTheSameNamesWithARegex() {
+            markovTextGenerator.setRegex("[^aeiou]*(a|e)[a-z]*s");
+            List<String> oneThread = markovTextGenerator.generateSeeded(7L,2000,1);
+            assertEquals(oneThread,markovTextGenerator.generateSeeded(7L,2000,3));
+            assertTrue(oneThread.stream().allMatch(n -> n.matches("[^aeiou]*(a|e)[a-z]*s")));
+        }
+
+        @Test
+        @DisplayName("reports an impossible filter from the worker threads")
+        void reportsAnImpossibleFilter() {
+            markovTextGenerator.setStartFilter("q");
+            assertThrows(IllegalStateException.class,() -> markovTextGenerator.generateSeeded(1L,5000,4));
+            assertThrows(IllegalArgumentException.class,() -> markovTextGenerator.generateSeeded(1L,-1,4));
+        }
+
+    }
+
+    @Nested
+    @DisplayName("generating in a batch")
+    class GeneratingInABatch {
+
+        private MarkovTextGenerator trained(MarkovTextGenerator generator) {
+            try(Stream<String> stream = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines()) {
+                return generator.train(stream);
+            }
+        }
+
+        // the share of texts in each class, e.g. of each length
+        private Map<Object,Double> shares(List<String> texts, Function<String,Object> classify) {
+            Map<Object,Double> shares = new HashMap<>();
+            for(String text: texts) {
+                shares.merge(classify.apply(text),1.0D/texts.size(),Double::sum);
+            }
+            return shares;
+        }
+
+        // half the sum of the differences in share, from 0 for identical distributions to 1 for disjoint ones
+        private double distance(Map<Object,Double> a, Map<Object,Double> b) {
+            Set<Object> classes = new HashSet<>(a.keySet());
+            classes.addAll(b.keySet());
+            return classes.stream().mapToDouble(c -> Math.abs(a.getOrDefault(c,0.0D)-b.getOrDefault(c,0.0D))).sum()/2;
+        }
+
+        private void assertSameDistribution(MarkovTextGenerator generator) {
+            int count = 30000;
+            List<String> batch = generator.generateBatch(count,new Random(1));
+            List<String> scalar = new ArrayList<>();
+            Random random = new Random(2);
+            for(int i=0;i<count;i++) {
+                scalar.add(generator.generateOne(random));
+            }
+            assertEquals(count,batch.size());
+            assertTrue(distance(shares(batch,String::length),shares(scalar,String::length))<0.025,"lengths should be distributed as generateOne's");
+            assertTrue(distance(shares(batch,t -> t.charAt(0)),shares(scalar,t -> t.charAt(0)))<0.025,"first letters should be distributed as generateOne's");
+            assertTrue(distance(shares(batch,t -> t.substring(t.length()-2)),shares(scalar,t -> t.substring(t.length()-2)))<0.05,"endings should be distributed as generateOne's");
+        }
+
+        @Test
+        @DisplayName("draws from the same distribution as generateOne()")
+        void drawsFromTheSameDistribution() {
+            MarkovTextGenerator generator = trained(new MarkovTextGenerator().withMinLength(3));
+            assertSameDistribution(generator);
+            generator.setTemperature(1.5D);
+            generator.setTopP(0.9D);
+            assertSameDistribution(generator);
+            generator.setTemperature(0.8D);
+            generator.setTopP(1.0D);
+            generator.setMinProbability(0.01D);
+            generator.setPrior(0.05D);
+            assertSameDistribution(generator);
+        }
+
+        @Test
+        @DisplayName("only generates names that pass the filters")
+        void passesTheFilters() {
+            MarkovTextGenerator generator = trained(new MarkovTextGenerator().withMinLength(5).withMaxLength(8).withStartFilter("m").withEndFilter("us"));
+            List<String> batch = generator.generateBatch(1000);
+            assertEquals(1000,batch.size());
+            for(String name: batch) {
+                assertTrue(name.length()>=5 && name.length()<=8,"name "+name+" was not in the length range");
+                assertTrue(name.startsWith("m") && name.endsWith("us"),"name "+name+" didn't match the filters");
+            }
+            // the filters may overlap, as they may for generateOne()
+            generator.setStartFilter("marc");
+            generator.setEndFilter("cus");
+            generator.setMinLength(1);
+            assertTrue(generator.generateBatch(200).stream().allMatch(n -> n.startsWith("marc") && n.endsWith("cus")));
+        }
+
+        @Test
+        @DisplayName("are predictable if the same random seed is used")
+        void arePredictable() {
+            MarkovTextGenerator generator = trained(new MarkovTextGenerator());
+            List<String> batch = generator.generateBatch(500,new Random(9));
+            assertEquals(batch,generator.generateBatch(500,new Random(9)));
+            assertNotEquals(batch,generator.generateBatch(500,new Random(10)));
+        }
+
+        @Test
+        @DisplayName("handles long names and characters outside the Basic Multilingual Plane")
+        void handlesLongNamesAndSupplementaryCharacters() {
+            MarkovTextGenerator generator = new MarkovTextGenerator().withOrder(2).withMinLength(40).withMaxLength(60)
+                    .train(Stream.of("\uD83D\uDE00a\uD83D\uDE00b\uD83D\uDE00a\uD83D\uDE00b\uD83D\uDE00a\uD83D\uDE00b\uD83D\uDE00a\uD83D\uDE00b\uD83D\uDE00a\uD83D\uDE00b\uD83D\uDE00a\uD83D\uDE00b","a\uD83D\uDE00"));
+            for(String name: generator.generateBatch(300)) {
+                int length = name.codePointCount(0,name.length());
+                assertTrue(length>=40 && length<=60,"name "+name+" was not in the length range");
+                assertTrue(name.codePoints().allMatch(c -> c=='a' || c=='b' || c==0x1F600),"name "+name+" had a broken surrogate pair");
+            }
+        }
+
+        @Test
+        @DisplayName("falls back to one name at a time with a regex or lazy compilation")
+        void fallsBackWithARegexOrLazyCompilation() {
+            MarkovTextGenerator generator = trained(new MarkovTextGenerator().withRegex("[a-z]*us"));
+            assertTrue(generator.generateBatch(100).stream().allMatch(n -> n.matches("[a-z]*us")));
+            MarkovTextGenerator lazy = trained(new MarkovTextGenerator().withLazyCompilation(true).withMaxLength(9));
+            assertTrue(lazy.generateBatch(100).stream().allMatch(n -> n.length()>=4 && n.length()<=9));
+        }
+
+        @Test
+        @DisplayName("rejects a bad count or an untrained model")
+        void rejectsBadInput() {
+            assertThrows(IllegalStateException.class,() -> new MarkovTextGenerator().generateBatch(10));
+            MarkovTextGenerator generator = trained(new MarkovTextGenerator());
+            assertThrows(IllegalArgumentException.class,() -> generator.generateBatch(-1));
+            assertTrue(generator.generateBatch(0).isEmpty());
+            generator.setStartFilter("7");
+            assertThrows(IllegalStateException.class,() -> generator.generateBatch(10));
+        }
+
+    }
+
+    @Nested
+    @DisplayName("compiled lazily")
+    class CompiledLazily {
+
+        MarkovTextGenerator eager;
+
+        private MarkovTextGenerator trained(MarkovTextGenerator generator) {
+            try(Stream<String> stream = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines()) {
+                return generator.train(stream);
+            }
+        }
+
+        @BeforeEach
+        void createInstances() {
+            markovTextGenerator = trained(new MarkovTextGenerator().withOrder(5).withLazyCompilation(true));
+            eager = trained(new MarkovTextGenerator().withOrder(5));
+        }
+
+        @Test
+        @DisplayName("generates exactly the names the eagerly compiled model does")
+        void generatesTheSameNames() {
+            assertTrue(markovTextGenerator.isLazyCompilation());
+            assertNull(markovTextGenerator.compiledModel,"the model should not have been compiled when training");
+            assertEquals(eager.generateSeeded(42L,3000,1),markovTextGenerator.generateSeeded(42L,3000,4));
+            for(MarkovTextGenerator generator: Arrays.asList(markovTextGenerator,eager)) {
+                generator.withStartFilter("ti").withEndFilter("us").withTemperature(0.7D).setTopP(0.95D);
+            }
+            assertEquals(eager.generateSeeded(7L,500,1),markovTextGenerator.generateSeeded(7L,500,1));
+            assertEquals(eager.withRandom(new Random(3)).randomCharacter("\u001Fma"),markovTextGenerator.withRandom(new Random(3)).randomCharacter("\u001Fma"));
+        }
+
+        @Test
+        @DisplayName("compiles only the prefixes that generation reaches")
+        void compilesOnlyThePrefixesReached() {
+            markovTextGenerator.setStartFilter("xan");
+            markovTextGenerator.generateSeeded(1L,200,1);
+            int compiled = markovTextGenerator.lazyModel.numCompiledPrefixes();
+            assertTrue(compiled > 0 && compiled < eager.compiledModel.numStates()/10,"compiled "+compiled+" of "+eager.compiledModel.numStates()+" prefixes");
+        }
+
+        @Test
+        @DisplayName("keeps no more than the maximum number of prefixes compiled")
+        void keepsNoMoreThanTheMaximum() {
+            markovTextGenerator = trained(new MarkovTextGenerator().withOrder(5).withLazyCompilation(true).withMaxCompiledPrefixes(50));
+            assertEquals(50,markovTextGenerator.getMaxCompiledPrefixes());
+            assertEquals(eager.generateSeeded(9L,1000,1),markovTextGenerator.generateSeeded(9L,1000,1));
+            assertTrue(markovTextGenerator.lazyModel.numCompiledPrefixes() <= 50);
+            assertThrows(IllegalArgumentException.class,() -> markovTextGenerator.setMaxCompiledPrefixes(-1));
+        }
+
+        @Test
+        @DisplayName("compiles the whole model when a feature needs it")
+        void compilesTheWholeModelWhenNeeded() {
+            assertEquals(eager.generateMostProbable(10),markovTextGenerator.generateMostProbable(10));
+            markovTextGenerator.setRegex("[a-z]*ia");
+            assertTrue(markovTextGenerator.generateOne().endsWith("ia"));
+            assertEquals(eager.compiledModel.numStates(),markovTextGenerator.compiledModel().numStates());
+            markovTextGenerator.compact();
+            assertNull(markovTextGenerator.lazyModel,"a compacted model is compiled in full");
+            assertEquals(5,markovTextGenerator.generateMostProbable(5).size());
+        }
+
+    }
+
+    @Nested
+    @DisplayName("once compacted")
+    class OnceCompacted {
+
+        @BeforeEach
+        void createInstanceWithStream() {
+            markovTextGenerator = new MarkovTextGenerator().withOrder(4).withRandom(new Random(42));
+            try(Stream<String> stream = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines()) {
+                markovTextGenerator.train(stream);
+            }
+        }
+
+        @Test
+        @DisplayName("rejects invalid settings")
+        void rejectsInvalidSettings() {
+            assertThrows(IllegalArgumentException.class,() -> markovTextGenerator.compact(2,12));
+            assertThrows(IllegalArgumentException.class,() -> markovTextGenerator.compact(0,8));
+            assertThrows(IllegalStateException.class,() -> new MarkovTextGenerator().compact());
+        }
+
+        @Test
+        @DisplayName("keeps every prediction when only quantized")
+        void keepsEveryPredictionWhenOnlyQuantized() {
+            int possibleBefore = markovTextGenerator.withMaxLength(6).countPossibleTexts().intValue();
+            CompactionReport report = markovTextGenerator.compact(1,16);
+            assertEquals(report.getPrefixesBefore(),report.getPrefixesAfter(),"no prefixes should have been pruned");
+            assertTrue(report.getDivergence() < 0.001D,"16-bit counts diverged by "+report.getDivergence());
+            assertEquals(possibleBefore,markovTextGenerator.countPossibleTexts().intValue(),"quantization should not make any observed sequence impossible");
+        }
+
+        @Test
+        @DisplayName("prunes rare prefixes and reports a smaller model")
+        void prunesRarePrefixes() {
+            CompactionReport report = markovTextGenerator.compact();
+            assertTrue(report.getPrefixesAfter() < report.getPrefixesBefore(),"no prefixes were pruned");
+            assertTrue(report.getReductionFactor() > 5.0D,"model only became "+report.getReductionFactor()+" times smaller");
+            assertTrue(report.getDivergence() > 0.0D && report.getDivergence() < 1.0D,"unexpected divergence "+report.getDivergence());
+        }
+
+        @Test
+        @DisplayName("still generates names that pass the filters")
+        void stillGeneratesNames() {
+            markovTextGenerator.compact();
+            markovTextGenerator.setStartFilter("ma");
+            markovTextGenerator.setEndFilter("us");
+            for(int i=0;i<20;i++) {
+                String name = markovTextGenerator.generateOne();
+                assertTrue(name.startsWith("ma") && name.endsWith("us"),"name "+name+" did not pass the filters");
+            }
+            assertEquals(5,markovTextGenerator.generateMostProbable(5).size());
+        }
+
+        @Test
+        @DisplayName("can't be trained any further")
+        void cantBeTrainedFurther() {
+            markovTextGenerator.compact();
+            assertThrows(IllegalStateException.class,() -> markovTextGenerator.train(names.stream()));
+        }
+
+    }
+
+    @Nested
+    @DisplayName("summarizing its model")
+    class Statistics {
+
+        private Stream<String> romans() {
+            return new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines();
+        }
+
+        @Test
+        @DisplayName("counts the prefixes, alphabet and transitions of a small model")
+        void countsASmallModel() {
+            assertThrows(IllegalStateException.class,() -> new MarkovTextGenerator().getStatistics());
+            ModelStatistics statistics = new MarkovTextGenerator().withOrder(1).train(Stream.of("ab","AB")).getStatistics();
+            assertEquals(3,statistics.getPrefixes(),"the control character, a and b");
+            assertEquals(3,statistics.getPrefixes(1));
+            assertEquals(2,statistics.getAlphabetSize());
+            assertEquals(0,statistics.getClusterCount());
+            assertEquals(3,statistics.getTransitions());
+            assertEquals(1.0D,statistics.getBranchingFactors().getMax());
+            assertEquals(0.0D,statistics.getEntropies().getMax());
+            assertEquals(2.0D,statistics.getExpectedLength(),1e-6);
+        }
+
+        @Test
+        @DisplayName("expects texts as long as the training data's and caches the result until compacted")
+        void expectsTheTrainingDataLength() {
+            markovTextGenerator = new MarkovTextGenerator().withOrder(3);
+            double meanLength;
+            try(Stream<String> stream = romans()) {
+                List<String> lines = new ArrayList<>();
+                stream.forEach(lines::add);
+                meanLength = lines.stream().mapToInt(String::length).average().orElse(0.0D);
+                markovTextGenerator.train(lines.stream());
+            }
+            ModelStatistics statistics = markovTextGenerator.getStatistics();
+            assertEquals(meanLength,statistics.getExpectedLength(),meanLength*0.01D);
+            assertEquals(markovTextGenerator.compiledModel.numStates(),statistics.getPrefixes());
+            assertEquals(3,statistics.getMaxOrder());
+            assertTrue(statistics.getPrefixes(3) > statistics.getPrefixes(1));
+            assertTrue(statistics.getBranchingFactors().getMean() > 1.0D && statistics.getEntropies().getMean() > 0.0D);
+            assertEquals(Arrays.asList("observations","compiled tables"),new ArrayList<>(statistics.getBytesByStructure().keySet()));
+            assertSame(statistics,markovTextGenerator.getStatistics());
+
+            markovTextGenerator.compact();
+            ModelStatistics compacted = markovTextGenerator.getStatistics();
+            assertNotSame(statistics,compacted);
+            assertTrue(compacted.getPrefixes() < statistics.getPrefixes());
+            assertTrue(compacted.getEstimatedBytes() < statistics.getEstimatedBytes());
+        }
+
+        @Test
+        @DisplayName("describes a lazily compiled model as it would an eager one")
+        void describesALazyModel() {
+            MarkovTextGenerator eager;
+            try(Stream<String> stream = romans()) {
+                eager = new MarkovTextGenerator().train(stream);
+            }
+            try(Stream<String> stream = romans()) {
+                markovTextGenerator = new MarkovTextGenerator().withLazyCompilation(true).train(stream);
+            }
+            ModelStatistics expected = eager.getStatistics();
+            ModelStatistics statistics = markovTextGenerator.getStatistics();
+            assertEquals(expected.getPrefixes(),statistics.getPrefixes());
+            assertEquals(expected.getTransitions(),statistics.getTransitions());
+            assertEquals(expected.getExpectedLength(),statistics.getExpectedLength(),1e-9);
+            assertTrue(statistics.getBytesByStructure().containsKey("lazily compiled rows"));
+        }
+
+    }
+
+    @Nested
+    @DisplayName("with characters outside the Basic Multilingual Plane")
+    class WithSupplementaryCharacters {
+
+        // each emoji is a surrogate pair, i.e. two chars but one code point
+        List<String> emojiNames = Arrays.asList("Tom\uD83D\uDE00","Tim\uD83D\uDE00","Ann\uD83C\uDF89x","\uD83C\uDF89Bob","Bo\uD83D\uDE00b");
+
+        @BeforeEach
+        void createInstanceWithStream() {
+            markovTextGenerator = new MarkovTextGenerator().withOrder(2).withPrior(0.01D).withMinLength(3).withMaxLength(5).withRandom(new Random(42)).train(emojiNames.stream());
+        }
+
+        @Test
+        @DisplayName("treats each one as a single character")
+        void treatsEachAsOneCharacter() {
+            assertTrue(markovTextGenerator.getAlphabet().contains(0x1F600),"the alphabet should hold the emoji's code point");
+            assertFalse(markovTextGenerator.getAlphabet().contains(0xD83D),"the alphabet should not hold half a surrogate pair");
+            assertEquals(Arrays.asList(0x1F600,0x1F600),markovTextGenerator.getObservations().get("m"));
+            assertTrue(markovTextGenerator.getObservations().containsKey("m\uD83D\uDE00"),"a prefix should count the emoji as one character");
+        }
+
+        @Test
+        @DisplayName("never splits a surrogate pair when generating")
+        void neverSplitsASurrogatePair() {
+            for(int i=0;i<200;i++) {
+                String name = markovTextGenerator.generateOne();
+                int length = name.codePointCount(0,name.length());
+                assertTrue(length>=3 && length<=5,"name "+name+" has "+length+" code points");
+                assertFalse(name.codePoints().anyMatch(c -> Character.getType(c) == Character.SURROGATE),"name "+name+" contains a lone surrogate");
+            }
+            markovTextGenerator.setEndFilter("\uD83D\uDE00");
+            assertTrue(markovTextGenerator.generateOne().endsWith("\uD83D\uDE00"));
+            assertTrue(markovTextGenerator.generateMostProbable(3).stream().allMatch(n -> n.endsWith("\uD83D\uDE00")));
+        }
+
+        @Test
+        @DisplayName("handles a large alphabet")
+        void handlesALargeAlphabet() {
+            // a thousand CJK ideographs, three to a name
+            List<String> hanNames = new ArrayList<>();
+            for(int i=0;i<1000;i++) {
+                hanNames.add(new String(new int[] {0x4E00+i, 0x4E00+(i*7)%1000, 0x4E00+(i*13)%1000},0,3));
+            }
+            markovTextGenerator = new MarkovTextGenerator().withMinLength(3).withMaxLength(3).train(hanNames.stream());
+            assertEquals(1001,markovTextGenerator.getAlphabet().size());
+            assertEquals(3,markovTextGenerator.generateOne().length());
+        }
+
+    }
+
     @Test
     @DisplayName("can be instantiated from a file")
     void canBeInstantiatedWithAFile() {
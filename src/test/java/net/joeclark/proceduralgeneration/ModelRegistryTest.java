@@ -0,0 +1,182 @@
+package net.joeclark.proceduralgeneration;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("ModelRegistry...")
+class ModelRegistryTest {
+
+    @TempDir
+    Path dir;
+
+    List<String> romans;
+
+    @BeforeEach
+    void writeModels() throws IOException {
+        try(Stream<String> stream = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines()) {
+            romans = stream.collect(Collectors.toList());
+        }
+        for (int i = 0; i < 4; i++) {
+            try (OutputStream out = Files.newOutputStream(dir.resolve("markov" + i))) {
+                new MarkovTextGenerator().train(romans.stream().skip(i)).getCounts().write(out);
+            }
+        }
+        for (int i = 0; i < 2; i++) {
+            try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(dir.resolve("cluster" + i)))) {
+                out.writeObject(new ClusterChainGenerator().train(romans.stream().skip(i)));
+            }
+        }
+    }
+
+    private ModelRegistry registry(long maxBytes) {
+        ModelRegistry registry = new ModelRegistry(maxBytes);
+        for (int i = 0; i < 4; i++) {
+            registry.registerMarkov("markov" + i, dir.resolve("markov" + i));
+        }
+        for (int i = 0; i < 2; i++) {
+            registry.registerCluster("cluster" + i, dir.resolve("cluster" + i));
+        }
+        return registry;
+    }
+
+    @Test
+    @DisplayName("loads models from their files when they're first asked for")
+    void loadsLazily() {
+        ModelRegistry registry = registry(ModelRegistry.DEFAULT_MAX_BYTES);
+        assertEquals(6, registry.getKeys().size());
+        assertEquals(0, registry.getResidentCount());
+        RandomTextGenerator markov = registry.get("markov0");
+        assertTrue(markov instanceof MarkovTextGenerator);
+        assertFalse(markov.generateOne().isEmpty());
+        assertTrue(registry.get("cluster1") instanceof ClusterChainGenerator);
+        assertSame(markov, registry.get("markov0"), "a resident model should be handed out again");
+        assertEquals(2, registry.getLoads());
+        assertEquals(1, registry.getHits());
+        assertTrue(registry.getResidentBytes() > 0);
+        assertThrows(IllegalArgumentException.class, () -> registry.get("nonexistent"));
+        assertThrows(IllegalArgumentException.class, () -> new ModelRegistry(0));
+    }
+
+    @Test
+    @DisplayName("evicts the least recently used models to stay within its budget, and loads them again when needed")
+    void evictsLeastRecentlyUsed() {
+        ModelRegistry probe = registry(ModelRegistry.DEFAULT_MAX_BYTES);
+        long largest = 0;
+        long smallest = Long.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            long before = probe.getResidentBytes();
+            probe.get("markov" + i);
+            largest = Math.max(largest, probe.getResidentBytes() - before);
+            smallest = Math.min(smallest, probe.getResidentBytes() - before);
+        }
+        ModelRegistry registry = registry(largest * 2 + smallest / 2); // room for two models, not three
+        registry.get("markov0");
+        registry.get("markov1");
+        registry.get("markov0");
+        registry.get("markov2");
+        assertTrue(registry.isResident("markov0"));
+        assertFalse(registry.isResident("markov1"), "the least recently used model should have been evicted");
+        assertTrue(registry.isResident("markov2"));
+        assertTrue(registry.getResidentBytes() <= registry.getMaxBytes());
+        assertEquals(1, registry.getEvictions());
+        assertFalse(registry.get("markov1").generateOne().isEmpty());
+        assertEquals(4, registry.getLoads());
+        assertFalse(registry.isResident("markov0"));
+        assertTrue(registry.evict("markov2"));
+        assertFalse(registry.evict("markov2"));
+        assertEquals(1, registry.getResidentCount());
+    }
+
+    @Test
+    @DisplayName("keeps a model that's bigger than the budget only until the next is loaded")
+    void keepsAnOversizedModelBriefly() {
+        ModelRegistry registry = registry(1);
+        registry.get("markov0");
+        assertTrue(registry.isResident("markov0"));
+        registry.get("cluster0");
+        assertFalse(registry.isResident("markov0"));
+        assertTrue(registry.isResident("cluster0"));
+    }
+
+    @Test
+    @DisplayName("shares equal alphabets and vowel sets between models")
+    void sharesAlphabetsAndVowels() {
+        ModelRegistry registry = registry(ModelRegistry.DEFAULT_MAX_BYTES);
+        MarkovTextGenerator first = (MarkovTextGenerator) registry.get("markov0");
+        MarkovTextGenerator second = (MarkovTextGenerator) registry.get("markov1");
+        assertEquals(first.getAlphabet(), new MarkovTextGenerator().train(romans.stream()).getAlphabet());
+        assertSame(first.getAlphabet(), second.getAlphabet());
+        assertSame(((ClusterChainGenerator) registry.get("cluster0")).getVowels(), ((ClusterChainGenerator) registry.get("cluster1")).getVowels());
+
+        Set<Integer> shared = first.getAlphabet();
+        first.train(Stream.of("Ωmega"));
+        assertTrue(first.getAlphabet().contains((int) 'ω'));
+        assertFalse(shared.contains((int) 'ω'), "training one model shouldn't change the alphabet it shared");
+        assertSame(shared, second.getAlphabet());
+    }
+
+    @Test
+    @DisplayName("reports a file it can't read, and tries again next time")
+    void reportsUnreadableFiles() throws IOException {
+        ModelRegistry registry = new ModelRegistry().registerMarkov("bad", dir.resolve("cluster0"))
+                .registerCluster("missing", dir.resolve("nonexistent"));
+        assertThrows(UncheckedIOException.class, () -> registry.get("bad"));
+        assertThrows(UncheckedIOException.class, () -> registry.get("missing"));
+        Files.copy(dir.resolve("cluster0"), dir.resolve("nonexistent"));
+        assertTrue(registry.get("missing") instanceof ClusterChainGenerator);
+    }
+
+    @Test
+    @DisplayName("loads a model only once when many threads ask for it at once")
+    void loadsOnceForManyThreads() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        ModelRegistry registry = new ModelRegistry().register("slow", dir.resolve("markov0"), in -> {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ModelRegistry.MARKOV.load(in);
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<RandomTextGenerator>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> registry.get("slow")));
+            }
+            RandomTextGenerator model = futures.get(0).get(5, TimeUnit.SECONDS);
+            for (Future<RandomTextGenerator> future : futures) {
+                assertSame(model, future.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, reads.get());
+        assertEquals(1, registry.getLoads());
+    }
+
+}
@@ -0,0 +1,131 @@
+package net.joeclark.proceduralgeneration;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("ModelResources...")
+class ModelResourcesTest {
+
+    List<String> romans;
+
+    @BeforeEach
+    void readCorpus() {
+        try(Stream<String> stream = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines()) {
+            romans = stream.collect(Collectors.toList());
+        }
+    }
+
+    private static RandomTextGenerator roundTrip(RandomTextGenerator generator) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ModelResources.write(generator, out);
+        return ModelResources.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static void assertGeneratesAlike(RandomTextGenerator expected, RandomTextGenerator actual) {
+        Random first = new Random(42);
+        Random second = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(expected.generateOne(first), actual.generateOne(second));
+        }
+    }
+
+    @Test
+    @DisplayName("reads back a Markov model, with its settings, that generates just as the original did")
+    void roundTripsMarkov() throws IOException {
+        MarkovTextGenerator original = new MarkovTextGenerator().withOrder(4).withPrior(0.01).withMinLength(5)
+                .withMaxLength(9).withStartFilter("ma").withTemperature(0.8).train(romans.stream());
+        MarkovTextGenerator loaded = (MarkovTextGenerator) roundTrip(original);
+        assertEquals(4, loaded.getOrder());
+        assertEquals(0.01, loaded.getPrior());
+        assertEquals(0.8, loaded.getTemperature());
+        assertEquals("ma", loaded.getStartFilter());
+        assertNull(loaded.getEndFilter());
+        assertEquals(original.getDatasetLength(), loaded.getDatasetLength());
+        assertEquals(original.getStatistics().getTransitions(), loaded.getStatistics().getTransitions());
+        assertGeneratesAlike(original, loaded);
+        assertThrows(IllegalStateException.class, () -> loaded.train(Stream.of("more")), "a loaded model has no counts to train further");
+
+        MarkovTextGenerator compacted = new MarkovTextGenerator().train(romans.stream());
+        compacted.compact();
+        assertGeneratesAlike(compacted, roundTrip(compacted));
+    }
+
+    @Test
+    @DisplayName("reads back cluster chain and random draw models")
+    void roundTripsClusterAndRandomDraw() throws IOException {
+        ClusterChainGenerator cluster = new ClusterChainGenerator().withEndFilter("us").train(romans.stream());
+        ClusterChainGenerator loadedCluster = (ClusterChainGenerator) roundTrip(cluster);
+        assertEquals(cluster, loadedCluster);
+        assertTrue(loadedCluster.generateOne().endsWith("us"));
+
+        RandomDrawGenerator draw = new RandomDrawGenerator().withMaxLength(8).train(romans.stream());
+        RandomDrawGenerator loadedDraw = (RandomDrawGenerator) roundTrip(draw);
+        assertEquals(draw.getWordList(), loadedDraw.getWordList());
+        assertEquals(8, loadedDraw.getMaxLength());
+        assertGeneratesAlike(draw, loadedDraw);
+
+        Map<String, Double> weights = new HashMap<>();
+        weights.put("Ælfric", 3.0);
+        weights.put("bede", 1.0);
+        RandomDrawGenerator weighted = new RandomDrawGenerator().trainWeighted(weights);
+        RandomDrawGenerator loadedWeighted = (RandomDrawGenerator) roundTrip(weighted);
+        assertEquals(weighted.getWeightedWords(), loadedWeighted.getWeightedWords());
+        assertArrayEquals(weighted.getWeights(), loadedWeighted.getWeights());
+    }
+
+    @Test
+    @DisplayName("refuses what it can't write, and streams that aren't models")
+    void refusesUnsupportedModels() {
+        assertThrows(IllegalStateException.class, () -> roundTrip(new MarkovTextGenerator()));
+        assertThrows(IllegalStateException.class, () -> roundTrip(new ClusterChainGenerator()));
+        MarkovTextCasePreservingGenerator casePreserving = new MarkovTextCasePreservingGenerator();
+        casePreserving.train(romans.stream());
+        assertThrows(IllegalArgumentException.class, () -> roundTrip(casePreserving));
+        assertThrows(IOException.class, () -> ModelResources.read(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8})));
+    }
+
+    @Test
+    @DisplayName("loads models from the classpath")
+    void loadsFromTheClasspath(@TempDir Path dir) throws IOException {
+        Files.createDirectories(dir.resolve("models"));
+        try (OutputStream out = Files.newOutputStream(dir.resolve("models/romans" + ModelResources.EXTENSION))) {
+            ModelResources.write(new MarkovTextGenerator().train(romans.stream()), out);
+        }
+        Files.write(dir.resolve("models/broken" + ModelResources.EXTENSION), new byte[] {0x52, 0x54});
+        Thread thread = Thread.currentThread();
+        ClassLoader original = thread.getContextClassLoader();
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {dir.toUri().toURL()}, original)) {
+            thread.setContextClassLoader(loader);
+            assertTrue(ModelResources.loadMarkov("models/romans.rtgm").isTrained());
+            assertTrue(ModelResources.loadMarkov("/models/romans.rtgm").isTrained());
+            assertThrows(IllegalArgumentException.class, () -> ModelResources.loadCluster("models/romans.rtgm"));
+            assertThrows(IllegalArgumentException.class, () -> ModelResources.loadMarkov("models/nonexistent.rtgm"));
+            assertThrows(UncheckedIOException.class, () -> ModelResources.load("models/broken.rtgm"));
+        } finally {
+            thread.setContextClassLoader(original);
+        }
+    }
+
+}
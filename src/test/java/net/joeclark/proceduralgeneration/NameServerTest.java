@@ -0,0 +1,150 @@
+package net.joeclark.proceduralgeneration;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("NameServer...")
+class NameServerTest {
+
+    NameServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        MarkovTextGenerator markov;
+        ClusterChainGenerator cluster;
+        try(Stream<String> stream = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines()) {
+            markov = new MarkovTextGenerator().train(stream);
+        }
+        try(Stream<String> stream = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/romans.txt"))).lines()) {
+            cluster = new ClusterChainGenerator().train(stream);
+        }
+        RandomDrawGenerator draw = new RandomDrawGenerator().train(Stream.of("Sextus","Titus","Gaius","Marcus"));
+        server = new NameServer()
+                .withGenerator("markov",markov)
+                .withGenerator("cluster",cluster)
+                .withGenerator("double",new DoubleTextGenerator(draw,markov," "))
+                .withPort(0).withThreads(2).withMaxCount(50000)
+                .start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop();
+    }
+
+    private URL url(String pathAndQuery) throws IOException {
+        return new URL("http://localhost:" + server.getPort() + pathAndQuery);
+    }
+
+    private List<String> get(String pathAndQuery) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url(pathAndQuery).openConnection();
+        assertEquals(200,connection.getResponseCode(),"unexpected status for "+pathAndQuery);
+        List<String> lines = new ArrayList<>();
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private int status(String pathAndQuery) throws IOException {
+        return ((HttpURLConnection) url(pathAndQuery).openConnection()).getResponseCode();
+    }
+
+    @Test
+    @DisplayName("lists its generators")
+    void listsItsGenerators() throws IOException {
+        assertEquals(java.util.Arrays.asList("markov","cluster","double"),get("/generators"));
+    }
+
+    @Test
+    @DisplayName("serves a batch of names, reproducibly if given a seed")
+    void servesABatch() throws IOException {
+        List<String> names = get("/generators/markov?count=20000&seed=42");
+        assertEquals(20000,names.size());
+        assertEquals(names,get("/generators/markov?count=20000&seed=42"));
+        assertEquals(1,get("/generators/cluster").size());
+        assertTrue(get("/generators/double?count=5").stream().allMatch(n -> n.contains(" ")));
+    }
+
+    @Test
+    @DisplayName("applies per-request filters without changing the shared generator")
+    void appliesPerRequestFilters() throws IOException {
+        for(String name: get("/generators/markov?count=200&startFilter=ma&maxLength=8&regex=%5Ba-z%5D*us")) {
+            assertTrue(name.startsWith("ma") && name.length()<=8 && name.endsWith("us"),"name "+name+" didn't pass the filters");
+        }
+        assertFalse(get("/generators/markov?count=200&seed=1").stream().allMatch(n -> n.startsWith("ma")),"filters leaked into the shared generator");
+        for(String name: get("/generators/cluster?count=50&endFilter=ia")) {
+            assertTrue(name.endsWith("ia"),"name "+name+" didn't pass the endFilter");
+        }
+    }
+
+    @Test
+    @DisplayName("reports bad requests")
+    void reportsBadRequests() throws IOException {
+        assertEquals(404,status("/generators/nobody"));
+        assertEquals(400,status("/generators/markov?count=abc"));
+        assertEquals(400,status("/generators/markov?count=50001"));
+        assertEquals(400,status("/generators/markov?regex=(a"));
+        assertEquals(400,status("/generators/double?startFilter=a"));
+        assertEquals(422,status("/generators/markov?regex=%5B0-9%5D%2B"));
+    }
+
+    @Test
+    @DisplayName("reports generators that can't serve requests, and cuts short a response that fails partway through")
+    void reportsFailedGenerators() throws IOException {
+        server.stop();
+        int[] calls = {0};
+        RandomTextGenerator failing = new RandomTextGenerator() {
+            @Override
+            public String generateOne() {
+                return generateOne(new Random());
+            }
+
+            @Override
+            public String generateOne(Random random) {
+                if(++calls[0] > 10) {
+                    throw new IllegalStateException("ran out of names");
+                }
+                return "Titus";
+            }
+        };
+        server = new NameServer()
+                .withGenerator("failing",failing)
+                .withGenerator("plain",() -> "Titus") // doesn't take a Random
+                .withPort(0).withThreads(1)
+                .start();
+        assertEquals(400,status("/generators/plain"));
+        assertEquals(5,get("/generators/failing?count=5").size());
+        assertThrows(IOException.class,() -> get("/generators/failing?count=100"),"a failed response should not look complete");
+    }
+
+    @Test
+    @DisplayName("can be load-tested")
+    void canBeLoadTested() throws Exception {
+        NameServerLoadClient.Report report = NameServerLoadClient.run(url("/generators/markov?count=100"),4,200);
+        assertEquals(200,report.getRequests());
+        assertEquals(0,report.getFailures());
+        assertEquals(20000,report.getStrings());
+        assertTrue(report.getStringsPerSecond() > 0);
+        assertTrue(report.getLatencyMillis(50) <= report.getLatencyMillis(99));
+    }
+
+}
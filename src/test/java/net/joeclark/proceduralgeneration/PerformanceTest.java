@@ -0,0 +1,260 @@
+package net.joeclark.proceduralgeneration;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Allocation and throughput regression tests, for every generator in a few filter configurations, measured against
+ * the baselines in {@code src/test/resources/performance-baselines.properties}.  The bytes allocated per name (and
+ * per training string) are measured with {@code ThreadMXBean.getThreadAllocatedBytes}, which is steady enough from
+ * run to run to check in every build, so a change that brings back boxing or per-character substrings fails the
+ * build.  Throughput depends on the machine, so those tests are tagged "throughput" and only run with
+ * {@code mvn test -Pperformance}.  To record new baselines, run with {@code -Dperformance.record=true} and copy
+ * {@code target/performance-baselines.properties} over the checked-in file.
+ */
+@DisplayName("Performance...")
+class PerformanceTest {
+
+    private static final int WARMUP_NAMES = 5000;
+    private static final int MEASURED_NAMES = 5000;
+    private static final long THROUGHPUT_NANOS = 500_000_000L;
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final boolean RECORDING = Boolean.getBoolean("performance.record");
+    private static final Properties baselines = new Properties();
+    private static final Properties measured = new Properties();
+    private static final Map<String, RandomTextGenerator> generators = new LinkedHashMap<>();
+    private static List<String> romans;
+
+    @BeforeAll
+    static void trainGenerators() throws IOException {
+        try (InputStream in = PerformanceTest.class.getResourceAsStream("/performance-baselines.properties")) {
+            baselines.load(in);
+        }
+        try (Stream<String> stream = new BufferedReader(new InputStreamReader(PerformanceTest.class.getResourceAsStream("/romans.txt"))).lines()) {
+            romans = stream.collect(Collectors.toList());
+        }
+        generators.put("markov", new MarkovTextGenerator().train(romans.stream()));
+        generators.put("markov-lazy", new MarkovTextGenerator().withLazyCompilation(true).train(romans.stream()));
+        MarkovTextGenerator compacted = new MarkovTextGenerator().train(romans.stream());
+        compacted.compact();
+        generators.put("markov-compacted", compacted);
+        generators.put("markov-start-end", new MarkovTextGenerator().withStartFilter("ma").withEndFilter("us").train(romans.stream()));
+        generators.put("markov-length", new MarkovTextGenerator().withMinLength(7).withMaxLength(9).train(romans.stream()));
+        generators.put("markov-regex", new MarkovTextGenerator().withRegex("[a-z]*ia").train(romans.stream()));
+        MarkovTextCasePreservingGenerator casePreserving = new MarkovTextCasePreservingGenerator();
+        casePreserving.train(romans.stream());
+        generators.put("markov-case-preserving", casePreserving);
+        generators.put("cluster", new ClusterChainGenerator().train(romans.stream()));
+        generators.put("cluster-start-end", new ClusterChainGenerator().withStartFilter("ma").withEndFilter("us").train(romans.stream()));
+        generators.put("cluster-regex", new ClusterChainGenerator().withRegex("[a-z]*ia").train(romans.stream()));
+        generators.put("random-draw", new RandomDrawGenerator().train(romans.stream()));
+        generators.put("random-draw-start-end", new RandomDrawGenerator().withStartFilter("ma").withEndFilter("us").train(romans.stream()));
+        generators.put("double", new DoubleTextGenerator(generators.get("markov"), generators.get("cluster"), " "));
+    }
+
+    @AfterAll
+    static void writeMeasurements() throws IOException {
+        if (RECORDING) {
+            try (OutputStream out = new FileOutputStream("target/performance-baselines.properties")) {
+                measured.store(out, "measured by PerformanceTest");
+            }
+        }
+    }
+
+    static Stream<String> configurations() {
+        return Stream.of("markov", "markov-lazy", "markov-compacted", "markov-start-end", "markov-length", "markov-regex",
+                "markov-case-preserving", "cluster", "cluster-start-end", "cluster-regex", "random-draw",
+                "random-draw-start-end", "double");
+    }
+
+    static Stream<String> batchConfigurations() {
+        return Stream.of("markov", "markov-start-end", "markov-length");
+    }
+
+    static Stream<String> trainers() {
+        return Stream.of("markov", "cluster", "random-draw");
+    }
+
+    private static Supplier<RandomTextGenerator> trainer(String name) {
+        switch (name) {
+            case "markov": return () -> new MarkovTextGenerator().train(romans.stream());
+            case "cluster": return () -> new ClusterChainGenerator().train(romans.stream());
+            case "random-draw": return () -> new RandomDrawGenerator().train(romans.stream());
+            default: throw new IllegalArgumentException(name);
+        }
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void assumeAllocationIsMeasurable() {
+        Assumptions.assumeTrue(THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled(),
+                "this JVM doesn't measure allocation per thread");
+    }
+
+    private static double baseline(String key) {
+        String value = baselines.getProperty(key);
+        assertNotNull(value, "no baseline for " + key + "; record one with -Dperformance.record=true");
+        return Double.parseDouble(value);
+    }
+
+    // allocation may grow by a factor of the tolerance, plus a few bytes' slack for the JIT's whims
+    private static void assertAllocationWithinBaseline(String key, double bytes) {
+        measured.setProperty(key, String.format("%.0f", bytes));
+        if (!RECORDING) {
+            double limit = baseline(key) * baseline("allocation.tolerance") + baseline("allocation.slack");
+            assertTrue(bytes <= limit, String.format("%s: %.0f bytes allocated, more than the limit of %.0f", key, bytes, limit));
+        }
+    }
+
+    private static void assertThroughputWithinBaseline(String key, double perSecond) {
+        measured.setProperty(key, String.format("%.0f", perSecond));
+        if (!RECORDING) {
+            double limit = baseline(key) * baseline("throughput.tolerance");
+            assertTrue(perSecond >= limit, String.format("%s: %.0f per second, less than the limit of %.0f", key, perSecond, limit));
+        }
+    }
+
+    @Nested
+    @DisplayName("allocation")
+    class Allocation {
+
+        @ParameterizedTest(name = "per name generated by {0}")
+        @MethodSource("net.joeclark.proceduralgeneration.PerformanceTest#configurations")
+        void perName(String configuration) {
+            assumeAllocationIsMeasurable();
+            RandomTextGenerator generator = generators.get(configuration);
+            Random random = new Random(42);
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < WARMUP_NAMES; i++) {
+                out.setLength(0);
+                generator.generateInto(random, out);
+            }
+            long before = allocatedBytes();
+            for (int i = 0; i < MEASURED_NAMES; i++) {
+                out.setLength(0);
+                generator.generateInto(random, out);
+            }
+            double bytesPerName = (double) (allocatedBytes() - before) / MEASURED_NAMES;
+            assertAllocationWithinBaseline(configuration + ".bytesPerName", bytesPerName);
+        }
+
+        @ParameterizedTest(name = "per name generated in a batch by {0}")
+        @MethodSource("net.joeclark.proceduralgeneration.PerformanceTest#batchConfigurations")
+        void perBatchedName(String configuration) {
+            assumeAllocationIsMeasurable();
+            MarkovTextGenerator generator = (MarkovTextGenerator) generators.get(configuration);
+            Random random = new Random(42);
+            generator.generateBatch(WARMUP_NAMES, random);
+            long before = allocatedBytes();
+            generator.generateBatch(MEASURED_NAMES, random);
+            double bytesPerName = (double) (allocatedBytes() - before) / MEASURED_NAMES;
+            assertAllocationWithinBaseline(configuration + ".batchBytesPerName", bytesPerName);
+        }
+
+        @ParameterizedTest(name = "per string trained on by {0}")
+        @MethodSource("net.joeclark.proceduralgeneration.PerformanceTest#trainers")
+        void perTrainingString(String trainer) {
+            assumeAllocationIsMeasurable();
+            Supplier<RandomTextGenerator> train = trainer(trainer);
+            train.get(); // warm up
+            long before = allocatedBytes();
+            train.get();
+            double bytesPerString = (double) (allocatedBytes() - before) / romans.size();
+            assertAllocationWithinBaseline(trainer + ".trainingBytesPerString", bytesPerString);
+        }
+
+    }
+
+    @Nested
+    @Tag("throughput")
+    @DisplayName("throughput")
+    class Throughput {
+
+        @ParameterizedTest(name = "of names generated by {0}")
+        @MethodSource("net.joeclark.proceduralgeneration.PerformanceTest#configurations")
+        void ofNames(String configuration) {
+            RandomTextGenerator generator = generators.get(configuration);
+            Random random = new Random(42);
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < WARMUP_NAMES; i++) {
+                out.setLength(0);
+                generator.generateInto(random, out);
+            }
+            long names = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                for (int i = 0; i < 1000; i++) {
+                    out.setLength(0);
+                    generator.generateInto(random, out);
+                }
+                names += 1000;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < THROUGHPUT_NANOS);
+            assertThroughputWithinBaseline(configuration + ".namesPerSecond", names * 1e9 / elapsed);
+        }
+
+        @ParameterizedTest(name = "of names generated in batches by {0}")
+        @MethodSource("net.joeclark.proceduralgeneration.PerformanceTest#batchConfigurations")
+        void ofBatchedNames(String configuration) {
+            MarkovTextGenerator generator = (MarkovTextGenerator) generators.get(configuration);
+            Random random = new Random(42);
+            generator.generateBatch(WARMUP_NAMES, random);
+            long names = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                generator.generateBatch(1000, random);
+                names += 1000;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < THROUGHPUT_NANOS);
+            assertThroughputWithinBaseline(configuration + ".batchNamesPerSecond", names * 1e9 / elapsed);
+        }
+
+        @ParameterizedTest(name = "of training by {0}")
+        @MethodSource("net.joeclark.proceduralgeneration.PerformanceTest#trainers")
+        void ofTraining(String trainer) {
+            Supplier<RandomTextGenerator> train = trainer(trainer);
+            train.get(); // warm up
+            List<Long> times = new ArrayList<>();
+            long start = System.nanoTime();
+            do {
+                long before = System.nanoTime();
+                train.get();
+                times.add(System.nanoTime() - before);
+            } while (System.nanoTime() - start < THROUGHPUT_NANOS);
+            long best = times.stream().mapToLong(Long::longValue).min().orElse(1L);
+            assertThroughputWithinBaseline(trainer + ".trainingStringsPerSecond", romans.size() * 1e9 / best);
+        }
+
+    }
+
+}
@@ -5,10 +5,15 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import java.util.AbstractMap;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -89,6 +94,22 @@ class RandomDrawGeneratorTest {
             }
         }
 
+        @Test
+        @DisplayName("Stores the training data in a packed arena")
+        void storesTrainingDataPacked() {
+            long characters = moreNames.stream().mapToLong(String::length).sum();
+            assertTrue(randomDrawGenerator.getEstimatedBytes() < characters + 8L * moreNames.size(),"estimated "+randomDrawGenerator.getEstimatedBytes()+" bytes for "+characters+" characters");
+            assertEquals(moreNames.stream().map(String::toLowerCase).collect(Collectors.toList()),randomDrawGenerator.getWordList());
+        }
+
+        @Test
+        @DisplayName("Handles characters outside the Latin-1 range")
+        void handlesNonLatinCharacters() {
+            randomDrawGenerator.train(Stream.of("Αφροδίτη","Ἄρτεμις","Zeus"));
+            randomDrawGenerator.setStartFilter("ἄ");
+            assertEquals("ἄρτεμις",randomDrawGenerator.generateOne());
+        }
+
         @Test
         @DisplayName("are predictable if the same random seed is used")
         void arePredictableWithAGivenRandomSeed() {
@@ -97,8 +118,168 @@ class RandomDrawGeneratorTest {
             assertEquals(randomDrawGenerator.generateOne(),anotherGenerator.generateOne(),"two RandomDrawGenerators with the same random seed produced different strings");
         }
 
+        @Test
+        @DisplayName("Draws into a StringBuilder the same strings as generateOne()")
+        void drawsIntoAStringBuilder() {
+            randomDrawGenerator = new RandomDrawGenerator().withMinLength(5).train(Stream.of("Sextus","Titus","Gaius","Marcus","Élodie","Zoë"));
+            StringBuilder out = new StringBuilder("Names: ");
+            for(int i=0;i<30;i++) {
+                int before = out.length();
+                String expected = randomDrawGenerator.generateOne(new Random(i));
+                assertEquals(expected.length(),randomDrawGenerator.generateInto(new Random(i),out));
+                assertEquals(expected,out.substring(before));
+            }
+            assertTrue(out.toString().startsWith("Names: "),"existing content was changed");
+        }
+
+
+    }
+
+    @Nested
+    @DisplayName("In weighted mode...")
+    class InWeightedMode {
+
+        @Test
+        @DisplayName("Combines duplicates and draws them in proportion to their counts")
+        void drawsInProportionToCounts() {
+            randomDrawGenerator = new RandomDrawGenerator().withRandom(new Random(42)).trainWeighted(Arrays.asList("Ann","ann","ANN","Bob").stream());
+            int anns = 0;
+            for(int i=0;i<10000;i++) {
+                String draw = randomDrawGenerator.generateOne();
+                assertTrue(draw.equals("ann") || draw.equals("bob"),"Random word "+draw+" was not in training data");
+                if(draw.equals("ann")) anns++;
+            }
+            assertEquals(7500,anns,250,"'ann' appears three times as often as 'bob' but was drawn "+anns+" times in 10000");
+        }
+
+        @Test
+        @DisplayName("Accepts explicit weights")
+        void acceptsExplicitWeights() {
+            Map<String,Double> census = new HashMap<>();
+            census.put("Smith",0.9D);
+            census.put("Jones",0.1D);
+            census.put("Nobody",0.0D);
+            randomDrawGenerator = new RandomDrawGenerator().withRandom(new Random(42)).trainWeighted(census);
+            int smiths = 0;
+            for(int i=0;i<10000;i++) {
+                String draw = randomDrawGenerator.generateOne();
+                assertNotEquals("nobody",draw,"drew a string with zero weight");
+                if(draw.equals("smith")) smiths++;
+            }
+            assertEquals(9000,smiths,250);
+            census.put("Negative",-1.0D);
+            assertThrows(IllegalArgumentException.class,() -> randomDrawGenerator.trainWeighted(census));
+        }
+
+        @Test
+        @DisplayName("Only draws strings that pass the filters, and notices when filters change")
+        void onlyDrawsStringsThatPassFilters() {
+            randomDrawGenerator = new RandomDrawGenerator().withStartFilter("H").trainWeighted(moreNames.stream());
+            for(int i=0;i<20;i++) {
+                assertTrue(randomDrawGenerator.generateOne().startsWith("h"));
+            }
+            randomDrawGenerator.setStartFilter("T");
+            randomDrawGenerator.setMaxLength(5);
+            for(int i=0;i<20;i++) {
+                String draw = randomDrawGenerator.generateOne();
+                assertTrue(draw.startsWith("t") && draw.length()<=5,"Random word "+draw+" didn't pass the filters");
+            }
+        }
+
+        @Test
+        @DisplayName("Gives the same draws from a seed whatever the number of threads")
+        void givesTheSameDrawsFromASeed() {
+            randomDrawGenerator = new RandomDrawGenerator().withMaxLength(6).trainWeighted(moreNames.stream());
+            List<String> oneThread = randomDrawGenerator.generateSeeded(42L,5000,1);
+            assertEquals(oneThread,randomDrawGenerator.generateSeeded(42L,5000,4));
+            assertTrue(oneThread.stream().allMatch(w -> w.length()<=6));
+        }
+
+        @Test
+        @DisplayName("Draws weighted strings into a StringBuilder, the same as generateOne()")
+        void drawsWeightedStringsIntoAStringBuilder() {
+            randomDrawGenerator = new RandomDrawGenerator().withMaxLength(6).withEndFilter("s").trainWeighted(Stream.of("Sextus","Titus","Titus","Gaius","Marcus","Marcus","Marcus","Élodie"));
+            StringBuilder out = new StringBuilder("Names: ");
+            for(int i=0;i<30;i++) {
+                int before = out.length();
+                String expected = randomDrawGenerator.generateOne(new Random(i));
+                assertEquals(expected.length(),randomDrawGenerator.generateInto(new Random(i),out));
+                assertEquals(expected,out.substring(before));
+                assertTrue(expected.length()<=6 && expected.endsWith("s"),"Random word "+expected+" didn't pass the filters");
+            }
+            assertTrue(out.toString().startsWith("Names: "),"existing content was changed");
+        }
+
+        @Test
+        @DisplayName("Only draws strings that match a regex")
+        void onlyDrawsStringsThatMatchARegex() {
+            randomDrawGenerator = new RandomDrawGenerator().withRegex("[^aeiou]+e[a-z]*s").trainWeighted(moreNames.stream());
+            assertEquals("[^aeiou]+e[a-z]*s",randomDrawGenerator.getRegex());
+            for(int i=0;i<20;i++) {
+                String draw = randomDrawGenerator.generateOne();
+                assertTrue(draw.matches("[^aeiou]+e[a-z]*s"),"Random word "+draw+" didn't match the regex");
+            }
+            randomDrawGenerator.setRegex("x.*");
+            assertThrows(IllegalStateException.class,() -> randomDrawGenerator.generateOne());
+        }
+
+        @Test
+        @DisplayName("Throws an exception instead of looping forever if no string passes the filters")
+        void throwsIfFiltersAreImpossible() {
+            randomDrawGenerator = new RandomDrawGenerator().withStartFilter("X").trainWeighted(moreNames.stream());
+            assertThrows(IllegalStateException.class,() -> randomDrawGenerator.generateOne());
+        }
+
+    }
+
+    @Nested
+    @DisplayName("When trained on a sample...")
+    class WhenTrainedOnASample {
+
+        @Test
+        @DisplayName("Keeps no more than the capacity")
+        void keepsNoMoreThanTheCapacity() {
+            randomDrawGenerator = new RandomDrawGenerator().trainSample(IntStream.range(0,100000).mapToObj(i -> "Name"+i),100);
+            assertEquals(100,randomDrawGenerator.getWordList().size());
+            assertTrue(randomDrawGenerator.generateOne().startsWith("name"),"sampled strings were not lowercased");
+            randomDrawGenerator.trainSample(moreNames.stream(),100);
+            assertEquals(moreNames.size(),randomDrawGenerator.getWordList().size(),"a short source should be kept whole");
+        }
+
+        @Test
+        @DisplayName("Gives every line the same chance of being kept")
+        void givesEveryLineTheSameChance() {
+            int[] kept = new int[100];
+            Random random = new Random(42);
+            for(int trial=0;trial<2000;trial++) {
+                randomDrawGenerator = new RandomDrawGenerator().withRandom(random).trainSample(IntStream.range(0,100).mapToObj(String::valueOf),10);
+                randomDrawGenerator.getWordList().forEach(w -> kept[Integer.parseInt(w)]++);
+            }
+            for(int i=0;i<100;i++) {
+                assertEquals(200,kept[i],60,"line "+i+" was kept "+kept[i]+" times in 2000 samples of 10 out of 100");
+            }
+        }
 
+        @Test
+        @DisplayName("Adjusts the weights of a weighted sample to keep draws in proportion")
+        void adjustsWeightsOfAWeightedSample() {
+            Stream<Map.Entry<String,Integer>> source = Stream.concat(
+                    Stream.of(new AbstractMap.SimpleEntry<>("Heavy",10000)),
+                    IntStream.range(0,10000).mapToObj(i -> new AbstractMap.SimpleEntry<>("Light"+i,1)));
+            randomDrawGenerator = new RandomDrawGenerator().withRandom(new Random(42)).trainWeightedSample(source,200);
+            int heavy = 0;
+            for(int i=0;i<10000;i++) {
+                if(randomDrawGenerator.generateOne().equals("heavy")) heavy++;
+            }
+            assertEquals(5000,heavy,500,"'heavy' has half the weight of the source but was drawn "+heavy+" times in 10000");
+        }
+
+        @Test
+        @DisplayName("Rejects a capacity less than one")
+        void rejectsAnInvalidCapacity() {
+            assertThrows(IllegalArgumentException.class,() -> new RandomDrawGenerator().trainSample(moreNames.stream(),0));
+        }
 
     }
 
-}
\ No newline at end of file
+}
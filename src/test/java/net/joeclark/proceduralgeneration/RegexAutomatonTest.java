@@ -0,0 +1,76 @@
+package net.joeclark.proceduralgeneration;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("RegexAutomaton...")
+class RegexAutomatonTest {
+
+    List<String> patterns = Arrays.asList(
+            "abc", "a*b", "(ab|ba)+", "[a-c]{2,3}x?", "[^ab]*a.b", "(?:a|bc)*c{2}", "\\d+\\.\\d*", "\\w\\s\\W",
+            "a{0,2}b{3,}", "^(a|b)*?c$", "[a\\-c]+", "a\\*b", ".*(aa|bb).*", "[\\dab]*", ""
+    );
+
+    private static boolean accepts(TextAutomaton automaton, String text) {
+        int state = automaton.step(automaton.start(), text);
+        return state != TextAutomaton.DEAD && automaton.isAccepting(state);
+    }
+
+    @Test
+    @DisplayName("accepts the same texts as String.matches()")
+    void acceptsTheSameTextsAsStringMatches() {
+        String alphabet = "abcx1. -*";
+        Random random = new Random(42);
+        for(String pattern: patterns) {
+            RegexAutomaton automaton = new RegexAutomaton(pattern);
+            for(int i=0;i<2000;i++) {
+                StringBuilder text = new StringBuilder();
+                int length = random.nextInt(7);
+                for(int j=0;j<length;j++) {
+                    text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+                assertEquals(text.toString().matches(pattern),accepts(automaton,text.toString()),"pattern "+pattern+" on text \""+text+"\"");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("reports a dead state as soon as a text can no longer match")
+    void reportsADeadStateEarly() {
+        RegexAutomaton automaton = new RegexAutomaton("ab*c");
+        assertEquals(TextAutomaton.DEAD,automaton.step(automaton.start(),"b"));
+        assertEquals(TextAutomaton.DEAD,automaton.step(automaton.start(),"abbcb"));
+        assertNotEquals(TextAutomaton.DEAD,automaton.step(automaton.start(),"abb"));
+    }
+
+    @Test
+    @DisplayName("treats a supplementary character as one character")
+    void treatsASupplementaryCharacterAsOne() {
+        RegexAutomaton automaton = new RegexAutomaton("a.b");
+        assertTrue(accepts(automaton,"a😀b"));
+        assertTrue(accepts(new RegexAutomaton("[😀-🙏]+"),"😃😀"));
+    }
+
+    @Test
+    @DisplayName("only builds the states it reaches")
+    void onlyBuildsTheStatesItReaches() {
+        RegexAutomaton automaton = new RegexAutomaton("(a|b)*a(a|b){8}");
+        automaton.step(automaton.start(),"ab");
+        assertTrue(automaton.numStatesBuilt() < 10,"built "+automaton.numStatesBuilt()+" states to read two characters");
+    }
+
+    @Test
+    @DisplayName("rejects malformed and non-regular patterns")
+    void rejectsBadPatterns() {
+        for(String pattern: Arrays.asList("(ab","ab)","a**","[a-","a{3,1}","(a)\\1","a(?=b)","a(?!b)","a++","(?i)a","\\p{L}","[\\W]","a{2000}")) {
+            assertThrows(IllegalArgumentException.class,() -> new RegexAutomaton(pattern),"pattern "+pattern);
+        }
+    }
+
+}